@@ -21,7 +21,8 @@
  ******************************************************************************/
 package net.sf.taverna.t2.provenance.api;
 
-import java.sql.Connection;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
@@ -39,13 +40,16 @@ import net.sf.taverna.t2.invocation.InvocationContext;
 import net.sf.taverna.t2.invocation.impl.InvocationContextImpl;
 import net.sf.taverna.t2.provenance.ProvenanceConnectorFactory;
 import net.sf.taverna.t2.provenance.ProvenanceConnectorFactoryRegistry;
+import net.sf.taverna.t2.provenance.connector.JDBCConnector;
 import net.sf.taverna.t2.provenance.connector.ProvenanceConnector;
 import net.sf.taverna.t2.provenance.connector.ProvenanceConnector.ProcessorEnactmentTable;
 import net.sf.taverna.t2.provenance.lineageservice.Dependencies;
 import net.sf.taverna.t2.provenance.lineageservice.LineageQueryResultRecord;
 import net.sf.taverna.t2.provenance.lineageservice.ProvenanceAnalysis;
+import net.sf.taverna.t2.provenance.lineageservice.ProvenanceCursor;
 import net.sf.taverna.t2.provenance.lineageservice.ProvenanceQuery;
 import net.sf.taverna.t2.provenance.lineageservice.ProvenanceWriter;
+import net.sf.taverna.t2.provenance.lineageservice.RunPurger;
 import net.sf.taverna.t2.provenance.lineageservice.utils.Collection;
 import net.sf.taverna.t2.provenance.lineageservice.utils.DataLink;
 import net.sf.taverna.t2.provenance.lineageservice.utils.DataflowInvocation;
@@ -55,6 +59,7 @@ import net.sf.taverna.t2.provenance.lineageservice.utils.Port;
 import net.sf.taverna.t2.provenance.lineageservice.utils.Workflow;
 import net.sf.taverna.t2.provenance.lineageservice.utils.WorkflowRun;
 import net.sf.taverna.t2.provenance.lineageservice.utils.WorkflowTree;
+import net.sf.taverna.t2.provenance.opm.OPMStreamExporter;
 import net.sf.taverna.t2.reference.ReferenceService;
 import net.sf.taverna.t2.reference.T2Reference;
 import net.sf.taverna.t2.reference.impl.T2ReferenceImpl;
@@ -76,10 +81,16 @@ import org.springframework.context.ApplicationContext;
 public class ProvenanceAccess {
 
 	private static Logger logger = Logger.getLogger(ProvenanceAccess.class);
+
+	/**
+	 * The pool made by the last call to initDataSource, closed when a later call replaces it
+	 */
+	private static BasicDataSource pooledDataSource;
 	ProvenanceConnector provenanceConnector = null;
 	ProvenanceAnalysis pa = null;
 	ProvenanceQuery pq;
 	ProvenanceWriter pw;
+	private RunPurger runPurger;
 	
 	private String connectorType;
 	private boolean computeOPMGraph;
@@ -107,8 +118,10 @@ public class ProvenanceAccess {
 	}
 
 	/**
-	 * Initialises a named JNDI DataSource if not already set up externally.
-	 * The DataSource is named jdbc/taverna
+	 * Initialises the DataSource used for the provenance database, a pool of up to maxActive connections
+	 * that validates connections and caches prepared statements
+	 * (see {@link JDBCConnector#createPooledDataSource(String, String, String, String, int, int, int)}).
+	 * It is also bound in JNDI as jdbc/taverna, where the default Reference Service looks for it.
 	 *
 	 * @param driverClassName - the classname for the driver to be used.
 	 * @param jdbcUrl - the jdbc connection url
@@ -119,34 +132,46 @@ public class ProvenanceAccess {
 	 * @param maxActive - if the driver supports multiple connections, then the minumum number of connections in the pool
 	 */
 	public static void initDataSource(String driverClassName, String jdbcUrl, String username, String password, int minIdle, int maxIdle, int maxActive) {
-		System.setProperty(Context.INITIAL_CONTEXT_FACTORY,
-		"org.osjava.sj.memory.MemoryContextFactory");
-		System.setProperty("org.osjava.sj.jndi.shared", "true");
-
-		BasicDataSource ds = new BasicDataSource();
-		ds.setDriverClassName(driverClassName);
-		ds.setDefaultTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
-		ds.setMaxActive(maxActive);
-		ds.setMinIdle(minIdle);
-		ds.setMaxIdle(maxIdle);
-		ds.setDefaultAutoCommit(true);
-		if (username != null) {
-			ds.setUsername(username);
+		initDataSource(driverClassName, jdbcUrl, username, password, minIdle, maxIdle, maxActive, true);
+	}
+
+	/**
+	 * As {@link #initDataSource(String, String, String, String, int, int, int)}, binding the DataSource
+	 * in JNDI only if bindJndi is true. The provenance connector uses it either way, the JNDI
+	 * binding is only needed by components that look jdbc/taverna up themselves, such as a
+	 * Reference Service created with {@link #initDefaultReferenceService()}.
+	 */
+	public static void initDataSource(String driverClassName, String jdbcUrl, String username, String password, int minIdle, int maxIdle, int maxActive, boolean bindJndi) {
+		BasicDataSource ds = JDBCConnector.createPooledDataSource(driverClassName, jdbcUrl, username, password, minIdle, maxIdle, maxActive);
+		BasicDataSource previous;
+		synchronized (ProvenanceAccess.class) {
+			previous = pooledDataSource;
+			pooledDataSource = ds;
 		}
-		if (password != null) {
-			ds.setPassword(password);
+		JDBCConnector.setDataSource(ds);
+
+		if (bindJndi) {
+			System.setProperty(Context.INITIAL_CONTEXT_FACTORY,
+			"org.osjava.sj.memory.MemoryContextFactory");
+			System.setProperty("org.osjava.sj.jndi.shared", "true");
+
+			InitialContext context;
+			try {
+				context = new InitialContext();
+				context.rebind(JDBCConnector.JNDI_NAME, ds);
+			} catch (NamingException ex) {
+				logger.error("Problem rebinding the jdbc context", ex);
+			}
 		}
 
-		ds.setUrl(jdbcUrl);
-
-		InitialContext context;
-		try {
-			context = new InitialContext();
-			context.rebind("jdbc/taverna", ds);
-		} catch (NamingException ex) {
-			logger.error("Problem rebinding the jdbc context", ex);
+		// nothing takes new connections from the old pool any more, those still in use are closed when returned
+		if (previous != null) {
+			try {
+				previous.close();
+			} catch (SQLException ex) {
+				logger.warn("Problem closing the previous DataSource", ex);
+			}
 		}
-
 	}
 
 	/**
@@ -183,6 +208,11 @@ public class ProvenanceAccess {
 		if (provenanceConnector != null) {
 			provenanceConnector.setReferenceService(refService);
 		}
+		synchronized (this) {
+			if (runPurger != null) {
+				runPurger.setReferenceService(refService);
+			}
+		}
 	}
 
 	public void init() {
@@ -348,6 +378,47 @@ public class ProvenanceAccess {
 	}
 
 
+	/**
+	 * Removes all records that pertain to the given runs, as {@link #removeRun(String)} but deleting many runs
+	 * with a few set-based statements (see {@link ProvenanceWriter#clearDBDynamic(java.util.Collection)}).
+	 * @param runIDs the internal IDs of the runs
+	 * @param deleteReferences if true, the data of each run is also deleted from the Reference Service
+	 * @return the set of data references that pertain to the deleted runs, or null if they could not be removed
+	 */
+	public Set<String> removeRuns(List<String> runIDs, boolean deleteReferences) {
+		try {
+			return getRunPurger().purge(runIDs, deleteReferences);
+		} catch (SQLException e) {
+			logger.error("Problem while removing runs : " + runIDs, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Queues the runs to be removed by a background thread, see {@link #getRunPurger()} to limit its rate.
+	 * @param runIDs the internal IDs of the runs
+	 * @param deleteReferences if true, the data of each run is also deleted from the Reference Service
+	 */
+	public void removeRunsInBackground(List<String> runIDs, boolean deleteReferences) {
+		RunPurger purger = getRunPurger();
+		for (String runID : runIDs) {
+			purger.submit(runID, deleteReferences);
+		}
+	}
+
+	/**
+	 * @return the purger used by {@link #removeRuns(List, boolean)} and {@link #removeRunsInBackground(List, boolean)},
+	 * deleting data from the Reference Service of the provenance connector
+	 */
+	public synchronized RunPurger getRunPurger() {
+		if (runPurger == null) {
+			runPurger = new RunPurger(pw);
+			runPurger.setReferenceService(provenanceConnector.getReferenceService());
+		}
+		return runPurger;
+	}
+
+
 	/**
 	 * removes all records pertaining to the static structure of a workflow.
 	 * 
@@ -443,7 +514,39 @@ public class ProvenanceAccess {
 	throws SQLException {
 		return pq.getPortBindings(constraints);
 	}
+
+	/**
+	 * As {@link #getCollectionsForRun(String)}, without holding them all in memory.
+	 * Close the cursor when done with it if it is not read to the end.
+	 */
+	public ProvenanceCursor<Collection> streamCollectionsForRun(String wfInstanceID)
+	throws SQLException {
+		return pq.streamCollectionsForRun(wfInstanceID);
+	}
+
+	/**
+	 * As {@link #getPortBindings(Map)}, without holding them all in memory, for exporting
+	 * or analysing the bindings of large runs. Close the cursor when done with it if it is
+	 * not read to the end.
+	 */
+	public ProvenanceCursor<PortBinding> streamPortBindings(Map<String, String> constraints)
+	throws SQLException {
+		return pq.streamPortBindings(constraints);
+	}
 	
+	/**
+	 * Writes the OPM graph of a whole run as RDF to out, reading the run from the database as it goes,
+	 * so that runs too large to build the graph of in memory can be exported
+	 * (see {@link OPMStreamExporter}).
+	 * @param workflowRunId the internal ID of the run
+	 * @param out flushed but not closed
+	 * @param format RDF/XML or N-Triples
+	 */
+	public void exportOPM(String workflowRunId, OutputStream out, OPMStreamExporter.Format format)
+	throws SQLException, IOException {
+		new OPMStreamExporter(pq).export(workflowRunId, out, format);
+	}
+
 	/**
 	 * lists all ports for a workflow
 	 * @param workflowID
@@ -513,6 +616,21 @@ public class ProvenanceAccess {
 	}
 
 
+	/**
+	 * should lineage queries search the workflow graph in memory, loading each workflow's ports and datalinks once,
+	 * rather than querying the DB at every step?<br>
+	 * default is FALSE
+	 */
+	public void toggleInMemoryLineageGraph(boolean active) {
+		pa.setLineageGraph(active ? provenanceConnector.getLineageGraph() : null);
+	}
+
+
+	public boolean isInMemoryLineageGraph() {
+		return pa.getLineageGraph() != null;
+	}
+
+
 	/**
 	 * @return an instance of {@link InvocationContext} that can be used by a client to deref a Taverna data reference
 	 */
@@ -621,6 +739,16 @@ public class ProvenanceAccess {
 		return pq.getProcessorEnactments(workflowRunId, processorPath);
 	}
 	
+	/**
+	 * All the processor enactments of the run, including those within nested workflows,
+	 * without holding them all in memory. Close the cursor when done with it if it is
+	 * not read to the end.
+	 */
+	public ProvenanceCursor<net.sf.taverna.t2.provenance.lineageservice.utils.ProcessorEnactment> streamProcessorEnactments(
+			String workflowRunId) throws SQLException {
+		return pq.streamProcessorEnactments(workflowRunId);
+	}
+	
 	public net.sf.taverna.t2.provenance.lineageservice.utils.ProcessorEnactment getProcessorEnactmentByProcessId(
 			String workflowRunId, String processIdentifier, String iteration) {
 		return pq.getProcessorEnactmentByProcessId(workflowRunId, processIdentifier, iteration);
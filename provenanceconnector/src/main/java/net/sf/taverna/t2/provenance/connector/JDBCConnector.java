@@ -12,13 +12,18 @@ import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 
+import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.log4j.Logger;
 
 /**
  * A shared factory class for retrieving a connection to the database.
  * The client is responsible for closing the connection once its finished with.
  *
- * The connection needs to be configured externally using a JNDI data source named "jdbc/taverna"
+ * The connections come from the DataSource given to {@link #setDataSource(DataSource)},
+ * typically one made by {@link #createPooledDataSource(String, String, String, String, int, int, int)}.
+ * If none has been set, a JNDI data source named "jdbc/taverna" is looked up once and used from then on,
+ * so a DataSource rebound under that name later is not noticed until {@link #setDataSource(DataSource)}
+ * is called with it, or with null to look it up again.
  *
  * @author Stuart Owen
  */
@@ -26,9 +31,18 @@ import org.apache.log4j.Logger;
 public class JDBCConnector {
 
 	private static Logger logger = Logger.getLogger(JDBCConnector.class);
+
+	public static final String JNDI_NAME = "jdbc/taverna";
+
+	/**
+	 * Prepared statements kept open per pooled connection
+	 */
+	public static final int MAX_OPEN_PREPARED_STATEMENTS = 100;
+
+	private static volatile DataSource dataSource;
 	
     /**
-     * Provides a connection to a database, that has been defined externally as a JNDI DataSource with the name 'jdbc/taverna'
+     * Provides a connection to the database, from the configured DataSource or else the JNDI DataSource with the name 'jdbc/taverna'
      *
      * The client is responsible for closing the connection once finished with.
      *
@@ -36,17 +50,93 @@ public class JDBCConnector {
      * @throws SQLException
      */
     public static Connection getConnection() throws SQLException {
-        InitialContext context;
-        Connection connection = null;
-        try {
-            context = new InitialContext();
-            DataSource ds = (DataSource) context.lookup("jdbc/taverna");
-            connection = ds.getConnection(); 
-        } catch (NamingException ex) {
-        	logger.error("Could not lookup DataSource jdbc/taverna", ex);
-            throw new SQLException("Unable to retrieve database connection for name jdbc/taverna");        
+        return getDataSource().getConnection();
+    }
+
+    /**
+     * The DataSource connections are taken from, looked up in JNDI as 'jdbc/taverna' on first use
+     * if none has been {@link #setDataSource(DataSource) set}
+     */
+    public static DataSource getDataSource() throws SQLException {
+    	DataSource ds = dataSource;
+    	if (ds != null) {
+    		return ds;
+    	}
+    	synchronized (JDBCConnector.class) {
+    		if (dataSource == null) {
+    			try {
+    				InitialContext context = new InitialContext();
+    				dataSource = (DataSource) context.lookup(JNDI_NAME);
+    			} catch (NamingException ex) {
+    				logger.error("Could not lookup DataSource " + JNDI_NAME, ex);
+    				throw new SQLException("Unable to retrieve database connection for name " + JNDI_NAME);
+    			}
+    		}
+    		return dataSource;
+    	}
+    }
+
+    /**
+     * Use the given DataSource for all connections, in place of any looked up in JNDI. Setting null
+     * forgets the current one, so 'jdbc/taverna' is looked up in JNDI again on next use; call this
+     * after rebinding 'jdbc/taverna' for the new binding to take effect.
+     */
+    public static void setDataSource(DataSource ds) {
+    	dataSource = ds;
+    }
+
+    /**
+     * Creates a bounded connection pool for the provenance database. Connections are validated
+     * when borrowed and while idle, and each keeps up to {@link #MAX_OPEN_PREPARED_STATEMENTS}
+     * prepared statements open for reuse.
+     *
+     * @param driverClassName - the classname for the driver to be used.
+     * @param jdbcUrl - the jdbc connection url
+     * @param username - the username, if required (otherwise null)
+     * @param password - the password, if required (otherwise null)
+     * @param minIdle - the minimum number of idle connections in the pool
+     * @param maxIdle - the maximum number of idle connections in the pool
+     * @param maxActive - the maximum number of connections in use at once
+     */
+    public static BasicDataSource createPooledDataSource(String driverClassName, String jdbcUrl,
+    		String username, String password, int minIdle, int maxIdle, int maxActive) {
+		BasicDataSource ds = new BasicDataSource();
+		ds.setDriverClassName(driverClassName);
+		ds.setDefaultTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+		ds.setMaxActive(maxActive);
+		ds.setMinIdle(minIdle);
+		ds.setMaxIdle(maxIdle);
+		ds.setDefaultAutoCommit(true);
+		if (username != null) {
+			ds.setUsername(username);
+		}
+		if (password != null) {
+			ds.setPassword(password);
 		}
-        return connection;
+		ds.setUrl(jdbcUrl);
+
+		// wait at most 30s for a connection rather than forever when the pool is exhausted
+		ds.setMaxWait(30000);
+
+		ds.setPoolPreparedStatements(true);
+		ds.setMaxOpenPreparedStatements(MAX_OPEN_PREPARED_STATEMENTS);
+
+		ds.setValidationQuery(validationQuery(driverClassName));
+		ds.setTestOnBorrow(true);
+		ds.setTestWhileIdle(true);
+		ds.setTimeBetweenEvictionRunsMillis(60000);
+		ds.setMinEvictableIdleTimeMillis(300000);
+		return ds;
+    }
+
+    /**
+     * A cheap query that succeeds on any live connection to the given driver's database
+     */
+    static String validationQuery(String driverClassName) {
+    	if (driverClassName != null && driverClassName.toLowerCase().contains("derby")) {
+    		return "VALUES 1";
+    	}
+    	return "SELECT 1";
     }
 
 }
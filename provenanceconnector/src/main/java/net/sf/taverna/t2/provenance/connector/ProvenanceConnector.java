@@ -23,16 +23,17 @@ package net.sf.taverna.t2.provenance.connector;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import net.sf.taverna.t2.invocation.InvocationContext;
 import net.sf.taverna.t2.provenance.item.ProvenanceItem;
 import net.sf.taverna.t2.provenance.item.WorkflowProvenanceItem;
 import net.sf.taverna.t2.provenance.lineageservice.EventProcessor;
+import net.sf.taverna.t2.provenance.lineageservice.LineageGraph;
 import net.sf.taverna.t2.provenance.lineageservice.LineageQueryResultRecord;
 import net.sf.taverna.t2.provenance.lineageservice.Provenance;
 import net.sf.taverna.t2.provenance.lineageservice.ProvenanceAnalysis;
@@ -265,7 +266,10 @@ public abstract class ProvenanceConnector implements ProvenanceReporter {
 	private static Logger logger = Logger.getLogger(ProvenanceConnector.class);
 	private String saveEvents;    
 	private ProvenanceAnalysis provenanceAnalysis;
+	private LineageGraph lineageGraph;
 	private ExecutorService executor = Executors.newSingleThreadExecutor();
+	private ProvenanceEventQueue eventQueue;
+	private volatile boolean asynchronous = false;
 	private boolean finished = false;
 	private String sessionID;
 	private InvocationContext invocationContext;
@@ -301,6 +305,8 @@ public abstract class ProvenanceConnector implements ProvenanceReporter {
 			getEventProcessor().setWfdp(getWfdp());
 
 			setProvenanceAnalysis(new ProvenanceAnalysis(getQuery()));
+			lineageGraph = new LineageGraph(getQuery());
+			getWriter().setLineageGraph(lineageGraph);
 			setProvenance(new Provenance(getEventProcessor()));
 		} catch (InstantiationException e) {
 			logger.error("Problem with provenance initialisation: ",e);
@@ -341,36 +347,136 @@ public abstract class ProvenanceConnector implements ProvenanceReporter {
 	 */
 	public void setReferenceService(ReferenceService referenceService) {
 		this.referenceService = referenceService;
+		synchronized (this) {
+			if (eventQueue != null) {
+				eventQueue.setCodec(new ProvenanceItemCodec(referenceService));
+			}
+		}
 	}
 
 
 	/**
-	 * Uses a {@link ScheduledThreadPoolExecutor} to process events in a Thread
-	 * safe manner
+	 * Queue the item for processing by the {@link ProvenanceEventQueue}, or
+	 * process it straight away on the calling thread if this connector is not
+	 * {@link #setAsynchronous(boolean) asynchronous}. Queued items are
+	 * counted against the current {@link #getSessionID() session}, use
+	 * {@link #awaitRun(String)} before querying the provenance of a run.
 	 */
-	public synchronized void addProvenanceItem(
-			final ProvenanceItem provenanceItem) {
+	public void addProvenanceItem(final ProvenanceItem provenanceItem) {
+		if (isAsynchronous()) {
+			getEventQueue().put(provenanceItem, getSessionID());
+		} else {
+			synchronized (this) {
+				processProvenanceItems(Collections.singletonList(provenanceItem));
+			}
+		}
+	}
 
-//		Runnable runnable = new Runnable() {
-//
-//			public void run() {
+	/**
+	 * Process a batch of items taken from the event queue, in order
+	 */
+	protected void processProvenanceItems(List<ProvenanceItem> provenanceItems) {
+		ProvenanceWriter writer = getWriter();
+		if (writer != null) {
+			// the batch is one unit of work, sharing a connection and batching inserts
+			writer.beginUnitOfWork();
+		}
+		try {
+			for (ProvenanceItem provenanceItem : provenanceItems) {
+				processProvenanceItem(provenanceItem);
+			}
+		} finally {
+			if (writer != null) {
 				try {
-
-					getProvenance().acceptRawProvenanceEvent(
-							provenanceItem.getEventType(), provenanceItem);
-
+					writer.endUnitOfWork();
 				} catch (SQLException e) {
-					logger.warn("Could not add provenance for " + provenanceItem.getEventType() + " " + provenanceItem.getIdentifier(), e);
-				} catch (IOException e) {
-					logger.error("Could not add provenance for " + provenanceItem.getEventType() + " " + provenanceItem.getIdentifier(), e);
-				} catch (RuntimeException e) {
-					logger.error("Could not add provenance for " + provenanceItem.getEventType() + " " + provenanceItem.getIdentifier(), e);						
+					logger.warn("Could not write out batched provenance", e);
 				}
-//
-//			}
-//		};
-//		getExecutor().execute(runnable);
+			}
+		}
+	}
+
+	private void processProvenanceItem(ProvenanceItem provenanceItem) {
+		try {
+
+			getProvenance().acceptRawProvenanceEvent(
+					provenanceItem.getEventType(), provenanceItem);
+
+		} catch (SQLException e) {
+			logger.warn("Could not add provenance for " + provenanceItem.getEventType() + " " + provenanceItem.getIdentifier(), e);
+		} catch (IOException e) {
+			logger.error("Could not add provenance for " + provenanceItem.getEventType() + " " + provenanceItem.getIdentifier(), e);
+		} catch (RuntimeException e) {
+			logger.error("Could not add provenance for " + provenanceItem.getEventType() + " " + provenanceItem.getIdentifier(), e);						
+		}
+	}
 
+	/**
+	 * The queue reported items are processed from, created on first use.
+	 * Configure capacity, batch size and {@link ProvenanceEventQueue.OverflowPolicy overflow policy}
+	 * here.
+	 */
+	public synchronized ProvenanceEventQueue getEventQueue() {
+		if (eventQueue == null) {
+			eventQueue = new ProvenanceEventQueue(
+					new ProvenanceEventQueue.BatchProcessor() {
+						public void processBatch(List<ProvenanceItem> items) {
+							processProvenanceItems(items);
+						}
+					});
+			eventQueue.setCodec(new ProvenanceItemCodec(getReferenceService()));
+		}
+		return eventQueue;
+	}
+
+	/**
+	 * If true items are processed on a separate thread from the one reporting
+	 * them, and callers have to {@link #awaitRun(String)} before querying the
+	 * provenance of a run. Defaults to false, processing each item before
+	 * {@link #addProvenanceItem(ProvenanceItem)} returns.
+	 */
+	public void setAsynchronous(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	/**
+	 * Wait until every item reported so far has been processed
+	 */
+	public void flush() throws InterruptedException {
+		if (isAsynchronous()) {
+			getEventQueue().flush();
+		}
+	}
+
+	/**
+	 * Wait until every item reported so far for the given workflow run has
+	 * been processed, after which queries see the complete provenance of a
+	 * finished run
+	 */
+	public void awaitRun(String workflowRunId) throws InterruptedException {
+		if (isAsynchronous()) {
+			getEventQueue().awaitRun(workflowRunId);
+		}
+	}
+
+	/**
+	 * Process what has been reported so far and close the event log, if
+	 * events are being saved to one. Call when done with the connector.
+	 */
+	public void close() throws InterruptedException {
+		flush();
+		EventProcessor eventProcessor = getEventProcessor();
+		if (eventProcessor != null) {
+			try {
+				eventProcessor.closeEventLog();
+			} catch (IOException e) {
+				logger.error("Could not close the provenance event log", e);
+			}
+		}
 	}
 
 	protected Connection getConnection() throws InstantiationException,
@@ -549,10 +655,16 @@ public abstract class ProvenanceConnector implements ProvenanceReporter {
 	 */
 	public void setSaveEvents(String saveEvents) {
 		this.saveEvents = saveEvents;
+		if (provenance != null) {
+			provenance.setSaveEvents(saveEvents);
+		}
 	}
 
 	public void setProvenance(Provenance provenance) {
 		this.provenance = provenance;
+		if (provenance != null && saveEvents != null) {
+			provenance.setSaveEvents(saveEvents);
+		}
 	}
 
 	public Provenance getProvenance() {
@@ -589,6 +701,14 @@ public abstract class ProvenanceConnector implements ProvenanceReporter {
 		return provenanceAnalysis;
 	}
 
+	/**
+	 * The in-memory copy of the workflow graphs the {@link #getWriter() writer}
+	 * keeps up to date, for use by the {@link ProvenanceAnalysis}
+	 */
+	public LineageGraph getLineageGraph() {
+		return lineageGraph;
+	}
+
 	/**
 	 * @return the writer
 	 */
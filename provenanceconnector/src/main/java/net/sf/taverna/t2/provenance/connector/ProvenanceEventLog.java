@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.connector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import net.sf.taverna.t2.provenance.item.ProvenanceItem;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append only log of {@link ProvenanceItem}s in the binary form of the
+ * {@link ProvenanceItemCodec}, to capture the provenance of runs at full rate
+ * and load it into the database later with a {@link ProvenanceEventLogReplay}.
+ * <p>
+ * The log is a directory of segment files, a new one started when the
+ * current one reaches the {@link #setSegmentSize(long) segment size}, each
+ * record in them checksummed. Appends are buffered and made durable by group
+ * commit: every {@link #setCommitInterval(long) commit interval} a
+ * background thread writes out and fsyncs what has been appended since the
+ * last commit, and {@link #sync()} waits for a commit covering everything
+ * appended so far, joining one already in progress rather than starting its
+ * own. After a crash at most the records of the last commit interval are
+ * lost, a record only partly written is skipped when reading.
+ * <p>
+ * Several logs can be open on the same directory, each creating segments
+ * under numbers not already taken.
+ *
+ */
+public class ProvenanceEventLog {
+
+	private static Logger logger = Logger.getLogger(ProvenanceEventLog.class);
+
+	private static final int MAGIC = 0x54325045;
+
+	// 2 since error messages and data values are length prefixed
+	private static final int VERSION = 2;
+
+	private static final String SEGMENT_PREFIX = "events-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static final int HEADER_LENGTH = 8;
+
+	private final File directory;
+
+	private final ProvenanceItemCodec codec;
+
+	private long segmentSize = 64 * 1024 * 1024;
+
+	private volatile long commitInterval = 100;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition committed = lock.newCondition();
+
+	private final Condition wakeCommitter = lock.newCondition();
+
+	private int segmentNumber;
+
+	private FileOutputStream segment = null;
+
+	private DataOutputStream out = null;
+
+	private long segmentLength;
+
+	private long appended = 0;
+
+	private long durable = 0;
+
+	private boolean committing = false;
+
+	private boolean closed = false;
+
+	private final Thread committer;
+
+	/**
+	 * Open the log in the directory, creating the directory if needed.
+	 * Records are appended to a new segment after any already there.
+	 */
+	public ProvenanceEventLog(File directory, ProvenanceItemCodec codec)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create event log directory "
+					+ directory);
+		}
+		this.directory = directory;
+		this.codec = codec;
+		List<File> segments = segments(directory);
+		segmentNumber = segments.isEmpty() ? 0 : segmentNumber(segments
+				.get(segments.size() - 1));
+
+		committer = new Thread(new Runnable() {
+			public void run() {
+				commitPeriodically();
+			}
+		}, "Provenance event log commit");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Size in bytes after which the next record goes to a new segment,
+	 * defaults to 64MB
+	 */
+	public void setSegmentSize(long segmentSize) {
+		lock.lock();
+		try {
+			this.segmentSize = Math.max(HEADER_LENGTH + 1, segmentSize);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * How often in milliseconds records appended are made durable, defaults
+	 * to 100
+	 */
+	public void setCommitInterval(long commitInterval) {
+		this.commitInterval = Math.max(1, commitInterval);
+	}
+
+	public long getCommitInterval() {
+		return commitInterval;
+	}
+
+	/**
+	 * Append the item, which is written out by the next commit
+	 */
+	public void append(ProvenanceItem item) throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+		DataOutputStream recordOut = new DataOutputStream(record);
+		codec.write(item, recordOut);
+		recordOut.flush();
+		CRC32 crc = new CRC32();
+		crc.update(record.toByteArray(), 0, record.size());
+
+		lock.lock();
+		try {
+			// the segment can't be rolled while a commit is syncing it,
+			// recheck after waiting as another append may have rolled it
+			while (closed || segment == null
+					|| segmentLength + 8 + record.size() > segmentSize
+					&& segmentLength > HEADER_LENGTH) {
+				if (closed) {
+					throw new IOException("Event log " + directory + " is closed");
+				} else if (committing) {
+					committed.awaitUninterruptibly();
+				} else {
+					startSegment();
+				}
+			}
+			out.writeInt(record.size());
+			out.writeInt((int) crc.getValue());
+			record.writeTo(out);
+			segmentLength += 8 + record.size();
+			appended++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until everything appended so far is on disk
+	 */
+	public void sync() throws IOException {
+		lock.lock();
+		try {
+			long target = appended;
+			while (durable < target) {
+				if (committing) {
+					committed.awaitUninterruptibly();
+					continue;
+				}
+				commit();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Commit what has been appended and stop the background commits
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			wakeCommitter.signal();
+			while (committing) {
+				committed.awaitUninterruptibly();
+			}
+			closeSegment();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write out the buffered records and fsync them, with the lock released
+	 * while waiting for the disk so appends carry on in the meantime. Called
+	 * with the lock held and no commit in progress.
+	 */
+	private void commit() throws IOException {
+		if (segment == null) {
+			durable = appended;
+			return;
+		}
+		committing = true;
+		long upTo = appended;
+		FileOutputStream file = segment;
+		try {
+			out.flush();
+			lock.unlock();
+			try {
+				file.getFD().sync();
+			} finally {
+				lock.lock();
+			}
+			durable = Math.max(durable, upTo);
+		} finally {
+			committing = false;
+			committed.signalAll();
+		}
+	}
+
+	private void startSegment() throws IOException {
+		closeSegment();
+		// other logs may be open on the same directory, claim a number
+		// none of them has used
+		File file;
+		do {
+			segmentNumber++;
+			file = new File(directory, SEGMENT_PREFIX
+					+ String.format("%08d", segmentNumber) + SEGMENT_SUFFIX);
+		} while (!file.createNewFile());
+		segment = new FileOutputStream(file);
+		out = new DataOutputStream(new BufferedOutputStream(segment, 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		segmentLength = HEADER_LENGTH;
+		logger.debug("Started event log segment " + file);
+	}
+
+	private void closeSegment() throws IOException {
+		if (segment == null) {
+			return;
+		}
+		try {
+			out.flush();
+			segment.getFD().sync();
+			durable = appended;
+		} finally {
+			segment.close();
+			segment = null;
+			out = null;
+			committed.signalAll();
+		}
+	}
+
+	private void commitPeriodically() {
+		lock.lock();
+		try {
+			while (!closed) {
+				try {
+					wakeCommitter.await(commitInterval, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!closed && !committing && durable < appended) {
+					try {
+						commit();
+					} catch (IOException e) {
+						logger.error("Could not commit event log " + directory, e);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The segment files of the log in the directory, oldest first
+	 */
+	public static List<File> segments(File directory) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null) {
+			return new ArrayList<File>();
+		}
+		Arrays.sort(files);
+		return new ArrayList<File>(Arrays.asList(files));
+	}
+
+	private static int segmentNumber(File segment) {
+		String name = segment.getName();
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Reads the items of a log back in the order they were appended, across
+	 * all its segments. A segment is read up to its first incomplete or
+	 * corrupt record, the rest of it is skipped with a warning.
+	 */
+	public static class Reader {
+
+		private final ProvenanceItemCodec codec;
+
+		private final List<File> segments;
+
+		private DataInputStream in = null;
+
+		private File current = null;
+
+		public Reader(File directory, ProvenanceItemCodec codec) {
+			this.codec = codec;
+			this.segments = segments(directory);
+		}
+
+		/**
+		 * @return the next item, or null at the end of the log
+		 */
+		public ProvenanceItem next() throws IOException {
+			while (true) {
+				if (in == null && !openNextSegment()) {
+					return null;
+				}
+				byte[] bytes = nextRecord();
+				if (bytes != null) {
+					return codec.read(new DataInputStream(
+							new ByteArrayInputStream(bytes)));
+				}
+				closeSegment();
+			}
+		}
+
+		public void close() throws IOException {
+			closeSegment();
+			segments.clear();
+		}
+
+		private boolean openNextSegment() throws IOException {
+			while (!segments.isEmpty()) {
+				current = segments.remove(0);
+				in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(current), 64 * 1024));
+				try {
+					if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+						return true;
+					}
+				} catch (EOFException e) {
+					// empty segment, left by a crash before the first commit
+				}
+				logger.warn("Skipping unreadable event log segment " + current);
+				closeSegment();
+			}
+			return false;
+		}
+
+		/**
+		 * @return the next record of the current segment, or null at its end
+		 */
+		private byte[] nextRecord() throws IOException {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			try {
+				int checksum = in.readInt();
+				if (length < 0) {
+					throw new IOException("Negative record length " + length);
+				}
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				CRC32 crc = new CRC32();
+				crc.update(bytes);
+				if ((int) crc.getValue() != checksum) {
+					throw new IOException("Checksum mismatch");
+				}
+				return bytes;
+			} catch (IOException e) {
+				logger.warn("Skipping the rest of event log segment " + current
+						+ ": " + e.getMessage());
+				return null;
+			}
+		}
+
+		private void closeSegment() throws IOException {
+			if (in != null) {
+				in.close();
+				in = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+import net.sf.taverna.t2.provenance.api.ProvenanceAccess;
+import net.sf.taverna.t2.provenance.item.ProvenanceItem;
+import net.sf.taverna.t2.provenance.lineageservice.Provenance;
+import net.sf.taverna.t2.provenance.lineageservice.ProvenanceWriter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Loads a {@link ProvenanceEventLog} into the provenance database, feeding
+ * its items in order to {@link Provenance#acceptRawProvenanceEvent}. Items
+ * are processed in units of work of {@link #setBatchSize(int) batch size}
+ * items, as the {@link ProvenanceConnector} does with the items it takes
+ * from its queue.
+ * <p>
+ * Run from the command line as
+ * <code>ProvenanceEventLogReplay &lt;log directory&gt; &lt;connector type&gt; &lt;jdbc driver&gt; &lt;jdbc url&gt;</code>
+ * to load a log into the database of that connector.
+ *
+ */
+public class ProvenanceEventLogReplay {
+
+	private static Logger logger = Logger.getLogger(ProvenanceEventLogReplay.class);
+
+	private final Provenance provenance;
+
+	private final ProvenanceItemCodec codec;
+
+	private int batchSize = 1000;
+
+	/**
+	 * @param codec
+	 *            reads the items, it needs the Reference Service the data of
+	 *            the logged runs is held in
+	 */
+	public ProvenanceEventLogReplay(Provenance provenance, ProvenanceItemCodec codec) {
+		if (!codec.canDecode()) {
+			throw new IllegalArgumentException("The codec has no Reference Service to read items with");
+		}
+		this.provenance = provenance;
+		this.codec = codec;
+	}
+
+	/**
+	 * Number of items processed per unit of work, defaults to 1000
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Process every item of the log in the directory
+	 *
+	 * @return the number of items processed
+	 */
+	public long replay(File directory) throws IOException, SQLException {
+		ProvenanceEventLog.Reader reader = new ProvenanceEventLog.Reader(directory, codec);
+		ProvenanceWriter writer = provenance.getPw();
+		long count = 0;
+		try {
+			ProvenanceItem item = reader.next();
+			while (item != null) {
+				if (writer != null) {
+					writer.beginUnitOfWork();
+				}
+				try {
+					for (int i = 0; i < batchSize && item != null; i++) {
+						provenance.acceptRawProvenanceEvent(item.getEventType(), item);
+						count++;
+						item = reader.next();
+					}
+				} finally {
+					if (writer != null) {
+						writer.endUnitOfWork();
+					}
+				}
+				logger.debug("Replayed " + count + " provenance items");
+			}
+		} finally {
+			reader.close();
+		}
+		logger.info("Replayed " + count + " provenance items from " + directory);
+		return count;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 4) {
+			System.err.println("Usage: ProvenanceEventLogReplay <log directory> <connector type> <jdbc driver> <jdbc url>");
+			System.exit(1);
+		}
+		ProvenanceAccess.initDataSource(args[2], args[3]);
+		ProvenanceAccess access = new ProvenanceAccess(args[1]);
+		ProvenanceConnector connector = access.getProvenanceConnector();
+		ProvenanceEventLogReplay replay = new ProvenanceEventLogReplay(connector.getProvenance(),
+				new ProvenanceItemCodec(connector.getReferenceService()));
+		long count = replay.replay(new File(args[0]));
+		System.out.println("Replayed " + count + " provenance items");
+	}
+
+}
@@ -0,0 +1,501 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.connector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sf.taverna.t2.provenance.item.ProvenanceItem;
+import net.sf.taverna.t2.provenance.vocabulary.SharedVocabulary;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded queue between the enactor threads reporting {@link ProvenanceItem}s
+ * and the processing of those items into the provenance store. Items are
+ * handed to a single consumer thread in batches, in the order they were put,
+ * as the event processing relies on seeing for instance a processor before
+ * its iterations. The consumer thread is started when items arrive and stops
+ * once the queue has been idle for a while.
+ * <p>
+ * What happens when the queue is full is set by the {@link OverflowPolicy}.
+ * Items are counted against the workflow run they were put for until they
+ * have been processed, {@link #awaitRun(String)} and {@link #flush()} wait
+ * for that.
+ * 
+ */
+public class ProvenanceEventQueue {
+
+	/**
+	 * What {@link ProvenanceEventQueue#put} does when the queue is full
+	 */
+	public static enum OverflowPolicy {
+		/**
+		 * Wait for the consumer to make room
+		 */
+		BLOCK,
+		/**
+		 * Discard iteration events, wait for room for any other event
+		 */
+		DROP_ITERATIONS,
+		/**
+		 * Write iteration events to a file to be processed after the events
+		 * already queued, wait for room for any other event
+		 */
+		SPILL_TO_DISK
+	}
+
+	/**
+	 * Processes the items taken from the queue
+	 */
+	public static interface BatchProcessor {
+		public void processBatch(List<ProvenanceItem> items);
+	}
+
+	private static Logger logger = Logger.getLogger(ProvenanceEventQueue.class);
+
+	private static final long IDLE_MILLIS = 5000;
+
+	private final BatchProcessor processor;
+
+	private int capacity = 10000;
+
+	private int batchSize = 100;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+	private ProvenanceItemCodec codec = null;
+
+	private File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition processed = lock.newCondition();
+
+	private final LinkedList<QueuedItem> queue = new LinkedList<QueuedItem>();
+
+	private SpillFile spill = null;
+
+	private int waitingPuts = 0;
+
+	private final Map<String, Integer> outstandingByRun = new HashMap<String, Integer>();
+
+	private int outstanding = 0;
+
+	private boolean consumerRunning = false;
+
+	private long dropped = 0;
+
+	private long spilled = 0;
+
+	public ProvenanceEventQueue(BatchProcessor processor) {
+		this.processor = processor;
+	}
+
+	/**
+	 * The number of items held in memory before the overflow policy applies,
+	 * defaults to 10000
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * The maximum number of items handed to the processor at once, defaults
+	 * to 100
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * The codec used to write items out under
+	 * {@link OverflowPolicy#SPILL_TO_DISK}, items it can't encode wait for
+	 * room as under {@link OverflowPolicy#BLOCK}
+	 */
+	public void setCodec(ProvenanceItemCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Where spill files are created, defaults to the system temporary
+	 * directory
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Queue an item reported for the given workflow run, applying the
+	 * overflow policy if the queue is full
+	 */
+	public void put(ProvenanceItem item, String workflowRunId) {
+		lock.lock();
+		try {
+			boolean full = queue.size() >= capacity;
+			if (overflowPolicy == OverflowPolicy.DROP_ITERATIONS && full
+					&& isIteration(item)) {
+				dropped++;
+				if (dropped == 1 || dropped % 1000 == 0) {
+					logger.warn("Provenance queue full, dropped " + dropped
+							+ " iteration events");
+				}
+				return;
+			}
+			// Once a put is waiting for room or for the spill file to be taken
+			// nothing more is appended to the file, so that it drains
+			if (overflowPolicy == OverflowPolicy.SPILL_TO_DISK
+					&& (full || spill != null) && waitingPuts == 0
+					&& codec != null && isIteration(item)
+					&& codec.canDecode() && spill(item, workflowRunId)) {
+				return;
+			}
+			// Anything not spilled has to wait for the spilled items ahead
+			// of it to be taken to keep the order
+			waitingPuts++;
+			try {
+				while (queue.size() >= capacity || spill != null) {
+					notFull.awaitUninterruptibly();
+				}
+			} finally {
+				waitingPuts--;
+			}
+			queue.add(new QueuedItem(item, workflowRunId));
+			added(workflowRunId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until every item put so far has been processed
+	 */
+	public void flush() throws InterruptedException {
+		lock.lock();
+		try {
+			while (outstanding > 0) {
+				processed.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until every item put so far for the given workflow run has been
+	 * processed
+	 */
+	public void awaitRun(String workflowRunId) throws InterruptedException {
+		lock.lock();
+		try {
+			while (outstandingByRun.containsKey(workflowRunId)) {
+				processed.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of items put but not yet processed
+	 */
+	public int getOutstanding() {
+		lock.lock();
+		try {
+			return outstanding;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDroppedCount() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getSpilledCount() {
+		lock.lock();
+		try {
+			return spilled;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static boolean isIteration(ProvenanceItem item) {
+		return SharedVocabulary.ITERATION_EVENT_TYPE
+				.equals(item.getEventType());
+	}
+
+	/**
+	 * Must hold the lock. Returns false if the item could not be written, in
+	 * which case it is queued in memory instead.
+	 */
+	private boolean spill(ProvenanceItem item, String workflowRunId) {
+		try {
+			if (spill == null) {
+				spill = new SpillFile(File.createTempFile("provenance",
+						".spill", spillDirectory));
+			}
+			spill.append(item, workflowRunId);
+		} catch (IOException e) {
+			logger.warn("Could not spill provenance event " + item, e);
+			return false;
+		}
+		spilled++;
+		added(workflowRunId);
+		return true;
+	}
+
+	/**
+	 * Must hold the lock
+	 */
+	private void added(String workflowRunId) {
+		outstanding++;
+		Integer count = outstandingByRun.get(workflowRunId);
+		outstandingByRun.put(workflowRunId, count == null ? 1 : count + 1);
+		notEmpty.signal();
+		if (!consumerRunning) {
+			consumerRunning = true;
+			Thread consumer = new Thread(new Consumer(),
+					"Provenance event consumer");
+			consumer.start();
+		}
+	}
+
+	/**
+	 * Must hold the lock. Items in memory were always put before any in the
+	 * spill file, so those are taken first.
+	 */
+	private List<QueuedItem> takeBatch() {
+		List<QueuedItem> batch = new ArrayList<QueuedItem>();
+		while (!queue.isEmpty() && batch.size() < batchSize) {
+			batch.add(queue.removeFirst());
+		}
+		if (batch.isEmpty() && spill != null) {
+			try {
+				spill.flush();
+				while (spill.hasNext() && batch.size() < batchSize) {
+					batch.add(spill.next());
+				}
+			} catch (IOException e) {
+				logger.error("Could not read spilled provenance events from "
+						+ spill.file + ", " + spill.remaining()
+						+ " events lost", e);
+				while (spill.hasNext()) {
+					processed(spill.discardNext());
+				}
+			}
+			if (!spill.hasNext()) {
+				spill.delete();
+				spill = null;
+			}
+		}
+		notFull.signalAll();
+		return batch;
+	}
+
+	/**
+	 * Must hold the lock
+	 */
+	private void processed(String workflowRunId) {
+		outstanding--;
+		Integer count = outstandingByRun.remove(workflowRunId);
+		if (count != null && count > 1) {
+			outstandingByRun.put(workflowRunId, count - 1);
+		}
+	}
+
+	private class Consumer implements Runnable {
+		public void run() {
+			while (true) {
+				List<QueuedItem> batch;
+				lock.lock();
+				try {
+					if (queue.isEmpty() && spill == null) {
+						try {
+							notEmpty.await(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+						} catch (InterruptedException e) {
+							// Only stop when idle
+						}
+						if (queue.isEmpty() && spill == null) {
+							consumerRunning = false;
+							return;
+						}
+					}
+					batch = takeBatch();
+				} finally {
+					lock.unlock();
+				}
+				List<ProvenanceItem> items = new ArrayList<ProvenanceItem>(
+						batch.size());
+				for (QueuedItem queued : batch) {
+					items.add(queued.item);
+				}
+				try {
+					processor.processBatch(items);
+				} catch (RuntimeException e) {
+					logger.error("Could not process provenance events", e);
+				} finally {
+					lock.lock();
+					try {
+						for (QueuedItem queued : batch) {
+							processed(queued.workflowRunId);
+						}
+						processed.signalAll();
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		}
+	}
+
+	private static class QueuedItem {
+		final ProvenanceItem item;
+		final String workflowRunId;
+
+		QueuedItem(ProvenanceItem item, String workflowRunId) {
+			this.item = item;
+			this.workflowRunId = workflowRunId;
+		}
+	}
+
+	/**
+	 * Append only file of encoded items, read back from the start. The run
+	 * each item is counted against is kept in memory so the counts stay right
+	 * even if the file can't be read back.
+	 */
+	private class SpillFile {
+
+		final File file;
+
+		final DataOutputStream out;
+
+		DataInputStream in = null;
+
+		final LinkedList<String> workflowRunIds = new LinkedList<String>();
+
+		SpillFile(File file) throws IOException {
+			this.file = file;
+			file.deleteOnExit();
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+		}
+
+		void append(ProvenanceItem item, String workflowRunId)
+				throws IOException {
+			// Encode aside so an item failing part way leaves nothing behind
+			// to misalign the items read after it
+			ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+			DataOutputStream recordOut = new DataOutputStream(record);
+			codec.write(item, recordOut);
+			recordOut.flush();
+			record.writeTo(out);
+			workflowRunIds.add(workflowRunId);
+		}
+
+		boolean hasNext() {
+			return !workflowRunIds.isEmpty();
+		}
+
+		int remaining() {
+			return workflowRunIds.size();
+		}
+
+		/**
+		 * Make everything appended so far readable
+		 */
+		void flush() throws IOException {
+			out.flush();
+			if (in == null) {
+				in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(file)));
+			}
+		}
+
+		QueuedItem next() throws IOException {
+			ProvenanceItem item = codec.read(in);
+			return new QueuedItem(item, workflowRunIds.removeFirst());
+		}
+
+		/**
+		 * Skip an unreadable item, returning the run it is counted against
+		 */
+		String discardNext() {
+			return workflowRunIds.removeFirst();
+		}
+
+		void delete() {
+			try {
+				out.close();
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+				logger.warn("Could not close spill file " + file, e);
+			}
+			if (!file.delete()) {
+				logger.warn("Could not delete spill file " + file);
+			}
+		}
+	}
+
+}
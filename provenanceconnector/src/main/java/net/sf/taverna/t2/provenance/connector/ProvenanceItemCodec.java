@@ -0,0 +1,521 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.connector;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.sf.taverna.t2.facade.WorkflowInstanceFacade.State;
+import net.sf.taverna.t2.provenance.item.ActivityProvenanceItem;
+import net.sf.taverna.t2.provenance.item.DataProvenanceItem;
+import net.sf.taverna.t2.provenance.item.DataflowRunComplete;
+import net.sf.taverna.t2.provenance.item.ErrorProvenanceItem;
+import net.sf.taverna.t2.provenance.item.InputDataProvenanceItem;
+import net.sf.taverna.t2.provenance.item.InvocationStartedProvenanceItem;
+import net.sf.taverna.t2.provenance.item.IterationProvenanceItem;
+import net.sf.taverna.t2.provenance.item.OutputDataProvenanceItem;
+import net.sf.taverna.t2.provenance.item.ProcessProvenanceItem;
+import net.sf.taverna.t2.provenance.item.ProcessorProvenanceItem;
+import net.sf.taverna.t2.provenance.item.ProvenanceItem;
+import net.sf.taverna.t2.provenance.item.WorkflowDataProvenanceItem;
+import net.sf.taverna.t2.provenance.item.WorkflowProvenanceItem;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.Dataflow;
+import net.sf.taverna.t2.workflowmodel.serialization.xml.XMLDeserializerRegistry;
+import net.sf.taverna.t2.workflowmodel.serialization.xml.XMLSerializerRegistry;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+import org.jdom.output.XMLOutputter;
+
+/**
+ * Compact binary form of the {@link ProvenanceItem}s that can be written out
+ * of process and read back for processing later. Only the fields the
+ * {@link net.sf.taverna.t2.provenance.lineageservice.EventProcessor} reads are
+ * kept, data references are written as their string form and resolved
+ * against the {@link ReferenceService} on reading.
+ * <p>
+ * Every kind of item reported by the enactor can be encoded. The cause of an
+ * error item and the activity of an activity or invocation item are not
+ * kept, nor are the child items a process, processor or activity item points
+ * to as they are reported separately. Of a parent iteration item only the
+ * fact that there was one is kept. The dataflow of a workflow item is written
+ * in its XML serialised form, so reading it back needs the activities it uses
+ * to be available.
+ * 
+ */
+public class ProvenanceItemCodec {
+
+	private static final byte ITERATION = 1;
+	private static final byte PROCESS = 2;
+	private static final byte PROCESSOR = 3;
+	private static final byte ACTIVITY = 4;
+	private static final byte INVOCATION_STARTED = 5;
+	private static final byte WORKFLOW_DATA = 6;
+	private static final byte END_WORKFLOW = 7;
+	private static final byte ERROR = 8;
+	private static final byte INPUT_DATA = 9;
+	private static final byte OUTPUT_DATA = 10;
+	private static final byte WORKFLOW = 11;
+
+	private final ReferenceService referenceService;
+
+	/**
+	 * @param referenceService
+	 *            resolves the data references of the items read, can be null
+	 *            if the codec is only used for writing
+	 */
+	public ProvenanceItemCodec(ReferenceService referenceService) {
+		this.referenceService = referenceService;
+	}
+
+	/**
+	 * Whether {@link #write} can encode the item
+	 */
+	public boolean canEncode(ProvenanceItem item) {
+		return typeOf(item) != 0;
+	}
+
+	/**
+	 * Whether {@link #read} can decode items, which takes a
+	 * {@link ReferenceService}
+	 */
+	public boolean canDecode() {
+		return referenceService != null;
+	}
+
+	public void write(ProvenanceItem item, DataOutput out) throws IOException {
+		byte type = typeOf(item);
+		if (type == 0) {
+			throw new IllegalArgumentException("Can't encode " + item);
+		}
+		out.writeByte(type);
+		writeCommon(item, out);
+		switch (type) {
+		case ITERATION:
+			writeIteration((IterationProvenanceItem) item, out);
+			break;
+		case PROCESS:
+			ProcessProvenanceItem process = (ProcessProvenanceItem) item;
+			writeString(process.getOwningProcess(), out);
+			writeString(process.getFacadeID(), out);
+			writeString(process.getDataflowID(), out);
+			break;
+		case INVOCATION_STARTED:
+			InvocationStartedProvenanceItem started = (InvocationStartedProvenanceItem) item;
+			writeString(started.getInvocationProcessId(), out);
+			out.writeBoolean(started.getInvocationStarted() != null);
+			if (started.getInvocationStarted() != null) {
+				out.writeLong(started.getInvocationStarted().getTime());
+			}
+			break;
+		case WORKFLOW_DATA:
+			WorkflowDataProvenanceItem workflowData = (WorkflowDataProvenanceItem) item;
+			writeString(workflowData.getPortName(), out);
+			writeLongString(workflowData.getData() == null ? null
+					: workflowData.getData().toString(), out);
+			writeIndex(workflowData.getIndex(), out);
+			out.writeBoolean(workflowData.isFinal());
+			out.writeBoolean(workflowData.isInputPort());
+			break;
+		case END_WORKFLOW:
+			DataflowRunComplete complete = (DataflowRunComplete) item;
+			writeTimestamp(complete.getInvocationEnded(), out);
+			writeString(complete.getState() == null ? null : complete
+					.getState().name(), out);
+			break;
+		case ERROR:
+			writeError((ErrorProvenanceItem) item, out);
+			break;
+		case INPUT_DATA:
+		case OUTPUT_DATA:
+			writeDataMap((DataProvenanceItem) item, out);
+			break;
+		case WORKFLOW:
+			WorkflowProvenanceItem workflow = (WorkflowProvenanceItem) item;
+			writeIndex(workflow.getIndex(), out);
+			out.writeBoolean(workflow.isFinal());
+			writeTimestamp(workflow.getInvocationStarted(), out);
+			writeDataflow(workflow.getDataflow(), out);
+			break;
+		}
+	}
+
+	public ProvenanceItem read(DataInput in) throws IOException {
+		byte type = in.readByte();
+		ProvenanceItem item;
+		switch (type) {
+		case ITERATION:
+			item = new IterationProvenanceItem();
+			break;
+		case PROCESS:
+			item = new ProcessProvenanceItem();
+			break;
+		case PROCESSOR:
+			item = new ProcessorProvenanceItem();
+			break;
+		case ACTIVITY:
+			item = new ActivityProvenanceItem();
+			break;
+		case INVOCATION_STARTED:
+			item = new InvocationStartedProvenanceItem();
+			break;
+		case WORKFLOW_DATA:
+			item = new WorkflowDataProvenanceItem();
+			break;
+		case END_WORKFLOW:
+			item = new DataflowRunComplete();
+			break;
+		case ERROR:
+			item = new ErrorProvenanceItem();
+			break;
+		case INPUT_DATA:
+			item = new InputDataProvenanceItem();
+			break;
+		case OUTPUT_DATA:
+			item = new OutputDataProvenanceItem();
+			break;
+		case WORKFLOW:
+			item = new WorkflowProvenanceItem();
+			break;
+		default:
+			throw new IOException("Unknown provenance item type " + type);
+		}
+		readCommon(item, in);
+		switch (type) {
+		case ITERATION:
+			readIteration((IterationProvenanceItem) item, in);
+			break;
+		case PROCESS:
+			ProcessProvenanceItem process = (ProcessProvenanceItem) item;
+			process.setOwningProcess(readString(in));
+			process.setFacadeID(readString(in));
+			process.setDataflowID(readString(in));
+			break;
+		case INVOCATION_STARTED:
+			InvocationStartedProvenanceItem started = (InvocationStartedProvenanceItem) item;
+			started.setInvocationProcessId(readString(in));
+			if (in.readBoolean()) {
+				started.setInvocationStarted(new Date(in.readLong()));
+			}
+			break;
+		case WORKFLOW_DATA:
+			WorkflowDataProvenanceItem workflowData = (WorkflowDataProvenanceItem) item;
+			workflowData.setPortName(readString(in));
+			workflowData.setData(readReference(readLongString(in)));
+			workflowData.setReferenceService(referenceService);
+			workflowData.setIndex(readIndex(in));
+			workflowData.setFinal(in.readBoolean());
+			workflowData.setInputPort(in.readBoolean());
+			break;
+		case END_WORKFLOW:
+			DataflowRunComplete complete = (DataflowRunComplete) item;
+			complete.setInvocationEnded(readTimestamp(in));
+			String state = readString(in);
+			complete.setState(state == null ? null : State.valueOf(state));
+			break;
+		case ERROR:
+			readError((ErrorProvenanceItem) item, in);
+			break;
+		case INPUT_DATA:
+		case OUTPUT_DATA:
+			readDataMap((DataProvenanceItem) item, in);
+			break;
+		case WORKFLOW:
+			WorkflowProvenanceItem workflow = (WorkflowProvenanceItem) item;
+			workflow.setIndex(readIndex(in));
+			workflow.setFinal(in.readBoolean());
+			workflow.setInvocationStarted(readTimestamp(in));
+			workflow.setDataflow(readDataflow(in));
+			break;
+		}
+		return item;
+	}
+
+	private static byte typeOf(ProvenanceItem item) {
+		if (item instanceof IterationProvenanceItem) {
+			return ITERATION;
+		} else if (item instanceof ProcessProvenanceItem) {
+			return PROCESS;
+		} else if (item instanceof ProcessorProvenanceItem) {
+			return PROCESSOR;
+		} else if (item instanceof ActivityProvenanceItem) {
+			return ACTIVITY;
+		} else if (item instanceof InvocationStartedProvenanceItem) {
+			return INVOCATION_STARTED;
+		} else if (item instanceof WorkflowDataProvenanceItem) {
+			return WORKFLOW_DATA;
+		} else if (item instanceof DataflowRunComplete) {
+			return END_WORKFLOW;
+		} else if (item instanceof ErrorProvenanceItem) {
+			return ERROR;
+		} else if (item instanceof InputDataProvenanceItem) {
+			return INPUT_DATA;
+		} else if (item instanceof OutputDataProvenanceItem) {
+			return OUTPUT_DATA;
+		} else if (item instanceof WorkflowProvenanceItem) {
+			return WORKFLOW;
+		}
+		return 0;
+	}
+
+	private void writeIteration(IterationProvenanceItem iteration, DataOutput out)
+			throws IOException {
+		out.writeBoolean(iteration.getParentIterationItem() != null);
+		writeIndex(iteration.getIteration(), out);
+		writeTimestamp(iteration.getEnactmentStarted(), out);
+		writeTimestamp(iteration.getEnactmentEnded(), out);
+		writeData(iteration.getInputDataItem(), out);
+		writeData(iteration.getOutputDataItem(), out);
+		ErrorProvenanceItem error = iteration.getErrorItem();
+		out.writeBoolean(error != null);
+		if (error != null) {
+			writeCommon(error, out);
+			writeError(error, out);
+		}
+	}
+
+	private void readIteration(IterationProvenanceItem iteration, DataInput in)
+			throws IOException {
+		if (in.readBoolean()) {
+			// Only ever checked for presence
+			iteration.setParentIterationItem(new IterationProvenanceItem());
+		}
+		iteration.setIteration(readIndex(in));
+		iteration.setEnactmentStarted(readTimestamp(in));
+		iteration.setEnactmentEnded(readTimestamp(in));
+		if (in.readBoolean()) {
+			InputDataProvenanceItem input = new InputDataProvenanceItem();
+			readCommon(input, in);
+			readDataMap(input, in);
+			iteration.setInputDataItem(input);
+		}
+		if (in.readBoolean()) {
+			OutputDataProvenanceItem output = new OutputDataProvenanceItem();
+			readCommon(output, in);
+			readDataMap(output, in);
+			iteration.setOutputDataItem(output);
+		}
+		if (in.readBoolean()) {
+			ErrorProvenanceItem error = new ErrorProvenanceItem();
+			readCommon(error, in);
+			readError(error, in);
+			iteration.setErrorItem(error);
+		}
+	}
+
+	private static void writeError(ErrorProvenanceItem error, DataOutput out)
+			throws IOException {
+		writeLongString(error.getMessage(), out);
+		writeString(error.getErrorType(), out);
+	}
+
+	private static void readError(ErrorProvenanceItem error, DataInput in)
+			throws IOException {
+		error.setMessage(readLongString(in));
+		error.setErrorType(readString(in));
+	}
+
+	private void writeData(DataProvenanceItem data, DataOutput out)
+			throws IOException {
+		out.writeBoolean(data != null);
+		if (data == null) {
+			return;
+		}
+		writeCommon(data, out);
+		writeDataMap(data, out);
+	}
+
+	private void writeDataMap(DataProvenanceItem data, DataOutput out)
+			throws IOException {
+		Map<String, T2Reference> dataMap = data.getDataMap();
+		out.writeInt(dataMap == null ? -1 : dataMap.size());
+		if (dataMap != null) {
+			for (Entry<String, T2Reference> entry : dataMap.entrySet()) {
+				writeString(entry.getKey(), out);
+				writeLongString(entry.getValue() == null ? null : entry
+						.getValue().toString(), out);
+			}
+		}
+	}
+
+	private void readDataMap(DataProvenanceItem data, DataInput in)
+			throws IOException {
+		data.setReferenceService(referenceService);
+		int size = in.readInt();
+		if (size >= 0) {
+			Map<String, T2Reference> dataMap = new HashMap<String, T2Reference>();
+			for (int i = 0; i < size; i++) {
+				String port = readString(in);
+				dataMap.put(port, readReference(readLongString(in)));
+			}
+			data.setDataMap(dataMap);
+		}
+	}
+
+	private T2Reference readReference(String reference) throws IOException {
+		if (reference == null) {
+			return null;
+		}
+		if (referenceService == null) {
+			throw new IOException("No Reference Service to read data references with");
+		}
+		return referenceService.referenceFromString(reference);
+	}
+
+	private static void writeDataflow(Dataflow dataflow, DataOutput out)
+			throws IOException {
+		out.writeBoolean(dataflow != null);
+		if (dataflow == null) {
+			return;
+		}
+		StringWriter xml = new StringWriter();
+		try {
+			Element element = XMLSerializerRegistry.getInstance()
+					.getSerializer().serializeDataflow(dataflow);
+			new XMLOutputter().output(element, xml);
+		} catch (Exception e) {
+			IOException ioe = new IOException("Could not serialise dataflow "
+					+ dataflow.getLocalName());
+			ioe.initCause(e);
+			throw ioe;
+		}
+		writeLongString(xml.toString(), out);
+	}
+
+	private static Dataflow readDataflow(DataInput in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		String xml = readLongString(in);
+		try {
+			Document document = new SAXBuilder().build(new StringReader(xml));
+			return XMLDeserializerRegistry.getInstance().getDeserializer()
+					.deserializeDataflow(document.getRootElement());
+		} catch (Exception e) {
+			IOException ioe = new IOException("Could not deserialise dataflow");
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+	private static void writeCommon(ProvenanceItem item, DataOutput out)
+			throws IOException {
+		writeString(item.getIdentifier(), out);
+		writeString(item.getParentId(), out);
+		writeString(item.getProcessId(), out);
+		writeString(item.getWorkflowId(), out);
+	}
+
+	private static void readCommon(ProvenanceItem item, DataInput in)
+			throws IOException {
+		item.setIdentifier(readString(in));
+		item.setParentId(readString(in));
+		item.setProcessId(readString(in));
+		item.setWorkflowId(readString(in));
+	}
+
+	private static void writeIndex(int[] index, DataOutput out) throws IOException {
+		out.writeInt(index == null ? -1 : index.length);
+		if (index != null) {
+			for (int i : index) {
+				out.writeInt(i);
+			}
+		}
+	}
+
+	private static int[] readIndex(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		int[] index = new int[length];
+		for (int i = 0; i < length; i++) {
+			index[i] = in.readInt();
+		}
+		return index;
+	}
+
+	private static void writeTimestamp(Timestamp timestamp, DataOutput out)
+			throws IOException {
+		out.writeBoolean(timestamp != null);
+		if (timestamp != null) {
+			out.writeLong(timestamp.getTime());
+			out.writeInt(timestamp.getNanos());
+		}
+	}
+
+	private static Timestamp readTimestamp(DataInput in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		Timestamp timestamp = new Timestamp(in.readLong());
+		timestamp.setNanos(in.readInt());
+		return timestamp;
+	}
+
+	private static void writeString(String string, DataOutput out) throws IOException {
+		out.writeBoolean(string != null);
+		if (string != null) {
+			out.writeUTF(string);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * For strings that may be longer than the 64K writeUTF allows, such as
+	 * error messages and data values
+	 */
+	private static void writeLongString(String string, DataOutput out)
+			throws IOException {
+		if (string == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = string.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readLongString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+}
@@ -20,11 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.provenance.lineageservice;
 
-import java.beans.ExceptionListener;
-import java.beans.XMLEncoder;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -34,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,6 +40,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.rowset.serial.SerialBlob;
 
+import net.sf.taverna.t2.provenance.connector.ProvenanceEventLog;
+import net.sf.taverna.t2.provenance.connector.ProvenanceItemCodec;
 import net.sf.taverna.t2.provenance.item.DataProvenanceItem;
 import net.sf.taverna.t2.provenance.item.DataflowRunComplete;
 import net.sf.taverna.t2.provenance.item.InputDataProvenanceItem;
@@ -75,7 +74,6 @@ import net.sf.taverna.t2.workflowmodel.processor.activity.Activity;
 import net.sf.taverna.t2.workflowmodel.processor.activity.NestedDataflow;
 import net.sf.taverna.t2.workflowmodel.serialization.xml.XMLSerializerRegistry;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.jdom.Document;
@@ -110,7 +108,7 @@ public class EventProcessor {
 
 	private static final String DUMMY_INSTANCE_ID = "dummyInstanceID";
 
-	private int eventCnt = 0; // for events logging
+	private ProvenanceEventLog eventLog = null; // for events logging
 	private volatile boolean workflowStructureDone = false; // used to inhibit processing of multiple workflow events -- we only need the first
 	private volatile String workflowRunId = null; // unique run ID. set when we see the first event of type "process"
 
@@ -1402,65 +1400,60 @@ public class EventProcessor {
 	}
 
 	/**
-	 * log raw event to file system
+	 * The log {@link #saveEvent} appends to, by default one in
+	 * /tmp/TEST-EVENTS opened on first use
+	 */
+	public synchronized void setEventLog(ProvenanceEventLog eventLog) {
+		this.eventLog = eventLog;
+	}
+
+	public synchronized ProvenanceEventLog getEventLog() throws IOException {
+		if (eventLog == null) {
+			eventLog = new ProvenanceEventLog(new File(TEST_EVENTS_FOLDER),
+					new ProvenanceItemCodec(null));
+		}
+		return eventLog;
+	}
+
+	/**
+	 * log raw event to the {@link #getEventLog() event log}, from where it can
+	 * be loaded later with a {@link net.sf.taverna.t2.provenance.connector.ProvenanceEventLogReplay}
 	 * 
-	 * @param content
+	 * @param provenanceItem
 	 * @param eventType
 	 * @throws IOException
 	 */
 	public void saveEvent(ProvenanceItem provenanceItem, SharedVocabulary eventType) throws IOException {
+		getEventLog().append(provenanceItem);
+	}
 
-		// HACK -- XMLEncoder fails on IterationEvents and there is no way to catch the exception...
-		// so avoid this case
-		if (eventType.equals(SharedVocabulary.ITERATION_EVENT_TYPE))  {
-			return;
+	/**
+	 * Wait until everything saved to the event log so far is on disk, if
+	 * the log has been opened
+	 */
+	public void syncEventLog() throws IOException {
+		ProvenanceEventLog log;
+		synchronized (this) {
+			log = eventLog;
 		}
+		if (log != null) {
+			log.sync();
+		}
+	}
 
-		//		System.out.println("saveEvent: start");
-
-		File f1 = null;
-
-		f1 = new File(TEST_EVENTS_FOLDER);
-		FileUtils.forceMkdir(f1);
-
-		String fname = "event_" + eventCnt++ + "_" + eventType + ".xml";
-		File f = new File(f1, fname);
-
-		//		FileWriter fw = new FileWriter(f);
-
-		XMLEncoder en = new XMLEncoder(new BufferedOutputStream(
-				new FileOutputStream(f)));
-
-		en.setExceptionListener(new ExceptionListener()
-		{
-			public void exceptionThrown(Exception e)
-			{
-				logger.warn("XML encoding ERROR", e);
-				return;
-			}
-		});
-
-		logger.debug("saving to " + f); // save event for later inspection
-		logger.debug(provenanceItem);
-
-		en.writeObject(provenanceItem);
-
-		logger.debug("writer ok");
-		en.close();
-		logger.debug("closed");
-
-		//		fw.write(content);
-		//		fw.flush();
-		//		fw.close();
-
-		//		FileWriter fw = new FileWriter(f);
-		//		fw.write(content);
-		//		fw.flush();
-		//		fw.close();
-
-		//		System.out.println("saved as file " + fname);
-
-
+	/**
+	 * Commit and close the event log, if it has been opened. A later
+	 * {@link #saveEvent} opens a new one.
+	 */
+	public void closeEventLog() throws IOException {
+		ProvenanceEventLog log;
+		synchronized (this) {
+			log = eventLog;
+			eventLog = null;
+		}
+		if (log != null) {
+			log.close();
+		}
 	}
 
 	/**
@@ -1624,6 +1617,13 @@ public class EventProcessor {
 	}
 
 
+	/**
+	 * Sets the resolved depth (actual nesting level) of every port of the
+	 * run's workflow and its nested workflows. The ports and datalinks of all
+	 * of them are loaded in one go, the depths worked out in memory following
+	 * the processors in topological order, and the ports whose depth changed
+	 * written back with a single batched update.
+	 */
 	public void propagateANL(String workflowRunId) throws SQLException {
 
 		String top = pq.getTopLevelDataflowName(workflowRunId);
@@ -1633,82 +1633,60 @@ public class EventProcessor {
 		// //////////////////////
 		List<Pair> sorted = toposort(top, workflowRunId);
 
-		List<String> sortedProcessors = new ArrayList<String>();
-
-		for (Pair p:sorted) { sortedProcessors.add(p.getV1()); }
-
 		logger.debug("final sorted list of processors");
 		for (Pair p:sorted) {  logger.debug(p.getV1()+"  in workflowId "+p.getV2()); }
 
+		Set<String> workflowIds = new LinkedHashSet<String>();
+		for (Pair p:sorted) { workflowIds.add(p.getV2()); }
+		PortGraph graph = new PortGraph(getPq().getPortsForWorkflows(workflowIds),
+				getPq().getDataLinksForWorkflows(workflowIds));
+
+		// ports whose resolved depth has been set, in the order they were set
+		Set<Port> changed = new LinkedHashSet<Port>();
+		Map<String, String> workflowIdForExternalName = new HashMap<String, String>();
+
 		// //////////////////////
 		// PHASE II: traverse and set anl on each port
 		// //////////////////////
 
-		//		logger.debug("***** STARTING ANL *****");
-
 		//		// sorted processor names in L at this point
 		//		// process them in order
 		for (Pair pnameInContext : sorted) {
 
-			//			logger.debug("setting ANL for "+pnameInContext.getV1()+" input vars");
-
 			//			// process pname's inputs -- set ANL to be the DNL if not set in prior steps
 			String pname     = pnameInContext.getV1();
 			String workflowId = pnameInContext.getV2();
 
-			//			logger.debug("processor "+pname);
-
-			List<Port> inputs = getPq().getInputPorts(pname, workflowId); // null -> do not use instance (??) CHECK
-
-			//			logger.debug(inputs.size()+" inputs for "+pnameInContext.getV1());
+			List<Port> inputs = graph.getInputPorts(pname, workflowId);
 
 			int totalANL = 0;
 			for (Port iv : inputs) {
 
 				if (! iv.isResolvedDepthSet()) {
 					iv.setResolvedDepth(iv.getDepth());
-					getPw().updatePort(iv);
-
-//					logger.debug("var: "+iv.getVName()+" set at nominal level "+iv.getresolvedDepth());					
+					changed.add(iv);
 				}
 
 				int delta_nl = iv.getResolvedDepth() - iv.getDepth();
 
 				// if delta_nl < 0 then Taverna wraps the value into a list --> use dnl(X) in this case
 				if (delta_nl < 0 ) delta_nl = 0;// CHECK iv.getTypedepth();
-//				logger.debug("delta for "+iv.getVName()+" "+delta_nl);
 
 				totalANL += delta_nl;
-
-				// this should take care of the special case of the top level dataflow with inputs that have successors in the graph
-				// propagate this through all the links from this var
-//				List<Port> successors = getPq().getSuccVars(pname, iv.getVName(), workflowRunId);
-
-				//				logger.debug(successors.size()+ " successors for var "+iv.getVName());
-
-//				for (Port v : successors) {
-//				v.setresolvedDepth(iv.getresolvedDepth());
-//				getPw().updateVar(v);
-//				}
 			}
-			//			logger.debug("total anl: "+totalANL);
-
-			//			logger.debug("now setting ANL for "+pname+" output vars");
 
 			// process pname's outputs -- set ANL based on the sum formula (see
 			// paper)
-			List<Port> outputs = getPq().getOutputPorts(pname, workflowId);
+			List<Port> outputs = graph.getOutputPorts(pname, workflowId);
 			for (Port ov : outputs) {
 
 				ov.setResolvedDepth(ov.getDepth() + totalANL);
 
 				logger.debug("anl for "+pname+":"+ov.getPortName()+" = "+(ov.getDepth() + totalANL));
-				getPw().updatePort(ov);
+				changed.add(ov);
 
 				// propagate this through all the links from this var
-				List<Port> successors = getPq().getSuccPorts(pname, ov.getPortName(), workflowId);
-
-				//				logger.debug(successors.size()+ " successors for var "+ov.getVName());
+				List<Port> successors = graph.getSuccPorts(pname, ov.getPortName(), workflowId);
 
 				for (Port v : successors) {
 
@@ -1717,22 +1695,19 @@ public class EventProcessor {
 
 					if (v.getProcessorId() == null && v.isInputPort()) {  // this is the input to a nested workflow
 
-//						String tempWorkflowId = pq.getworkflowIdForDataflow(v.getPName(), workflowRunId);
-						String tempWorkflowId = pq.getWorkflowIdForExternalName(v.getProcessorName());
-						List<Port> realSuccessors = getPq().getSuccPorts(v.getProcessorName(), v.getPortName(), tempWorkflowId);	
-
-						//						logger.debug("realSuccessors size = "+realSuccessors.size());
+						String tempWorkflowId = workflowIdForExternalName.get(v.getProcessorName());
+						if (tempWorkflowId == null) {
+							tempWorkflowId = pq.getWorkflowIdForExternalName(v.getProcessorName());
+							workflowIdForExternalName.put(v.getProcessorName(), tempWorkflowId);
+						}
+						List<Port> realSuccessors = graph.getSuccPorts(v.getProcessorName(), v.getPortName(), tempWorkflowId);	
 
 						toBeProcessed.remove(0);
 						toBeProcessed.addAll(realSuccessors);
 
 					}  else if (v.getProcessorId() == null && !v.isInputPort()) {  // this is the output to a nested workflow
 
-//						String tempworkflowId = pq.getworkflowIdForDataflow(v.getPName(), workflowRunId);
-						String tempWorkflowId = pq.getWorkflowIdForExternalName(v.getProcessorName());
-						List<Port> realSuccessors = getPq().getSuccPorts(v.getProcessorName(), v.getPortName(), null);	
-
-						//						logger.debug("realSuccessors size = "+realSuccessors.size());
+						List<Port> realSuccessors = graph.getSuccPorts(v.getProcessorName(), v.getPortName(), null);	
 
 						toBeProcessed.remove(0);
 						toBeProcessed.addAll(realSuccessors);
@@ -1742,11 +1717,13 @@ public class EventProcessor {
 					for (Port v1:toBeProcessed) {
 						v1.setResolvedDepth(ov.getResolvedDepth());
 						logger.debug("anl for "+v1.getProcessorName()+":"+v1.getPortName()+" = "+ov.getResolvedDepth());
-						getPw().updatePort(v1);
+						changed.add(v1);
 					}
 				}
 			}
 		}
+
+		getPw().updatePorts(new ArrayList<Port>(changed));
 	}
 
 
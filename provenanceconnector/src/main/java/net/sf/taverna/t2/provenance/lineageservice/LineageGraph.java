@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.taverna.t2.provenance.lineageservice.utils.DataLink;
+import net.sf.taverna.t2.provenance.lineageservice.utils.Port;
+import net.sf.taverna.t2.provenance.lineageservice.utils.ProvenanceProcessor;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An in-memory copy of the static part of the provenance database -- ports,
+ * datalinks and whether processors are dataflows -- that
+ * {@link ProvenanceAnalysis#searchDataflowGraph} walks instead of issuing one
+ * query per hop.
+ * <p>
+ * A workflow is loaded from the Port and Datalink tables the first time it is
+ * reached and kept up to date by the {@link ProvenanceWriter} it is
+ * {@link ProvenanceWriter#setLineageGraph(LineageGraph) registered} with.
+ * Lookups that fall outside the loaded workflows are answered by the
+ * {@link ProvenanceQuery}, so the answers are always those the database would
+ * give.
+ */
+public class LineageGraph {
+
+	private static Logger logger = Logger.getLogger(LineageGraph.class);
+
+	private static final Comparator<Port> ITERATION_STRATEGY_ORDER = new Comparator<Port>() {
+		public int compare(Port p1, Port p2) {
+			return p1.getIterationStrategyOrder() - p2.getIterationStrategyOrder();
+		}
+	};
+
+	private final ProvenanceQuery pq;
+
+	/** ports of each loaded workflow, in iteration strategy order */
+	private final Map<String, List<Port>> workflowPorts = new HashMap<String, List<Port>>();
+	private final Map<String, Port> portsById = new HashMap<String, Port>();
+	private final Map<String, List<DataLink>> dataLinksByDestination = new HashMap<String, List<DataLink>>();
+	private final Set<String> noIncomingDataLinks = new HashSet<String>();
+	private final Map<String, Boolean> dataflowProcessors = new HashMap<String, Boolean>();
+
+	public LineageGraph(ProvenanceQuery pq) {
+		this.pq = pq;
+	}
+
+	/**
+	 * The ports named portName of processor processorName in the workflow,
+	 * as {@link ProvenanceQuery#getPorts(Map)} constrained on all three
+	 */
+	public List<Port> getPorts(String workflowId, String processorName,
+			String portName) throws SQLException {
+		List<Port> result = new ArrayList<Port>();
+		synchronized (this) {
+			List<Port> ports = loadWorkflow(workflowId);
+			if (ports != null) {
+				for (Port port : ports) {
+					if (processorName.equals(port.getProcessorName())
+							&& portName.equals(port.getPortName())) {
+						result.add(copy(port));
+					}
+				}
+				return result;
+			}
+		}
+		Map<String, String> queryConstraints = new HashMap<String, String>();
+		queryConstraints.put("V.processorName", processorName);
+		queryConstraints.put("V.portName", portName);
+		queryConstraints.put("V.workflowId", workflowId);
+		return pq.getPorts(queryConstraints);
+	}
+
+	/**
+	 * The input ports of the processor in the workflow, in iteration strategy
+	 * order
+	 */
+	public List<Port> getInputPorts(String workflowId, String processorName)
+			throws SQLException {
+		List<Port> result = new ArrayList<Port>();
+		synchronized (this) {
+			List<Port> ports = loadWorkflow(workflowId);
+			if (ports != null) {
+				for (Port port : ports) {
+					if (port.isInputPort()
+							&& processorName.equals(port.getProcessorName())) {
+						result.add(copy(port));
+					}
+				}
+				return result;
+			}
+		}
+		Map<String, String> queryConstraints = new HashMap<String, String>();
+		queryConstraints.put("W.workflowId", workflowId);
+		queryConstraints.put("processorName", processorName);
+		queryConstraints.put("isInputPort", "1");
+		return pq.getPorts(queryConstraints);
+	}
+
+	/**
+	 * The port with the given identifier, or null if there is none
+	 */
+	public Port getPort(String portId) throws SQLException {
+		synchronized (this) {
+			Port port = portsById.get(portId);
+			if (port != null) {
+				return copy(port);
+			}
+		}
+		Map<String, String> queryConstraints = new HashMap<String, String>();
+		queryConstraints.put("portId", portId);
+		List<Port> ports = pq.getPorts(queryConstraints);
+		if (ports.isEmpty()) {
+			return null;
+		}
+		Port port = ports.get(0);
+		synchronized (this) {
+			loadWorkflow(port.getWorkflowId());
+		}
+		// callers may change the port, as they may those from the graph
+		return copy(port);
+	}
+
+	/**
+	 * The datalinks ending at the given port
+	 */
+	public List<DataLink> getIncomingDataLinks(String destinationPortId)
+			throws SQLException {
+		synchronized (this) {
+			List<DataLink> dataLinks = dataLinksByDestination.get(destinationPortId);
+			if (dataLinks != null) {
+				return new ArrayList<DataLink>(dataLinks);
+			}
+			if (noIncomingDataLinks.contains(destinationPortId)) {
+				return new ArrayList<DataLink>();
+			}
+		}
+		Map<String, String> queryConstraints = new HashMap<String, String>();
+		queryConstraints.put("destinationPortId", destinationPortId);
+		List<DataLink> dataLinks = pq.getDataLinks(queryConstraints);
+		synchronized (this) {
+			if (dataLinks.isEmpty()) {
+				noIncomingDataLinks.add(destinationPortId);
+			} else {
+				loadWorkflow(dataLinks.get(0).getWorkflowId());
+			}
+		}
+		return dataLinks;
+	}
+
+	/**
+	 * As {@link ProvenanceQuery#isDataflow(String)}, remembering the answer
+	 * until a processor of that name is added
+	 */
+	public boolean isDataflow(String processorName) throws SQLException {
+		synchronized (this) {
+			Boolean isDataflow = dataflowProcessors.get(processorName);
+			if (isDataflow != null) {
+				return isDataflow;
+			}
+		}
+		boolean isDataflow = pq.isDataflow(processorName);
+		synchronized (this) {
+			dataflowProcessors.put(processorName, isDataflow);
+		}
+		return isDataflow;
+	}
+
+	/**
+	 * Ports written to the database for the workflow
+	 */
+	public synchronized void portsAdded(List<Port> ports, String workflowId) {
+		List<Port> loaded = workflowPorts.get(workflowId);
+		if (loaded == null) {
+			return;
+		}
+		for (Port port : ports) {
+			Port copy = copy(port);
+			copy.setWorkflowId(workflowId);
+			copy.setDepth(port.getDepth() >= 0 ? port.getDepth() : 0);
+			if (loaded.contains(copy)) {
+				continue;
+			}
+			loaded.add(copy);
+			portsById.put(copy.getIdentifier(), copy);
+		}
+		Collections.sort(loaded, ITERATION_STRATEGY_ORDER);
+	}
+
+	/**
+	 * A datalink written to the database for the workflow
+	 */
+	public synchronized void dataLinkAdded(Port sourcePort,
+			Port destinationPort, String workflowId) {
+		noIncomingDataLinks.remove(destinationPort.getIdentifier());
+		if (!workflowPorts.containsKey(workflowId)) {
+			return;
+		}
+		DataLink dataLink = new DataLink();
+		dataLink.setWorkflowId(workflowId);
+		dataLink.setSourceProcessorName(sourcePort.getProcessorName());
+		dataLink.setSourcePortName(sourcePort.getPortName());
+		dataLink.setSourcePortId(sourcePort.getIdentifier());
+		dataLink.setDestinationProcessorName(destinationPort.getProcessorName());
+		dataLink.setDestinationPortName(destinationPort.getPortName());
+		dataLink.setDestinationPortId(destinationPort.getIdentifier());
+		index(dataLink);
+	}
+
+	/**
+	 * A processor written to the database
+	 */
+	public synchronized void processorAdded(ProvenanceProcessor processor) {
+		dataflowProcessors.remove(processor.getProcessorName());
+	}
+
+	/**
+	 * A port updated in the database, see
+	 * {@link ProvenanceWriter#updatePort(Port)}
+	 */
+	public synchronized void portUpdated(Port port) {
+		Port loaded = portsById.get(port.getIdentifier());
+		if (loaded == null) {
+			return;
+		}
+		loaded.setInputPort(port.isInputPort());
+		loaded.setDepth(port.getDepth());
+		loaded.setResolvedDepth(port.isResolvedDepthSet() ? port.getResolvedDepth() : null);
+		loaded.setIterationStrategyOrder(port.getIterationStrategyOrder());
+		Collections.sort(workflowPorts.get(loaded.getWorkflowId()), ITERATION_STRATEGY_ORDER);
+	}
+
+	/**
+	 * Forget everything loaded, for instance after rows have been deleted
+	 */
+	public synchronized void clear() {
+		workflowPorts.clear();
+		portsById.clear();
+		dataLinksByDestination.clear();
+		noIncomingDataLinks.clear();
+		dataflowProcessors.clear();
+	}
+
+	/**
+	 * The ports of the workflow, loading it from the database if it is not
+	 * loaded yet, or null if the database has no ports for it
+	 */
+	private List<Port> loadWorkflow(String workflowId) throws SQLException {
+		if (workflowId == null) {
+			return null;
+		}
+		List<Port> ports = workflowPorts.get(workflowId);
+		if (ports != null) {
+			return ports;
+		}
+		Map<String, String> queryConstraints = new HashMap<String, String>();
+		queryConstraints.put("V.workflowId", workflowId);
+		ports = pq.getPorts(queryConstraints);
+		if (ports.isEmpty()) {
+			// no run of the workflow yet, so getPorts() would not find them either
+			return null;
+		}
+		queryConstraints = new HashMap<String, String>();
+		queryConstraints.put("workflowId", workflowId);
+		List<DataLink> dataLinks = pq.getDataLinks(queryConstraints);
+
+		workflowPorts.put(workflowId, ports);
+		for (Port port : ports) {
+			portsById.put(port.getIdentifier(), port);
+		}
+		for (DataLink dataLink : dataLinks) {
+			index(dataLink);
+		}
+		logger.debug("Loaded " + ports.size() + " ports and " + dataLinks.size()
+				+ " datalinks of workflow " + workflowId);
+		return ports;
+	}
+
+	private void index(DataLink dataLink) {
+		List<DataLink> dataLinks = dataLinksByDestination.get(dataLink.getDestinationPortId());
+		if (dataLinks == null) {
+			dataLinks = new ArrayList<DataLink>();
+			dataLinksByDestination.put(dataLink.getDestinationPortId(), dataLinks);
+		}
+		dataLinks.add(dataLink);
+		noIncomingDataLinks.remove(dataLink.getDestinationPortId());
+	}
+
+	private static Port copy(Port port) {
+		Port copy = new Port();
+		copy.setIdentifier(port.getIdentifier());
+		copy.setWorkflowId(port.getWorkflowId());
+		copy.setProcessorName(port.getProcessorName());
+		copy.setProcessorId(port.getProcessorId());
+		copy.setPortName(port.getPortName());
+		copy.setInputPort(port.isInputPort());
+		copy.setDepth(port.getDepth());
+		copy.setResolvedDepth(port.getResolvedDepth());
+		copy.setIterationStrategyOrder(port.getIterationStrategyOrder());
+		return copy;
+	}
+
+}
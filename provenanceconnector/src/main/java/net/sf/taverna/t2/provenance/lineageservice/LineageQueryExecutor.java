@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the independent lineage queries produced by
+ * {@link ProvenanceAnalysis#searchDataflowGraph} in parallel, each on its own
+ * connection, and hands back their {@link Dependencies} in the order of the
+ * queries.
+ * <p>
+ * The pool is bounded: however many lineage requests are in progress at most
+ * {@link #getMaxConcurrentQueries()} queries run at once, the others wait in
+ * line. All {@link ProvenanceQuery}s share the {@link #getDefault() default}
+ * executor unless given their own.
+ */
+public class LineageQueryExecutor {
+
+	private static Logger logger = Logger.getLogger(LineageQueryExecutor.class);
+
+	private static final int DEFAULT_MAX_CONCURRENT_QUERIES = 4;
+
+	private static LineageQueryExecutor defaultExecutor;
+
+	private final ThreadPoolExecutor pool;
+
+	/**
+	 * The executor shared by all {@link ProvenanceQuery}s that have not been
+	 * given one of their own
+	 */
+	public static synchronized LineageQueryExecutor getDefault() {
+		if (defaultExecutor == null) {
+			defaultExecutor = new LineageQueryExecutor(DEFAULT_MAX_CONCURRENT_QUERIES);
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * @param maxConcurrentQueries
+	 *            the most queries run at once, across all callers
+	 */
+	public LineageQueryExecutor(int maxConcurrentQueries) {
+		if (maxConcurrentQueries < 1) {
+			throw new IllegalArgumentException("At least one query must be allowed to run");
+		}
+		pool = new ThreadPoolExecutor(maxConcurrentQueries,
+				maxConcurrentQueries, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Lineage query "
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	public int getMaxConcurrentQueries() {
+		return pool.getMaximumPoolSize();
+	}
+
+	/**
+	 * Run the queries, null entries are skipped.
+	 *
+	 * @param timeoutMillis
+	 *            the longest to wait for any one query once it has started,
+	 *            or 0 to wait for as long as it takes. The statements of a
+	 *            query given up on are stopped by their JDBC query timeout,
+	 *            see {@link ProvenanceQuery#setLineageQueryTimeout(long)}
+	 * @return the results, in the order of the queries
+	 * @throws SQLException
+	 *             the first failure in query order, including a query that
+	 *             timed out; the queries still waiting are then abandoned
+	 */
+	public List<Dependencies> runAll(ProvenanceQuery pq,
+			List<LineageSQLQuery> queries, boolean includeDataValue,
+			long timeoutMillis) throws SQLException {
+		List<QueryTask> tasks = new ArrayList<QueryTask>();
+		for (LineageSQLQuery lq : queries) {
+			if (lq == null) {
+				continue;
+			}
+			QueryTask task = new QueryTask(pq, lq, includeDataValue);
+			task.future = pool.submit(task);
+			tasks.add(task);
+		}
+
+		List<Dependencies> results = new ArrayList<Dependencies>(tasks.size());
+		try {
+			for (QueryTask task : tasks) {
+				results.add(await(task, timeoutMillis));
+			}
+		} finally {
+			for (QueryTask task : tasks) {
+				task.future.cancel(true);
+			}
+		}
+		return results;
+	}
+
+	private Dependencies await(QueryTask task, long timeoutMillis)
+			throws SQLException {
+		try {
+			if (timeoutMillis <= 0) {
+				return task.future.get();
+			}
+			// the clock starts when the query does, not while it waits for a thread
+			while (true) {
+				long started = task.started;
+				if (started == 0) {
+					try {
+						return task.future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+					} catch (TimeoutException e) {
+						if (task.started == 0) {
+							continue;
+						}
+						started = task.started;
+					}
+				}
+				long remaining = timeoutMillis
+						- TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+				try {
+					return task.future.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					logger.warn("Lineage query timed out after " + timeoutMillis
+							+ "ms: " + task.lq.getVbQuery());
+					throw new SQLException("Lineage query timed out after "
+							+ timeoutMillis + "ms");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for lineage query");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) {
+				throw (SQLException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			SQLException sqlException = new SQLException("Lineage query failed");
+			sqlException.initCause(cause);
+			throw sqlException;
+		}
+	}
+
+	/**
+	 * Stop the threads once the queries already submitted are done
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private static class QueryTask implements Callable<Dependencies> {
+		final ProvenanceQuery pq;
+		final LineageSQLQuery lq;
+		final boolean includeDataValue;
+		volatile long started;
+		Future<Dependencies> future;
+
+		QueryTask(ProvenanceQuery pq, LineageSQLQuery lq, boolean includeDataValue) {
+			this.pq = pq;
+			this.lq = lq;
+			this.includeDataValue = includeDataValue;
+		}
+
+		public Dependencies call() throws SQLException {
+			started = System.nanoTime();
+			return pq.runLineageQuery(lq, includeDataValue);
+		}
+	}
+
+}
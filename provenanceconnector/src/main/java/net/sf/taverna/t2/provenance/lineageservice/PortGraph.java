@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.taverna.t2.provenance.lineageservice.utils.DataLink;
+import net.sf.taverna.t2.provenance.lineageservice.utils.Port;
+
+/**
+ * The ports and datalinks of a set of workflows, indexed to answer the
+ * questions {@link EventProcessor#propagateANL(String)} asks of
+ * {@link ProvenanceQuery#getInputPorts(String, String)},
+ * {@link ProvenanceQuery#getOutputPorts(String, String)} and
+ * {@link ProvenanceQuery#getSuccPorts(String, String, String)} without going
+ * back to the database. There is one {@link Port} per port, so changes made
+ * to a port returned are seen by later lookups.
+ */
+class PortGraph {
+
+	private final Map<String, List<Port>> portsByProcessor = new HashMap<String, List<Port>>();
+	private final Map<String, List<Port>> portsByName = new HashMap<String, List<Port>>();
+	private final Map<String, List<DataLink>> dataLinksBySource = new HashMap<String, List<DataLink>>();
+	private final Map<String, List<DataLink>> dataLinksBySourceInAnyWorkflow = new HashMap<String, List<DataLink>>();
+
+	PortGraph(List<Port> ports, List<DataLink> dataLinks) {
+		for (Port port : ports) {
+			add(portsByProcessor, key(port.getWorkflowId(), port.getProcessorName()), port);
+			add(portsByName, key(port.getWorkflowId(), port.getProcessorName(), port.getPortName()), port);
+		}
+		for (DataLink dataLink : dataLinks) {
+			add(dataLinksBySource, key(dataLink.getWorkflowId(),
+					dataLink.getSourceProcessorName(), dataLink.getSourcePortName()), dataLink);
+			add(dataLinksBySourceInAnyWorkflow, key(dataLink.getSourceProcessorName(),
+					dataLink.getSourcePortName()), dataLink);
+		}
+	}
+
+	List<Port> getInputPorts(String processorName, String workflowId) {
+		return getPorts(processorName, workflowId, true);
+	}
+
+	List<Port> getOutputPorts(String processorName, String workflowId) {
+		return getPorts(processorName, workflowId, false);
+	}
+
+	/**
+	 * The ports at the end of the datalinks from the port, in the given
+	 * workflow or if that is null in any of them
+	 */
+	List<Port> getSuccPorts(String processorName, String portName, String workflowId) {
+		List<DataLink> dataLinks;
+		if (workflowId != null) {
+			dataLinks = dataLinksBySource.get(key(workflowId, processorName, portName));
+		} else {
+			dataLinks = dataLinksBySourceInAnyWorkflow.get(key(processorName, portName));
+		}
+		if (dataLinks == null) {
+			return Collections.emptyList();
+		}
+		List<Port> result = new ArrayList<Port>();
+		for (DataLink dataLink : dataLinks) {
+			List<Port> destinations = portsByName.get(key(dataLink.getWorkflowId(),
+					dataLink.getDestinationProcessorName(), dataLink.getDestinationPortName()));
+			if (destinations != null) {
+				result.addAll(destinations);
+			}
+		}
+		return result;
+	}
+
+	private List<Port> getPorts(String processorName, String workflowId, boolean inputs) {
+		List<Port> ports = portsByProcessor.get(key(workflowId, processorName));
+		if (ports == null) {
+			return Collections.emptyList();
+		}
+		List<Port> result = new ArrayList<Port>();
+		for (Port port : ports) {
+			if (port.isInputPort() == inputs) {
+				result.add(port);
+			}
+		}
+		return result;
+	}
+
+	private static <T> void add(Map<String, List<T>> index, String key, T value) {
+		List<T> values = index.get(key);
+		if (values == null) {
+			values = new ArrayList<T>();
+			index.put(key, values);
+		}
+		values.add(value);
+	}
+
+	private static String key(String... parts) {
+		StringBuilder sb = new StringBuilder();
+		for (String part : parts) {
+			sb.append(part).append('\u0000');
+		}
+		return sb.toString();
+	}
+
+}
@@ -94,7 +94,10 @@ public class Provenance {
 
 	/**
 	 * @param saveEvents
-	 *            the saveEvents to set
+	 *            which events to save to the {@link EventProcessor#getEventLog() event log}:
+	 *            "all", "iteration", or "log" for all events without loading them into the
+	 *            database, which can then be done with a
+	 *            {@link net.sf.taverna.t2.provenance.connector.ProvenanceEventLogReplay}
 	 */
 	public void setSaveEvents(String saveEvents) {
 		this.saveEvents = saveEvents;
@@ -155,17 +158,23 @@ public class Provenance {
 	protected void processEvent(ProvenanceItem provenanceItem,
 			SharedVocabulary eventType) throws SQLException, IOException {
 
-		// only attempt to save the data events, since the workflow itself may not be XMLEncode-able
-		if (!eventType.equals(SharedVocabulary.WORKFLOW_EVENT_TYPE)) {
-
-			// saveEvent for debugging / testing
-			if ("all".equals(getSaveEvents())) {
+		// saveEvent to the event log, "log" only logs, the events are loaded into the database later
+		if ("all".equals(getSaveEvents())) {
+			getEp().saveEvent(provenanceItem, eventType);
+		} else if ("log".equals(getSaveEvents())) {
+			getEp().saveEvent(provenanceItem, eventType);
+		} else if ("iteration".equals(getSaveEvents())) {
+			if (eventType.equals(SharedVocabulary.ITERATION_EVENT_TYPE))
 				getEp().saveEvent(provenanceItem, eventType);
-			} else if ("iteration".equals(getSaveEvents())) {
-				if (eventType.equals("iteration"))
-					getEp().saveEvent(provenanceItem, eventType);
-
-			}
+		}
+		if (getSaveEvents() != null
+				&& eventType.equals(SharedVocabulary.END_WORKFLOW_EVENT_TYPE)) {
+			// the events of the run are all logged by now, left to the
+			// background commit the last of them are lost if the JVM exits
+			getEp().syncEventLog();
+		}
+		if ("log".equals(getSaveEvents())) {
+			return;
 		}
 
 		if (eventType.equals(SharedVocabulary.WORKFLOW_EVENT_TYPE)) {
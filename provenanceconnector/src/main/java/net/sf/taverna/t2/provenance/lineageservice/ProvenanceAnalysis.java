@@ -60,6 +60,7 @@ public class ProvenanceAnalysis {
 	public static final String ALL_PATHS_KEYWORD = "ALL";
 
 	private ProvenanceQuery pq = null;
+	private LineageGraph lineageGraph = null;  // when set the graph search runs in memory
 	private AnnotationsLoader al = new AnnotationsLoader();  // singleton
 
 	// paths collected by lineageQuery and to be used by naive provenance query
@@ -427,7 +428,12 @@ public class ProvenanceAnalysis {
 		varQueryConstraints.put("V.portName", var);  
 		varQueryConstraints.put("V.workflowId", workflowId);  
 
-		List<Port> vars = getPq().getPorts(varQueryConstraints);
+		List<Port> vars;
+		if (lineageGraph != null) {
+			vars = lineageGraph.getPorts(workflowId, proc, var);
+		} else {
+			vars = getPq().getPorts(varQueryConstraints);
+		}
 
 		if (vars.isEmpty())  {
 			logger.info("variable ("+var+","+proc+") not found, lineage query terminated, constraints: " + varQueryConstraints);
@@ -491,7 +497,7 @@ public class ProvenanceAnalysis {
 		// in this way we can seamlessly traverse the graph over intermediate I/O that are part 
 		// of nested dataflows
 
-		if (getPq().isDataflow(proc)) { // if we are looking at the output of an entire dataflow
+		if (isDataflow(proc)) { // if we are looking at the output of an entire dataflow
 
 			// force the "input vars" for this step to be the output var itself
 			// this causes the following xfer step to trace back to the next processor _within_ proc 
@@ -503,6 +509,10 @@ public class ProvenanceAnalysis {
 			inputVars = new ArrayList<Port>();
 			inputVars.add(outputVar);
 
+		} else if (lineageGraph != null) {
+
+			inputVars = lineageGraph.getInputPorts(workflowId, proc);
+
 		} else {
 
 			varsQueryConstraints.put("W.workflowId", workflowId);
@@ -587,7 +597,7 @@ public class ProvenanceAnalysis {
 				// also remove spurious dataflow processors at this point
 				List<String> pathCopy = new ArrayList<String>();
 				for (String s:currentPath) {
-					if (!getPq().isDataflow(s)) pathCopy.add(s);
+					if (!isDataflow(s)) pathCopy.add(s);
 				}			
 				paths.add(pathCopy);
 				isSelected = true;
@@ -648,7 +658,7 @@ public class ProvenanceAnalysis {
 				}  else {
 					vb = vbList.get(0);
 
-					if (aOPMManager!=null && !pq.isDataflow(proc)) {
+					if (aOPMManager!=null && !isDataflow(proc)) {
 						if (isRecordArtifactValues()) {
 
 							T2Reference ref = getInvocationContext().getReferenceService().referenceFromString(vb.getValue());
@@ -799,9 +809,14 @@ public class ProvenanceAnalysis {
 
 		// retrieve all Datalinks ending with (var,proc) -- ideally there is exactly one
 		// (because multiple incoming datalinks are disallowed)
-		Map<String, String>  datalinksQueryConstraints = new HashMap<String, String>();
-		datalinksQueryConstraints.put("destinationPortId", port.getIdentifier());
-		List<DataLink> datalinks = getPq().getDataLinks(datalinksQueryConstraints);
+		List<DataLink> datalinks;
+		if (lineageGraph != null) {
+			datalinks = lineageGraph.getIncomingDataLinks(port.getIdentifier());
+		} else {
+			Map<String, String>  datalinksQueryConstraints = new HashMap<String, String>();
+			datalinksQueryConstraints.put("destinationPortId", port.getIdentifier());
+			datalinks = getPq().getDataLinks(datalinksQueryConstraints);
+		}
 
 		if (datalinks.size() == 0) {
 //			System.out.println("no datalinks going up from ["+proc+","+var+"] ... returning");
@@ -821,15 +836,20 @@ public class ProvenanceAnalysis {
 
 		// retrieve full record for var:
 		// retrieve input vars for current processor 
-		Map<String, String>  varsQueryConstraints = new HashMap<String, String>();
+		Port outputVar;
+		if (lineageGraph != null) {
+			outputVar = lineageGraph.getPort(a.getSourcePortId());
+		} else {
+			Map<String, String>  varsQueryConstraints = new HashMap<String, String>();
 
-//		varsQueryConstraints.put("W.workflowId", workflowRunId);
-		varsQueryConstraints.put("portId", a.getSourcePortId());
-//		varsQueryConstraints.put("processorNameRef", sourceProcName);  
-//		varsQueryConstraints.put("portName", sourcePortName);  
-		List<Port>  varList  = getPq().getPorts(varsQueryConstraints);
+//			varsQueryConstraints.put("W.workflowId", workflowRunId);
+			varsQueryConstraints.put("portId", a.getSourcePortId());
+//			varsQueryConstraints.put("processorNameRef", sourceProcName);  
+//			varsQueryConstraints.put("portName", sourcePortName);  
+			List<Port>  varList  = getPq().getPorts(varsQueryConstraints);
 
-		Port outputVar = varList.get(0);
+			outputVar = varList.get(0);
+		}
 
 		// recurse on xform
 		xformStep(workflowRunId, workflowId, outputVar, sourceProcName, path, selectedProcessors, lqList);
@@ -837,6 +857,14 @@ public class ProvenanceAnalysis {
 	} // end xferStep2
 
 
+	private boolean isDataflow(String procName) throws SQLException {
+		if (lineageGraph != null) {
+			return lineageGraph.isDataflow(procName);
+		}
+		return getPq().isDataflow(procName);
+	}
+
+
 	/**
 	 * this class represents the annotation (single or sequence, to be determined) 
 	 * that are produced upon visiting the graph structure and that drive the generation of 
@@ -1122,6 +1150,18 @@ public class ProvenanceAnalysis {
 	}
 
 
+	/**
+	 * Walk this in-memory graph in {@link #searchDataflowGraph}, rather than
+	 * querying the database for every step. Null, the default, to query.
+	 */
+	public void setLineageGraph(LineageGraph lineageGraph) {
+		this.lineageGraph = lineageGraph;
+	}
+
+	public LineageGraph getLineageGraph() {
+		return lineageGraph;
+	}
+
 	public ProvenanceQuery getPq() {
 		return pq;
 	}
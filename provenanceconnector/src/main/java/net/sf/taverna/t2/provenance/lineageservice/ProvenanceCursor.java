@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import java.util.Iterator;
+
+/**
+ * An iterator over the rows of a provenance query, read from the database as
+ * it is advanced rather than loaded up front. It holds a database connection
+ * until it is exhausted or {@link #close() closed}, so close it in a
+ * <code>finally</code> block when not reading to the end.
+ * <p>
+ * A failure reading the database part way through is thrown as an
+ * {@link IllegalStateException} wrapping the {@link java.sql.SQLException}.
+ *
+ * @see ProvenanceQuery#streamPortBindings(java.util.Map)
+ */
+public interface ProvenanceCursor<T> extends Iterator<T> {
+
+	/**
+	 * Release the connection and statement, it is safe to call more than once
+	 */
+	public void close();
+
+}
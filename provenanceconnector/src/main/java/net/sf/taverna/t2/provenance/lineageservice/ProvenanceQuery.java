@@ -76,11 +76,76 @@ import org.jdom.Element;
 public abstract class ProvenanceQuery {
 
 	protected Logger logger = Logger.getLogger(ProvenanceQuery.class);
+
+	private static final String PORT_BINDINGS_QUERY = "SELECT * FROM PortBinding VB " +
+		"JOIN Port V ON " +
+		"  VB.portName = V.portName " +
+		"  AND VB.processorNameRef = V.processorName " +
+		"  AND VB.workflowId = V.workflowId ";
+
+	private ProvenanceWriter writer;
+	private int streamingFetchSize = 1000;
+	private LineageQueryExecutor lineageQueryExecutor = LineageQueryExecutor.getDefault();
+	private long lineageQueryTimeout = 0;
+
 	public Connection getConnection() throws InstantiationException,
 	IllegalAccessException, ClassNotFoundException, SQLException {
+		if (writer != null) {
+			// queries must see rows still batched by the writer
+			writer.flushBatches();
+		}
 		return JDBCConnector.getConnection();
 	}
 
+	/**
+	 * The writer whose batched inserts are flushed before each query
+	 */
+	public void setWriter(ProvenanceWriter writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Rows the driver is asked to fetch at a time for the stream methods,
+	 * default 1000. MySQL's Connector/J only streams with
+	 * {@link Integer#MIN_VALUE}, otherwise it reads the whole result first.
+	 */
+	public void setStreamingFetchSize(int streamingFetchSize) {
+		this.streamingFetchSize = streamingFetchSize;
+	}
+
+	public int getStreamingFetchSize() {
+		return streamingFetchSize;
+	}
+
+	private Connection getStreamingConnection() throws SQLException {
+		try {
+			return getConnection();
+		} catch (InstantiationException e) {
+			throw streamingConnectionFailure(e);
+		} catch (IllegalAccessException e) {
+			throw streamingConnectionFailure(e);
+		} catch (ClassNotFoundException e) {
+			throw streamingConnectionFailure(e);
+		}
+	}
+
+	private SQLException streamingConnectionFailure(Exception cause) {
+		SQLException e = new SQLException("Could not get database connection");
+		e.initCause(cause);
+		return e;
+	}
+
+	/**
+	 * A forward-only, read-only statement with the streaming fetch size hint
+	 */
+	private PreparedStatement prepareStreaming(Connection connection, String sql)
+	throws SQLException {
+		PreparedStatement ps = connection.prepareStatement(sql,
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		ps.setFetchSize(streamingFetchSize);
+		return ps;
+	}
+
 	/**
 	 * implements a set of query constraints of the form var = value into a
 	 * WHERE clause
@@ -184,19 +249,7 @@ public abstract class ProvenanceQuery {
 				ResultSet rs = stmt.getResultSet();
 
 				while (rs.next()) {
-					Port aPort = new Port();
-
-					aPort.setWorkflowId(rs.getString("workflowId"));
-                    aPort.setInputPort(rs.getBoolean("isInputPort"));
-					aPort.setIdentifier(rs.getString("portId"));
-                    aPort.setProcessorName(rs.getString("processorName"));
-                    aPort.setProcessorId(rs.getString("processorId"));
-                    aPort.setPortName(rs.getString("portName"));
-                    aPort.setDepth(rs.getInt("depth"));
-                    if (rs.getString("resolvedDepth") != null) {
-						aPort.setResolvedDepth(rs.getInt("resolvedDepth"));
-					}
-					result.add(aPort);
+					result.add(readPort(rs));
 				}
 			}
 		} catch (InstantiationException e) {
@@ -216,6 +269,123 @@ public abstract class ProvenanceQuery {
 	}
 
 
+	private Port readPort(ResultSet rs) throws SQLException {
+		Port aPort = new Port();
+
+		aPort.setWorkflowId(rs.getString("workflowId"));
+		aPort.setInputPort(rs.getBoolean("isInputPort"));
+		aPort.setIdentifier(rs.getString("portId"));
+		aPort.setProcessorName(rs.getString("processorName"));
+		aPort.setProcessorId(rs.getString("processorId"));
+		aPort.setPortName(rs.getString("portName"));
+		aPort.setDepth(rs.getInt("depth"));
+		if (rs.getString("resolvedDepth") != null) {
+			aPort.setResolvedDepth(rs.getInt("resolvedDepth"));
+		}
+		aPort.setIterationStrategyOrder(rs.getInt("iterationStrategyOrder"));
+		return aPort;
+	}
+
+	/**
+	 * All the ports of the given workflows in one query, as
+	 * {@link #getPorts(Map)} would find them one workflow at a time
+	 */
+	public List<Port> getPortsForWorkflows(java.util.Collection<String> workflowIds)
+	throws SQLException {
+		List<Port> result = new ArrayList<Port>();
+		if (workflowIds.isEmpty()) {
+			return result;
+		}
+		String q = "SELECT DISTINCT V.* FROM Port V JOIN WorkflowRun W ON W.workflowId = V.workflowId " +
+		"WHERE V.workflowId IN (" + placeholders(workflowIds.size()) + ") " +
+		"ORDER BY V.iterationStrategyOrder";
+
+		PreparedStatement ps = null;
+		Connection connection = null;
+		try {
+			connection = getConnection();
+			ps = connection.prepareStatement(q);
+			int pos = 1;
+			for (String workflowId : workflowIds) {
+				ps.setString(pos++, workflowId);
+			}
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				result.add(readPort(rs));
+			}
+		} catch (InstantiationException e) {
+			logger.warn("Could not execute query", e);
+		} catch (IllegalAccessException e) {
+			logger.warn("Could not execute query", e);
+		} catch (ClassNotFoundException e) {
+			logger.warn("Could not execute query", e);
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * All the datalinks of the given workflows in one query
+	 */
+	public List<DataLink> getDataLinksForWorkflows(java.util.Collection<String> workflowIds)
+	throws SQLException {
+		List<DataLink> result = new ArrayList<DataLink>();
+		if (workflowIds.isEmpty()) {
+			return result;
+		}
+		String q = "SELECT A.* FROM Datalink A WHERE A.workflowId IN ("
+				+ placeholders(workflowIds.size()) + ")";
+
+		PreparedStatement ps = null;
+		Connection connection = null;
+		try {
+			connection = getConnection();
+			ps = connection.prepareStatement(q);
+			int pos = 1;
+			for (String workflowId : workflowIds) {
+				ps.setString(pos++, workflowId);
+			}
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				DataLink aDataLink = new DataLink();
+
+				aDataLink.setWorkflowId(rs.getString("workflowId"));
+				aDataLink.setSourceProcessorName(rs.getString("sourceProcessorName"));
+				aDataLink.setSourcePortName(rs.getString("sourcePortName"));
+				aDataLink.setDestinationProcessorName(rs.getString("destinationProcessorName"));
+				aDataLink.setDestinationPortName(rs.getString("destinationPortName"));
+				aDataLink.setSourcePortId(rs.getString("sourcePortId"));
+				aDataLink.setDestinationPortId(rs.getString("destinationPortId"));
+				result.add(aDataLink);
+			}
+		} catch (InstantiationException e) {
+			logger.warn("Could not execute query", e);
+		} catch (IllegalAccessException e) {
+			logger.warn("Could not execute query", e);
+		} catch (ClassNotFoundException e) {
+			logger.warn("Could not execute query", e);
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
+		}
+		return result;
+	}
+
+	static String placeholders(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('?');
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * return the input variables for a given processor and a workflowRunId
 	 *
@@ -498,13 +668,7 @@ public abstract class ProvenanceQuery {
 	throws SQLException {
 		List<PortBinding> result = new ArrayList<PortBinding>();
 
-		String q = "SELECT * FROM PortBinding VB " +
-		"JOIN Port V ON " +
-		"  VB.portName = V.portName " +
-		"  AND VB.processorNameRef = V.processorName " +
-		"  AND VB.workflowId = V.workflowId ";
-
-		q = addWhereClauseToQuery(q, constraints, true);
+		String q = addWhereClauseToQuery(PORT_BINDINGS_QUERY, constraints, true);
 
 		Statement stmt = null;
 		Connection connection = null;
@@ -517,25 +681,7 @@ public abstract class ProvenanceQuery {
 				ResultSet rs = stmt.getResultSet();
 
 				while (rs.next()) {
-					PortBinding vb = new PortBinding();
-
-					vb.setWorkflowId(rs.getString("workflowId"));
-					vb.setPortName(rs.getString("portName"));
-					vb.setWorkflowRunId(rs.getString("workflowRunId"));
-					vb.setValue(rs.getString("value"));
-
-					if (rs.getString("collIdRef") == null || rs.getString("collIdRef").equals("null")) {
-						vb.setCollIDRef(null);
-					} else {
-						vb.setCollIDRef(rs.getString("collIdRef"));
-					}
-
-					vb.setIteration(rs.getString("iteration"));
-					vb.setProcessorName(rs.getString("processorNameRef"));
-					vb.setPositionInColl(rs.getInt("positionInColl"));
-					vb.setPortId(rs.getString("portId"));
-					vb.setIsInputPort(rs.getBoolean("isInputPort"));
-					result.add(vb);
+					result.add(readPortBinding(rs));
 				}
 
 			}
@@ -549,6 +695,48 @@ public abstract class ProvenanceQuery {
 		return result;
 	}
 
+	/**
+	 * As {@link #getPortBindings(Map)}, reading the bindings from the
+	 * database as the cursor is advanced
+	 */
+	public ProvenanceCursor<PortBinding> streamPortBindings(Map<String, String> constraints)
+	throws SQLException {
+		String q = addWhereClauseToQuery(PORT_BINDINGS_QUERY, constraints, true);
+		Connection connection = getStreamingConnection();
+		try {
+			return new ResultSetCursor<PortBinding>(connection, prepareStreaming(connection, q)) {
+				protected PortBinding read(ResultSet rs) throws SQLException {
+					return readPortBinding(rs);
+				}
+			};
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	private PortBinding readPortBinding(ResultSet rs) throws SQLException {
+		PortBinding vb = new PortBinding();
+
+		vb.setWorkflowId(rs.getString("workflowId"));
+		vb.setPortName(rs.getString("portName"));
+		vb.setWorkflowRunId(rs.getString("workflowRunId"));
+		vb.setValue(rs.getString("value"));
+
+		if (rs.getString("collIdRef") == null || rs.getString("collIdRef").equals("null")) {
+			vb.setCollIDRef(null);
+		} else {
+			vb.setCollIDRef(rs.getString("collIdRef"));
+		}
+
+		vb.setIteration(rs.getString("iteration"));
+		vb.setProcessorName(rs.getString("processorNameRef"));
+		vb.setPositionInColl(rs.getInt("positionInColl"));
+		vb.setPortId(rs.getString("portId"));
+		vb.setIsInputPort(rs.getBoolean("isInputPort"));
+		return vb;
+	}
+
 	public List<NestedListNode> getNestedListNodes(
 			Map<String, String> constraints) throws SQLException {
 
@@ -578,19 +766,7 @@ public abstract class ProvenanceQuery {
 				ResultSet rs = stmt.getResultSet();
 
 				while (rs.next()) {
-					PortBinding vb = new PortBinding();
-
-					NestedListNode nln = new NestedListNode();
-
-					nln.setCollectionT2Reference(rs.getString("collId"));
-					nln.setParentCollIdRef(rs.getString("parentCollIdRef"));
-					nln.setWorkflowRunId(rs.getString("workflowRunId"));
-					nln.setProcessorName(rs.getString("processorNameRef"));
-					nln.setPortName(rs.getString("portName"));
-					nln.setIteration(rs.getString("iteration"));
-
-					result.add(nln);
-
+					result.add(readNestedListNode(rs));
 				}
 			}
 		} finally {
@@ -603,6 +779,38 @@ public abstract class ProvenanceQuery {
 		return result;
 	}
 
+	/**
+	 * As {@link #getNestedListNodes(Map)}, reading the nodes from the
+	 * database as the cursor is advanced
+	 */
+	public ProvenanceCursor<NestedListNode> streamNestedListNodes(
+			Map<String, String> constraints) throws SQLException {
+		String q = addWhereClauseToQuery("SELECT * FROM Collection C ", constraints, true);
+		Connection connection = getStreamingConnection();
+		try {
+			return new ResultSetCursor<NestedListNode>(connection, prepareStreaming(connection, q)) {
+				protected NestedListNode read(ResultSet rs) throws SQLException {
+					return readNestedListNode(rs);
+				}
+			};
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	private NestedListNode readNestedListNode(ResultSet rs) throws SQLException {
+		NestedListNode nln = new NestedListNode();
+
+		nln.setCollectionT2Reference(rs.getString("collId"));
+		nln.setParentCollIdRef(rs.getString("parentCollIdRef"));
+		nln.setWorkflowRunId(rs.getString("workflowRunId"));
+		nln.setProcessorName(rs.getString("processorNameRef"));
+		nln.setPortName(rs.getString("portName"));
+		nln.setIteration(rs.getString("iteration"));
+		return nln;
+	}
+
 	public Map<String, Integer> getPredecessorsCount(String workflowRunId) {
 
 		PreparedStatement ps = null;
@@ -1440,6 +1648,22 @@ public abstract class ProvenanceQuery {
 		return lq;
 	}
 
+	/**
+	 * A statement for one of the queries of a lineage query, limited to the
+	 * {@link #setLineageQueryTimeout(long) lineage query timeout} so that the
+	 * database gives up on it too
+	 */
+	private Statement createLineageStatement(Connection connection)
+			throws SQLException {
+		Statement stmt = connection.createStatement();
+		if (lineageQueryTimeout > 0) {
+			// the JDBC timeout is in whole seconds
+			stmt.setQueryTimeout((int) Math.max(1,
+					(lineageQueryTimeout + 999) / 1000));
+		}
+		return stmt;
+	}
+
 	public Dependencies runCollectionQuery(LineageSQLQuery lq) throws SQLException {
 
 		String q = lq.getCollQuery();
@@ -1456,7 +1680,7 @@ public abstract class ProvenanceQuery {
 		Connection connection = null;
 		try {
 			connection = getConnection();
-			stmt = connection.createStatement();
+			stmt = createLineageStatement(connection);
 			boolean success = stmt.execute(q);
 
 			if (success) {
@@ -1512,7 +1736,7 @@ public abstract class ProvenanceQuery {
 		Connection connection = null;
 		try {
 			connection = getConnection();
-			stmt = connection.createStatement();
+			stmt = createLineageStatement(connection);
 			boolean success = stmt.execute(q);
 
 			if (success) {
@@ -1605,6 +1829,14 @@ public abstract class ProvenanceQuery {
 			return allResults;
 		}
 
+		if (writer != null) {
+			// the queries run on other threads, which can't flush this one's batches
+			writer.flushBatches();
+		}
+		if (lineageQueryExecutor != null && lqList.size() > 1) {
+			return lineageQueryExecutor.runAll(this, lqList, includeDataValue, lineageQueryTimeout);
+		}
+
 		for (LineageSQLQuery lq : lqList) {
 			if (lq == null) {
 				continue;
@@ -1615,6 +1847,35 @@ public abstract class ProvenanceQuery {
 		return allResults;
 	}
 
+	/**
+	 * The executor {@link #runLineageQueries(List, boolean)} runs queries in
+	 * parallel on, by default the {@link LineageQueryExecutor#getDefault()
+	 * shared} one. Null to run them one after the other on the calling
+	 * thread.
+	 */
+	public void setLineageQueryExecutor(LineageQueryExecutor lineageQueryExecutor) {
+		this.lineageQueryExecutor = lineageQueryExecutor;
+	}
+
+	public LineageQueryExecutor getLineageQueryExecutor() {
+		return lineageQueryExecutor;
+	}
+
+	/**
+	 * The longest a lineage query run in parallel may take before
+	 * {@link #runLineageQueries(List, boolean)} gives up on it, in
+	 * milliseconds. 0, the default, for no limit. Each statement of a lineage
+	 * query is also given this as its JDBC query timeout, rounded up to whole
+	 * seconds, so that the database stops the queries given up on.
+	 */
+	public void setLineageQueryTimeout(long lineageQueryTimeout) {
+		this.lineageQueryTimeout = lineageQueryTimeout;
+	}
+
+	public long getLineageQueryTimeout() {
+		return lineageQueryTimeout;
+	}
+
 	/**
 	 * takes an ordered set of records for the same variable with iteration
 	 * indexes and builds a collection out of it
@@ -2287,13 +2548,7 @@ public abstract class ProvenanceQuery {
 				ResultSet rs = ps.getResultSet();
 
 				while (rs.next()) {
-
-					DDRecord aDDrecord = new DDRecord();
-					aDDrecord.setPFrom(rs.getString("PFrom"));
-					aDDrecord.setVFrom(rs.getString("vFrom"));
-					aDDrecord.setValFrom(rs.getString("valFrom"));
-
-					result.add(aDDrecord);
+					result.add(readDDRecord(rs));
 				}
 				return result;
 			}
@@ -2314,6 +2569,37 @@ public abstract class ProvenanceQuery {
 	}
 
 
+	/**
+	 * As {@link #queryAllFromValues(String)}, reading the distinct records
+	 * from the database as the cursor is advanced
+	 */
+	public ProvenanceCursor<DDRecord> streamAllFromValues(String workflowRun)
+	throws SQLException {
+		Connection connection = getStreamingConnection();
+		try {
+			PreparedStatement ps = prepareStreaming(connection,
+			"SELECT DISTINCT PFrom, vFrom, valFrom FROM DD where workflowRun = ?");
+			ps.setString(1, workflowRun);
+			return new ResultSetCursor<DDRecord>(connection, ps) {
+				protected DDRecord read(ResultSet rs) throws SQLException {
+					return readDDRecord(rs);
+				}
+			};
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	private DDRecord readDDRecord(ResultSet rs) throws SQLException {
+		DDRecord aDDrecord = new DDRecord();
+		aDDrecord.setPFrom(rs.getString("PFrom"));
+		aDDrecord.setVFrom(rs.getString("vFrom"));
+		aDDrecord.setValFrom(rs.getString("valFrom"));
+		return aDDrecord;
+	}
+
+
 	public boolean isRootProcessorOfWorkflow(String procName, String workflowId,
 			String workflowRunId) {
 
@@ -2535,23 +2821,7 @@ public abstract class ProvenanceQuery {
 		ProvenanceConnector.ProcessorEnactmentTable ProcEnact = ProvenanceConnector.ProcessorEnactmentTable.ProcessorEnactment;
 		
 		StringBuilder query = new StringBuilder();
-		query.append( 
-				"SELECT " + ProcEnact.enactmentStarted + ","
-						+ ProcEnact.enactmentEnded + ","
-						+ ProcEnact.finalOutputsDataBindingId + ","
-						+ ProcEnact.initialInputsDataBindingId + ","
-						+ ProcEnact.ProcessorEnactment + "." + ProcEnact.processorId + " AS procId,"
-						+ ProcEnact.processIdentifier + ","
-						+ ProcEnact.processEnactmentId + ","
-						+ ProcEnact.parentProcessorEnactmentId + ","
-						+ ProcEnact.workflowRunId + ","						
-						+ ProcEnact.iteration + ","
-						+ "Processor.processorName" + " FROM "
-						+ ProcEnact.ProcessorEnactment
-						+ " INNER JOIN " + "Processor" + " ON "
-						+ ProcEnact.ProcessorEnactment + "."+ ProcEnact.processorId 
-						+ " = " + "Processor.processorId" + " WHERE "
-						+ ProcEnact.workflowRunId + "=? ");
+		query.append(processorEnactmentsOfRunQuery());
 		
 		if (processorName != null) {
 			// Specific processor
@@ -2616,6 +2886,47 @@ public abstract class ProvenanceQuery {
 	}
 	
 
+	/**
+	 * Every processor enactment of the run, at any depth of nesting, read
+	 * from the database as the cursor is advanced
+	 */
+	public ProvenanceCursor<ProcessorEnactment> streamProcessorEnactments(
+			String workflowRunId) throws SQLException {
+		Connection connection = getStreamingConnection();
+		try {
+			PreparedStatement ps = prepareStreaming(connection, processorEnactmentsOfRunQuery());
+			ps.setString(1, workflowRunId);
+			return new ResultSetCursor<ProcessorEnactment>(connection, ps) {
+				protected ProcessorEnactment read(ResultSet rs) throws SQLException {
+					return readProcessorEnactment(rs);
+				}
+			};
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	private String processorEnactmentsOfRunQuery() {
+		ProvenanceConnector.ProcessorEnactmentTable ProcEnact = ProvenanceConnector.ProcessorEnactmentTable.ProcessorEnactment;
+		return "SELECT " + ProcEnact.enactmentStarted + ","
+						+ ProcEnact.enactmentEnded + ","
+						+ ProcEnact.finalOutputsDataBindingId + ","
+						+ ProcEnact.initialInputsDataBindingId + ","
+						+ ProcEnact.ProcessorEnactment + "." + ProcEnact.processorId + " AS procId,"
+						+ ProcEnact.processIdentifier + ","
+						+ ProcEnact.processEnactmentId + ","
+						+ ProcEnact.parentProcessorEnactmentId + ","
+						+ ProcEnact.workflowRunId + ","						
+						+ ProcEnact.iteration + ","
+						+ "Processor.processorName" + " FROM "
+						+ ProcEnact.ProcessorEnactment
+						+ " INNER JOIN " + "Processor" + " ON "
+						+ ProcEnact.ProcessorEnactment + "."+ ProcEnact.processorId 
+						+ " = " + "Processor.processorId" + " WHERE "
+						+ ProcEnact.workflowRunId + "=? ";
+	}
+
 	private ProcessorEnactment readProcessorEnactment(ResultSet resultSet) throws SQLException {
 		ProvenanceConnector.ProcessorEnactmentTable ProcEnact = ProvenanceConnector.ProcessorEnactmentTable.ProcessorEnactment;
 		
@@ -3084,14 +3395,7 @@ ProvenanceConnector.ProcessorEnactmentTable ProcEnact = ProvenanceConnector.Proc
 				ResultSet rs = ps.getResultSet();
 
 				while (rs.next()) {
-					Collection coll = new Collection();
-					coll.setCollId(rs.getString(CollectionTable.collID.name()));
-					coll.setParentIdentifier(rs.getString(CollectionTable.parentCollIDRef.name()));
-					coll.setWorkflowRunIdentifier(rs.getString(CollectionTable.workflowRunId.name()));
-					coll.setProcessorName(rs.getString(CollectionTable.processorNameRef.name()));
-					coll.setPortName(rs.getString(CollectionTable.portName.name()));
-					coll.setIteration(rs.getString(CollectionTable.iteration.name()));
-					result.add(coll);
+					result.add(readCollection(rs));
 				}
 			}				
 		} catch (Exception e) {
@@ -3108,6 +3412,39 @@ ProvenanceConnector.ProcessorEnactmentTable ProcEnact = ProvenanceConnector.Proc
 		return result;		
 	}
 
+	/**
+	 * As {@link #getCollectionsForRun(String)}, reading the collections from
+	 * the database as the cursor is advanced
+	 */
+	public ProvenanceCursor<Collection> streamCollectionsForRun(String wfInstanceID)
+	throws SQLException {
+		Connection connection = getStreamingConnection();
+		try {
+			PreparedStatement ps = prepareStreaming(connection,
+			"SELECT * FROM Collection C WHERE workflowRunId = ?");
+			ps.setString(1, wfInstanceID);
+			return new ResultSetCursor<Collection>(connection, ps) {
+				protected Collection read(ResultSet rs) throws SQLException {
+					return readCollection(rs);
+				}
+			};
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	private Collection readCollection(ResultSet rs) throws SQLException {
+		Collection coll = new Collection();
+		coll.setCollId(rs.getString(CollectionTable.collID.name()));
+		coll.setParentIdentifier(rs.getString(CollectionTable.parentCollIDRef.name()));
+		coll.setWorkflowRunIdentifier(rs.getString(CollectionTable.workflowRunId.name()));
+		coll.setProcessorName(rs.getString(CollectionTable.processorNameRef.name()));
+		coll.setPortName(rs.getString(CollectionTable.portName.name()));
+		coll.setIteration(rs.getString(CollectionTable.iteration.name()));
+		return coll;
+	}
+
 
 }
 
@@ -26,10 +26,20 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.taverna.t2.provenance.connector.JDBCConnector;
 import net.sf.taverna.t2.provenance.connector.ProvenanceConnector.ActivityTable;
@@ -59,10 +69,214 @@ public class ProvenanceWriter {
 	protected static Logger logger = Logger.getLogger(ProvenanceWriter.class);    
 	protected int cnt; // counts number of calls to PortBinding
     protected ProvenanceQuery pq = null;
+    private LineageGraph lineageGraph = null;
 
+	/**
+	 * The tables holding the records of a run, all keyed by workflowRunId
+	 */
+	private static final String[] RUN_TABLES = { "WorkflowRun", "PortBinding",
+			"Collection", DataflowInvocationTable.DataflowInvocation.name(),
+			ServiceInvocationTable.ServiceInvocation.name(),
+			ProcessorEnactmentTable.ProcessorEnactment.name(),
+			DataBindingTable.DataBinding.name() };
+
+	private static final String UPDATE_PORT = "UPDATE Port SET isInputPort=?, depth=?,"
+			+ "resolvedDepth=?, iterationStrategyOrder=? "
+			+ "WHERE portId=?";
+
+	private int batchSize = 100;
+	private int purgeChunkSize = 50;
+	private final ThreadLocal<UnitOfWork> unitOfWork = new ThreadLocal<UnitOfWork>();
+	private final ConcurrentMap<String, TableStatistics> statistics = new ConcurrentHashMap<String, TableStatistics>();
+
+	/**
+	 * A connection for a statement executed straight away. Any inserts batched
+	 * by the current unit of work are written first, so the statement sees
+	 * them.
+	 */
 	public Connection getConnection() throws SQLException {
+		flushBatches();
+		return connect();
+	}
+
+	/**
+	 * A new connection to the provenance database, without flushing
+	 */
+	protected Connection connect() throws SQLException {
 		return JDBCConnector.getConnection();
 	}
+
+	/**
+	 * Start a unit of work on the calling thread. Until the matching
+	 * {@link #endUnitOfWork()} the add methods share one connection and one
+	 * prepared statement per table, queue their rows with
+	 * {@link PreparedStatement#addBatch()} and commit every
+	 * {@link #setBatchSize(int) batch size} rows. Pending rows are written
+	 * before any other statement or {@link ProvenanceQuery query} runs, so
+	 * reads still see them. Units of work nest, only the outermost one
+	 * commits and releases the connection.
+	 */
+	public void beginUnitOfWork() {
+		UnitOfWork work = unitOfWork.get();
+		if (work == null) {
+			unitOfWork.set(new UnitOfWork());
+		} else {
+			work.nesting++;
+		}
+	}
+
+	/**
+	 * End the unit of work started by {@link #beginUnitOfWork()}, writing
+	 * out any rows still pending.
+	 */
+	public void endUnitOfWork() throws SQLException {
+		UnitOfWork work = unitOfWork.get();
+		if (work == null) {
+			throw new IllegalStateException("No unit of work in progress");
+		}
+		if (work.nesting > 0) {
+			work.nesting--;
+			return;
+		}
+		unitOfWork.remove();
+		try {
+			work.flush();
+		} finally {
+			work.close();
+		}
+	}
+
+	/**
+	 * Write out the rows batched by the calling thread's unit of work, if any
+	 */
+	public void flushBatches() throws SQLException {
+		UnitOfWork work = unitOfWork.get();
+		if (work != null) {
+			work.flush();
+		}
+	}
+
+	/**
+	 * Number of rows queued on a statement before it is executed and
+	 * committed, default 100
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Most runs named in one DELETE by {@link #clearDBDynamic(java.util.Collection)},
+	 * default 50. Each chunk is deleted in its own transaction, so smaller
+	 * chunks hold their locks for less time.
+	 */
+	public void setPurgeChunkSize(int purgeChunkSize) {
+		if (purgeChunkSize < 1) {
+			throw new IllegalArgumentException("Purge chunk size must be at least 1");
+		}
+		this.purgeChunkSize = purgeChunkSize;
+	}
+
+	public int getPurgeChunkSize() {
+		return purgeChunkSize;
+	}
+
+	/**
+	 * Rows written and time spent writing them, by table name. Counts inserts
+	 * made both within and outside a unit of work.
+	 */
+	public Map<String, TableStatistics> getStatistics() {
+		return Collections.unmodifiableMap(statistics);
+	}
+
+	public void resetStatistics() {
+		statistics.clear();
+	}
+
+	private TableStatistics statisticsFor(String table) {
+		TableStatistics stats = statistics.get(table);
+		if (stats == null) {
+			TableStatistics newStats = new TableStatistics();
+			stats = statistics.putIfAbsent(table, newStats);
+			if (stats == null) {
+				stats = newStats;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Insert one row, queued on the current unit of work if there is one,
+	 * otherwise straight away on a connection of its own.
+	 *
+	 * @param table
+	 *            the table written to, used for the statistics
+	 * @param duplicatesExpected
+	 *            if true a failed row found when a batch is written is not
+	 *            logged
+	 * @param values
+	 *            the parameters of the statement in order; nulls are bound
+	 *            with the type the driver reports for the parameter
+	 */
+	protected void insert(String table, String sql, boolean duplicatesExpected,
+			Object... values) throws SQLException {
+		UnitOfWork work = unitOfWork.get();
+		if (work != null) {
+			work.add(table, sql, duplicatesExpected, values);
+			return;
+		}
+		Connection connection = null;
+		long started = System.nanoTime();
+		try {
+			connection = connect();
+			PreparedStatement ps = connection.prepareStatement(sql);
+			bind(ps, values);
+			ps.executeUpdate();
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
+			statisticsFor(table).record(1, System.nanoTime() - started);
+		}
+	}
+
+	private static void bind(PreparedStatement ps, Object[] values)
+			throws SQLException {
+		for (int i = 0; i < values.length; i++) {
+			Object value = values[i];
+			int index = i + 1;
+			if (value == null) {
+				ps.setNull(index, parameterType(ps, index));
+			} else if (value instanceof String) {
+				ps.setString(index, (String) value);
+			} else if (value instanceof Boolean) {
+				ps.setBoolean(index, (Boolean) value);
+			} else if (value instanceof Integer) {
+				ps.setInt(index, (Integer) value);
+			} else if (value instanceof Timestamp) {
+				ps.setTimestamp(index, (Timestamp) value);
+			} else if (value instanceof byte[]) {
+				ps.setBytes(index, (byte[]) value);
+			} else {
+				ps.setObject(index, value);
+			}
+		}
+	}
+
+	private static int parameterType(PreparedStatement ps, int index) {
+		try {
+			return ps.getParameterMetaData().getParameterType(index);
+		} catch (SQLException e) {
+			// not every driver describes its parameters
+			return Types.VARCHAR;
+		}
+	}
 		
 	public void closeCurrentModel() {
 		
@@ -80,35 +294,24 @@ public class ProvenanceWriter {
 	 * @throws SQLException
 	 */
 	public void addPorts(List<Port> ports, String wfId) throws SQLException {
-		PreparedStatement ps = null;
-		Connection connection = null;
+		beginUnitOfWork();
 		try {
-			connection = getConnection();
-			ps = connection.prepareStatement(
-			 "INSERT INTO Port (portName, processorName, isInputPort, depth, workflowId, portId, processorId) VALUES(?,?,?,?,?,?,?)");
 			for (Port v : ports) {
-
-
-				ps.setString(1, v.getPortName());
-				ps.setString(2, v.getProcessorName());
-				ps.setBoolean(3, v.isInputPort());
 				int depth = v.getDepth() >= 0 ? v.getDepth() : 0;
-				ps.setInt(4, depth);
-				ps.setString(5, wfId);
-				ps.setString(6, v.getIdentifier());
-				ps.setString(7, v.getProcessorId());
-
 				try {
-					ps.executeUpdate();
-				} catch (Exception e) {
+					insert("Port",
+					 "INSERT INTO Port (portName, processorName, isInputPort, depth, workflowId, portId, processorId) VALUES(?,?,?,?,?,?,?)",
+					 false, v.getPortName(), v.getProcessorName(), v.isInputPort(),
+					 depth, wfId, v.getIdentifier(), v.getProcessorId());
+				} catch (SQLException e) {
 					logger.warn("Could not insert var " + v.getPortName(), e);
 				}
-
 			}
 		} finally {
-			if (connection != null) {
-				connection.close();
-			}
+			endUnitOfWork();
+		}
+		if (lineageGraph != null) {
+			lineageGraph.portsAdded(ports, wfId);
 		}
 
 	}
@@ -117,33 +320,23 @@ public class ProvenanceWriter {
 	public void addDataflowInvocation(
 			net.sf.taverna.t2.provenance.lineageservice.utils.DataflowInvocation invocation)
 			throws SQLException {
-		PreparedStatement ps = null;
-		Connection connection = null;
-		try {
-			connection = getConnection();
-			DataflowInvocationTable DI = DataflowInvocationTable.DataflowInvocation;
-			String sql = "INSERT INTO " + DI.DataflowInvocation + "("
-					+ DI.dataflowInvocationId + "," + DI.workflowId + ","
-					+ DI.invocationStarted + "," + DI.invocationEnded + ","
-					+ DI.inputsDataBinding + "," + DI.outputsDataBinding + ","
-					+ DI.parentProcessorEnactmentId + "," + DI.workflowRunId + "," + DI.completed
-					+ ") " + " VALUES(?,?,?,?,?,?,?,?,?)";
-			ps = connection.prepareStatement(sql);
-			ps.setString(1, invocation.getDataflowInvocationId());
-			ps.setString(2, invocation.getWorkflowId());
-			ps.setTimestamp(3, invocation.getInvocationStarted());
-			ps.setTimestamp(4, invocation.getInvocationEnded());
-			ps.setString(5, invocation.getInputsDataBindingId());
-			ps.setString(6, invocation.getOutputsDataBindingId());
-			ps.setString(7, invocation.getParentProcessorEnactmentId());
-			ps.setString(8, invocation.getWorkflowRunId());
-			ps.setBoolean(9, invocation.getCompleted());
-			ps.executeUpdate();
-		} finally {
-			if (connection != null) {
-				connection.close();
-			}
-		}
+		DataflowInvocationTable DI = DataflowInvocationTable.DataflowInvocation;
+		String sql = "INSERT INTO " + DI.DataflowInvocation + "("
+				+ DI.dataflowInvocationId + "," + DI.workflowId + ","
+				+ DI.invocationStarted + "," + DI.invocationEnded + ","
+				+ DI.inputsDataBinding + "," + DI.outputsDataBinding + ","
+				+ DI.parentProcessorEnactmentId + "," + DI.workflowRunId + "," + DI.completed
+				+ ") " + " VALUES(?,?,?,?,?,?,?,?,?)";
+		insert(DI.DataflowInvocation.name(), sql, false,
+				invocation.getDataflowInvocationId(),
+				invocation.getWorkflowId(),
+				invocation.getInvocationStarted(),
+				invocation.getInvocationEnded(),
+				invocation.getInputsDataBindingId(),
+				invocation.getOutputsDataBindingId(),
+				invocation.getParentProcessorEnactmentId(),
+				invocation.getWorkflowRunId(),
+				invocation.getCompleted());
 	}
 	
 	/**
@@ -155,63 +348,38 @@ public class ProvenanceWriter {
 	 */
 	public void addDataLink(Port sourcePort, Port destinationPort, String workflowId)
 	throws SQLException {
-		PreparedStatement ps = null;
-		Connection connection = null;
-		try {
-			connection = getConnection();
-			ps = connection.prepareStatement(
-			"INSERT INTO Datalink (workflowId, sourceProcessorName, " +
-			" sourcePortName, destinationProcessorName, destinationPortName," +
-			" sourcePortId, destinationPortId) " +
-			"VALUES(?,?,?,?,?,?,?)");
-			ps.setString(1, workflowId);
-			ps.setString(2, sourcePort.getProcessorName());
-			ps.setString(3, sourcePort.getPortName());
-			ps.setString(4, destinationPort.getProcessorName());
-			ps.setString(5, destinationPort.getPortName());
-			ps.setString(6, sourcePort.getIdentifier());
-			ps.setString(7, destinationPort.getIdentifier());
-			
-			int result = ps.executeUpdate();
-
-		} finally {
-			if (connection != null) {
-				connection.close();
-			}
+		insert("Datalink",
+		"INSERT INTO Datalink (workflowId, sourceProcessorName, " +
+		" sourcePortName, destinationProcessorName, destinationPortName," +
+		" sourcePortId, destinationPortId) " +
+		"VALUES(?,?,?,?,?,?,?)", false,
+		workflowId,
+		sourcePort.getProcessorName(),
+		sourcePort.getPortName(),
+		destinationPort.getProcessorName(),
+		destinationPort.getPortName(),
+		sourcePort.getIdentifier(),
+		destinationPort.getIdentifier());
+		if (lineageGraph != null) {
+			lineageGraph.dataLinkAdded(sourcePort, destinationPort, workflowId);
 		}
-
 	}
 
 	public void addDataBinding(net.sf.taverna.t2.provenance.lineageservice.utils.DataBinding dataBinding) throws SQLException {
 		
-		PreparedStatement ps = null;
-		Connection connection = null;
-		try {
-			connection = getConnection();
-			ps = connection.prepareStatement("INSERT INTO "
-					+ DataBindingTable.DataBinding + "("
-					+ DataBindingTable.dataBindingId + ","
-					+ DataBindingTable.portId + ","
-					+ DataBindingTable.t2Reference + ","
-					+ DataBindingTable.workflowRunId 
-					+ ") VALUES(?,?,?,?)");
-			
-			ps.setString(1, dataBinding.getDataBindingId());
-			ps.setString(2, dataBinding.getPort().getIdentifier());
-			ps.setString(3, dataBinding.getT2Reference());
-			ps.setString(4, dataBinding.getWorkflowRunId());
-			ps.executeUpdate();			
-			if (logger.isDebugEnabled()) {
-				logger.debug("adding DataBinding:\n "+dataBinding);
-			}
-		} finally {
-			if (connection != null) {
-				try {
-					connection.close();
-				} catch (SQLException e) {
-					logger.warn("Can't close connection", e);
-				}
-			}
+		insert(DataBindingTable.DataBinding.name(), "INSERT INTO "
+				+ DataBindingTable.DataBinding + "("
+				+ DataBindingTable.dataBindingId + ","
+				+ DataBindingTable.portId + ","
+				+ DataBindingTable.t2Reference + ","
+				+ DataBindingTable.workflowRunId 
+				+ ") VALUES(?,?,?,?)", false,
+				dataBinding.getDataBindingId(),
+				dataBinding.getPort().getIdentifier(),
+				dataBinding.getT2Reference(),
+				dataBinding.getWorkflowRunId());
+		if (logger.isDebugEnabled()) {
+			logger.debug("adding DataBinding:\n "+dataBinding);
 		}
 		
 	}
@@ -310,127 +478,73 @@ public class ProvenanceWriter {
 
 	public void addProcessor(ProvenanceProcessor provProc) 	throws SQLException {
 
-		PreparedStatement ps = null;
-		Connection connection = null;
-		try {
-			connection = getConnection();
-			ps = connection.prepareStatement(
-			"INSERT INTO Processor (processorName, firstActivityClass, workflowId, isTopLevel, processorId) VALUES (?,?,?,?,?)");
-
-			ps.setString(1, provProc.getProcessorName());
-			ps.setString(2, provProc.getFirstActivityClassName());
-			ps.setString(3, provProc.getWorkflowId());
-			ps.setBoolean(4, provProc.isTopLevelProcessor());
-			ps.setString(5, provProc.getIdentifier());
-
-			ps.executeUpdate();
-	
-		} finally {
-			if (connection != null) {
-				connection.close();
-			}
+		insert("Processor",
+		"INSERT INTO Processor (processorName, firstActivityClass, workflowId, isTopLevel, processorId) VALUES (?,?,?,?,?)",
+		false,
+		provProc.getProcessorName(),
+		provProc.getFirstActivityClassName(),
+		provProc.getWorkflowId(),
+		provProc.isTopLevelProcessor(),
+		provProc.getIdentifier());
+		if (lineageGraph != null) {
+			lineageGraph.processorAdded(provProc);
 		}
 	}
 	
 	public void addProcessorEnactment(net.sf.taverna.t2.provenance.lineageservice.utils.ProcessorEnactment enactment) throws SQLException {
 	
-		PreparedStatement ps = null;
-		Connection connection = null;
-		try {
-			connection = getConnection();
-			ps = connection.prepareStatement("INSERT INTO "
-					+ ProcessorEnactmentTable.ProcessorEnactment + "("
-					+ ProcessorEnactmentTable.processEnactmentId + ","
-					+ ProcessorEnactmentTable.workflowRunId + ","
-					+ ProcessorEnactmentTable.processorId + ","
-					+ ProcessorEnactmentTable.processIdentifier + ","
-					+ ProcessorEnactmentTable.iteration + ","
-					+ ProcessorEnactmentTable.parentProcessorEnactmentId + "," 
-					+ ProcessorEnactmentTable.enactmentStarted + ","
-					+ ProcessorEnactmentTable.enactmentEnded + ","
-					+ ProcessorEnactmentTable.initialInputsDataBindingId + ","
-					+ ProcessorEnactmentTable.finalOutputsDataBindingId
-					+ ") VALUES(?,?,?,?,?,?,?,?,?,?)");
-			ps.setString(1, enactment.getProcessEnactmentId());
-			ps.setString(2, enactment.getWorkflowRunId());
-			ps.setString(3, enactment.getProcessorId());
-			ps.setString(4, enactment.getProcessIdentifier());
-			ps.setString(5, enactment.getIteration());
-			ps.setString(6, enactment.getParentProcessorEnactmentId());
-			ps.setTimestamp(7, enactment.getEnactmentStarted());
-			ps.setTimestamp(8, enactment.getEnactmentEnded());
-			ps.setString(9, enactment.getInitialInputsDataBindingId());
-			ps.setString(10, enactment.getFinalOutputsDataBindingId());
-			ps.executeUpdate();
+		insert(ProcessorEnactmentTable.ProcessorEnactment.name(), "INSERT INTO "
+				+ ProcessorEnactmentTable.ProcessorEnactment + "("
+				+ ProcessorEnactmentTable.processEnactmentId + ","
+				+ ProcessorEnactmentTable.workflowRunId + ","
+				+ ProcessorEnactmentTable.processorId + ","
+				+ ProcessorEnactmentTable.processIdentifier + ","
+				+ ProcessorEnactmentTable.iteration + ","
+				+ ProcessorEnactmentTable.parentProcessorEnactmentId + "," 
+				+ ProcessorEnactmentTable.enactmentStarted + ","
+				+ ProcessorEnactmentTable.enactmentEnded + ","
+				+ ProcessorEnactmentTable.initialInputsDataBindingId + ","
+				+ ProcessorEnactmentTable.finalOutputsDataBindingId
+				+ ") VALUES(?,?,?,?,?,?,?,?,?,?)", false,
+				enactment.getProcessEnactmentId(),
+				enactment.getWorkflowRunId(),
+				enactment.getProcessorId(),
+				enactment.getProcessIdentifier(),
+				enactment.getIteration(),
+				enactment.getParentProcessorEnactmentId(),
+				enactment.getEnactmentStarted(),
+				enactment.getEnactmentEnded(),
+				enactment.getInitialInputsDataBindingId(),
+				enactment.getFinalOutputsDataBindingId());
 			
-			if (logger.isDebugEnabled()) {
-				logger.debug("adding ProcessorEnactment binding:\n "+enactment);
-			}
-		} finally {
-			if (connection != null) {
-				try {
-					connection.close();
-				} catch (SQLException e) {
-					logger.warn("Can't close connection", e);
-				}
-			}
+		if (logger.isDebugEnabled()) {
+			logger.debug("adding ProcessorEnactment binding:\n "+enactment);
 		}
 	}
 
 	public String addCollection(String processorId, String collId,
 			String parentCollectionId, String iteration, String portName,
 			String dataflowId) throws SQLException {
-		String newParentCollectionId = null;
-
-		PreparedStatement ps = null;
-		Connection connection = null;
-		try {
-			connection = getConnection();
-			ps = connection.prepareStatement(
-			"INSERT INTO Collection (processorNameRef, workflowRunId, portName, iteration, parentCollIdRef, collId) VALUES(?,?,?,?,?,?)");
-
-			if (parentCollectionId == null) {
-				// this is a top-level list
-				parentCollectionId = "TOP";
-			}
-
-			newParentCollectionId = collId;
-
-			ps.setString(1, processorId);
-			ps.setString(2, dataflowId);
-			ps.setString(3, portName);
-			ps.setString(4, iteration);
-			ps.setString(5, parentCollectionId);
-			ps.setString(6, collId);
-
-			ps.executeUpdate();
-
-		
-		} finally {
-			if (connection != null) {
-				connection.close();
-			}
+		if (parentCollectionId == null) {
+			// this is a top-level list
+			parentCollectionId = "TOP";
 		}
 
+		insert("Collection",
+		"INSERT INTO Collection (processorNameRef, workflowRunId, portName, iteration, parentCollIdRef, collId) VALUES(?,?,?,?,?,?)",
+		false, processorId, dataflowId, portName, iteration,
+		parentCollectionId, collId);
 
-		return newParentCollectionId;
+		return collId;
 	}
 
 	public void addData(String dataRef, String wfInstanceId, Object data)
 	throws SQLException {
 		
-		Connection connection = null;
-
 		try {
-			connection = getConnection();
-			PreparedStatement ps = null;
-			ps = connection.prepareStatement(
-			"INSERT INTO Data (dataReference,wfInstanceID,data) VALUES (?,?,?)");
-			ps.setString(1, dataRef);
-			ps.setString(2, wfInstanceId);
-			ps.setString(3, (String) data);
-
-			ps.executeUpdate();
+			insert("Data",
+			"INSERT INTO Data (dataReference,wfInstanceID,data) VALUES (?,?,?)",
+			true, dataRef, wfInstanceId, (String) data);
 
 			cnt++;
 
@@ -439,10 +553,6 @@ public class ProvenanceWriter {
 		} catch (SQLException e) {
 			// the same ID will come in several times -- duplications are
 			// expected, don't panic		
-		} finally {
-			if (connection != null) {
-				connection.close();
-			}
 		}
 	}
 
@@ -455,18 +565,10 @@ public class ProvenanceWriter {
 	public void addData(String dataRef, String wfInstanceId, byte[] data)
 	throws SQLException {
 
-		Connection connection = null;
-
 		try {
-			connection = getConnection();
-			PreparedStatement ps = null;
-			ps = connection.prepareStatement(
-			"INSERT INTO Data (dataReference,wfInstanceID,data) VALUES (?,?,?)");
-			ps.setString(1, dataRef);
-			ps.setString(2, wfInstanceId);
-			ps.setBytes(3, data);
-
-			ps.executeUpdate();
+			insert("Data",
+			"INSERT INTO Data (dataReference,wfInstanceID,data) VALUES (?,?,?)",
+			true, dataRef, wfInstanceId, data);
 
 			cnt++;
 
@@ -475,51 +577,30 @@ public class ProvenanceWriter {
 		} catch (SQLException e) {
 			// the same ID will come in several times -- duplications are
 			// expected, don't panic	
-		} finally {
-			if (connection != null) {
-				connection.close();
-			}
 		}
 	}
 
 	public void addPortBinding(PortBinding vb) throws SQLException {
-		PreparedStatement ps = null;
-		Connection connection = null;
 
 		logger.debug("START addVarBinding proc "+vb.getProcessorName()+" port "+vb.getPortName());
 
-		try {
-			connection = getConnection();
-			ps = connection.prepareStatement(
-			"INSERT INTO PortBinding (workflowId, processorNameRef, workflowRunId, portName, valueType, value, ref, collIdRef, iteration,positionInColl) VALUES(?,?,?,?,?,?,?,?,?,?)");
-
-			ps.setString(1, vb.getWorkflowId());
-			ps.setString(2, vb.getProcessorName());
-			ps.setString(3, vb.getWorkflowRunId());
-			ps.setString(4, vb.getPortName());
-			ps.setString(5, vb.getValueType());
-			ps.setString(6, vb.getValue());
-			ps.setString(7, vb.getReference());
-			ps.setString(8, vb.getCollIDRef());
-			ps.setString(9, vb.getIteration());
-			ps.setInt(10, vb.getPositionInColl());
-
-			
-			logger.debug("addVarBinding query: \n"+ps.toString());
-			ps.executeUpdate();
-			logger.debug("insert done");
-
-			logger.debug("COMPLETE addVarBinding proc "+vb.getProcessorName()+" port "+vb.getPortName());
-
-			cnt++;  // who uses this?
-
-//		} catch (SQLException e) {
-//			logger.warn("Port binding insert failed", e);
-		} finally {
-			if (connection != null) {
-				connection.close();
-			}
-		}
+		insert("PortBinding",
+		"INSERT INTO PortBinding (workflowId, processorNameRef, workflowRunId, portName, valueType, value, ref, collIdRef, iteration,positionInColl) VALUES(?,?,?,?,?,?,?,?,?,?)",
+		false,
+		vb.getWorkflowId(),
+		vb.getProcessorName(),
+		vb.getWorkflowRunId(),
+		vb.getPortName(),
+		vb.getValueType(),
+		vb.getValue(),
+		vb.getReference(),
+		vb.getCollIDRef(),
+		vb.getIteration(),
+		vb.getPositionInColl());
+
+		logger.debug("COMPLETE addVarBinding proc "+vb.getProcessorName()+" port "+vb.getPortName());
+
+		cnt++;  // who uses this?
 	}
 
 	/**
@@ -534,29 +615,77 @@ public class ProvenanceWriter {
 
 		try {
 			connection = getConnection();
-			ps = connection
-					.prepareStatement("UPDATE Port SET isInputPort=?, depth=?,"
-							+ "resolvedDepth=?, iterationStrategyOrder=? "
-							+ "WHERE portId=?");
-			int i = v.isInputPort() ? 1 : 0;
-			ps.setInt(1, i);
-			ps.setInt(2, v.getDepth());
-			if (v.isResolvedDepthSet()) {
-				ps.setInt(3, v.getResolvedDepth());
-			} else {
-				ps.setString(3, null);
-			}
-			ps.setInt(4, v.getIterationStrategyOrder());
-			ps.setString(5, v.getIdentifier());
+			ps = connection.prepareStatement(UPDATE_PORT);
+			bindPortUpdate(ps, v);
 			ps.execute();
 
 		} finally {
 			if (connection != null)
 				connection.close();
 		}
+		if (lineageGraph != null) {
+			lineageGraph.portUpdated(v);
+		}
 
 	}
 
+	/**
+	 * persists several vars back to DB with one batched statement, in one
+	 * transaction
+	 *
+	 * @param ports
+	 * @throws SQLException
+	 */
+	public void updatePorts(List<Port> ports) throws SQLException {
+		if (ports.isEmpty()) {
+			return;
+		}
+		PreparedStatement ps = null;
+		Connection connection = null;
+		long started = System.nanoTime();
+		try {
+			connection = getConnection();
+			connection.setAutoCommit(false);
+			try {
+				ps = connection.prepareStatement(UPDATE_PORT);
+				for (Port v : ports) {
+					bindPortUpdate(ps, v);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
+			statisticsFor("Port").record(ports.size(), System.nanoTime() - started);
+		}
+		if (lineageGraph != null) {
+			for (Port v : ports) {
+				lineageGraph.portUpdated(v);
+			}
+		}
+	}
+
+	private static void bindPortUpdate(PreparedStatement ps, Port v) throws SQLException {
+		int i = v.isInputPort() ? 1 : 0;
+		ps.setInt(1, i);
+		ps.setInt(2, v.getDepth());
+		if (v.isResolvedDepthSet()) {
+			ps.setInt(3, v.getResolvedDepth());
+		} else {
+			ps.setString(3, null);
+		}
+		ps.setInt(4, v.getIterationStrategyOrder());
+		ps.setString(5, v.getIdentifier());
+	}
+
 	public void updateProcessorEnactment(net.sf.taverna.t2.provenance.lineageservice.utils.ProcessorEnactment enactment) {
 		PreparedStatement ps = null;
 		Connection connection = null;
@@ -703,6 +832,9 @@ public class ProvenanceWriter {
 			}
 		}
 
+		if (lineageGraph != null) {
+			lineageGraph.clear();
+		}
 		logger.info("DB cleared STATIC");
 	}
 
@@ -748,103 +880,136 @@ public class ProvenanceWriter {
 			}
 		}
 
+		if (lineageGraph != null) {
+			lineageGraph.clear();
+		}
 		logger.info("DB cleared STATICfor wfID " + wfID);
 	}
 
 
 	public Set<String>  clearDBDynamic() throws SQLException {
-		return clearDBDynamic(null);
+		return clearDBDynamic((String) null);
 	}
 
 	/**
-	 * deletes DB contents for all runs -- for testing purposes
+	 * deletes DB contents for one run, or for all runs if runID is null
 	 *
+	 * @return the values and collections referenced by the deleted runs
 	 * @throws SQLException
 	 */
 	public Set<String> clearDBDynamic(String runID) throws SQLException {
-		String q = null;
+		if (runID != null) {
+			return clearDBDynamic(Collections.singletonList(runID));
+		}
 
-		Set<String>  refsToRemove = collectValueReferences(runID);  // collect all relevant refs from PortBinding and Collection
+		Set<String>  refsToRemove = collectValueReferences(null);  // collect all relevant refs from PortBinding and Collection
 
 		Connection connection = null;
-		PreparedStatement ps = null;
 		try {
 			connection = getConnection();
-
-			if (runID != null) {
-				ps = connection.prepareStatement("DELETE FROM WorkflowRun WHERE workflowRunId = ?");
-				ps.setString(1, runID);
-			} else 
-				ps = connection.prepareStatement("DELETE FROM WorkflowRun");
-			ps.executeUpdate();
-
-			if (runID != null) {
-				ps = connection.prepareStatement("DELETE FROM PortBinding WHERE workflowRunId = ?");
-				ps.setString(1, runID);
-			} else 
-				ps = connection.prepareStatement("DELETE FROM PortBinding");
-			ps.executeUpdate();
-
-			if (runID != null) {
-				ps = connection.prepareStatement("DELETE FROM Collection WHERE workflowRunId = ?");
-				ps.setString(1, runID);
-			} else 
-				ps = connection.prepareStatement("DELETE FROM Collection");
-			ps.executeUpdate();
-			
-			if (runID != null) {
-				ps = connection.prepareStatement("DELETE FROM "
-						+ DataflowInvocationTable.DataflowInvocation + " WHERE "
-						+ DataflowInvocationTable.workflowRunId + "=?");
-				ps.setString(1, runID);
-			} else
-				ps = connection.prepareStatement("DELETE FROM "
-						+ DataflowInvocationTable.DataflowInvocation);
-			ps.executeUpdate();
-			
-			if (runID != null) {
-				ps = connection.prepareStatement("DELETE FROM "
-						+ ServiceInvocationTable.ServiceInvocation + " WHERE "
-						+ ServiceInvocationTable.workflowRunId + "=?");
-				ps.setString(1, runID);
-			} else
-				ps = connection.prepareStatement("DELETE FROM "
-						+ ServiceInvocationTable.ServiceInvocation);
-			ps.executeUpdate();
-			
-			if (runID != null) {
-				ps = connection.prepareStatement("DELETE FROM "
-						+ ProcessorEnactmentTable.ProcessorEnactment + " WHERE "
-						+ ProcessorEnactmentTable.workflowRunId + "=?");
-				ps.setString(1, runID);
-			} else
-				ps = connection
-						.prepareStatement("DELETE FROM "
-								+ ProcessorEnactmentTable.ProcessorEnactment);
-			ps.executeUpdate();
-			
-			
-			
-			if (runID != null) {
-				ps = connection.prepareStatement("DELETE FROM "
-						+ DataBindingTable.DataBinding + " WHERE "
-						+ DataBindingTable.workflowRunId + "=?");
-				ps.setString(1, runID);
-			} else
-				ps = connection.prepareStatement("DELETE FROM "
-						+ DataBindingTable.DataBinding);
-			ps.executeUpdate();
+			Statement stmt = connection.createStatement();
+			for (String table : RUN_TABLES) {
+				stmt.executeUpdate("DELETE FROM " + table);
+			}
 		} finally {
 			if (connection != null) {
 				connection.close();
 			}
 		}
+		if (lineageGraph != null) {
+			lineageGraph.clear();
+		}
 		logger.info("DB cleared DYNAMIC");
 		return refsToRemove;
 	}
 
 
 
+	/**
+	 * deletes DB contents for the given runs with one DELETE ... IN (...) per
+	 * table for every {@link #setPurgeChunkSize(int) chunk} of runs. Each chunk
+	 * is collected and deleted in its own transaction: if a chunk fails it is
+	 * rolled back and the exception thrown, the chunks before it stay
+	 * deleted.
+	 *
+	 * @return the values and collections referenced by the deleted runs
+	 * @throws SQLException
+	 */
+	public Set<String> clearDBDynamic(java.util.Collection<String> runIDs) throws SQLException {
+		Set<String> refsToRemove = new HashSet<String>();
+		List<String> runs = new ArrayList<String>(new LinkedHashSet<String>(runIDs));
+
+		for (int from = 0; from < runs.size(); from += purgeChunkSize) {
+			List<String> chunk = runs.subList(from, Math.min(from + purgeChunkSize, runs.size()));
+			long started = System.nanoTime();
+			int deleted = 0;
+
+			Connection connection = getConnection();
+			try {
+				connection.setAutoCommit(false);
+				collectValueReferences(connection, chunk, refsToRemove);
+				for (String table : RUN_TABLES) {
+					PreparedStatement ps = connection.prepareStatement("DELETE FROM " + table
+							+ " WHERE workflowRunId IN (" + ProvenanceQuery.placeholders(chunk.size()) + ")");
+					try {
+						bindRuns(ps, chunk);
+						deleted += ps.executeUpdate();
+					} finally {
+						ps.close();
+					}
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+				connection.close();
+			}
+			logger.debug("Deleted " + deleted + " rows for " + chunk.size() + " runs in "
+					+ (System.nanoTime() - started) / 1000000 + " ms");
+		}
+
+		if (lineageGraph != null) {
+			lineageGraph.clear();
+		}
+		logger.info("DB cleared DYNAMIC for " + runs.size() + " runs");
+		return refsToRemove;
+	}
+
+	private void collectValueReferences(Connection connection, List<String> runIDs,
+			Set<String> refs) throws SQLException {
+		PreparedStatement ps = connection.prepareStatement("SELECT value FROM PortBinding WHERE workflowRunId IN ("
+				+ ProvenanceQuery.placeholders(runIDs.size()) + ")");
+		try {
+			bindRuns(ps, runIDs);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				refs.add(rs.getString("value"));
+			}
+		} finally {
+			ps.close();
+		}
+
+		ps = connection.prepareStatement("SELECT collId FROM Collection WHERE workflowRunId IN ("
+				+ ProvenanceQuery.placeholders(runIDs.size()) + ")");
+		try {
+			bindRuns(ps, runIDs);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				refs.add(rs.getString("collId"));
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static void bindRuns(PreparedStatement ps, List<String> runIDs) throws SQLException {
+		for (int i = 0; i < runIDs.size(); i++) {
+			ps.setString(i + 1, runIDs.get(i));
+		}
+	}
+
 	private Set<String> collectValueReferences(String runID) throws SQLException {
 
 		Set<String> refs = new HashSet<String>();
@@ -960,10 +1125,187 @@ public class ProvenanceWriter {
 		}
 	}
 
-   public void setQuery(ProvenanceQuery query) { this.pq  = query; }
+   public void setQuery(ProvenanceQuery query) {
+	   this.pq  = query;
+	   if (query != null) {
+		   query.setWriter(this);
+	   }
+   }
 
    public ProvenanceQuery getQuery() { return this.pq; }
 
+	/**
+	 * The graph to keep up to date with the ports, datalinks and processors
+	 * written, or null
+	 */
+	public void setLineageGraph(LineageGraph lineageGraph) {
+		this.lineageGraph = lineageGraph;
+	}
+
+	public LineageGraph getLineageGraph() {
+		return lineageGraph;
+	}
+
+	/**
+	 * Rows inserted into one table, the number of round trips made to do so
+	 * and the time they took
+	 */
+	public static class TableStatistics {
+
+		private final AtomicLong rows = new AtomicLong();
+		private final AtomicLong executions = new AtomicLong();
+		private final AtomicLong failedRows = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+
+		void record(int rowCount, long elapsedNanos) {
+			rows.addAndGet(rowCount);
+			executions.incrementAndGet();
+			nanos.addAndGet(elapsedNanos);
+		}
+
+		void recordFailure() {
+			failedRows.incrementAndGet();
+		}
+
+		public long getRows() {
+			return rows.get();
+		}
+
+		public long getExecutions() {
+			return executions.get();
+		}
+
+		public long getFailedRows() {
+			return failedRows.get();
+		}
+
+		public long getElapsedNanos() {
+			return nanos.get();
+		}
+
+		/**
+		 * Mean time spent per row written, in microseconds
+		 */
+		public double getMicrosPerRow() {
+			long rowCount = rows.get();
+			return rowCount == 0 ? 0 : nanos.get() / 1000.0 / rowCount;
+		}
+
+		@Override
+		public String toString() {
+			return getRows() + " rows in " + getExecutions() + " executions, "
+					+ getFailedRows() + " failed, "
+					+ String.format("%.1f", getMicrosPerRow()) + "us/row";
+		}
+	}
+
+	/**
+	 * Rows queued on one prepared statement and not yet executed
+	 */
+	private static class PendingStatement {
+		final String table;
+		final PreparedStatement statement;
+		final boolean duplicatesExpected;
+		final List<Object[]> rows = new ArrayList<Object[]>();
+
+		PendingStatement(String table, PreparedStatement statement,
+				boolean duplicatesExpected) {
+			this.table = table;
+			this.statement = statement;
+			this.duplicatesExpected = duplicatesExpected;
+		}
+	}
+
+	/**
+	 * The connection and prepared statements shared by the inserts of one
+	 * thread between {@link #beginUnitOfWork()} and {@link #endUnitOfWork()}
+	 */
+	private class UnitOfWork {
+
+		int nesting;
+		private Connection connection;
+		private final Map<String, PendingStatement> statements = new LinkedHashMap<String, PendingStatement>();
+
+		void add(String table, String sql, boolean duplicatesExpected,
+				Object[] values) throws SQLException {
+			PendingStatement pending = statements.get(sql);
+			if (pending == null) {
+				if (connection == null) {
+					connection = connect();
+					connection.setAutoCommit(false);
+				}
+				pending = new PendingStatement(table, connection
+						.prepareStatement(sql), duplicatesExpected);
+				statements.put(sql, pending);
+			}
+			bind(pending.statement, values);
+			pending.statement.addBatch();
+			pending.rows.add(values);
+			if (pending.rows.size() >= batchSize) {
+				execute(pending);
+			}
+		}
+
+		void flush() throws SQLException {
+			for (PendingStatement pending : statements.values()) {
+				if (!pending.rows.isEmpty()) {
+					execute(pending);
+				}
+			}
+		}
+
+		/**
+		 * Execute and commit the queued rows. If the batch fails, for instance
+		 * on a duplicate key, it is rolled back and the rows are inserted one
+		 * at a time so only the offending ones are lost, as when not
+		 * batching.
+		 */
+		private void execute(PendingStatement pending) throws SQLException {
+			TableStatistics stats = statisticsFor(pending.table);
+			long started = System.nanoTime();
+			try {
+				pending.statement.executeBatch();
+				connection.commit();
+			} catch (SQLException e) {
+				pending.statement.clearBatch();
+				connection.rollback();
+				connection.setAutoCommit(true);
+				try {
+					for (Object[] values : pending.rows) {
+						bind(pending.statement, values);
+						try {
+							pending.statement.executeUpdate();
+						} catch (SQLException rowFailure) {
+							stats.recordFailure();
+							if (!pending.duplicatesExpected) {
+								logger.warn("Could not insert into "
+										+ pending.table, rowFailure);
+							}
+						}
+					}
+				} finally {
+					connection.setAutoCommit(false);
+				}
+			} finally {
+				stats.record(pending.rows.size(), System.nanoTime() - started);
+				pending.rows.clear();
+			}
+		}
+
+		void close() {
+			if (connection == null) {
+				return;
+			}
+			try {
+				// nothing is left to commit unless a flush failed part way
+				connection.rollback();
+				connection.setAutoCommit(true);
+				connection.close();
+			} catch (SQLException e) {
+				logger.warn("Can't close connection", e);
+			}
+		}
+	}
 
 }
 
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link ProvenanceCursor} reading one bean from each row of the result of
+ * a prepared query, which it executes and then owns along with its
+ * connection
+ */
+abstract class ResultSetCursor<T> implements ProvenanceCursor<T> {
+
+	private static Logger logger = Logger.getLogger(ResultSetCursor.class);
+
+	private Connection connection;
+	private final PreparedStatement statement;
+	private final ResultSet resultSet;
+	private boolean advanced = false;
+	private boolean hasNext = false;
+
+	ResultSetCursor(Connection connection, PreparedStatement statement)
+			throws SQLException {
+		this.connection = connection;
+		this.statement = statement;
+		this.resultSet = statement.executeQuery();
+	}
+
+	/**
+	 * The bean for the current row
+	 */
+	protected abstract T read(ResultSet rs) throws SQLException;
+
+	public boolean hasNext() {
+		if (connection == null) {
+			return false;
+		}
+		if (!advanced) {
+			try {
+				hasNext = resultSet.next();
+			} catch (SQLException e) {
+				close();
+				throw new IllegalStateException("Could not read the next row", e);
+			}
+			advanced = true;
+			if (!hasNext) {
+				close();
+			}
+		}
+		return hasNext;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		advanced = false;
+		try {
+			return read(resultSet);
+		} catch (SQLException e) {
+			close();
+			throw new IllegalStateException("Could not read row", e);
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() {
+		if (connection == null) {
+			return;
+		}
+		try {
+			resultSet.close();
+			statement.close();
+		} catch (SQLException e) {
+			logger.warn("Could not close result set", e);
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				logger.warn("Could not close connection", e);
+			}
+			connection = null;
+			hasNext = false;
+		}
+	}
+
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.ReferenceServiceException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Deletes the provenance of whole workflow runs, optionally together with
+ * the data the {@link ReferenceService} holds for them, either straight away
+ * with {@link #purge(List, boolean)} or in the background with
+ * {@link #submit(String, boolean)}.
+ * <p>
+ * The background purge takes up to {@link #setMaxRunsPerPurge(int)} queued
+ * runs at a time and deletes them with
+ * {@link ProvenanceWriter#clearDBDynamic(java.util.Collection)}. With
+ * {@link #setMaxRunsPerSecond(double)} it then pauses long enough to keep to
+ * that rate, leaving the tables free for the runs still being recorded.
+ */
+public class RunPurger {
+
+	private static Logger logger = Logger.getLogger(RunPurger.class);
+
+	private final ProvenanceWriter pw;
+	private volatile ReferenceService referenceService;
+	private volatile int maxRunsPerPurge = 50;
+	private volatile double maxRunsPerSecond = 0;
+
+	private final BlockingQueue<PurgeRequest> queue = new LinkedBlockingQueue<PurgeRequest>();
+	private final Object idle = new Object();
+	private int pending = 0;
+	private Thread worker;
+	private boolean shutdown = false;
+
+	public RunPurger(ProvenanceWriter pw) {
+		this.pw = pw;
+	}
+
+	/**
+	 * The Reference Service whose data is deleted along with runs purged with
+	 * deleteReferences set
+	 */
+	public void setReferenceService(ReferenceService referenceService) {
+		this.referenceService = referenceService;
+	}
+
+	public ReferenceService getReferenceService() {
+		return referenceService;
+	}
+
+	/**
+	 * Most queued runs deleted together by the background purge, default 50
+	 */
+	public void setMaxRunsPerPurge(int maxRunsPerPurge) {
+		if (maxRunsPerPurge < 1) {
+			throw new IllegalArgumentException("At least one run must be purged at a time");
+		}
+		this.maxRunsPerPurge = maxRunsPerPurge;
+	}
+
+	public int getMaxRunsPerPurge() {
+		return maxRunsPerPurge;
+	}
+
+	/**
+	 * Most runs the background purge deletes per second, or 0 (the default)
+	 * for as fast as it can
+	 */
+	public void setMaxRunsPerSecond(double maxRunsPerSecond) {
+		if (maxRunsPerSecond < 0) {
+			throw new IllegalArgumentException("The rate can not be negative");
+		}
+		this.maxRunsPerSecond = maxRunsPerSecond;
+	}
+
+	public double getMaxRunsPerSecond() {
+		return maxRunsPerSecond;
+	}
+
+	/**
+	 * Delete the runs now, on the calling thread.
+	 *
+	 * @param deleteReferences
+	 *            also call
+	 *            {@link ReferenceService#deleteReferencesForWorkflowRun(String)}
+	 *            for each run, once its provenance is deleted
+	 * @return the data references of the deleted runs
+	 */
+	public Set<String> purge(List<String> runIDs, boolean deleteReferences)
+			throws SQLException {
+		Set<String> danglingDataRefs = pw.clearDBDynamic(runIDs);
+		if (deleteReferences) {
+			for (String runID : runIDs) {
+				deleteReferences(runID);
+			}
+		}
+		return danglingDataRefs;
+	}
+
+	/**
+	 * Queue the run to be deleted in the background
+	 *
+	 * @param deleteReferences
+	 *            as for {@link #purge(List, boolean)}
+	 */
+	public void submit(String runID, boolean deleteReferences) {
+		synchronized (idle) {
+			if (shutdown) {
+				throw new IllegalStateException("The purger has been shut down");
+			}
+			if (worker == null) {
+				worker = new Thread(new Runnable() {
+					public void run() {
+						work();
+					}
+				}, "Provenance run purge");
+				worker.setDaemon(true);
+				worker.start();
+			}
+			pending++;
+			queue.add(new PurgeRequest(runID, deleteReferences));
+		}
+	}
+
+	/**
+	 * Number of runs submitted and not yet purged
+	 */
+	public int getPending() {
+		synchronized (idle) {
+			return pending;
+		}
+	}
+
+	/**
+	 * Wait for the background purge to finish the runs submitted so far
+	 *
+	 * @return false if it was still busy after timeoutMillis
+	 */
+	public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (idle) {
+			while (pending > 0) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				idle.wait(wait);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Stop the background purge, abandoning the runs still queued
+	 */
+	public void shutdown() {
+		synchronized (idle) {
+			shutdown = true;
+			queue.clear();
+			pending = 0;
+			idle.notifyAll();
+			if (worker != null) {
+				worker.interrupt();
+			}
+		}
+	}
+
+	private void work() {
+		try {
+			while (true) {
+				List<PurgeRequest> requests = new ArrayList<PurgeRequest>();
+				requests.add(queue.take());
+				queue.drainTo(requests, maxRunsPerPurge - 1);
+
+				long started = System.currentTimeMillis();
+				try {
+					purge(requests);
+				} catch (RuntimeException e) {
+					logger.error("Problem while purging runs", e);
+				} finally {
+					synchronized (idle) {
+						// shutdown has already written off what was pending
+						if (!shutdown) {
+							pending -= requests.size();
+						}
+						idle.notifyAll();
+					}
+				}
+
+				double rate = maxRunsPerSecond;
+				if (rate > 0) {
+					long pause = (long) (requests.size() * 1000 / rate)
+							- (System.currentTimeMillis() - started);
+					if (pause > 0) {
+						Thread.sleep(pause);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.debug("Run purge stopped");
+		}
+	}
+
+	private void purge(List<PurgeRequest> requests) {
+		List<String> runIDs = new ArrayList<String>();
+		for (PurgeRequest request : requests) {
+			runIDs.add(request.runID);
+		}
+		try {
+			pw.clearDBDynamic(runIDs);
+		} catch (SQLException e) {
+			logger.error("Problem while removing runs : " + runIDs, e);
+			return;
+		}
+		for (PurgeRequest request : requests) {
+			if (request.deleteReferences) {
+				deleteReferences(request.runID);
+			}
+		}
+	}
+
+	private void deleteReferences(String runID) {
+		ReferenceService rs = referenceService;
+		if (rs == null) {
+			logger.warn("No Reference Service to delete the data of run " + runID);
+			return;
+		}
+		try {
+			rs.deleteReferencesForWorkflowRun(runID);
+		} catch (ReferenceServiceException e) {
+			logger.error("Problem while deleting the data of run : " + runID, e);
+		}
+	}
+
+	private static class PurgeRequest {
+		final String runID;
+		final boolean deleteReferences;
+
+		PurgeRequest(String runID, boolean deleteReferences) {
+			this.runID = runID;
+			this.deleteReferences = deleteReferences;
+		}
+	}
+
+}
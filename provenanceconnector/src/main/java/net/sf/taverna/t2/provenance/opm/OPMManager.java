@@ -148,6 +148,20 @@ public class OPMManager {
 	 * @ 
 	 */
 	public Resource addArtifact(String aName) throws ProvenanceException  {
+		String artID = makeArtifactURI(uriGenerator, aName);
+
+		Resource r = Resource.uriRef(artID);
+		currentArtifact = graph.newArtifact(artID, r);
+		graph.assertArtifact(currentArtifact);
+		return r;
+	}
+
+
+	/**
+	 * the URI of the artifact for a value: T2 references are mapped to data URIs, other values
+	 * that are not already URIs get one in the {@link #OPM_TAVERNA_NAMESPACE}
+	 */
+	static String makeArtifactURI(URIGenerator uriGenerator, String aName) {
 		String artID;
 		// make sure artifact name is a good URI				
 		try {
@@ -165,12 +179,7 @@ public class OPMManager {
 		if (artID == null) {
 			artID = OPM_TAVERNA_NAMESPACE + "artifact/"+uriGenerator.escape(aName);
 		}
-
-
-		Resource r = Resource.uriRef(artID);
-		currentArtifact = graph.newArtifact(artID, r);
-		graph.assertArtifact(currentArtifact);
-		return r;
+		return artID;
 	}
 
 
@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.opm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.taverna.t2.provenance.lineageservice.ProvenanceCursor;
+import net.sf.taverna.t2.provenance.lineageservice.ProvenanceQuery;
+import net.sf.taverna.t2.provenance.lineageservice.URIGenerator;
+import net.sf.taverna.t2.provenance.lineageservice.utils.PortBinding;
+
+/**
+ * Exports the OPM graph of a whole workflow run as RDF, written out triple by
+ * triple as the port bindings of the run are read from a
+ * {@link ProvenanceCursor}, so memory use does not grow with the size of the
+ * run as it does when building the graph with the {@link OPMManager}.
+ * <p>
+ * The graph uses the OPM Vocabulary (<a
+ * href="http://purl.org/net/opmv/ns">opmv</a>), whose direct
+ * <code>opmv:used</code> and <code>opmv:wasGeneratedBy</code> properties
+ * need no intermediate nodes. Each iteration of a processor is a process,
+ * linked to its processor and carrying its iteration vector; each value is
+ * an artifact named as by the {@link OPMManager}, linked to the collection it
+ * is an element of. Values are not resolved. Type statements are written
+ * once per recently seen resource, an artifact used by many processes far
+ * apart in the run may be typed more than once, which is harmless in RDF.
+ */
+public class OPMStreamExporter {
+
+	public static enum Format {
+		RDF_XML, N_TRIPLES
+	}
+
+	static final String RDF_NAMESPACE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+	static final String OPMV_NAMESPACE = "http://purl.org/net/opmv/ns#";
+
+	private static final String RDF_TYPE = RDF_NAMESPACE + "type";
+	private static final String OPMV_PROCESS = OPMV_NAMESPACE + "Process";
+	private static final String OPMV_ARTIFACT = OPMV_NAMESPACE + "Artifact";
+	private static final String OPMV_USED = OPMV_NAMESPACE + "used";
+	private static final String OPMV_WAS_GENERATED_BY = OPMV_NAMESPACE + "wasGeneratedBy";
+	private static final String ITERATION = OPMManager.OPM_TAVERNA_NAMESPACE + "iteration";
+	private static final String PROCESSOR = OPMManager.OPM_TAVERNA_NAMESPACE + "processor";
+	private static final String ELEMENT_OF = OPMManager.OPM_TAVERNA_NAMESPACE + "elementOf";
+
+	private static final int RECENTLY_TYPED = 10000;
+
+	private final ProvenanceQuery pq;
+
+	private final URIGenerator uriGenerator = new URIGenerator();
+
+	public OPMStreamExporter(ProvenanceQuery pq) {
+		this.pq = pq;
+	}
+
+	/**
+	 * Write the OPM graph of the run to out, which is flushed but not closed
+	 */
+	public void export(String workflowRunId, OutputStream out, Format format)
+			throws SQLException, IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		TripleWriter triples = format == Format.RDF_XML ? new RdfXmlTripleWriter(writer)
+				: new NTriplesTripleWriter(writer);
+
+		// bounded by the size of the workflow, not of the run
+		Map<String, Boolean> dataflows = new HashMap<String, Boolean>();
+		RecentSet typed = new RecentSet(RECENTLY_TYPED);
+
+		Map<String, String> constraints = new HashMap<String, String>();
+		constraints.put("VB.workflowRunId", workflowRunId);
+		ProvenanceCursor<PortBinding> bindings = pq.streamPortBindings(constraints);
+		try {
+			triples.start();
+			while (bindings.hasNext()) {
+				PortBinding vb = bindings.next();
+				Boolean isDataflow = dataflows.get(vb.getProcessorName());
+				if (isDataflow == null) {
+					isDataflow = pq.isDataflow(vb.getProcessorName());
+					dataflows.put(vb.getProcessorName(), isDataflow);
+				}
+				if (isDataflow || vb.getValue() == null) {
+					// workflow ports are not processes, as in the OPMManager
+					continue;
+				}
+				writeBinding(vb, triples, typed);
+			}
+			triples.end();
+		} finally {
+			bindings.close();
+		}
+		writer.flush();
+	}
+
+	private void writeBinding(PortBinding vb, TripleWriter triples, RecentSet typed)
+			throws IOException {
+		String iteration = vb.getIteration() == null ? "[]" : vb.getIteration();
+		String process = uriGenerator.makeIteration(vb.getWorkflowRunId(),
+				vb.getWorkflowId(), vb.getProcessorName(), iteration);
+		if (typed.add(process)) {
+			triples.resource(process, RDF_TYPE, OPMV_PROCESS);
+			triples.resource(process, PROCESSOR, uriGenerator.makeProcessorURI(
+					vb.getProcessorName(), vb.getWorkflowId()));
+			if (!iteration.equals("[]")) {
+				triples.literal(process, ITERATION, iteration);
+			}
+		}
+
+		String artifact = OPMManager.makeArtifactURI(uriGenerator, vb.getValue());
+		if (typed.add(artifact)) {
+			triples.resource(artifact, RDF_TYPE, OPMV_ARTIFACT);
+			if (vb.getCollIDRef() != null) {
+				triples.resource(artifact, ELEMENT_OF, OPMManager.makeArtifactURI(
+						uriGenerator, vb.getCollIDRef()));
+			}
+		}
+
+		if (Boolean.TRUE.equals(vb.isInputPort())) {
+			triples.resource(process, OPMV_USED, artifact);
+		} else {
+			triples.resource(artifact, OPMV_WAS_GENERATED_BY, process);
+		}
+	}
+
+	/**
+	 * The most recently added strings, up to a maximum number
+	 */
+	private static class RecentSet extends LinkedHashMap<String, Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maximum;
+
+		RecentSet(int maximum) {
+			super(16, 0.75f, true);
+			this.maximum = maximum;
+		}
+
+		/**
+		 * @return true if s was not among the recent strings
+		 */
+		boolean add(String s) {
+			return put(s, Boolean.TRUE) == null;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > maximum;
+		}
+	}
+
+	private static abstract class TripleWriter {
+
+		protected final Writer out;
+
+		TripleWriter(Writer out) {
+			this.out = out;
+		}
+
+		void start() throws IOException {
+		}
+
+		abstract void resource(String subject, String predicate, String object)
+				throws IOException;
+
+		abstract void literal(String subject, String predicate, String value)
+				throws IOException;
+
+		void end() throws IOException {
+		}
+	}
+
+	private static class NTriplesTripleWriter extends TripleWriter {
+
+		NTriplesTripleWriter(Writer out) {
+			super(out);
+		}
+
+		void resource(String subject, String predicate, String object)
+				throws IOException {
+			out.write('<');
+			escape(subject, false);
+			out.write("> <");
+			escape(predicate, false);
+			out.write("> <");
+			escape(object, false);
+			out.write("> .\n");
+		}
+
+		void literal(String subject, String predicate, String value)
+				throws IOException {
+			out.write('<');
+			escape(subject, false);
+			out.write("> <");
+			escape(predicate, false);
+			out.write("> \"");
+			escape(value, true);
+			out.write("\" .\n");
+		}
+
+		/**
+		 * N-Triples are ASCII, anything else is written as a \\u escape, or
+		 * a \\U escape for characters outside the Basic Multilingual Plane
+		 */
+		private void escape(String s, boolean literal) throws IOException {
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (Character.isHighSurrogate(c) && i + 1 < s.length()
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					// one escape for the pair, not one for each surrogate
+					out.write(String.format("\\U%08X", s.codePointAt(i)));
+					i++;
+				} else if (literal && (c == '\\' || c == '"')) {
+					out.write('\\');
+					out.write(c);
+				} else if (literal && c == '\n') {
+					out.write("\\n");
+				} else if (literal && c == '\r') {
+					out.write("\\r");
+				} else if (literal && c == '\t') {
+					out.write("\\t");
+				} else if (c < 0x20 || c > 0x7e || (!literal && c == '>')) {
+					out.write(String.format("\\u%04X", (int) c));
+				} else {
+					out.write(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes each triple as it comes, in a description of its subject that is
+	 * kept open while the following triples are about the same subject
+	 */
+	private static class RdfXmlTripleWriter extends TripleWriter {
+
+		private String subject = null;
+
+		RdfXmlTripleWriter(Writer out) {
+			super(out);
+		}
+
+		void start() throws IOException {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.write("<rdf:RDF xmlns:rdf=\"" + RDF_NAMESPACE + "\"\n");
+			out.write("    xmlns:opmv=\"" + OPMV_NAMESPACE + "\"\n");
+			out.write("    xmlns:tavernaprov=\"" + OPMManager.OPM_TAVERNA_NAMESPACE + "\">\n");
+		}
+
+		void resource(String subject, String predicate, String object)
+				throws IOException {
+			about(subject);
+			out.write("    <" + qname(predicate) + " rdf:resource=\"");
+			escape(object);
+			out.write("\"/>\n");
+		}
+
+		void literal(String subject, String predicate, String value)
+				throws IOException {
+			about(subject);
+			String qname = qname(predicate);
+			out.write("    <" + qname + ">");
+			escape(value);
+			out.write("</" + qname + ">\n");
+		}
+
+		void end() throws IOException {
+			if (subject != null) {
+				out.write("  </rdf:Description>\n");
+			}
+			out.write("</rdf:RDF>\n");
+		}
+
+		private void about(String subject) throws IOException {
+			if (subject.equals(this.subject)) {
+				return;
+			}
+			if (this.subject != null) {
+				out.write("  </rdf:Description>\n");
+			}
+			out.write("  <rdf:Description rdf:about=\"");
+			escape(subject);
+			out.write("\">\n");
+			this.subject = subject;
+		}
+
+		private static String qname(String predicate) {
+			if (predicate.startsWith(RDF_NAMESPACE)) {
+				return "rdf:" + predicate.substring(RDF_NAMESPACE.length());
+			} else if (predicate.startsWith(OPMV_NAMESPACE)) {
+				return "opmv:" + predicate.substring(OPMV_NAMESPACE.length());
+			}
+			return "tavernaprov:"
+					+ predicate.substring(OPMManager.OPM_TAVERNA_NAMESPACE.length());
+		}
+
+		private void escape(String s) throws IOException {
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch (c) {
+				case '&':
+					out.write("&amp;");
+					break;
+				case '<':
+					out.write("&lt;");
+					break;
+				case '>':
+					out.write("&gt;");
+					break;
+				case '"':
+					out.write("&quot;");
+					break;
+				default:
+					out.write(c);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.spi.InitialContextFactory;
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JDBCConnectorTest {
+
+	/**
+	 * What the fake JNDI context returns for jdbc/taverna
+	 */
+	private static DataSource boundDataSource;
+
+	private static int lookups;
+
+	private String oldFactory;
+
+	@Before
+	public void bindFakeContext() {
+		oldFactory = System.getProperty(Context.INITIAL_CONTEXT_FACTORY);
+		System.setProperty(Context.INITIAL_CONTEXT_FACTORY, FakeContextFactory.class.getName());
+		boundDataSource = null;
+		lookups = 0;
+		JDBCConnector.setDataSource(null);
+	}
+
+	@After
+	public void restoreContext() {
+		JDBCConnector.setDataSource(null);
+		if (oldFactory == null) {
+			System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+		} else {
+			System.setProperty(Context.INITIAL_CONTEXT_FACTORY, oldFactory);
+		}
+	}
+
+	@Test
+	public void testValidationQueryForDerby() {
+		assertEquals("VALUES 1", JDBCConnector.validationQuery("org.apache.derby.jdbc.EmbeddedDriver"));
+		assertEquals("VALUES 1", JDBCConnector.validationQuery("org.apache.derby.jdbc.ClientDriver"));
+	}
+
+	@Test
+	public void testValidationQueryForOtherDrivers() {
+		assertEquals("SELECT 1", JDBCConnector.validationQuery("com.mysql.jdbc.Driver"));
+		assertEquals("SELECT 1", JDBCConnector.validationQuery("org.postgresql.Driver"));
+		assertEquals("SELECT 1", JDBCConnector.validationQuery(null));
+	}
+
+	@Test
+	public void testJndiLookedUpOnce() throws SQLException {
+		DataSource jndi = dataSource();
+		boundDataSource = jndi;
+		assertSame(jndi, JDBCConnector.getDataSource());
+		assertSame(jndi, JDBCConnector.getDataSource());
+		assertEquals(1, lookups);
+	}
+
+	@Test
+	public void testSetDataSourceOverridesJndi() throws SQLException {
+		boundDataSource = dataSource();
+		DataSource set = dataSource();
+		JDBCConnector.setDataSource(set);
+		assertSame(set, JDBCConnector.getDataSource());
+		assertSame(set.getConnection(), JDBCConnector.getConnection());
+		assertEquals(0, lookups);
+	}
+
+	@Test
+	public void testSetNullLooksUpRebinding() throws SQLException {
+		DataSource first = dataSource();
+		boundDataSource = first;
+		assertSame(first, JDBCConnector.getDataSource());
+
+		DataSource rebound = dataSource();
+		boundDataSource = rebound;
+		assertSame(first, JDBCConnector.getDataSource());
+
+		JDBCConnector.setDataSource(null);
+		assertSame(rebound, JDBCConnector.getDataSource());
+		assertEquals(2, lookups);
+	}
+
+	@Test(expected = SQLException.class)
+	public void testNothingBound() throws SQLException {
+		JDBCConnector.getDataSource();
+	}
+
+	/**
+	 * A DataSource always handing out the same connection
+	 */
+	private static DataSource dataSource() {
+		final Connection connection = (Connection) Proxy.newProxyInstance(
+				JDBCConnectorTest.class.getClassLoader(), new Class<?>[] { Connection.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return null;
+					}
+				});
+		return (DataSource) Proxy.newProxyInstance(
+				JDBCConnectorTest.class.getClassLoader(), new Class<?>[] { DataSource.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getConnection")) {
+							return connection;
+						}
+						return null;
+					}
+				});
+	}
+
+	public static class FakeContextFactory implements InitialContextFactory {
+		public Context getInitialContext(Hashtable<?, ?> environment) {
+			return (Context) Proxy.newProxyInstance(
+					JDBCConnectorTest.class.getClassLoader(), new Class<?>[] { Context.class },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) throws NamingException {
+							if (method.getName().equals("lookup")
+									&& JDBCConnector.JNDI_NAME.equals(args[0])) {
+								lookups++;
+								if (boundDataSource == null) {
+									throw new NamingException("Nothing bound to " + args[0]);
+								}
+								return boundDataSource;
+							}
+							return null;
+						}
+					});
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.taverna.t2.provenance.item.DataflowRunComplete;
+import net.sf.taverna.t2.provenance.item.IterationProvenanceItem;
+import net.sf.taverna.t2.provenance.item.ProvenanceItem;
+
+import org.junit.Test;
+
+public class ProvenanceConnectorTest {
+
+	/**
+	 * Records the items it processes in place of writing them to a database,
+	 * slowly, so that queued items are still outstanding when reported
+	 */
+	private static class RecordingConnector extends ProvenanceConnector {
+
+		final List<ProvenanceItem> stored = Collections
+				.synchronizedList(new ArrayList<ProvenanceItem>());
+
+		@Override
+		protected void processProvenanceItems(
+				List<ProvenanceItem> provenanceItems) {
+			for (ProvenanceItem item : provenanceItems) {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				stored.add(item);
+			}
+		}
+
+		@Override
+		public void createDatabase() {
+		}
+
+		@Override
+		public String getName() {
+			return "recording";
+		}
+
+		public List<ProvenanceItem> getProvenanceCollection() {
+			return stored;
+		}
+	}
+
+	private static void reportRun(ProvenanceConnector connector, int iterations) {
+		for (int i = 0; i < iterations; i++) {
+			IterationProvenanceItem iteration = new IterationProvenanceItem();
+			iteration.setIdentifier("iteration" + i);
+			connector.addProvenanceItem(iteration);
+		}
+		DataflowRunComplete complete = new DataflowRunComplete();
+		complete.setIdentifier("complete");
+		connector.addProvenanceItem(complete);
+	}
+
+	@Test
+	public void testSynchronousByDefault() {
+		RecordingConnector connector = new RecordingConnector();
+		connector.setSessionID("run1");
+		assertFalse(connector.isAsynchronous());
+		reportRun(connector, 20);
+		// Queried straight away, without waiting for the run
+		assertEquals(21, connector.stored.size());
+		assertEquals("complete", connector.stored.get(20).getIdentifier());
+	}
+
+	@Test
+	public void testAsynchronousAfterAwaitRun() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		connector.setSessionID("run1");
+		connector.setAsynchronous(true);
+		reportRun(connector, 20);
+		connector.awaitRun("run1");
+		assertEquals(21, connector.stored.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals("iteration" + i, connector.stored.get(i)
+					.getIdentifier());
+		}
+		assertEquals("complete", connector.stored.get(20).getIdentifier());
+	}
+
+}
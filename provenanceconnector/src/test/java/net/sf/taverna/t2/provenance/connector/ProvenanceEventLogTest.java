@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.taverna.t2.provenance.item.DataflowRunComplete;
+import net.sf.taverna.t2.provenance.item.ErrorProvenanceItem;
+import net.sf.taverna.t2.provenance.item.IterationProvenanceItem;
+import net.sf.taverna.t2.provenance.item.ProvenanceItem;
+import net.sf.taverna.t2.provenance.lineageservice.EventProcessor;
+import net.sf.taverna.t2.provenance.lineageservice.Provenance;
+import net.sf.taverna.t2.provenance.vocabulary.SharedVocabulary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProvenanceEventLogTest {
+
+	private final ProvenanceItemCodec codec = new ProvenanceItemCodec(null);
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = File.createTempFile("events", "");
+		directory.delete();
+	}
+
+	@After
+	public void deleteDirectory() {
+		for (File segment : ProvenanceEventLog.segments(directory)) {
+			segment.delete();
+		}
+		directory.delete();
+	}
+
+	private static ProvenanceItem iteration(String id) {
+		IterationProvenanceItem iteration = new IterationProvenanceItem();
+		iteration.setIdentifier(id);
+		iteration.setIteration(new int[] { 0 });
+		return iteration;
+	}
+
+	private List<ProvenanceItem> readItems() throws IOException {
+		List<ProvenanceItem> items = new ArrayList<ProvenanceItem>();
+		ProvenanceEventLog.Reader reader = new ProvenanceEventLog.Reader(
+				directory, codec);
+		try {
+			ProvenanceItem item;
+			while ((item = reader.next()) != null) {
+				items.add(item);
+			}
+		} finally {
+			reader.close();
+		}
+		return items;
+	}
+
+	private Set<String> readAll() throws IOException {
+		Set<String> identifiers = new HashSet<String>();
+		for (ProvenanceItem item : readItems()) {
+			identifiers.add(item.getIdentifier());
+		}
+		return identifiers;
+	}
+
+	@Test
+	public void testLogsSharingDirectory() throws Exception {
+		ProvenanceEventLog first = new ProvenanceEventLog(directory, codec);
+		ProvenanceEventLog second = new ProvenanceEventLog(directory, codec);
+		first.setSegmentSize(200);
+		second.setSegmentSize(200);
+		for (int i = 0; i < 50; i++) {
+			first.append(iteration("first" + i));
+			second.append(iteration("second" + i));
+		}
+		first.close();
+		second.close();
+
+		Set<String> identifiers = readAll();
+		assertEquals(100, identifiers.size());
+		for (int i = 0; i < 50; i++) {
+			assertTrue(identifiers.contains("first" + i));
+			assertTrue(identifiers.contains("second" + i));
+		}
+	}
+
+	@Test
+	public void testReopenAppendsAfterExisting() throws Exception {
+		ProvenanceEventLog log = new ProvenanceEventLog(directory, codec);
+		log.append(iteration("before"));
+		log.close();
+		log = new ProvenanceEventLog(directory, codec);
+		log.append(iteration("after"));
+		log.close();
+		assertEquals(2, ProvenanceEventLog.segments(directory).size());
+		assertEquals(2, readAll().size());
+	}
+
+	@Test
+	public void testLongErrorMessages() throws Exception {
+		StringBuilder message = new StringBuilder();
+		while (message.length() < 100000) {
+			message.append("Error message longer than writeUTF allows. ");
+		}
+		ProvenanceEventLog log = new ProvenanceEventLog(directory, codec);
+		ErrorProvenanceItem error = new ErrorProvenanceItem();
+		error.setIdentifier("error");
+		error.setMessage(message.toString());
+		error.setErrorType("type");
+		log.append(error);
+		IterationProvenanceItem failed = (IterationProvenanceItem) iteration("failed");
+		ErrorProvenanceItem iterationError = new ErrorProvenanceItem();
+		iterationError.setMessage(message.toString());
+		failed.setErrorItem(iterationError);
+		log.append(failed);
+		log.close();
+
+		List<ProvenanceItem> items = readItems();
+		assertEquals(2, items.size());
+		ErrorProvenanceItem read = (ErrorProvenanceItem) items.get(0);
+		assertEquals(message.toString(), read.getMessage());
+		assertEquals("type", read.getErrorType());
+		assertEquals(message.toString(), ((IterationProvenanceItem) items
+				.get(1)).getErrorItem().getMessage());
+	}
+
+	@Test
+	public void testSyncedOnRunComplete() throws Exception {
+		ProvenanceEventLog log = new ProvenanceEventLog(directory, codec);
+		// left to the background commit nothing would be written in time
+		log.setCommitInterval(60 * 60 * 1000);
+		EventProcessor eventProcessor = new EventProcessor();
+		eventProcessor.setEventLog(log);
+		Provenance provenance = new Provenance(eventProcessor);
+		provenance.setSaveEvents("log");
+
+		provenance.acceptRawProvenanceEvent(
+				SharedVocabulary.ITERATION_EVENT_TYPE, iteration("iteration"));
+		DataflowRunComplete complete = new DataflowRunComplete();
+		complete.setIdentifier("complete");
+		provenance.acceptRawProvenanceEvent(
+				SharedVocabulary.END_WORKFLOW_EVENT_TYPE, complete);
+		// read while the log is still open
+		assertEquals(2, readAll().size());
+
+		eventProcessor.closeEventLog();
+		try {
+			log.append(iteration("closed"));
+			fail("Log not closed");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import net.sf.taverna.t2.provenance.connector.ProvenanceEventQueue.OverflowPolicy;
+import net.sf.taverna.t2.provenance.item.DataflowRunComplete;
+import net.sf.taverna.t2.provenance.item.ErrorProvenanceItem;
+import net.sf.taverna.t2.provenance.item.IterationProvenanceItem;
+import net.sf.taverna.t2.provenance.item.ProvenanceItem;
+import net.sf.taverna.t2.reference.ReferenceService;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProvenanceEventQueueTest {
+
+	private final List<String> processed = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private final List<String> errorMessages = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private final CountDownLatch taken = new CountDownLatch(1);
+
+	private final CountDownLatch gate = new CountDownLatch(1);
+
+	private ProvenanceEventQueue queue;
+
+	@Before
+	public void createQueue() {
+		queue = new ProvenanceEventQueue(
+				new ProvenanceEventQueue.BatchProcessor() {
+					public void processBatch(List<ProvenanceItem> items) {
+						taken.countDown();
+						try {
+							gate.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						for (ProvenanceItem item : items) {
+							processed.add(item.getIdentifier());
+							ErrorProvenanceItem error = ((IterationProvenanceItem) item)
+									.getErrorItem();
+							if (error != null) {
+								errorMessages.add(error.getMessage());
+							}
+						}
+					}
+				});
+		queue.setCapacity(2);
+		queue.setBatchSize(1);
+		queue.setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK);
+		// Only decoding needs the reference service, which iterations without
+		// data don't use
+		ReferenceService referenceService = (ReferenceService) Proxy
+				.newProxyInstance(getClass().getClassLoader(),
+						new Class[] { ReferenceService.class },
+						new InvocationHandler() {
+							public Object invoke(Object proxy, Method method,
+									Object[] args) {
+								throw new UnsupportedOperationException(method
+										.getName());
+							}
+						});
+		queue.setCodec(new ProvenanceItemCodec(referenceService));
+		queue.setSpillDirectory(new File(System.getProperty("java.io.tmpdir")));
+	}
+
+	private static ProvenanceItem iteration(int i) {
+		IterationProvenanceItem iteration = new IterationProvenanceItem();
+		iteration.setIdentifier("iteration" + i);
+		iteration.setIteration(new int[] { i });
+		return iteration;
+	}
+
+	private Thread put(final ProvenanceItem item) throws InterruptedException {
+		Thread thread = new Thread() {
+			public void run() {
+				queue.put(item, "run1");
+			}
+		};
+		thread.start();
+		while (thread.isAlive()
+				&& thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		return thread;
+	}
+
+	@Test
+	public void testIterationsSpilledInOrder() throws Exception {
+		for (int i = 0; i < 8; i++) {
+			queue.put(iteration(i), "run1");
+			if (i == 0) {
+				taken.await();
+			}
+		}
+		// One taken, two held in memory, the rest spilled
+		assertEquals(5, queue.getSpilledCount());
+		gate.countDown();
+		queue.awaitRun("run1");
+		assertEquals(8, processed.size());
+		for (int i = 0; i < 8; i++) {
+			assertEquals("iteration" + i, processed.get(i));
+		}
+	}
+
+	@Test
+	public void testLongErrorMessageSpilled() throws Exception {
+		StringBuilder message = new StringBuilder();
+		while (message.length() < 100000) {
+			message.append("Error message longer than writeUTF allows. ");
+		}
+		for (int i = 0; i < 3; i++) {
+			queue.put(iteration(i), "run1");
+			if (i == 0) {
+				taken.await();
+			}
+		}
+		IterationProvenanceItem failed = (IterationProvenanceItem) iteration(3);
+		ErrorProvenanceItem error = new ErrorProvenanceItem();
+		error.setMessage(message.toString());
+		failed.setErrorItem(error);
+		// An item that can't be spilled would wait for the spill to drain
+		assertFalse(put(failed).isAlive());
+		for (int i = 4; i < 6; i++) {
+			queue.put(iteration(i), "run1");
+		}
+		assertEquals(3, queue.getSpilledCount());
+		gate.countDown();
+		queue.awaitRun("run1");
+		assertEquals(6, processed.size());
+		for (int i = 0; i < 6; i++) {
+			assertEquals("iteration" + i, processed.get(i));
+		}
+		assertEquals(Collections.singletonList(message.toString()),
+				errorMessages);
+	}
+
+	@Test
+	public void testSpillNotAppendedWhileRunCompleteWaits() throws Exception {
+		for (int i = 0; i < 7; i++) {
+			queue.put(iteration(i), "run1");
+			if (i == 0) {
+				taken.await();
+			}
+		}
+		assertEquals(4, queue.getSpilledCount());
+		DataflowRunComplete complete = new DataflowRunComplete();
+		complete.setIdentifier("complete");
+		Thread completing = put(complete);
+		assertTrue(completing.isAlive());
+		// Further iterations queue up behind the waiting event rather than
+		// growing the spill file ahead of it
+		Thread iterating = put(iteration(7));
+		assertTrue(iterating.isAlive());
+		assertEquals(4, queue.getSpilledCount());
+
+		gate.countDown();
+		completing.join();
+		iterating.join();
+		queue.flush();
+		assertEquals(9, processed.size());
+		for (int i = 0; i < 7; i++) {
+			assertEquals("iteration" + i, processed.get(i));
+		}
+		assertTrue(processed.subList(7, 9).contains("complete"));
+		assertTrue(processed.subList(7, 9).contains("iteration7"));
+	}
+
+}
@@ -0,0 +1,510 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.sf.taverna.t2.provenance.lineageservice.utils.DataLink;
+import net.sf.taverna.t2.provenance.lineageservice.utils.Port;
+import net.sf.taverna.t2.provenance.lineageservice.utils.ProvenanceProcessor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link LineageGraph} kept up to date by the
+ * {@link ProvenanceWriter} answers as the {@link ProvenanceQuery} would, and
+ * that {@link ProvenanceAnalysis#searchDataflowGraph} generates the same
+ * lineage queries with and without it.
+ * <p>
+ * The workflow is
+ * 
+ * <pre>
+ * top:i -> A:x, A:y -> B:y, B:z -> top:o
+ * </pre>
+ * 
+ * where B also has the unlinked input w, and A iterates over top:i.
+ */
+public class LineageGraphTest {
+
+	private static final String WORKFLOW = "wf";
+	private static final String RUN = "run";
+
+	private FakeDatabase db;
+	private LineageGraph graph;
+
+	@Before
+	public void createGraph() {
+		db = new FakeDatabase();
+		graph = new LineageGraph(db.query);
+		db.writer.setLineageGraph(graph);
+	}
+
+	@Test
+	public void testGraphFollowsWrites() throws SQLException {
+		addProcessors();
+		db.writer.addPorts(Arrays.asList(port("top", "i", true), port("top", "o", false),
+				port("A", "x", true), port("A", "y", false)), WORKFLOW);
+		db.writer.addDataLink(port("top", "i", true), port("A", "x", true), WORKFLOW);
+		// loads the workflow into the graph
+		assertConsistent();
+
+		// A:x again is refused by the database, and must not be doubled in the graph
+		db.writer.addPorts(Arrays.asList(port("A", "x", true), port("B", "y", true),
+				port("B", "w", true), port("B", "z", false)), WORKFLOW);
+		db.writer.addDataLink(port("A", "y", false), port("B", "y", true), WORKFLOW);
+		db.writer.addDataLink(port("B", "z", false), port("top", "o", false), WORKFLOW);
+		assertConsistent();
+
+		resolveDepths();
+		assertConsistent();
+		List<String> names = new ArrayList<String>();
+		for (Port port : graph.getInputPorts(WORKFLOW, "B")) {
+			names.add(port.getPortName());
+		}
+		assertEquals(Arrays.asList("w", "y"), names);
+	}
+
+	@Test
+	public void testPortNotLoaded() throws SQLException {
+		addWorkflow();
+		Port port = graph.getPort(id("B", "y"));
+		assertEquals(describe(db.port(id("B", "y"))), describe(port));
+
+		// the caller's changes stay with the caller
+		port.setResolvedDepth(5);
+		assertEquals(describe(db.port(id("B", "y"))), describe(graph.getPort(id("B", "y"))));
+		assertConsistent();
+	}
+
+	@Test
+	public void testSearchSameWithAndWithoutGraph() throws SQLException {
+		addWorkflow();
+
+		ProvenanceAnalysis withoutGraph = new ProvenanceAnalysis();
+		withoutGraph.setPq(db.query);
+		List<String> expected = describe(withoutGraph.searchDataflowGraph(RUN,
+				WORKFLOW, "o", "top", "0", new ArrayList<ProvenanceProcessor>()));
+
+		ProvenanceAnalysis withGraph = new ProvenanceAnalysis();
+		withGraph.setPq(db.query);
+		withGraph.setLineageGraph(graph);
+		List<String> actual = describe(withGraph.searchDataflowGraph(RUN,
+				WORKFLOW, "o", "top", "0", new ArrayList<ProvenanceProcessor>()));
+
+		// B's two inputs, A's input through B:y and the workflow input through A:x
+		assertEquals(4, expected.size());
+		assertTrue(expected.get(0).contains("'B'"));
+		assertTrue(expected.get(1).contains("'B'"));
+		assertTrue(expected.get(2).contains("'A'"));
+		assertTrue(expected.get(3).contains("'top'"));
+		// the path reaches A through B:y, the only input B iterates over
+		assertTrue(expected.get(2).contains("'[0]'"));
+		assertEquals(expected, actual);
+
+		// and again, now the graph is loaded
+		db.queries = 0;
+		withGraph = new ProvenanceAnalysis();
+		withGraph.setPq(db.query);
+		withGraph.setLineageGraph(graph);
+		assertEquals(expected, describe(withGraph.searchDataflowGraph(RUN,
+				WORKFLOW, "o", "top", "0", new ArrayList<ProvenanceProcessor>())));
+		assertEquals(0, db.queries);
+	}
+
+	private void addWorkflow() throws SQLException {
+		addProcessors();
+		db.writer.addPorts(Arrays.asList(port("top", "i", true), port("top", "o", false),
+				port("A", "x", true), port("A", "y", false), port("B", "y", true),
+				port("B", "w", true), port("B", "z", false)), WORKFLOW);
+		db.writer.addDataLink(port("top", "i", true), port("A", "x", true), WORKFLOW);
+		db.writer.addDataLink(port("A", "y", false), port("B", "y", true), WORKFLOW);
+		db.writer.addDataLink(port("B", "z", false), port("top", "o", false), WORKFLOW);
+		resolveDepths();
+	}
+
+	private void addProcessors() throws SQLException {
+		ProvenanceProcessor top = new ProvenanceProcessor();
+		top.setIdentifier("top");
+		top.setProcessorName("top");
+		top.setWorkflowId(WORKFLOW);
+		top.setFirstActivityClassName(ProvenanceProcessor.DATAFLOW_ACTIVITY);
+		top.setTopLevelProcessor(true);
+		db.writer.addProcessor(top);
+		db.writer.addProcessor("A", WORKFLOW, false);
+		db.writer.addProcessor("B", WORKFLOW, false);
+	}
+
+	/**
+	 * A iterates over the list at top:i, so everything downstream of it is a
+	 * level deeper; B's inputs are ordered w before y
+	 */
+	private void resolveDepths() throws SQLException {
+		Port x = db.port(id("A", "x"));
+		x.setResolvedDepth(1);
+		db.writer.updatePort(x);
+
+		List<Port> ports = new ArrayList<Port>();
+		for (String[] name : new String[][] { { "A", "y" }, { "B", "y" }, { "B", "z" } }) {
+			Port port = db.port(id(name[0], name[1]));
+			port.setResolvedDepth(1);
+			ports.add(port);
+		}
+		ports.get(1).setIterationStrategyOrder(1);
+		Port w = db.port(id("B", "w"));
+		w.setResolvedDepth(0);
+		ports.add(w);
+		db.writer.updatePorts(ports);
+	}
+
+	/**
+	 * Every lookup the graph answers gives what the query gives
+	 */
+	private void assertConsistent() throws SQLException {
+		for (Port row : new ArrayList<Port>(db.ports.values())) {
+			String id = row.getIdentifier();
+			assertEquals(id, describe(db.port(id)), describe(graph.getPort(id)));
+
+			Map<String, String> constraints = new HashMap<String, String>();
+			constraints.put("V.processorName", row.getProcessorName());
+			constraints.put("V.portName", row.getPortName());
+			constraints.put("V.workflowId", WORKFLOW);
+			assertEquals(id, describePorts(db.query.getPorts(constraints)),
+					describePorts(graph.getPorts(WORKFLOW, row.getProcessorName(),
+							row.getPortName())));
+
+			constraints = new HashMap<String, String>();
+			constraints.put("W.workflowId", WORKFLOW);
+			constraints.put("processorName", row.getProcessorName());
+			constraints.put("isInputPort", "1");
+			assertEquals(id, describePorts(db.query.getPorts(constraints)),
+					describePorts(graph.getInputPorts(WORKFLOW, row.getProcessorName())));
+
+			constraints = new HashMap<String, String>();
+			constraints.put("destinationPortId", id);
+			assertEquals(id, describeDataLinks(db.query.getDataLinks(constraints)),
+					describeDataLinks(graph.getIncomingDataLinks(id)));
+
+			assertEquals(id, db.query.isDataflow(row.getProcessorName()),
+					graph.isDataflow(row.getProcessorName()));
+		}
+		assertFalse(graph.isDataflow("A"));
+		assertTrue(graph.isDataflow("top"));
+	}
+
+	private static String id(String processorName, String portName) {
+		return processorName + ":" + portName;
+	}
+
+	private static Port port(String processorName, String portName, boolean input) {
+		Port port = new Port();
+		port.setIdentifier(id(processorName, portName));
+		port.setProcessorName(processorName);
+		port.setProcessorId(processorName.equals("top") ? null : processorName);
+		port.setPortName(portName);
+		port.setInputPort(input);
+		port.setDepth(0);
+		return port;
+	}
+
+	private static String describe(Port port) {
+		return port.getIdentifier() + " " + port.getWorkflowId() + " "
+				+ port.getProcessorName() + " " + port.getProcessorId() + " "
+				+ port.getPortName() + " " + port.isInputPort() + " "
+				+ port.getDepth() + " " + port.getResolvedDepth() + " "
+				+ port.getIterationStrategyOrder();
+	}
+
+	private static List<String> describePorts(List<Port> ports) {
+		List<String> result = new ArrayList<String>();
+		for (Port port : ports) {
+			result.add(describe(port));
+		}
+		return result;
+	}
+
+	private static List<String> describeDataLinks(List<DataLink> dataLinks) {
+		List<String> result = new ArrayList<String>();
+		for (DataLink dataLink : dataLinks) {
+			result.add(dataLink.getWorkflowId() + " "
+					+ dataLink.getSourceProcessorName() + ":"
+					+ dataLink.getSourcePortName() + " "
+					+ dataLink.getSourcePortId() + " -> "
+					+ dataLink.getDestinationProcessorName() + ":"
+					+ dataLink.getDestinationPortName() + " "
+					+ dataLink.getDestinationPortId());
+		}
+		return result;
+	}
+
+	private static List<String> describe(List<LineageSQLQuery> queries) {
+		List<String> result = new ArrayList<String>();
+		for (LineageSQLQuery query : queries) {
+			result.add(query.getCollQuery() + "\n" + query.getVbQuery());
+		}
+		return result;
+	}
+
+	/**
+	 * The Port, Datalink and Processor tables, with a query answering from
+	 * them and a writer writing to them as the database would
+	 */
+	private static class FakeDatabase {
+
+		final Map<String, Port> ports = new LinkedHashMap<String, Port>();
+		final List<DataLink> dataLinks = new ArrayList<DataLink>();
+		final List<ProvenanceProcessor> processors = new ArrayList<ProvenanceProcessor>();
+		int queries;
+
+		final ProvenanceQuery query = new ProvenanceQuery() {
+
+			@Override
+			public List<Port> getPorts(Map<String, String> queryConstraints) {
+				queries++;
+				List<Port> result = new ArrayList<Port>();
+				for (Port port : ports.values()) {
+					if (matches(port, queryConstraints)) {
+						result.add(copy(port));
+					}
+				}
+				Collections.sort(result, new Comparator<Port>() {
+					public int compare(Port p1, Port p2) {
+						return p1.getIterationStrategyOrder() - p2.getIterationStrategyOrder();
+					}
+				});
+				return result;
+			}
+
+			@Override
+			public List<DataLink> getDataLinks(Map<String, String> queryConstraints) {
+				queries++;
+				List<DataLink> result = new ArrayList<DataLink>();
+				for (DataLink dataLink : dataLinks) {
+					boolean matches = true;
+					for (Entry<String, String> constraint : queryConstraints.entrySet()) {
+						String value;
+						if (constraint.getKey().equals("destinationPortId")) {
+							value = dataLink.getDestinationPortId();
+						} else if (constraint.getKey().equals("workflowId")) {
+							value = dataLink.getWorkflowId();
+						} else {
+							throw new IllegalArgumentException(constraint.getKey());
+						}
+						matches &= constraint.getValue().equals(value);
+					}
+					if (matches) {
+						result.add(copy(dataLink));
+					}
+				}
+				return result;
+			}
+
+			@Override
+			public boolean isDataflow(String procName) {
+				queries++;
+				for (ProvenanceProcessor processor : processors) {
+					if (processor.getProcessorName().equals(procName)) {
+						return ProvenanceProcessor.DATAFLOW_ACTIVITY.equals(processor
+								.getFirstActivityClassName());
+					}
+				}
+				return false;
+			}
+
+			@Override
+			public Dependencies runLineageQuery(LineageSQLQuery lq,
+					boolean includeDataValue) {
+				return new Dependencies();
+			}
+		};
+
+		final ProvenanceWriter writer = new ProvenanceWriter() {
+
+			@Override
+			protected void insert(String table, String sql,
+					boolean duplicatesExpected, Object... values)
+					throws SQLException {
+				if (table.equals("Port")) {
+					Port port = new Port();
+					port.setPortName((String) values[0]);
+					port.setProcessorName((String) values[1]);
+					port.setInputPort((Boolean) values[2]);
+					port.setDepth((Integer) values[3]);
+					port.setWorkflowId((String) values[4]);
+					port.setIdentifier((String) values[5]);
+					port.setProcessorId((String) values[6]);
+					if (ports.containsKey(port.getIdentifier())) {
+						throw new SQLException("Duplicate port " + port.getIdentifier());
+					}
+					ports.put(port.getIdentifier(), port);
+				} else if (table.equals("Datalink")) {
+					DataLink dataLink = new DataLink();
+					dataLink.setWorkflowId((String) values[0]);
+					dataLink.setSourceProcessorName((String) values[1]);
+					dataLink.setSourcePortName((String) values[2]);
+					dataLink.setDestinationProcessorName((String) values[3]);
+					dataLink.setDestinationPortName((String) values[4]);
+					dataLink.setSourcePortId((String) values[5]);
+					dataLink.setDestinationPortId((String) values[6]);
+					dataLinks.add(dataLink);
+				} else if (table.equals("Processor")) {
+					ProvenanceProcessor processor = new ProvenanceProcessor();
+					processor.setProcessorName((String) values[0]);
+					processor.setFirstActivityClassName((String) values[1]);
+					processor.setWorkflowId((String) values[2]);
+					processors.add(processor);
+				} else {
+					throw new IllegalArgumentException(table);
+				}
+			}
+
+			/**
+			 * A connection only good for the port updates
+			 */
+			@Override
+			protected Connection connect() {
+				return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+						new Class[] { Connection.class }, new InvocationHandler() {
+							public Object invoke(Object proxy, Method method, Object[] args) {
+								if (method.getName().equals("prepareStatement")) {
+									assertTrue((String) args[0], ((String) args[0]).startsWith("UPDATE Port "));
+									return portUpdate();
+								}
+								return null;
+							}
+						});
+			}
+		};
+
+		/**
+		 * The statement UPDATE Port SET isInputPort=?, depth=?,
+		 * resolvedDepth=?, iterationStrategyOrder=? WHERE portId=?
+		 */
+		private PreparedStatement portUpdate() {
+			final Object[] parameters = new Object[5];
+			final List<Object[]> batch = new ArrayList<Object[]>();
+			return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class[] { PreparedStatement.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							String name = method.getName();
+							if (name.equals("setInt") || name.equals("setString")) {
+								parameters[(Integer) args[0] - 1] = args[1];
+							} else if (name.equals("addBatch")) {
+								batch.add(parameters.clone());
+							} else if (name.equals("executeBatch")) {
+								for (Object[] row : batch) {
+									updatePort(row);
+								}
+								return new int[batch.size()];
+							} else if (name.equals("execute")) {
+								updatePort(parameters);
+								return false;
+							}
+							return null;
+						}
+					});
+		}
+
+		private void updatePort(Object[] row) {
+			Port port = ports.get(row[4]);
+			port.setInputPort((Integer) row[0] == 1);
+			port.setDepth((Integer) row[1]);
+			port.setResolvedDepth((Integer) row[2]);
+			port.setIterationStrategyOrder((Integer) row[3]);
+		}
+
+		/**
+		 * A copy of the port row, as the database would hand out
+		 */
+		Port port(String portId) {
+			return copy(ports.get(portId));
+		}
+
+		private static boolean matches(Port port, Map<String, String> queryConstraints) {
+			for (Entry<String, String> constraint : queryConstraints.entrySet()) {
+				String column = constraint.getKey().replaceFirst("^[VW]\\.", "");
+				String value;
+				if (column.equals("processorName")) {
+					value = port.getProcessorName();
+				} else if (column.equals("portName")) {
+					value = port.getPortName();
+				} else if (column.equals("workflowId")) {
+					value = port.getWorkflowId();
+				} else if (column.equals("portId")) {
+					value = port.getIdentifier();
+				} else if (column.equals("isInputPort")) {
+					value = port.isInputPort() ? "1" : "0";
+				} else {
+					throw new IllegalArgumentException(constraint.getKey());
+				}
+				if (!constraint.getValue().equals(value)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static Port copy(Port port) {
+			Port copy = new Port();
+			copy.setIdentifier(port.getIdentifier());
+			copy.setWorkflowId(port.getWorkflowId());
+			copy.setProcessorName(port.getProcessorName());
+			copy.setProcessorId(port.getProcessorId());
+			copy.setPortName(port.getPortName());
+			copy.setInputPort(port.isInputPort());
+			copy.setDepth(port.getDepth());
+			copy.setResolvedDepth(port.getResolvedDepth());
+			copy.setIterationStrategyOrder(port.getIterationStrategyOrder());
+			return copy;
+		}
+
+		private static DataLink copy(DataLink dataLink) {
+			DataLink copy = new DataLink();
+			copy.setWorkflowId(dataLink.getWorkflowId());
+			copy.setSourceProcessorName(dataLink.getSourceProcessorName());
+			copy.setSourcePortName(dataLink.getSourcePortName());
+			copy.setSourcePortId(dataLink.getSourcePortId());
+			copy.setDestinationProcessorName(dataLink.getDestinationProcessorName());
+			copy.setDestinationPortName(dataLink.getDestinationPortName());
+			copy.setDestinationPortId(dataLink.getDestinationPortId());
+			return copy;
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LineageQueryTimeoutTest {
+
+	private final List<Integer> queryTimeouts = new ArrayList<Integer>();
+
+	/**
+	 * A connection whose statements record their query timeout and find
+	 * nothing
+	 */
+	private Connection connection() {
+		final Statement statement = (Statement) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class[] { Statement.class },
+				new InvocationHandler() {
+					private int queryTimeout = 0;
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("setQueryTimeout")) {
+							queryTimeout = (Integer) args[0];
+							return null;
+						} else if (method.getName().equals("execute")) {
+							queryTimeouts.add(queryTimeout);
+							return false;
+						}
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+		return (Connection) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class[] { Connection.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("createStatement")) {
+							return statement;
+						} else if (method.getName().equals("close")) {
+							return null;
+						}
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+	}
+
+	private ProvenanceQuery query() {
+		ProvenanceQuery pq = new ProvenanceQuery() {
+			@Override
+			public Connection getConnection() {
+				return connection();
+			}
+		};
+		pq.setLineageQueryExecutor(null);
+		return pq;
+	}
+
+	private static LineageSQLQuery lineageQuery() {
+		LineageSQLQuery lq = new LineageSQLQuery();
+		lq.setCollQuery("SELECT collection");
+		lq.setVbQuery("SELECT binding");
+		return lq;
+	}
+
+	@Test
+	public void testStatementsGivenQueryTimeout() throws SQLException {
+		ProvenanceQuery pq = query();
+		pq.setLineageQueryTimeout(1500);
+		pq.runLineageQuery(lineageQuery(), false);
+		assertEquals(Arrays.asList(2, 2), queryTimeouts);
+	}
+
+	@Test
+	public void testNoQueryTimeoutByDefault() throws SQLException {
+		query().runLineageQuery(lineageQuery(), false);
+		assertEquals(Arrays.asList(0, 0), queryTimeouts);
+	}
+
+}
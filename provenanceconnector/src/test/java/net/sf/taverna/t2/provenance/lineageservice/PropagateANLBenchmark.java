@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import net.sf.taverna.t2.provenance.lineageservice.EventProcessor.Pair;
+import net.sf.taverna.t2.provenance.lineageservice.utils.DataLink;
+import net.sf.taverna.t2.provenance.lineageservice.utils.Port;
+
+/**
+ * Times {@link EventProcessor#propagateANL(String)} on pipelines of growing
+ * numbers of processors, against the per-port propagation it replaced which
+ * queried and updated the database for every port.
+ * <p>
+ * The database is simulated in memory, with every round trip costing
+ * {@link #ROUND_TRIP_MICROS}, so the figures show how the number of round
+ * trips and the time grow with the size of the workflow rather than the
+ * speed of any particular database. Run with
+ * <code>java ... PropagateANLBenchmark [processor counts...]</code>.
+ */
+public class PropagateANLBenchmark {
+
+	static final long ROUND_TRIP_MICROS = 200;
+
+	private static final String RUN = "run";
+	private static final String WORKFLOW = "wf";
+	private static final String TOP = "top";
+
+	public static void main(String[] args) throws SQLException {
+		int[] sizes = { 10, 50, 100, 200, 500, 1000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		// warm up
+		run(20, false);
+		run(20, true);
+
+		System.out.println("processors  per-port ms  round trips  set-based ms  round trips");
+		for (int size : sizes) {
+			long[] perPort = run(size, false);
+			long[] setBased = run(size, true);
+			System.out.println(String.format("%10d  %11d  %11d  %12d  %11d",
+					size, perPort[0], perPort[1], setBased[0], setBased[1]));
+		}
+	}
+
+	/**
+	 * @return the time taken in ms and the number of round trips
+	 */
+	private static long[] run(int processors, boolean setBased) throws SQLException {
+		SimulatedDatabase db = new SimulatedDatabase(processors);
+		EventProcessor ep = new EventProcessor();
+		ep.setPq(db.query);
+		ep.setPw(db.writer);
+		long started = System.nanoTime();
+		if (setBased) {
+			ep.propagateANL(RUN);
+		} else {
+			propagatePerPort(ep, RUN);
+		}
+		long elapsed = (System.nanoTime() - started) / 1000000;
+		db.check();
+		return new long[] { elapsed, db.roundTrips };
+	}
+
+	/**
+	 * The propagation as it was, one query per processor and one update per
+	 * port, kept as the baseline
+	 */
+	private static void propagatePerPort(EventProcessor ep, String workflowRunId)
+			throws SQLException {
+		ProvenanceQuery pq = ep.getPq();
+		ProvenanceWriter pw = ep.getPw();
+		List<Pair> sorted = ep.toposort(pq.getTopLevelDataflowName(workflowRunId), workflowRunId);
+		for (Pair pnameInContext : sorted) {
+			String pname = pnameInContext.getV1();
+			String workflowId = pnameInContext.getV2();
+			int totalANL = 0;
+			for (Port iv : pq.getInputPorts(pname, workflowId)) {
+				if (!iv.isResolvedDepthSet()) {
+					iv.setResolvedDepth(iv.getDepth());
+					pw.updatePort(iv);
+				}
+				totalANL += Math.max(iv.getResolvedDepth() - iv.getDepth(), 0);
+			}
+			for (Port ov : pq.getOutputPorts(pname, workflowId)) {
+				ov.setResolvedDepth(ov.getDepth() + totalANL);
+				pw.updatePort(ov);
+				for (Port v : pq.getSuccPorts(pname, ov.getPortName(), workflowId)) {
+					v.setResolvedDepth(ov.getResolvedDepth());
+					pw.updatePort(v);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A pipeline P0 -> P1 -> ... between the workflow's input and output,
+	 * where P0 iterates over a list input so every downstream port resolves
+	 * one level deeper than declared
+	 */
+	private static class SimulatedDatabase {
+
+		final Map<String, Port> ports = new HashMap<String, Port>();
+		final List<DataLink> dataLinks = new ArrayList<DataLink>();
+		final int processors;
+		long roundTrips;
+
+		final ProvenanceQuery query = new ProvenanceQuery() {
+
+			public String getTopLevelDataflowName(String workflowRunId) {
+				roundTrip();
+				return TOP;
+			}
+
+			public String getWorkflowIdForExternalName(String externalName) {
+				roundTrip();
+				return WORKFLOW;
+			}
+
+			public Map<String, Integer> getPredecessorsCount(String workflowRunId) {
+				roundTrip();
+				Map<String, Integer> counts = new HashMap<String, Integer>();
+				for (int i = 0; i < processors; i++) {
+					counts.put("P" + i, i == 0 ? 0 : 1);
+				}
+				return counts;
+			}
+
+			public List<String> getContainedProcessors(String workflowName) {
+				roundTrip();
+				List<String> names = new ArrayList<String>();
+				for (int i = 0; i < processors; i++) {
+					names.add("P" + i);
+				}
+				return names;
+			}
+
+			public List<String> getSuccProcessors(String pName, String workflowId,
+					String workflowRunId) {
+				roundTrip();
+				List<String> successors = new ArrayList<String>();
+				int i = Integer.parseInt(pName.substring(1));
+				if (i + 1 < processors) {
+					successors.add("P" + (i + 1));
+				}
+				return successors;
+			}
+
+			public boolean isDataflow(String procName) {
+				roundTrip();
+				return false;
+			}
+
+			public List<Port> getInputPorts(String pname, String wfID) {
+				return portsOf(pname, true);
+			}
+
+			public List<Port> getOutputPorts(String pname, String wfID) {
+				return portsOf(pname, false);
+			}
+
+			public List<Port> getSuccPorts(String processorName, String portName,
+					String workflowId) {
+				roundTrip();
+				List<Port> result = new ArrayList<Port>();
+				for (DataLink dataLink : dataLinks) {
+					if (dataLink.getSourceProcessorName().equals(processorName)
+							&& dataLink.getSourcePortName().equals(portName)) {
+						result.add(copy(ports.get(dataLink.getDestinationPortId())));
+					}
+				}
+				return result;
+			}
+
+			public List<Port> getPortsForWorkflows(Collection<String> workflowIds) {
+				roundTrip();
+				List<Port> result = new ArrayList<Port>();
+				for (Port port : ports.values()) {
+					result.add(copy(port));
+				}
+				return result;
+			}
+
+			public List<DataLink> getDataLinksForWorkflows(Collection<String> workflowIds) {
+				roundTrip();
+				return new ArrayList<DataLink>(dataLinks);
+			}
+		};
+
+		final ProvenanceWriter writer = new ProvenanceWriter() {
+
+			public void updatePort(Port v) {
+				roundTrip();
+				store(v);
+			}
+
+			public void updatePorts(List<Port> ports) {
+				// one round trip, plus the cost of sending the rows
+				roundTrip();
+				LockSupport.parkNanos(ports.size() * 1000L);
+				for (Port v : ports) {
+					store(v);
+				}
+			}
+		};
+
+		SimulatedDatabase(int processors) {
+			this.processors = processors;
+			addPort(TOP, "in", true, 1, false);
+			addPort(TOP, "out", false, 1, false);
+			String previous = TOP + ":in";
+			for (int i = 0; i < processors; i++) {
+				addPort("P" + i, "in", true, 0, true);
+				addPort("P" + i, "out", false, 0, true);
+				addLink(previous, "P" + i + ":in");
+				previous = "P" + i + ":out";
+			}
+			addLink(previous, TOP + ":out");
+			// the workflow input is a list, consumed one item at a time by P0
+			ports.get("P0:in").setResolvedDepth(1);
+		}
+
+		private List<Port> portsOf(String processorName, boolean inputs) {
+			roundTrip();
+			List<Port> result = new ArrayList<Port>();
+			for (Port port : ports.values()) {
+				if (port.getProcessorName().equals(processorName)
+						&& port.isInputPort() == inputs) {
+					result.add(copy(port));
+				}
+			}
+			return result;
+		}
+
+		private void addPort(String processor, String name, boolean input,
+				int depth, boolean isProcessor) {
+			Port port = new Port();
+			port.setIdentifier(processor + ":" + name);
+			port.setWorkflowId(WORKFLOW);
+			port.setProcessorName(processor);
+			port.setProcessorId(isProcessor ? processor : null);
+			port.setPortName(name);
+			port.setInputPort(input);
+			port.setDepth(depth);
+			ports.put(port.getIdentifier(), port);
+		}
+
+		private void addLink(String source, String destination) {
+			Port from = ports.get(source);
+			Port to = ports.get(destination);
+			DataLink dataLink = new DataLink();
+			dataLink.setWorkflowId(WORKFLOW);
+			dataLink.setSourceProcessorName(from.getProcessorName());
+			dataLink.setSourcePortName(from.getPortName());
+			dataLink.setSourcePortId(from.getIdentifier());
+			dataLink.setDestinationProcessorName(to.getProcessorName());
+			dataLink.setDestinationPortName(to.getPortName());
+			dataLink.setDestinationPortId(to.getIdentifier());
+			dataLinks.add(dataLink);
+		}
+
+		private void store(Port v) {
+			ports.get(v.getIdentifier()).setResolvedDepth(v.getResolvedDepth());
+		}
+
+		private void roundTrip() {
+			roundTrips++;
+			LockSupport.parkNanos(ROUND_TRIP_MICROS * 1000);
+		}
+
+		/**
+		 * Both propagations must leave every processor port one level deeper
+		 * than declared
+		 */
+		void check() {
+			for (int i = 0; i < processors; i++) {
+				for (String name : new String[] { "in", "out" }) {
+					Port port = ports.get("P" + i + ":" + name);
+					if (port.getResolvedDepth() == null || port.getResolvedDepth() != 1) {
+						throw new IllegalStateException("Wrong depth for " + port);
+					}
+				}
+			}
+		}
+
+		private static Port copy(Port port) {
+			Port copy = new Port();
+			copy.setIdentifier(port.getIdentifier());
+			copy.setWorkflowId(port.getWorkflowId());
+			copy.setProcessorName(port.getProcessorName());
+			copy.setProcessorId(port.getProcessorId());
+			copy.setPortName(port.getPortName());
+			copy.setInputPort(port.isInputPort());
+			copy.setDepth(port.getDepth());
+			copy.setResolvedDepth(port.getResolvedDepth());
+			return copy;
+		}
+	}
+
+}
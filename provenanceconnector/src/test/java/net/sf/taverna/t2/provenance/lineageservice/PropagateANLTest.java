@@ -0,0 +1,396 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.taverna.t2.provenance.lineageservice.EventProcessor.Pair;
+import net.sf.taverna.t2.provenance.lineageservice.utils.DataLink;
+import net.sf.taverna.t2.provenance.lineageservice.utils.Port;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link EventProcessor#propagateANL(String)}, which works the
+ * depths out in memory from a {@link PortGraph}, resolves the same depths as
+ * the per-port propagation it replaced, which queried the database for every
+ * port.
+ * <p>
+ * The workflow "top" runs P0 over a list, passing each item into the nested
+ * workflow "Nested" (Q0 -> Q1), whose output goes to both P1 and P2:
+ * 
+ * <pre>
+ * top:in -> P0 -> Nested:in -> Q0 -> Q1 -> Nested:out -> P1 -> top:out
+ *                                                     -> P2
+ * </pre>
+ */
+public class PropagateANLTest {
+
+	private static final String RUN = "run";
+	private static final String TOP_WORKFLOW = "wfTop";
+	private static final String NESTED_WORKFLOW = "wfNested";
+
+	@Test
+	public void testSameDepthsAsPerPort() throws SQLException {
+		FakeDatabase perPort = new FakeDatabase();
+		propagatePerPort(perPort.eventProcessor());
+		FakeDatabase setBased = new FakeDatabase();
+		setBased.eventProcessor().propagateANL(RUN);
+
+		assertEquals(perPort.ports.keySet(), setBased.ports.keySet());
+		for (String identifier : perPort.ports.keySet()) {
+			assertEquals(identifier,
+					perPort.ports.get(identifier).getResolvedDepth(),
+					setBased.ports.get(identifier).getResolvedDepth());
+		}
+	}
+
+	@Test
+	public void testDepthsThroughNestedWorkflow() throws SQLException {
+		FakeDatabase db = new FakeDatabase();
+		db.eventProcessor().propagateANL(RUN);
+
+		assertResolved(db, 1, TOP_WORKFLOW, "P0", "in");
+		assertResolved(db, 1, TOP_WORKFLOW, "P0", "out");
+		// into the nested workflow through its input port
+		assertResolved(db, 1, NESTED_WORKFLOW, "Q0", "in");
+		assertResolved(db, 2, NESTED_WORKFLOW, "Q0", "out");
+		assertResolved(db, 2, NESTED_WORKFLOW, "Q1", "in");
+		assertResolved(db, 0, NESTED_WORKFLOW, "Q1", "in2");
+		assertResolved(db, 1, NESTED_WORKFLOW, "Q1", "out");
+		// and out again through its output port, found in any workflow
+		assertResolved(db, 1, TOP_WORKFLOW, "P1", "in");
+		assertResolved(db, 1, TOP_WORKFLOW, "P1", "out");
+		assertResolved(db, 1, TOP_WORKFLOW, "P2", "in");
+		assertResolved(db, 1, TOP_WORKFLOW, "P2", "out");
+		// the nested workflow's own ports are passed through, not set
+		assertNull(db.port(TOP_WORKFLOW, "Nested", "in").getResolvedDepth());
+		assertNull(db.port(NESTED_WORKFLOW, "Nested", "out").getResolvedDepth());
+	}
+
+	@Test
+	public void testUnlinkedInputsResolveToDeclaredDepth() throws SQLException {
+		FakeDatabase perPort = new FakeDatabase();
+		perPort.port(TOP_WORKFLOW, "P0", "in").setResolvedDepth(null);
+		propagatePerPort(perPort.eventProcessor());
+		FakeDatabase setBased = new FakeDatabase();
+		setBased.port(TOP_WORKFLOW, "P0", "in").setResolvedDepth(null);
+		setBased.eventProcessor().propagateANL(RUN);
+
+		for (String identifier : perPort.ports.keySet()) {
+			assertEquals(identifier,
+					perPort.ports.get(identifier).getResolvedDepth(),
+					setBased.ports.get(identifier).getResolvedDepth());
+		}
+		assertResolved(setBased, 0, TOP_WORKFLOW, "P0", "in");
+		assertResolved(setBased, 1, NESTED_WORKFLOW, "Q0", "out");
+		assertResolved(setBased, 0, TOP_WORKFLOW, "P1", "in");
+	}
+
+	private static void assertResolved(FakeDatabase db, int expected,
+			String workflowId, String processorName, String portName) {
+		Port port = db.port(workflowId, processorName, portName);
+		assertEquals(port.getIdentifier(), Integer.valueOf(expected),
+				port.getResolvedDepth());
+	}
+
+	/**
+	 * The propagation as it was before the {@link PortGraph}, one query per
+	 * processor and per datalink and one update per port
+	 */
+	private static void propagatePerPort(EventProcessor ep) throws SQLException {
+		ProvenanceQuery pq = ep.getPq();
+		ProvenanceWriter pw = ep.getPw();
+		List<Pair> sorted = ep.toposort(pq.getTopLevelDataflowName(RUN), RUN);
+		for (Pair pnameInContext : sorted) {
+			String pname = pnameInContext.getV1();
+			String workflowId = pnameInContext.getV2();
+			int totalANL = 0;
+			for (Port iv : pq.getInputPorts(pname, workflowId)) {
+				if (!iv.isResolvedDepthSet()) {
+					iv.setResolvedDepth(iv.getDepth());
+					pw.updatePort(iv);
+				}
+				totalANL += Math.max(iv.getResolvedDepth() - iv.getDepth(), 0);
+			}
+			for (Port ov : pq.getOutputPorts(pname, workflowId)) {
+				ov.setResolvedDepth(ov.getDepth() + totalANL);
+				pw.updatePort(ov);
+				for (Port v : pq.getSuccPorts(pname, ov.getPortName(), workflowId)) {
+					List<Port> toBeProcessed = new ArrayList<Port>();
+					toBeProcessed.add(v);
+					if (v.getProcessorId() == null && v.isInputPort()) {
+						String tempWorkflowId = pq.getWorkflowIdForExternalName(v.getProcessorName());
+						toBeProcessed.remove(0);
+						toBeProcessed.addAll(pq.getSuccPorts(v.getProcessorName(),
+								v.getPortName(), tempWorkflowId));
+					} else if (v.getProcessorId() == null && !v.isInputPort()) {
+						toBeProcessed.remove(0);
+						toBeProcessed.addAll(pq.getSuccPorts(v.getProcessorName(),
+								v.getPortName(), null));
+					}
+					for (Port v1 : toBeProcessed) {
+						v1.setResolvedDepth(ov.getResolvedDepth());
+						pw.updatePort(v1);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The ports and datalinks of the two workflows, handing out copies of the
+	 * ports the way the database would
+	 */
+	private static class FakeDatabase {
+
+		final Map<String, Port> ports = new LinkedHashMap<String, Port>();
+		final List<DataLink> dataLinks = new ArrayList<DataLink>();
+
+		final ProvenanceQuery query = new ProvenanceQuery() {
+
+			@Override
+			public String getTopLevelDataflowName(String workflowRunId) {
+				return "top";
+			}
+
+			@Override
+			public String getWorkflowIdForExternalName(String externalName) {
+				return externalName.equals("Nested") ? NESTED_WORKFLOW : TOP_WORKFLOW;
+			}
+
+			@Override
+			public Map<String, Integer> getPredecessorsCount(String workflowRunId) {
+				Map<String, Integer> counts = new HashMap<String, Integer>();
+				counts.put("top", 0);
+				counts.put("P0", 0);
+				counts.put("Nested", 1);
+				counts.put("P1", 1);
+				counts.put("P2", 1);
+				counts.put("Q0", 0);
+				counts.put("Q1", 1);
+				return counts;
+			}
+
+			@Override
+			public List<String> getContainedProcessors(String workflowName) {
+				if (workflowName.equals("Nested")) {
+					return new ArrayList<String>(Arrays.asList("Q0", "Q1"));
+				}
+				return new ArrayList<String>(Arrays.asList("P0", "Nested", "P1", "P2"));
+			}
+
+			@Override
+			public List<String> getSuccProcessors(String pName, String workflowId,
+					String workflowRunId) {
+				if (pName.equals("P0")) {
+					return Collections.singletonList("Nested");
+				} else if (pName.equals("Nested")) {
+					return Arrays.asList("P1", "P2");
+				} else if (pName.equals("Q0")) {
+					return Collections.singletonList("Q1");
+				}
+				return Collections.emptyList();
+			}
+
+			@Override
+			public boolean isDataflow(String procName) {
+				return procName.equals("top") || procName.equals("Nested");
+			}
+
+			@Override
+			public List<Port> getInputPorts(String pname, String wfID) {
+				return portsOf(pname, wfID, true);
+			}
+
+			@Override
+			public List<Port> getOutputPorts(String pname, String wfID) {
+				return portsOf(pname, wfID, false);
+			}
+
+			@Override
+			public List<Port> getSuccPorts(String processorName, String portName,
+					String workflowId) {
+				List<Port> result = new ArrayList<Port>();
+				for (DataLink dataLink : dataLinks) {
+					if (dataLink.getSourceProcessorName().equals(processorName)
+							&& dataLink.getSourcePortName().equals(portName)
+							&& (workflowId == null || dataLink.getWorkflowId().equals(workflowId))) {
+						result.add(copy(ports.get(dataLink.getDestinationPortId())));
+					}
+				}
+				return result;
+			}
+
+			@Override
+			public List<Port> getPortsForWorkflows(Collection<String> workflowIds) {
+				List<Port> result = new ArrayList<Port>();
+				for (Port port : ports.values()) {
+					if (workflowIds.contains(port.getWorkflowId())) {
+						result.add(copy(port));
+					}
+				}
+				return result;
+			}
+
+			@Override
+			public List<DataLink> getDataLinksForWorkflows(Collection<String> workflowIds) {
+				List<DataLink> result = new ArrayList<DataLink>();
+				for (DataLink dataLink : dataLinks) {
+					if (workflowIds.contains(dataLink.getWorkflowId())) {
+						result.add(dataLink);
+					}
+				}
+				return result;
+			}
+		};
+
+		final ProvenanceWriter writer = new ProvenanceWriter() {
+
+			@Override
+			public void updatePort(Port v) {
+				store(v);
+			}
+
+			@Override
+			public void updatePorts(List<Port> ports) {
+				for (Port v : ports) {
+					store(v);
+				}
+			}
+		};
+
+		FakeDatabase() {
+			addPort(TOP_WORKFLOW, "top", "in", true, 1, false);
+			addPort(TOP_WORKFLOW, "top", "out", false, 0, false);
+			addPort(TOP_WORKFLOW, "P0", "in", true, 0, true);
+			addPort(TOP_WORKFLOW, "P0", "out", false, 0, true);
+			addPort(TOP_WORKFLOW, "Nested", "in", true, 0, false);
+			addPort(NESTED_WORKFLOW, "Q0", "in", true, 0, true);
+			addPort(NESTED_WORKFLOW, "Q0", "out", false, 1, true);
+			addPort(NESTED_WORKFLOW, "Q1", "in", true, 1, true);
+			addPort(NESTED_WORKFLOW, "Q1", "in2", true, 0, true);
+			addPort(NESTED_WORKFLOW, "Q1", "out", false, 0, true);
+			addPort(NESTED_WORKFLOW, "Nested", "out", false, 0, false);
+			addPort(TOP_WORKFLOW, "P1", "in", true, 0, true);
+			addPort(TOP_WORKFLOW, "P1", "out", false, 0, true);
+			addPort(TOP_WORKFLOW, "P2", "in", true, 0, true);
+			addPort(TOP_WORKFLOW, "P2", "out", false, 0, true);
+
+			addLink(TOP_WORKFLOW, "top:in", TOP_WORKFLOW, "P0:in");
+			addLink(TOP_WORKFLOW, "P0:out", TOP_WORKFLOW, "Nested:in");
+			addLink(TOP_WORKFLOW, "Nested:in", NESTED_WORKFLOW, "Q0:in");
+			addLink(NESTED_WORKFLOW, "Q0:out", NESTED_WORKFLOW, "Q1:in");
+			addLink(NESTED_WORKFLOW, "Q1:out", NESTED_WORKFLOW, "Nested:out");
+			addLink(NESTED_WORKFLOW, "Nested:out", TOP_WORKFLOW, "P1:in");
+			addLink(NESTED_WORKFLOW, "Nested:out", TOP_WORKFLOW, "P2:in");
+			addLink(TOP_WORKFLOW, "P1:out", TOP_WORKFLOW, "top:out");
+
+			// the workflow input is a list, consumed one item at a time by P0
+			port(TOP_WORKFLOW, "P0", "in").setResolvedDepth(1);
+		}
+
+		EventProcessor eventProcessor() {
+			EventProcessor ep = new EventProcessor();
+			ep.setPq(query);
+			ep.setPw(writer);
+			return ep;
+		}
+
+		Port port(String workflowId, String processorName, String portName) {
+			return ports.get(workflowId + ":" + processorName + ":" + portName);
+		}
+
+		private List<Port> portsOf(String processorName, String workflowId,
+				boolean inputs) {
+			List<Port> result = new ArrayList<Port>();
+			for (Port port : ports.values()) {
+				if (port.getProcessorName().equals(processorName)
+						&& port.getWorkflowId().equals(workflowId)
+						&& port.isInputPort() == inputs) {
+					result.add(copy(port));
+				}
+			}
+			return result;
+		}
+
+		private void addPort(String workflowId, String processor, String name,
+				boolean input, int depth, boolean isProcessor) {
+			Port port = new Port();
+			port.setIdentifier(workflowId + ":" + processor + ":" + name);
+			port.setWorkflowId(workflowId);
+			port.setProcessorName(processor);
+			port.setProcessorId(isProcessor ? processor : null);
+			port.setPortName(name);
+			port.setInputPort(input);
+			port.setDepth(depth);
+			ports.put(port.getIdentifier(), port);
+		}
+
+		/**
+		 * A datalink of the given workflow, with the source port in
+		 * sourceWorkflowId
+		 */
+		private void addLink(String sourceWorkflowId, String source,
+				String workflowId, String destination) {
+			Port from = ports.get(sourceWorkflowId + ":" + source);
+			Port to = ports.get(workflowId + ":" + destination);
+			DataLink dataLink = new DataLink();
+			dataLink.setWorkflowId(workflowId);
+			dataLink.setSourceProcessorName(from.getProcessorName());
+			dataLink.setSourcePortName(from.getPortName());
+			dataLink.setSourcePortId(from.getIdentifier());
+			dataLink.setDestinationProcessorName(to.getProcessorName());
+			dataLink.setDestinationPortName(to.getPortName());
+			dataLink.setDestinationPortId(to.getIdentifier());
+			dataLinks.add(dataLink);
+		}
+
+		private void store(Port v) {
+			ports.get(v.getIdentifier()).setResolvedDepth(v.getResolvedDepth());
+		}
+
+		private static Port copy(Port port) {
+			Port copy = new Port();
+			copy.setIdentifier(port.getIdentifier());
+			copy.setWorkflowId(port.getWorkflowId());
+			copy.setProcessorName(port.getProcessorName());
+			copy.setProcessorId(port.getProcessorId());
+			copy.setPortName(port.getPortName());
+			copy.setInputPort(port.isInputPort());
+			copy.setDepth(port.getDepth());
+			copy.setResolvedDepth(port.getResolvedDepth());
+			return copy;
+		}
+	}
+
+}
@@ -0,0 +1,398 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import net.sf.taverna.t2.provenance.connector.JDBCConnector;
+import net.sf.taverna.t2.provenance.connector.ProvenanceConnector.CollectionTable;
+import net.sf.taverna.t2.provenance.connector.ProvenanceConnector.PortBindingTable;
+import net.sf.taverna.t2.provenance.connector.ProvenanceConnector.PortTable;
+import net.sf.taverna.t2.provenance.connector.ProvenanceConnector.ProcessorEnactmentTable;
+import net.sf.taverna.t2.provenance.connector.ProvenanceConnector.ProcessorTable;
+import net.sf.taverna.t2.provenance.lineageservice.utils.PortBinding;
+import net.sf.taverna.t2.provenance.lineageservice.utils.Port;
+import net.sf.taverna.t2.provenance.lineageservice.utils.ProcessorEnactment;
+import net.sf.taverna.t2.provenance.lineageservice.utils.ProvenanceProcessor;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the stream methods of {@link ProvenanceQuery} against the methods
+ * returning lists, on an in-memory Derby database, and that their cursors
+ * give back the connection when exhausted or closed
+ */
+public class ProvenanceQueryStreamTest {
+
+	private static final String WORKFLOW = "wf";
+	private static final String RUN = "run";
+	private static final String OTHER_RUN = "otherRun";
+
+	private static BasicDataSource dataSource;
+	/** connections taken from the data source and not yet closed */
+	private static final AtomicInteger openConnections = new AtomicInteger();
+
+	private ProvenanceWriter writer;
+	private ProvenanceQuery query;
+
+	@BeforeClass
+	public static void createDatabase() throws SQLException {
+		dataSource = JDBCConnector.createPooledDataSource(
+				"org.apache.derby.jdbc.EmbeddedDriver",
+				"jdbc:derby:memory:provenanceQueryStreamTest;create=true",
+				null, null, 0, 5, 10);
+		JDBCConnector.setDataSource(countingDataSource(dataSource));
+		execute(PortTable.getCreateTable());
+		execute(PortBindingTable.getCreateTable());
+		execute(CollectionTable.getCreateTable());
+		execute(ProcessorTable.getCreateTable());
+		execute(ProcessorEnactmentTable.getCreateTable());
+		execute("CREATE TABLE DD (\n" + "PFrom varchar(100),\n"
+				+ "VFrom varchar(100),\n" + "valFrom varchar(100),\n"
+				+ "PTo varchar(100),\n" + "VTo varchar(100),\n"
+				+ "valTo varchar(100),\n" + "iteration varchar(100),\n"
+				+ "workflowRun varchar(100))");
+	}
+
+	@AfterClass
+	public static void closeDatabase() throws SQLException {
+		JDBCConnector.setDataSource(null);
+		dataSource.close();
+	}
+
+	@Before
+	public void fillTables() throws SQLException {
+		for (String table : new String[] { "Port", "PortBinding", "Collection",
+				"Processor", "ProcessorEnactment", "DD" }) {
+			execute("DELETE FROM " + table);
+		}
+		writer = new ProvenanceWriter();
+		query = new ProvenanceQuery() {
+		};
+		writer.setQuery(query);
+		query.setWriter(writer);
+
+		writer.addPorts(Arrays.asList(port("in", true), port("out", false)), WORKFLOW);
+		writer.addPortBinding(portBinding(RUN, "in", "[0]", "v0"));
+		writer.addPortBinding(portBinding(RUN, "in", "[1]", "v1"));
+		writer.addPortBinding(portBinding(RUN, "out", "[0]", "w0"));
+		writer.addPortBinding(portBinding(OTHER_RUN, "in", "[0]", "x0"));
+
+		writer.addCollection("P", "c1", null, "[]", "in", RUN);
+		writer.addCollection("P", "c2", "c1", "[0]", "in", RUN);
+		writer.addCollection("P", "c3", null, "[]", "in", OTHER_RUN);
+
+		ProvenanceProcessor processor = new ProvenanceProcessor();
+		processor.setIdentifier("pid");
+		processor.setProcessorName("P");
+		processor.setWorkflowId(WORKFLOW);
+		writer.addProcessor(processor);
+		writer.addProcessorEnactment(enactment("e1", RUN, "[0]"));
+		writer.addProcessorEnactment(enactment("e2", RUN, "[1]"));
+		writer.addProcessorEnactment(enactment("e3", OTHER_RUN, "[0]"));
+
+		for (String valFrom : new String[] { "v0", "v1", "v1" }) {
+			execute("INSERT INTO DD (PFrom,VFrom,valFrom,PTo,VTo,valTo,iteration,workflowRun) "
+					+ "VALUES ('P','in','" + valFrom + "','P','out','w0','[0]','" + RUN + "')");
+		}
+		assertEquals(0, openConnections.get());
+	}
+
+	@Test
+	public void testStreamPortBindings() throws SQLException {
+		Map<String, String> constraints = new HashMap<String, String>();
+		constraints.put("VB.workflowRunId", RUN);
+		List<String> expected = describe(query.getPortBindings(constraints));
+		assertEquals(3, expected.size());
+		assertEquals(expected, describe(query.streamPortBindings(constraints)));
+	}
+
+	@Test
+	public void testStreamNestedListNodes() throws SQLException {
+		Map<String, String> constraints = new HashMap<String, String>();
+		constraints.put("C.workflowRunId", RUN);
+		List<String> expected = describe(query.getNestedListNodes(constraints));
+		assertEquals(2, expected.size());
+		assertEquals(expected, describe(query.streamNestedListNodes(constraints)));
+	}
+
+	@Test
+	public void testStreamAllFromValues() throws SQLException {
+		List<String> expected = describe(query.queryAllFromValues(RUN));
+		assertEquals(2, expected.size());
+		assertEquals(expected, describe(query.streamAllFromValues(RUN)));
+	}
+
+	@Test
+	public void testStreamProcessorEnactments() throws SQLException {
+		List<String> expected = describe(query.getProcessorEnactments(RUN));
+		assertEquals(2, expected.size());
+		assertEquals(expected, describe(query.streamProcessorEnactments(RUN)));
+	}
+
+	@Test
+	public void testStreamCollectionsForRun() throws SQLException {
+		List<String> expected = describe(query.getCollectionsForRun(RUN));
+		assertEquals(2, expected.size());
+		assertEquals(expected, describe(query.streamCollectionsForRun(RUN)));
+	}
+
+	@Test
+	public void testConnectionReleasedWhenExhausted() throws SQLException {
+		for (ProvenanceCursor<?> cursor : cursors(RUN)) {
+			assertEquals(1, openConnections.get());
+			while (cursor.hasNext()) {
+				cursor.next();
+			}
+			assertEquals(0, openConnections.get());
+		}
+		// nothing to read at all
+		for (ProvenanceCursor<?> cursor : cursors("noSuchRun")) {
+			assertEquals(1, openConnections.get());
+			assertFalse(cursor.hasNext());
+			assertEquals(0, openConnections.get());
+		}
+	}
+
+	@Test
+	public void testConnectionReleasedWhenClosed() throws SQLException {
+		for (ProvenanceCursor<?> cursor : cursors(RUN)) {
+			assertTrue(cursor.hasNext());
+			cursor.next();
+			assertEquals(1, openConnections.get());
+			cursor.close();
+			assertEquals(0, openConnections.get());
+			assertFalse(cursor.hasNext());
+			cursor.close();
+			assertEquals(0, openConnections.get());
+		}
+	}
+
+	/**
+	 * Opened one at a time, as the caller iterates
+	 */
+	private Iterable<ProvenanceCursor<?>> cursors(final String run) {
+		return new Iterable<ProvenanceCursor<?>>() {
+			public java.util.Iterator<ProvenanceCursor<?>> iterator() {
+				return new java.util.Iterator<ProvenanceCursor<?>>() {
+					int next = 0;
+
+					public boolean hasNext() {
+						return next < 5;
+					}
+
+					public ProvenanceCursor<?> next() {
+						try {
+							return cursor(next++, run);
+						} catch (SQLException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	private ProvenanceCursor<?> cursor(int index, String run) throws SQLException {
+		switch (index) {
+		case 0:
+			return query.streamPortBindings(Collections.singletonMap("VB.workflowRunId", run));
+		case 1:
+			return query.streamNestedListNodes(Collections.singletonMap("C.workflowRunId", run));
+		case 2:
+			return query.streamAllFromValues(run);
+		case 3:
+			return query.streamProcessorEnactments(run);
+		default:
+			return query.streamCollectionsForRun(run);
+		}
+	}
+
+	private static Port port(String name, boolean input) {
+		Port port = new Port();
+		port.setIdentifier(name);
+		port.setPortName(name);
+		port.setProcessorName("P");
+		port.setProcessorId("pid");
+		port.setInputPort(input);
+		port.setDepth(0);
+		return port;
+	}
+
+	private static PortBinding portBinding(String run, String portName,
+			String iteration, String value) {
+		PortBinding portBinding = new PortBinding();
+		portBinding.setWorkflowId(WORKFLOW);
+		portBinding.setProcessorName("P");
+		portBinding.setWorkflowRunId(run);
+		portBinding.setPortName(portName);
+		portBinding.setValue(value);
+		portBinding.setIteration(iteration);
+		portBinding.setPositionInColl(1);
+		return portBinding;
+	}
+
+	private static ProcessorEnactment enactment(String id, String run,
+			String iteration) {
+		ProcessorEnactment enactment = new ProcessorEnactment();
+		enactment.setProcessEnactmentId(id);
+		enactment.setWorkflowRunId(run);
+		enactment.setProcessorId("pid");
+		enactment.setProcessIdentifier("facade0:" + WORKFLOW + ":P");
+		enactment.setIteration(iteration);
+		enactment.setEnactmentStarted(new Timestamp(1000));
+		enactment.setEnactmentEnded(new Timestamp(2000));
+		return enactment;
+	}
+
+	/**
+	 * The readable properties of each bean, sorted as the queries have no
+	 * order
+	 */
+	private static List<String> describe(Collection<?> beans) {
+		List<String> result = new ArrayList<String>();
+		for (Object bean : beans) {
+			result.add(describe(bean));
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * As {@link #describe(Collection)}, reading the cursor to the end
+	 */
+	private static List<String> describe(ProvenanceCursor<?> cursor) {
+		List<Object> beans = new ArrayList<Object>();
+		while (cursor.hasNext()) {
+			beans.add(cursor.next());
+		}
+		assertEquals(0, openConnections.get());
+		return describe(beans);
+	}
+
+	private static String describe(Object bean) {
+		StringBuilder sb = new StringBuilder(bean.getClass().getSimpleName());
+		try {
+			for (PropertyDescriptor property : Introspector.getBeanInfo(
+					bean.getClass(), Object.class).getPropertyDescriptors()) {
+				if (property.getReadMethod() != null) {
+					sb.append(' ').append(property.getName()).append('=')
+							.append(property.getReadMethod().invoke(bean));
+				}
+			}
+		} catch (IntrospectionException e) {
+			throw new IllegalStateException(e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The data source, counting the connections open
+	 */
+	private static DataSource countingDataSource(final DataSource dataSource) {
+		return (DataSource) Proxy.newProxyInstance(
+				ProvenanceQueryStreamTest.class.getClassLoader(),
+				new Class[] { DataSource.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args)
+							throws Throwable {
+						Object result = invokeOn(dataSource, method, args);
+						if (result instanceof Connection) {
+							openConnections.incrementAndGet();
+							return countingConnection((Connection) result);
+						}
+						return result;
+					}
+				});
+	}
+
+	private static Connection countingConnection(final Connection connection) {
+		return (Connection) Proxy.newProxyInstance(
+				ProvenanceQueryStreamTest.class.getClassLoader(),
+				new Class[] { Connection.class }, new InvocationHandler() {
+					boolean closed = false;
+
+					public Object invoke(Object proxy, Method method, Object[] args)
+							throws Throwable {
+						if (method.getName().equals("close") && !closed) {
+							closed = true;
+							openConnections.decrementAndGet();
+						}
+						return invokeOn(connection, method, args);
+					}
+				});
+	}
+
+	private static Object invokeOn(Object target, Method method, Object[] args)
+			throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static void execute(String sql) throws SQLException {
+		Connection connection = JDBCConnector.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute(sql);
+		} finally {
+			connection.close();
+		}
+	}
+
+}
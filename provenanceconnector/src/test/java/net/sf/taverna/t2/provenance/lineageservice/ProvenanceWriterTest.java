@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.taverna.t2.provenance.connector.JDBCConnector;
+import net.sf.taverna.t2.provenance.connector.ProvenanceConnector.PortTable;
+import net.sf.taverna.t2.provenance.connector.ProvenanceConnector.WorkflowRunTable;
+import net.sf.taverna.t2.provenance.lineageservice.ProvenanceWriter.TableStatistics;
+import net.sf.taverna.t2.provenance.lineageservice.utils.Port;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the batched inserts of {@link ProvenanceWriter} within units of work
+ * against an in-memory Derby database
+ */
+public class ProvenanceWriterTest {
+
+	private static final String WORKFLOW = "wf";
+	private static final String RUN = "run";
+
+	private static BasicDataSource dataSource;
+
+	private ProvenanceWriter writer;
+	private ProvenanceQuery query;
+
+	@BeforeClass
+	public static void createDatabase() throws SQLException {
+		dataSource = JDBCConnector.createPooledDataSource(
+				"org.apache.derby.jdbc.EmbeddedDriver",
+				"jdbc:derby:memory:provenanceWriterTest;create=true", null,
+				null, 0, 5, 10);
+		JDBCConnector.setDataSource(dataSource);
+		execute(PortTable.getCreateTable());
+		execute(WorkflowRunTable.getCreateTable());
+		execute("CREATE TABLE Data (\n"
+				+ "dataReference varchar(100) NOT NULL,\n"
+				+ "wfInstanceID varchar(100) NOT NULL,\n"
+				+ "data blob,\n"
+				+ "PRIMARY KEY (dataReference, wfInstanceID))");
+	}
+
+	@AfterClass
+	public static void closeDatabase() throws SQLException {
+		JDBCConnector.setDataSource(null);
+		dataSource.close();
+	}
+
+	@Before
+	public void clearTables() throws SQLException {
+		execute("DELETE FROM Port");
+		execute("DELETE FROM WorkflowRun");
+		execute("DELETE FROM Data");
+		writer = new ProvenanceWriter();
+		query = new ProvenanceQuery() {
+		};
+		query.setWriter(writer);
+		writer.setQuery(query);
+	}
+
+	@Test
+	public void testNestedUnitsWriteAtOutermostEnd() throws SQLException {
+		writer.beginUnitOfWork();
+		writer.beginUnitOfWork();
+		addData("d1", "d2", "d3");
+		writer.endUnitOfWork();
+		assertEquals(0, count("Data"));
+		assertNull(writer.getStatistics().get("Data"));
+
+		// addPorts runs in a unit of its own, nested in ours
+		writer.addPorts(Arrays.asList(port("p1"), port("p2")), WORKFLOW);
+		assertEquals(0, count("Port"));
+
+		writer.endUnitOfWork();
+		assertEquals(3, count("Data"));
+		assertEquals(2, count("Port"));
+		assertEquals(3, writer.getStatistics().get("Data").getRows());
+		assertEquals(1, writer.getStatistics().get("Data").getExecutions());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testEndWithoutBegin() throws SQLException {
+		writer.endUnitOfWork();
+	}
+
+	@Test
+	public void testFailedBatchReplayedRowByRow() throws SQLException {
+		addData("d2");
+		writer.resetStatistics();
+
+		writer.beginUnitOfWork();
+		// d2 is already there and d4 comes twice
+		addData("d1", "d2", "d3", "d4", "d4", "d5");
+		writer.endUnitOfWork();
+
+		assertEquals(Arrays.asList("d1", "d2", "d3", "d4", "d5"), dataReferences());
+		TableStatistics stats = writer.getStatistics().get("Data");
+		assertEquals(6, stats.getRows());
+		assertEquals(2, stats.getFailedRows());
+	}
+
+	@Test
+	public void testQueryFlushesPendingRows() throws SQLException {
+		writer.addWorkflowRun(WORKFLOW, RUN);
+		writer.beginUnitOfWork();
+		try {
+			writer.addPorts(Arrays.asList(port("p1"), port("p2")), WORKFLOW);
+			assertEquals(0, count("Port"));
+
+			List<Port> ports = query.getPortsForWorkflows(Collections
+					.singleton(WORKFLOW));
+			List<String> names = new ArrayList<String>();
+			for (Port port : ports) {
+				names.add(port.getPortName());
+			}
+			Collections.sort(names);
+			assertEquals(Arrays.asList("p1", "p2"), names);
+			assertEquals(2, count("Port"));
+		} finally {
+			writer.endUnitOfWork();
+		}
+		assertEquals(2, count("Port"));
+	}
+
+	@Test
+	public void testStatistics() throws SQLException {
+		writer.setBatchSize(2);
+		writer.beginUnitOfWork();
+		addData("d1", "d2", "d3", "d4", "d5");
+		// two full batches went as they filled up
+		assertEquals(4, count("Data"));
+		writer.endUnitOfWork();
+
+		TableStatistics stats = writer.getStatistics().get("Data");
+		assertEquals(5, stats.getRows());
+		assertEquals(3, stats.getExecutions());
+		assertEquals(0, stats.getFailedRows());
+
+		// outside a unit of work each row is a round trip of its own
+		addData("d6");
+		assertEquals(6, stats.getRows());
+		assertEquals(4, stats.getExecutions());
+		assertEquals(6, count("Data"));
+
+		writer.resetStatistics();
+		assertNull(writer.getStatistics().get("Data"));
+	}
+
+	private void addData(String... dataReferences) throws SQLException {
+		for (String dataReference : dataReferences) {
+			writer.addData(dataReference, RUN, dataReference.getBytes());
+		}
+	}
+
+	private static Port port(String name) {
+		Port port = new Port();
+		port.setIdentifier(name);
+		port.setPortName(name);
+		port.setProcessorName("P");
+		port.setProcessorId("P");
+		port.setInputPort(true);
+		port.setDepth(0);
+		return port;
+	}
+
+	private static List<String> dataReferences() throws SQLException {
+		List<String> result = new ArrayList<String>();
+		Connection connection = JDBCConnector.getConnection();
+		try {
+			ResultSet rs = connection.createStatement().executeQuery(
+					"SELECT dataReference FROM Data ORDER BY dataReference");
+			while (rs.next()) {
+				result.add(rs.getString(1));
+			}
+		} finally {
+			connection.close();
+		}
+		return result;
+	}
+
+	private static int count(String table) throws SQLException {
+		Connection connection = JDBCConnector.getConnection();
+		try {
+			ResultSet rs = connection.createStatement().executeQuery(
+					"SELECT COUNT(*) FROM " + table);
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static void execute(String sql) throws SQLException {
+		Connection connection = JDBCConnector.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute(sql);
+		} finally {
+			connection.close();
+		}
+	}
+
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a {@link ResultSetCursor} reads the rows as it is advanced and
+ * releases its statement and connection when exhausted or closed
+ */
+public class ResultSetCursorTest {
+
+	private List<String> rows;
+	private String failOnRow;
+	private boolean connectionClosed;
+	private boolean statementClosed;
+	private boolean resultSetClosed;
+
+	@Before
+	public void resetRows() {
+		rows = new ArrayList<String>(Arrays.asList("a", "b", "c"));
+		failOnRow = null;
+		connectionClosed = false;
+		statementClosed = false;
+		resultSetClosed = false;
+	}
+
+	@Test
+	public void testReadsEveryRow() throws SQLException {
+		ResultSetCursor<String> cursor = cursor();
+		List<String> read = new ArrayList<String>();
+		while (cursor.hasNext()) {
+			assertFalse(connectionClosed);
+			read.add(cursor.next());
+		}
+		assertEquals(rows, read);
+		assertReleased();
+	}
+
+	@Test
+	public void testNextWithoutHasNext() throws SQLException {
+		ResultSetCursor<String> cursor = cursor();
+		assertEquals("a", cursor.next());
+		assertEquals("b", cursor.next());
+		assertEquals("c", cursor.next());
+		assertFalse(connectionClosed);
+		try {
+			cursor.next();
+			fail("Read past the end");
+		} catch (NoSuchElementException e) {
+		}
+		assertReleased();
+	}
+
+	@Test
+	public void testEmptyReleasedOnFirstHasNext() throws SQLException {
+		rows.clear();
+		ResultSetCursor<String> cursor = cursor();
+		assertFalse(connectionClosed);
+		assertFalse(cursor.hasNext());
+		assertReleased();
+	}
+
+	@Test
+	public void testClosePartway() throws SQLException {
+		ResultSetCursor<String> cursor = cursor();
+		assertEquals("a", cursor.next());
+		cursor.close();
+		assertReleased();
+		assertFalse(cursor.hasNext());
+		// closing again does nothing
+		connectionClosed = false;
+		cursor.close();
+		assertFalse(connectionClosed);
+	}
+
+	@Test
+	public void testReleasedOnFailure() throws SQLException {
+		failOnRow = "b";
+		ResultSetCursor<String> cursor = cursor();
+		assertEquals("a", cursor.next());
+		try {
+			cursor.next();
+			fail("Read a failing row");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof SQLException);
+		}
+		assertReleased();
+		assertFalse(cursor.hasNext());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testRemove() throws SQLException {
+		ResultSetCursor<String> cursor = cursor();
+		cursor.next();
+		cursor.remove();
+	}
+
+	private void assertReleased() {
+		assertTrue(resultSetClosed);
+		assertTrue(statementClosed);
+		assertTrue(connectionClosed);
+	}
+
+	private ResultSetCursor<String> cursor() throws SQLException {
+		return new ResultSetCursor<String>(connection(), statement()) {
+			protected String read(ResultSet rs) throws SQLException {
+				return rs.getString(1);
+			}
+		};
+	}
+
+	private Connection connection() {
+		return (Connection) proxy(Connection.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("close")) {
+					connectionClosed = true;
+				}
+				return null;
+			}
+		});
+	}
+
+	private PreparedStatement statement() {
+		return (PreparedStatement) proxy(PreparedStatement.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("executeQuery")) {
+					return resultSet();
+				} else if (method.getName().equals("close")) {
+					statementClosed = true;
+				}
+				return null;
+			}
+		});
+	}
+
+	private ResultSet resultSet() {
+		return (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+			int row = -1;
+
+			public Object invoke(Object proxy, Method method, Object[] args)
+					throws SQLException {
+				if (method.getName().equals("next")) {
+					return ++row < rows.size();
+				} else if (method.getName().equals("getString")) {
+					String value = rows.get(row);
+					if (value.equals(failOnRow)) {
+						throw new SQLException("Can't read " + value);
+					}
+					return value;
+				} else if (method.getName().equals("close")) {
+					resultSetClosed = true;
+				}
+				return null;
+			}
+		});
+	}
+
+	private static Object proxy(Class<?> type, InvocationHandler handler) {
+		return Proxy.newProxyInstance(ResultSetCursorTest.class.getClassLoader(),
+				new Class[] { type }, handler);
+	}
+
+}
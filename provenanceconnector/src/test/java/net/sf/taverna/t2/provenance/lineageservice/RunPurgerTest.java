@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.lineageservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class RunPurgerTest {
+
+	/**
+	 * Records the runs it is asked to delete, failing for the run "broken"
+	 */
+	private static class RecordingWriter extends ProvenanceWriter {
+
+		final List<String> deleted = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		CountDownLatch gate = new CountDownLatch(0);
+
+		@Override
+		public Set<String> clearDBDynamic(Collection<String> runIDs)
+				throws SQLException {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (runIDs.contains("broken")) {
+				throw new IllegalStateException("Can't delete " + runIDs);
+			}
+			deleted.addAll(runIDs);
+			return new HashSet<String>();
+		}
+	}
+
+	@Test
+	public void testPurgeContinuesAfterRuntimeException() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		RunPurger purger = new RunPurger(writer);
+		purger.setMaxRunsPerPurge(1);
+		purger.submit("broken", false);
+		purger.submit("run1", false);
+		assertTrue(purger.awaitIdle(5000));
+		assertEquals(0, purger.getPending());
+		assertEquals(Collections.singletonList("run1"), writer.deleted);
+		purger.shutdown();
+	}
+
+	@Test
+	public void testShutdownAbandonsQueued() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		writer.gate = new CountDownLatch(1);
+		RunPurger purger = new RunPurger(writer);
+		purger.setMaxRunsPerPurge(1);
+		purger.submit("run1", false);
+		purger.submit("run2", false);
+		purger.submit("run3", false);
+		purger.shutdown();
+		assertEquals(0, purger.getPending());
+		assertTrue(purger.awaitIdle(0));
+		writer.gate.countDown();
+		Thread.sleep(100);
+		assertEquals(0, purger.getPending());
+		assertTrue(writer.deleted.size() <= 1);
+	}
+
+}
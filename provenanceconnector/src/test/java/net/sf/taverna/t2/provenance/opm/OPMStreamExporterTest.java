@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.provenance.opm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import net.sf.taverna.t2.provenance.lineageservice.ProvenanceCursor;
+import net.sf.taverna.t2.provenance.lineageservice.ProvenanceQuery;
+import net.sf.taverna.t2.provenance.lineageservice.utils.PortBinding;
+import net.sf.taverna.t2.provenance.opm.OPMStreamExporter.Format;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Parses what {@link OPMStreamExporter} writes for a small run in both
+ * formats, which must give the same triples
+ */
+public class OPMStreamExporterTest {
+
+	private static final String RUN = "run";
+	private static final String WORKFLOW = "wf";
+	/** with a character outside the Basic Multilingual Plane */
+	private static final String PROCESSOR = "Gr\u00F6\u00DFe\uD83D\uDE00";
+
+	private static final Pattern TRIPLE = Pattern
+			.compile("<([^>]*)> <([^>]*)> (?:<([^>]*)>|\"((?:[^\"\\\\]|\\\\.)*)\") \\.");
+
+	private List<PortBinding> bindings;
+	private ProvenanceQuery query;
+
+	@Before
+	public void createRun() {
+		bindings = new ArrayList<PortBinding>();
+		bindings.add(binding(PROCESSOR, "in", true, "[0]", "a value \uD83D\uDE00"));
+		bindings.add(binding(PROCESSOR, "out", false, "[0]", "http://example.com/out?a=1&b=2"));
+		bindings.add(binding(PROCESSOR, "in", true, "[1]", "t2:ref//namespace?item"));
+		bindings.add(binding("P2", "in", true, "[1,0]", "http://example.com/item"));
+		bindings.get(3).setCollIDRef("t2:list//namespace?list");
+		// the workflow's own ports are left out
+		bindings.add(binding(WORKFLOW, "in", true, "[]", "http://example.com/in"));
+
+		query = new ProvenanceQuery() {
+			@Override
+			public ProvenanceCursor<PortBinding> streamPortBindings(
+					Map<String, String> constraints) {
+				assertEquals(RUN, constraints.get("VB.workflowRunId"));
+				final Iterator<PortBinding> iterator = bindings.iterator();
+				return new ProvenanceCursor<PortBinding>() {
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					public PortBinding next() {
+						return iterator.next();
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+
+					public void close() {
+					}
+				};
+			}
+
+			@Override
+			public boolean isDataflow(String procName) {
+				return procName.equals(WORKFLOW);
+			}
+		};
+	}
+
+	@Test
+	public void testSameTriplesInBothFormats() throws Exception {
+		Set<String> nTriples = parseNTriples(export(Format.N_TRIPLES));
+		Set<String> rdfXml = parseRdfXml(export(Format.RDF_XML));
+		assertEquals(rdfXml, nTriples);
+
+		// 3 processes, each typed and with its processor and iteration; 4
+		// artifacts, one of them an element of a list; and the 4 bindings
+		assertEquals(3 * 3 + 4 + 1 + 4, nTriples.size());
+
+		String process = "http://ns.taverna.org.uk/2011/run/" + RUN + "/workflow/"
+				+ WORKFLOW + "/processor/" + PROCESSOR + "/iteration/0";
+		assertTrue(nTriples.contains("<" + process + "> <"
+				+ OPMStreamExporter.RDF_NAMESPACE + "type> <"
+				+ OPMStreamExporter.OPMV_NAMESPACE + "Process>"));
+		assertTrue(nTriples.contains("<" + process + "> <"
+				+ OPMManager.OPM_TAVERNA_NAMESPACE + "iteration> \"[0]\""));
+		assertTrue(nTriples.contains("<http://example.com/out?a=1&b=2> <"
+				+ OPMStreamExporter.OPMV_NAMESPACE + "wasGeneratedBy> <" + process + ">"));
+		for (String triple : nTriples) {
+			assertFalse(triple, triple.contains("/processor/" + WORKFLOW + "/"));
+		}
+	}
+
+	@Test
+	public void testSupplementaryCharactersEscapedWhole() throws Exception {
+		String nTriples = new String(export(Format.N_TRIPLES), "US-ASCII");
+		for (char c : nTriples.toCharArray()) {
+			assertTrue(c < 0x80);
+		}
+		assertTrue(nTriples.contains("Gr\\u00F6\\u00DFe\\U0001F600"));
+		assertFalse(nTriples.contains("\\uD83D"));
+		assertFalse(nTriples.contains("\\uDE00"));
+	}
+
+	private byte[] export(Format format) throws SQLException, java.io.IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new OPMStreamExporter(query).export(RUN, out, format);
+		return out.toByteArray();
+	}
+
+	private static Set<String> parseNTriples(byte[] bytes) throws Exception {
+		Set<String> triples = new TreeSet<String>();
+		for (String line : new String(bytes, "US-ASCII").split("\n")) {
+			Matcher matcher = TRIPLE.matcher(line);
+			assertTrue(line, matcher.matches());
+			String object = matcher.group(3) != null ? "<" + unescape(matcher.group(3)) + ">"
+					: "\"" + unescape(matcher.group(4)) + "\"";
+			assertTrue(line, triples.add(triple(unescape(matcher.group(1)),
+					unescape(matcher.group(2)), object)));
+		}
+		return triples;
+	}
+
+	private static Set<String> parseRdfXml(byte[] bytes) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		Document document = factory.newDocumentBuilder().parse(
+				new ByteArrayInputStream(bytes));
+		Element root = document.getDocumentElement();
+		assertEquals(OPMStreamExporter.RDF_NAMESPACE, root.getNamespaceURI());
+		assertEquals("RDF", root.getLocalName());
+
+		Set<String> triples = new TreeSet<String>();
+		for (Element description : children(root)) {
+			assertEquals("Description", description.getLocalName());
+			String subject = description.getAttributeNS(
+					OPMStreamExporter.RDF_NAMESPACE, "about");
+			for (Element property : children(description)) {
+				String predicate = property.getNamespaceURI() + property.getLocalName();
+				String object;
+				if (property.hasAttributeNS(OPMStreamExporter.RDF_NAMESPACE, "resource")) {
+					object = "<" + property.getAttributeNS(
+							OPMStreamExporter.RDF_NAMESPACE, "resource") + ">";
+				} else {
+					object = "\"" + property.getTextContent() + "\"";
+				}
+				triples.add(triple(subject, predicate, object));
+			}
+		}
+		return triples;
+	}
+
+	private static List<Element> children(Element parent) {
+		List<Element> children = new ArrayList<Element>();
+		NodeList nodes = parent.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); i++) {
+			if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+				children.add((Element) nodes.item(i));
+			}
+		}
+		return children;
+	}
+
+	private static String triple(String subject, String predicate, String object) {
+		return "<" + subject + "> <" + predicate + "> " + object;
+	}
+
+	/**
+	 * Undo the escapes of N-Triples
+	 */
+	private static String unescape(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			char escaped = s.charAt(++i);
+			switch (escaped) {
+			case 'u':
+				char unescaped = (char) Integer.parseInt(s.substring(i + 1, i + 5), 16);
+				// a surrogate escaped on its own is not a character
+				assertFalse(Character.isHighSurrogate(unescaped)
+						|| Character.isLowSurrogate(unescaped));
+				sb.append(unescaped);
+				i += 4;
+				break;
+			case 'U':
+				int codePoint = Integer.parseInt(s.substring(i + 1, i + 9), 16);
+				// only characters beyond the Basic Multilingual Plane need eight digits
+				assertTrue(codePoint > 0xFFFF);
+				sb.appendCodePoint(codePoint);
+				i += 8;
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			default:
+				sb.append(escaped);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static PortBinding binding(String processorName, String portName,
+			boolean input, String iteration, String value) {
+		PortBinding binding = new PortBinding();
+		binding.setWorkflowRunId(RUN);
+		binding.setWorkflowId(WORKFLOW);
+		binding.setProcessorName(processorName);
+		binding.setPortName(portName);
+		binding.setIsInputPort(input);
+		binding.setIteration(iteration);
+		binding.setValue(value);
+		return binding;
+	}
+
+}
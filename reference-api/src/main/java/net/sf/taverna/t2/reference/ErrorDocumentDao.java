@@ -20,6 +20,8 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference;
 
+import java.util.Collection;
+
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -42,6 +44,20 @@ public interface ErrorDocumentDao {
 	@Transactional(propagation = Propagation.REQUIRED, readOnly = false)
 	public void store(ErrorDocument errorDoc) throws DaoException;
 
+	/**
+	 * Store a number of named ErrorDocuments in a single operation,
+	 * equivalent to calling {@link #store(ErrorDocument)} on each in turn.
+	 * 
+	 * @param errorDocs
+	 *            error documents to store
+	 * @throws DaoException
+	 *             if any exception is thrown when connecting to the underlying
+	 *             store or when storing any of the error documents
+	 */
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = false)
+	public void storeAll(Collection<ErrorDocument> errorDocs)
+			throws DaoException;
+
 	/**
 	 * Retrieves a named and populated ErrorDocument
 	 * 
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference;
+
+/**
+ * A {@link ReferenceServiceCacheProvider} which can drop entries when the
+ * corresponding items are deleted from the backing store. The cache aspect
+ * calls these methods after a delete on a data access object so the cache
+ * never returns an item which no longer exists.
+ */
+public interface InvalidatableCacheProvider extends
+		ReferenceServiceCacheProvider {
+
+	/**
+	 * Called after an Identified has been deleted from the backing store
+	 * 
+	 * @param id
+	 *            the T2Reference of the deleted item
+	 */
+	void remove(T2Reference id);
+
+	/**
+	 * Called after all items belonging to a workflow run have been deleted
+	 * from the backing store, that is all items with a T2Reference namespace
+	 * equal to the workflow run identifier
+	 * 
+	 * @param workflowRunId
+	 *            the identifier of the deleted workflow run
+	 */
+	void removeWorkflowRun(String workflowRunId);
+
+}
@@ -20,6 +20,8 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference;
 
+import java.util.Collection;
+
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -43,6 +45,20 @@ public interface ListDao {
 	@Transactional(propagation = Propagation.REQUIRED, readOnly = false)
 	public void store(IdentifiedList<T2Reference> theList) throws DaoException;
 
+	/**
+	 * Store a number of named and populated lists in a single operation,
+	 * equivalent to calling {@link #store(IdentifiedList)} on each in turn.
+	 * 
+	 * @param lists
+	 *            lists to store
+	 * @throws DaoException
+	 *             if any exception is thrown when connecting to the underlying
+	 *             store or when storing any of the lists
+	 */
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = false)
+	public void storeAll(Collection<IdentifiedList<T2Reference>> lists)
+			throws DaoException;
+
 	/**
 	 * Retrieves a named and populated IdentifiedList of T2Reference from the
 	 * database by T2Reference
@@ -66,6 +66,27 @@ public interface ListService {
 	public IdentifiedList<T2Reference> registerList(List<T2Reference> items, ReferenceContext context)
 			throws ListServiceException;
 
+	/**
+	 * Register a number of new lists of T2References in a single operation.
+	 * Each list is checked and named exactly as by
+	 * {@link #registerList(List, ReferenceContext)}, but identifiers are
+	 * allocated together and all the lists are stored in one call to the
+	 * backing store. If any list can't be registered none of them are.
+	 * 
+	 * @param lists
+	 *            the lists of T2Reference instances to store, none may be
+	 *            empty
+	 * @return the new IdentifiedLists, in the same order as the lists they
+	 *         were created from
+	 * @throws ListServiceException
+	 *             if there is a problem either with any of the specified lists
+	 *             or with the storage subsystem.
+	 */
+	@Transactional(propagation=Propagation.REQUIRED, readOnly=false)
+	public List<IdentifiedList<T2Reference>> registerLists(
+			List<List<T2Reference>> lists, ReferenceContext context)
+			throws ListServiceException;
+
 	/**
 	 * Register a new empty list with the specified depth. This is needed
 	 * because in the case of empty lists we can't calculate the depth from the
@@ -139,6 +139,11 @@ public interface ReferenceService {
 	 * <p>
 	 * If the T2Reference contains or is an error this method will not retrieve
 	 * it, and instead throws ReferenceServiceException
+	 * <p>
+	 * Implementations may resolve the leaves of a collection concurrently, in
+	 * which case a {@link RenderingParallelismEntity} in the context limits how
+	 * many are resolved at once. The returned structure is the same either
+	 * way.
 	 * 
 	 * @see StreamToValueConverterSPI
 	 * @see ValueCarryingExternalReference
@@ -226,7 +231,27 @@ public interface ReferenceService {
 	public T2Reference register(Object o, int targetDepth,
 			boolean useConverterSPI, ReferenceContext context)
 			throws ReferenceServiceException;
-	
+
+	/**
+	 * Register a potentially large nested structure in bulk. Accepts exactly
+	 * the same objects as {@link #register(Object, int, boolean, ReferenceContext)}
+	 * and registers the same lists, reference sets and error documents under
+	 * the same references, but collects and checks the whole structure
+	 * before storing any of it, allocates identifiers in blocks and stores
+	 * the new entities in batched data access calls rather than one at a
+	 * time. If any part of the structure can't be registered nothing is
+	 * stored.
+	 *
+	 * @see #register(Object, int, boolean, ReferenceContext)
+	 * @return a T2Reference to the registered object
+	 * @throws ReferenceServiceException
+	 *             under the same conditions as register
+	 */
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = false)
+	public T2Reference registerBulk(Object o, int targetDepth,
+			boolean useConverterSPI, ReferenceContext context)
+			throws ReferenceServiceException;
+
 	/**
 	 * Given a string representation of a T2Reference create a new T2Reference with
 	 * the correct depth etc.
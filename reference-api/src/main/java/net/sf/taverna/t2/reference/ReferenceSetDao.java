@@ -20,6 +20,8 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference;
 
+import java.util.Collection;
+
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -49,6 +51,21 @@ public interface ReferenceSetDao {
 	@Transactional(propagation = Propagation.REQUIRED, readOnly = false)
 	public void store(ReferenceSet rs) throws DaoException;
 
+	/**
+	 * Store a number of new reference sets in a single operation, equivalent
+	 * to calling {@link #store(ReferenceSet)} on each in turn.
+	 * 
+	 * @param referenceSets
+	 *            reference sets, none of which may already exist in the
+	 *            database.
+	 * @throws DaoException
+	 *             if any entry already exists in the database or some other
+	 *             database related problem occurs
+	 */
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = false)
+	public void storeAll(Collection<ReferenceSet> referenceSets)
+			throws DaoException;
+
 	/**
 	 * Update a pre-existing entry in the database
 	 * 
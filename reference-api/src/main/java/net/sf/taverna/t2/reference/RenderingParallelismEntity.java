@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference;
+
+/**
+ * Entity that can be passed through a {@link ReferenceContext} to set how
+ * many leaves of a collection
+ * {@link ReferenceService#renderIdentifier(T2Reference, Class, ReferenceContext)
+ * renderIdentifier} may resolve at the same time for calls made with that
+ * context. A limit of 1 renders sequentially on the calling thread, higher
+ * limits overlap the reads of external references such as files and URLs.
+ * Where no such entity is present the reference service default applies.
+ * 
+ */
+public class RenderingParallelismEntity {
+
+	private int limit;
+
+	public RenderingParallelismEntity(int limit) {
+		this.setLimit(limit);
+	}
+
+	public void setLimit(int limit) {
+		this.limit = Math.max(1, limit);
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+}
@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import net.sf.taverna.t2.reference.ReferenceContext;
@@ -47,17 +48,7 @@ public abstract class AbstractT2ReferenceGenerator implements
 	public synchronized T2Reference nextReferenceSetReference(ReferenceContext context) {
 		
 		T2ReferenceImpl r = new T2ReferenceImpl();
-		if (context == null){
-			r.setNamespacePart(getNamespace()); // this is not good, just use the default namespace
-		} else {
-			List<WorkflowRunIdEntity> workflowRunIdEntities = context.getEntities(WorkflowRunIdEntity.class);
-			if (workflowRunIdEntities == null || workflowRunIdEntities.isEmpty()){ // this is not good, just use the default namespace
-				r.setNamespacePart(getNamespace());
-			} else { // there should be only one wf run id entity
-				String workflowRunId = ((WorkflowRunIdEntity)workflowRunIdEntities.get(0)).getWorkflowRunId();
-				r.setNamespacePart(workflowRunId);
-			}
-		}
+		r.setNamespacePart(getNamespacePart(context));
 		r.setLocalPart(getNextLocalPart());
 		r.setReferenceType(T2ReferenceType.ReferenceSet);
 		r.setDepth(0);
@@ -65,6 +56,42 @@ public abstract class AbstractT2ReferenceGenerator implements
 		return r;
 	}
 
+	/**
+	 * Create a block of new and otherwise unused references in a single step,
+	 * with local parts in the same order as that many calls to the single
+	 * reference methods would give. The namespace is read from the
+	 * ReferenceContext as for those methods; reference type, depth and error
+	 * content are left for the caller to set.
+	 * 
+	 * @param count
+	 *            the number of references to create
+	 * @return the new references, in allocation order
+	 */
+	public List<T2ReferenceImpl> nextReferenceBlock(int count,
+			ReferenceContext context) {
+		String namespacePart = getNamespacePart(context);
+		List<T2ReferenceImpl> block = new ArrayList<T2ReferenceImpl>(count);
+		for (String localPart : getNextLocalParts(count)) {
+			T2ReferenceImpl r = new T2ReferenceImpl();
+			r.setNamespacePart(namespacePart);
+			r.setLocalPart(localPart);
+			block.add(r);
+		}
+		return block;
+	}
+
+	private String getNamespacePart(ReferenceContext context) {
+		if (context == null){
+			return getNamespace(); // this is not good, just use the default namespace
+		}
+		List<WorkflowRunIdEntity> workflowRunIdEntities = context.getEntities(WorkflowRunIdEntity.class);
+		if (workflowRunIdEntities == null || workflowRunIdEntities.isEmpty()){ // this is not good, just use the default namespace
+			return getNamespace();
+		}
+		// there should be only one wf run id entity
+		return ((WorkflowRunIdEntity)workflowRunIdEntities.get(0)).getWorkflowRunId();
+	}
+
 	/**
 	 * Generate a new local part for a new {@link T2Reference reference}. The
 	 * local part should be unique within this
@@ -74,22 +101,29 @@ public abstract class AbstractT2ReferenceGenerator implements
 	 */
 	protected abstract String getNextLocalPart();
 
+	/**
+	 * Generate local parts for a number of new references, in the order that
+	 * repeated calls to {@link #getNextLocalPart()} would. Override if a
+	 * block can be reserved more cheaply than that.
+	 * 
+	 * @param count
+	 *            the number of local parts to generate
+	 * @return the new local parts
+	 */
+	protected synchronized List<String> getNextLocalParts(int count) {
+		List<String> localParts = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			localParts.add(getNextLocalPart());
+		}
+		return localParts;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public T2Reference nextListReference(boolean containsErrors, int listDepth, ReferenceContext context) {
 		T2ReferenceImpl r = new T2ReferenceImpl();
-		if (context == null){
-			r.setNamespacePart(getNamespace()); // this is not good, just use the default namespace
-		} else {
-			List<WorkflowRunIdEntity> workflowRunIdEntities = context.getEntities(WorkflowRunIdEntity.class);
-			if (workflowRunIdEntities == null || workflowRunIdEntities.isEmpty()){ // this is not good, just use the default namespace
-				r.setNamespacePart(getNamespace());
-			} else { // there should be only one wf run id entity
-				String workflowRunId = ((WorkflowRunIdEntity)workflowRunIdEntities.get(0)).getWorkflowRunId();
-				r.setNamespacePart(workflowRunId);
-			}
-		}
+		r.setNamespacePart(getNamespacePart(context));
 		r.setLocalPart(getNextLocalPart());
 		r.setReferenceType(T2ReferenceType.IdentifiedList);
 		r.setDepth(listDepth);
@@ -102,17 +136,7 @@ public abstract class AbstractT2ReferenceGenerator implements
 	 */
 	public T2Reference nextErrorDocumentReference(int depth, ReferenceContext context) {
 		T2ReferenceImpl r = new T2ReferenceImpl();
-		if (context == null){
-			r.setNamespacePart(getNamespace()); // this is not good, just use the default namespace
-		} else {
-			List<WorkflowRunIdEntity> workflowRunIdEntities = context.getEntities(WorkflowRunIdEntity.class);
-			if (workflowRunIdEntities == null || workflowRunIdEntities.isEmpty()){ // this is not good, just use the default namespace
-				r.setNamespacePart(getNamespace());
-			} else { // there should be only one wf run id entity
-				String workflowRunId = ((WorkflowRunIdEntity)workflowRunIdEntities.get(0)).getWorkflowRunId();
-				r.setNamespacePart(workflowRunId);
-			}
-		}
+		r.setNamespacePart(getNamespacePart(context));
 		r.setLocalPart(getNextLocalPart());
 		r.setReferenceType(T2ReferenceType.ErrorDocument);
 		r.setDepth(depth);
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sf.taverna.t2.reference.ErrorDocument;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.Identified;
+import net.sf.taverna.t2.reference.IdentifiedList;
+import net.sf.taverna.t2.reference.InvalidatableCacheProvider;
+import net.sf.taverna.t2.reference.ReferenceSet;
+import net.sf.taverna.t2.reference.StackTraceElementBean;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.ValueCarryingExternalReference;
+
+/**
+ * Thread safe cache provider bounded by the number of entries and by the
+ * estimated memory held by the cached items. When either bound is exceeded
+ * entries are evicted as chosen by a pluggable {@link CacheEvictionPolicy},
+ * {@link LruEvictionPolicy} by default. A bound of zero or less disables that
+ * bound.
+ * <p>
+ * The size of an entry is estimated from its type: lists count their
+ * references, error documents their messages and stack traces, and reference
+ * sets a fixed overhead per external reference plus
+ * {@link ExternalReferenceSPI#getApproximateSizeInBytes()} for references
+ * which carry their value in memory. References to data held elsewhere, such
+ * as files or URLs, don't count the size of that data.
+ * <p>
+ * Reads don't block on each other, recording the access for the eviction
+ * policy is skipped if another thread is updating the cache at the time.
+ * Entries are also indexed by the namespace of their T2Reference, which is the
+ * workflow run identifier, so all entries of a run can be dropped when the run
+ * is deleted.
+ * <p>
+ * Hit, miss and eviction counts are kept for monitoring.
+ */
+public class BoundedCacheProviderImpl implements InvalidatableCacheProvider {
+
+	public static final int DEFAULT_MAXIMUM_ENTRIES = 10000;
+
+	public static final long DEFAULT_MAXIMUM_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Estimated size of an entry without its contents
+	 */
+	static final long ENTRY_OVERHEAD = 128;
+
+	/**
+	 * Estimated size of a T2Reference held within an entry
+	 */
+	static final long REFERENCE_SIZE = 96;
+
+	private final Map<T2Reference, CacheEntry> entries = new ConcurrentHashMap<T2Reference, CacheEntry>();
+
+	private final Map<String, Set<T2Reference>> workflowRunKeys = new ConcurrentHashMap<String, Set<T2Reference>>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private CacheEvictionPolicy evictionPolicy = new LruEvictionPolicy();
+
+	private int maximumEntries = DEFAULT_MAXIMUM_ENTRIES;
+
+	private long maximumBytes = DEFAULT_MAXIMUM_BYTES;
+
+	/**
+	 * Estimated size of all entries, guarded by the lock
+	 */
+	private long currentBytes = 0;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public Identified get(T2Reference id) {
+		CacheEntry entry = entries.get(id);
+		if (entry == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		if (lock.tryLock()) {
+			try {
+				if (entries.get(id) == entry) {
+					evictionPolicy.recordAccess(id);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return entry.item;
+	}
+
+	public void put(Identified i) {
+		T2Reference id = i.getId();
+		CacheEntry entry = new CacheEntry(i, estimateSize(i));
+		lock.lock();
+		try {
+			CacheEntry old = entries.put(id, entry);
+			if (old != null) {
+				currentBytes -= old.size;
+				evictionPolicy.recordAccess(id);
+			} else {
+				evictionPolicy.recordInsertion(id);
+				keysForRun(id.getNamespacePart()).add(id);
+			}
+			currentBytes += entry.size;
+			evictIfNeeded(old == null ? id : null);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void remove(T2Reference id) {
+		lock.lock();
+		try {
+			removeEntry(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void removeWorkflowRun(String workflowRunId) {
+		if (workflowRunId == null) {
+			return;
+		}
+		lock.lock();
+		try {
+			Set<T2Reference> keys = workflowRunKeys.remove(workflowRunId);
+			if (keys != null) {
+				for (T2Reference id : keys) {
+					removeEntry(id);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove all entries, the statistics are not reset
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			entries.clear();
+			workflowRunKeys.clear();
+			evictionPolicy.clear();
+			currentBytes = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the eviction policy, any entries already cached are discarded
+	 */
+	public void setEvictionPolicy(CacheEvictionPolicy evictionPolicy) {
+		lock.lock();
+		try {
+			this.evictionPolicy = evictionPolicy;
+			entries.clear();
+			workflowRunKeys.clear();
+			currentBytes = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public CacheEvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Set the maximum number of entries, zero or less for no limit
+	 */
+	public void setMaximumEntries(int maximumEntries) {
+		lock.lock();
+		try {
+			this.maximumEntries = maximumEntries;
+			evictIfNeeded(null);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaximumEntries() {
+		return maximumEntries;
+	}
+
+	/**
+	 * Set the maximum estimated size in bytes of all entries, zero or less for
+	 * no limit
+	 */
+	public void setMaximumBytes(long maximumBytes) {
+		lock.lock();
+		try {
+			this.maximumBytes = maximumBytes;
+			evictIfNeeded(null);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	public int getSize() {
+		return entries.size();
+	}
+
+	public long getSizeInBytes() {
+		lock.lock();
+		try {
+			return currentBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @return the fraction of get calls that found an entry, or 0 if there
+	 *         have been none
+	 */
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		if (total == 0) {
+			return 0;
+		}
+		return (double) hits / total;
+	}
+
+	/**
+	 * Called with the lock held
+	 * 
+	 * @param candidate
+	 *            the key just inserted, if any
+	 */
+	private void evictIfNeeded(T2Reference candidate) {
+		while (isOverBounds()) {
+			T2Reference victim = evictionPolicy.selectVictim(candidate);
+			if (victim == null || !entries.containsKey(victim)) {
+				if (victim != null) {
+					// Stale key in the policy, discard it and try again
+					evictionPolicy.recordRemoval(victim);
+					continue;
+				}
+				break;
+			}
+			removeEntry(victim);
+			evictionCount.incrementAndGet();
+			if (victim.equals(candidate)) {
+				candidate = null;
+			}
+		}
+	}
+
+	private boolean isOverBounds() {
+		return (maximumEntries > 0 && entries.size() > maximumEntries)
+				|| (maximumBytes > 0 && currentBytes > maximumBytes);
+	}
+
+	/**
+	 * Called with the lock held
+	 */
+	private void removeEntry(T2Reference id) {
+		CacheEntry entry = entries.remove(id);
+		if (entry != null) {
+			currentBytes -= entry.size;
+			evictionPolicy.recordRemoval(id);
+			Set<T2Reference> keys = workflowRunKeys.get(id
+					.getNamespacePart());
+			if (keys != null) {
+				keys.remove(id);
+				if (keys.isEmpty()) {
+					workflowRunKeys.remove(id.getNamespacePart());
+				}
+			}
+		}
+	}
+
+	private Set<T2Reference> keysForRun(String workflowRunId) {
+		Set<T2Reference> keys = workflowRunKeys.get(workflowRunId);
+		if (keys == null) {
+			keys = Collections
+					.newSetFromMap(new ConcurrentHashMap<T2Reference, Boolean>());
+			workflowRunKeys.put(workflowRunId, keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Estimate the memory held by a cached item
+	 */
+	static long estimateSize(Identified item) {
+		long size = ENTRY_OVERHEAD;
+		if (item instanceof ReferenceSet) {
+			Set<ExternalReferenceSPI> references = ((ReferenceSet) item)
+					.getExternalReferences();
+			if (references != null) {
+				for (ExternalReferenceSPI reference : references) {
+					size += ENTRY_OVERHEAD;
+					if (reference instanceof ValueCarryingExternalReference<?>) {
+						Long approximateSize = reference
+								.getApproximateSizeInBytes();
+						if (approximateSize != null && approximateSize > 0) {
+							size += approximateSize;
+						}
+					}
+				}
+			}
+		} else if (item instanceof IdentifiedList<?>) {
+			size += REFERENCE_SIZE * ((IdentifiedList<?>) item).size();
+		} else if (item instanceof ErrorDocument) {
+			ErrorDocument error = (ErrorDocument) item;
+			size += stringSize(error.getMessage())
+					+ stringSize(error.getExceptionMessage());
+			List<StackTraceElementBean> stackTrace = error
+					.getStackTraceStrings();
+			if (stackTrace != null) {
+				size += ENTRY_OVERHEAD * stackTrace.size();
+			}
+			Set<T2Reference> errorReferences = error.getErrorReferences();
+			if (errorReferences != null) {
+				size += REFERENCE_SIZE * errorReferences.size();
+			}
+		}
+		return size;
+	}
+
+	private static long stringSize(String string) {
+		if (string == null) {
+			return 0;
+		}
+		return 2L * string.length();
+	}
+
+	private static final class CacheEntry {
+		final Identified item;
+		final long size;
+
+		CacheEntry(Identified item, long size) {
+			this.item = item;
+			this.size = size;
+		}
+	}
+
+}
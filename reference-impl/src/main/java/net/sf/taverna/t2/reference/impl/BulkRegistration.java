@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.taverna.t2.reference.DaoException;
+import net.sf.taverna.t2.reference.ErrorDocument;
+import net.sf.taverna.t2.reference.ErrorDocumentDao;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.Identified;
+import net.sf.taverna.t2.reference.IdentifiedList;
+import net.sf.taverna.t2.reference.ListDao;
+import net.sf.taverna.t2.reference.ListServiceException;
+import net.sf.taverna.t2.reference.ReferenceContext;
+import net.sf.taverna.t2.reference.ReferenceServiceException;
+import net.sf.taverna.t2.reference.ReferenceSet;
+import net.sf.taverna.t2.reference.ReferenceSetDao;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceGenerator;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+/**
+ * A single bulk registration for
+ * {@link ReferenceServiceImpl#registerBulk(Object, int, boolean, ReferenceContext)}.
+ * The structure is first collected into a tree of nodes, checking it as the
+ * recursive registration would, and the nodes needing new entities are
+ * recorded in the order the recursive registration would have created them.
+ * Identifiers are then allocated in that same order, in a single block if
+ * all the services share one generator, and the new entities stored through
+ * the daos of the services in batches.
+ */
+class BulkRegistration {
+
+	private final ReferenceServiceImpl referenceService;
+
+	private final boolean useConverterSPI;
+
+	private final ReferenceContext context;
+
+	private final int batchSize;
+
+	private final ListDao listDao;
+
+	private final ReferenceSetDao referenceSetDao;
+
+	private final ErrorDocumentDao errorDao;
+
+	private final T2ReferenceGenerator listGenerator;
+
+	private final T2ReferenceGenerator referenceSetGenerator;
+
+	private final T2ReferenceGenerator errorGenerator;
+
+	/**
+	 * Nodes needing new entities, children before their parents
+	 */
+	private final List<Node> newNodes = new ArrayList<Node>();
+
+	BulkRegistration(ReferenceServiceImpl referenceService,
+			AbstractListServiceImpl listService,
+			AbstractReferenceSetServiceImpl referenceSetService,
+			AbstractErrorDocumentServiceImpl errorDocumentService,
+			boolean useConverterSPI, ReferenceContext context, int batchSize) {
+		this.referenceService = referenceService;
+		this.useConverterSPI = useConverterSPI;
+		this.context = context;
+		this.batchSize = batchSize;
+		this.listDao = listService.listDao;
+		this.referenceSetDao = referenceSetService.referenceSetDao;
+		this.errorDao = errorDocumentService.errorDao;
+		this.listGenerator = listService.t2ReferenceGenerator;
+		this.referenceSetGenerator = referenceSetService.t2ReferenceGenerator;
+		this.errorGenerator = errorDocumentService.t2ReferenceGenerator;
+	}
+
+	/**
+	 * Whether the services have the daos and generators this needs, if not
+	 * the caller should register item by item so the services report the
+	 * problem in the usual way.
+	 */
+	boolean isConfigured() {
+		return listDao != null && referenceSetDao != null && errorDao != null
+				&& listGenerator != null && referenceSetGenerator != null
+				&& errorGenerator != null;
+	}
+
+	/**
+	 * Register the object, returning its reference
+	 */
+	T2Reference register(Object o, int targetDepth)
+			throws ReferenceServiceException {
+		Node root = collect(o, targetDepth);
+		allocateAndStore();
+		return root.reference;
+	}
+
+	private Node collect(Object o, int currentDepth)
+			throws ReferenceServiceException {
+		if (currentDepth < 0) {
+			throw new ReferenceServiceException("Cannot register at depth "
+					+ currentDepth + ": " + o);
+		}
+		if (o instanceof Identified) {
+			Identified i = (Identified) o;
+			if (i.getId() != null) {
+				return new Node(i.getId());
+			}
+		}
+		if (o instanceof T2Reference) {
+			return new Node((T2Reference) o);
+		}
+
+		Node node;
+		if (referenceService.isPacked(o, currentDepth)) {
+			// A single reference set standing in for a depth 1 list
+			node = new Node(T2ReferenceType.ReferenceSet, 1, false);
+			node.externalReference = new PackedArrayReference(o);
+			newNodes.add(node);
+			return node;
+		}
+
+		o = ReferenceServiceImpl.toList(o);
+
+		if (o instanceof List) {
+			if (currentDepth < 1) {
+				throw new ReferenceServiceException(
+						"Cannot register list at depth " + currentDepth);
+			}
+			List<?> l = (List<?>) o;
+			node = new Node(T2ReferenceType.IdentifiedList, currentDepth,
+					false);
+			node.children = new ArrayList<Node>(l.size());
+			for (Object item : l) {
+				node.children.add(collect(item, currentDepth - 1));
+			}
+			if (!l.isEmpty()) {
+				checkListItems(node);
+			}
+		} else {
+			o = referenceService.convertLeaf(o, currentDepth,
+					useConverterSPI, context);
+			if (o instanceof Throwable) {
+				node = new Node(T2ReferenceType.ErrorDocument, currentDepth,
+						true);
+				node.error = (Throwable) o;
+			} else {
+				if (currentDepth != 0) {
+					throw new ReferenceServiceException(
+							"Cannot register external references at depth "
+									+ currentDepth);
+				}
+				node = new Node(T2ReferenceType.ReferenceSet, 0, false);
+				node.externalReference = (ExternalReferenceSPI) o;
+			}
+		}
+		newNodes.add(node);
+		return node;
+	}
+
+	/**
+	 * Apply the checks ListService.registerList makes, setting the depth and
+	 * error content of the list from its items
+	 */
+	private void checkListItems(Node list) throws ReferenceServiceException {
+		ListItemCheck check = new ListItemCheck();
+		try {
+			for (Node item : list.children) {
+				check.check(item.depth, item.containsErrors, item.reference);
+			}
+		} catch (ListServiceException lse) {
+			throw new ReferenceServiceException(lse);
+		}
+		list.depth = check.getListDepth();
+		list.containsErrors = check.containsErrors();
+	}
+
+	private void allocateAndStore() throws ReferenceServiceException {
+		// A single block only if all the services share the generator
+		T2ReferenceGenerator blockGenerator = null;
+		if (listGenerator == referenceSetGenerator
+				&& listGenerator == errorGenerator) {
+			blockGenerator = listGenerator;
+		}
+		ReferenceAllocator allocator = new ReferenceAllocator(blockGenerator,
+				newNodes.size(), context);
+
+		List<ReferenceSet> referenceSets = new ArrayList<ReferenceSet>();
+		List<ErrorDocument> errorDocuments = new ArrayList<ErrorDocument>();
+		List<IdentifiedList<T2Reference>> lists = new ArrayList<IdentifiedList<T2Reference>>();
+		for (Node node : newNodes) {
+			T2ReferenceImpl id = allocator.next(node.type, node.depth,
+					node.containsErrors, generatorFor(node.type));
+			node.reference = id;
+			switch (node.type) {
+			case ReferenceSet:
+				Set<ExternalReferenceSPI> references = new HashSet<ExternalReferenceSPI>();
+				references.add(node.externalReference);
+				referenceSets.add(new ReferenceSetImpl(references, id));
+				if (node.externalReference instanceof PackedArrayReference) {
+					node.reference = PackedArrays.listReference(id,
+							((PackedArrayReference) node.externalReference)
+									.getLength());
+				}
+				break;
+			case ErrorDocument:
+				errorDocuments.addAll(ErrorDocumentServiceImpl
+						.createErrorDocuments("", node.error, id, node.depth));
+				break;
+			case IdentifiedList:
+				T2ReferenceListImpl newList = new T2ReferenceListImpl();
+				for (Node child : node.children) {
+					newList.add(child.reference);
+				}
+				newList.setTypedId(id);
+				lists.add(newList);
+				break;
+			}
+		}
+
+		// Store children before the lists containing them, as the recursive
+		// registration would
+		try {
+			for (List<ReferenceSet> batch : batches(referenceSets)) {
+				referenceSetDao.storeAll(batch);
+			}
+			for (List<ErrorDocument> batch : batches(errorDocuments)) {
+				errorDao.storeAll(batch);
+			}
+			for (List<IdentifiedList<T2Reference>> batch : batches(lists)) {
+				listDao.storeAll(batch);
+			}
+		} catch (DaoException de) {
+			throw new ReferenceServiceException(de);
+		}
+	}
+
+	/**
+	 * The generator of the service that entities of the type belong to
+	 */
+	private T2ReferenceGenerator generatorFor(T2ReferenceType type) {
+		switch (type) {
+		case ReferenceSet:
+			return referenceSetGenerator;
+		case ErrorDocument:
+			return errorGenerator;
+		default:
+			return listGenerator;
+		}
+	}
+
+	private <T> List<List<T>> batches(List<T> items) {
+		List<List<T>> batches = new ArrayList<List<T>>();
+		for (int i = 0; i < items.size(); i += batchSize) {
+			batches.add(items.subList(i, Math.min(items.size(), i + batchSize)));
+		}
+		return batches;
+	}
+
+	/**
+	 * Part of the structure being registered, either an existing reference or
+	 * a new list, reference set or error document
+	 */
+	private static class Node {
+
+		private T2Reference reference;
+
+		private T2ReferenceType type;
+
+		private int depth;
+
+		private boolean containsErrors;
+
+		private List<Node> children;
+
+		private Throwable error;
+
+		private ExternalReferenceSPI externalReference;
+
+		Node(T2Reference existing) {
+			this.reference = existing;
+			this.depth = existing.getDepth();
+			this.containsErrors = existing.containsErrors();
+		}
+
+		Node(T2ReferenceType type, int depth, boolean containsErrors) {
+			this.type = type;
+			this.depth = depth;
+			this.containsErrors = containsErrors;
+		}
+
+	}
+
+}
@@ -20,8 +20,11 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
+
 import net.sf.taverna.t2.reference.DaoException;
 import net.sf.taverna.t2.reference.Identified;
+import net.sf.taverna.t2.reference.InvalidatableCacheProvider;
 import net.sf.taverna.t2.reference.ReferenceServiceCacheProvider;
 import net.sf.taverna.t2.reference.T2Reference;
 
@@ -29,7 +32,8 @@ import org.aspectj.lang.ProceedingJoinPoint;
 
 /**
  * An aspect used to intercept calls to the various data access objects and
- * divert through a write-through cache provider
+ * divert through a write-through cache provider. If the cache provider is an
+ * {@link InvalidatableCacheProvider} deletions are also passed on to it.
  * 
  * @author Tom Oinn
  */
@@ -102,7 +106,8 @@ public class CacheAspect {
 	/**
 	 * Called around a write or update operation on the backing store, writes
 	 * through to the cache after modifying the state of the backing store and
-	 * before returning from the dao method
+	 * before returning from the dao method. The method may store a single
+	 * {@link Identified} or a collection of them.
 	 * 
 	 * @param pjp
 	 *            join point representing the ongoing method invocation to cache
@@ -111,8 +116,9 @@ public class CacheAspect {
 	 */
 	public void putObject(final ProceedingJoinPoint pjp) throws DaoException {
 
-		// Get the Identified being stored by the method we're advising
-		Identified storedObject = (Identified) pjp.getArgs()[0];
+		// Get the Identified, or collection of them, being stored by the
+		// method we're advising
+		Object stored = pjp.getArgs()[0];
 
 		try {
 			// Run the store or update method
@@ -127,13 +133,89 @@ public class CacheAspect {
 			}
 		}
 
+		if (stored instanceof Collection) {
+			for (Object storedObject : (Collection<?>) stored) {
+				cache((Identified) storedObject);
+			}
+		} else {
+			cache((Identified) stored);
+		}
+
+	}
+
+	private void cache(Identified storedObject) {
 		// Assuming the method isn't null and has an identifier (which it will
 		// if we haven't thrown an exception before now) write it back to the
 		// cache provider
 		if (storedObject != null && storedObject.getId() != null) {
 			getCacheProvider().put(storedObject);
 		}
+	}
+
+	/**
+	 * Called around a delete operation for a single item on the backing store,
+	 * removes the item from the cache once the dao method has returned
+	 * 
+	 * @param pjp
+	 *            join point representing the ongoing method invocation
+	 * @return the result of the dao method
+	 * @throws DaoException
+	 *             if anything goes wrong
+	 */
+	public Object deleteObject(final ProceedingJoinPoint pjp)
+			throws DaoException {
+		Identified deletedObject = (Identified) pjp.getArgs()[0];
+		try {
+			return pjp.proceed();
+		} catch (Throwable e) {
+			if (e instanceof DaoException) {
+				throw ((DaoException) e);
+			} else {
+				throw new DaoException(
+						"Unexpected exception type during aspect "
+								+ "based invocation", e);
+			}
+		} finally {
+			// Remove even if the delete failed part way, the cache will be
+			// refilled from the backing store on the next read
+			if (deletedObject != null && deletedObject.getId() != null
+					&& getCacheProvider() instanceof InvalidatableCacheProvider) {
+				((InvalidatableCacheProvider) getCacheProvider())
+						.remove(deletedObject.getId());
+			}
+		}
+	}
 
+	/**
+	 * Called around an operation deleting all items of a workflow run from the
+	 * backing store, removes them from the cache once the dao method has
+	 * returned
+	 * 
+	 * @param pjp
+	 *            join point representing the ongoing method invocation, the
+	 *            first argument must be the workflow run identifier
+	 * @throws DaoException
+	 *             if anything goes wrong
+	 */
+	public void deleteObjectsForWorkflowRun(final ProceedingJoinPoint pjp)
+			throws DaoException {
+		String workflowRunId = (String) pjp.getArgs()[0];
+		try {
+			pjp.proceed();
+		} catch (Throwable e) {
+			if (e instanceof DaoException) {
+				throw ((DaoException) e);
+			} else {
+				throw new DaoException(
+						"Unexpected exception type during aspect "
+								+ "based invocation", e);
+			}
+		} finally {
+			if (getCacheProvider() instanceof InvalidatableCacheProvider) {
+				((InvalidatableCacheProvider) getCacheProvider())
+						.removeWorkflowRun(workflowRunId);
+			}
+		}
 	}
 
 }
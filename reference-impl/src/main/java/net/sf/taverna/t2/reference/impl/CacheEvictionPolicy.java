@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import net.sf.taverna.t2.reference.T2Reference;
+
+/**
+ * Decides which entry a {@link BoundedCacheProviderImpl} discards when it is
+ * over its bounds. The cache tells the policy about every insertion, access and
+ * removal and asks it for a victim when space is needed.
+ * <p>
+ * Implementations need not be thread safe, the cache never calls a policy from
+ * more than one thread at a time. Access notifications may be dropped under
+ * contention so policies must tolerate an incomplete access history.
+ */
+public interface CacheEvictionPolicy {
+
+	/**
+	 * A new key has been added to the cache
+	 */
+	public void recordInsertion(T2Reference id);
+
+	/**
+	 * An existing key has been read or replaced
+	 */
+	public void recordAccess(T2Reference id);
+
+	/**
+	 * A key has been removed from the cache, either by eviction or because the
+	 * item was deleted
+	 */
+	public void recordRemoval(T2Reference id);
+
+	/**
+	 * Choose the key to evict
+	 * 
+	 * @param candidate
+	 *            the key whose insertion took the cache over its bounds, or
+	 *            null. Policies with an admission filter may return this to
+	 *            reject the new entry rather than evict an older one.
+	 * @return the key to evict, or null if the policy has no keys
+	 */
+	public T2Reference selectVictim(T2Reference candidate);
+
+	/**
+	 * Forget all keys
+	 */
+	public void clear();
+
+}
@@ -20,6 +20,8 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import net.sf.taverna.t2.reference.ErrorDocument;
@@ -60,14 +62,29 @@ public class ErrorDocumentServiceImpl extends AbstractErrorDocumentServiceImpl
 
 		T2Reference ref = t2ReferenceGenerator
 				.nextErrorDocumentReference(depth, context);
-		T2ReferenceImpl typedId = T2ReferenceImpl.getAsImpl(ref);
+		List<ErrorDocumentImpl> docs = createErrorDocuments(message, t,
+				T2ReferenceImpl.getAsImpl(ref), depth);
+		for (ErrorDocumentImpl edi : docs) {
+			try {
+				errorDao.store(edi);
+			} catch (Throwable t2) {
+				throw new ErrorDocumentServiceException(t2);
+			}
+		}
+		return docs.isEmpty() ? null : docs.get(0);
 
-		ErrorDocument docToReturn = null;
+	}
+
+	/**
+	 * Build, but do not store, the error document for the specified reference
+	 * and its child errors, which have the same namespace and local part but
+	 * a lower depth, down to depth of zero
+	 */
+	static List<ErrorDocumentImpl> createErrorDocuments(String message,
+			Throwable t, T2ReferenceImpl typedId, int depth) {
+		List<ErrorDocumentImpl> docs = new ArrayList<ErrorDocumentImpl>();
 		while (depth >= 0) {
 			ErrorDocumentImpl edi = new ErrorDocumentImpl();
-			if (docToReturn == null) {
-				docToReturn = edi;
-			}
 			edi.setTypedId(typedId);
 			if (message != null) {
 				edi.setMessage(message);
@@ -87,18 +104,13 @@ public class ErrorDocumentServiceImpl extends AbstractErrorDocumentServiceImpl
 			} else {
 				edi.setExceptionMessage("");
 			}
-			try {
-				errorDao.store(edi);
-			} catch (Throwable t2) {
-				throw new ErrorDocumentServiceException(t2);
-			}
+			docs.add(edi);
 			if (depth > 0) {
 				typedId = typedId.getDeeperErrorReference();
 			}
 			depth--;
 		}
-		return docToReturn;
-
+		return docs;
 	}
 
 	public ErrorDocument registerError(String message, Set<T2Reference> errors, int depth, ReferenceContext context) 
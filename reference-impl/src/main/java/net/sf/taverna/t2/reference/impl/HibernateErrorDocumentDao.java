@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
 import java.util.List;
 
 import net.sf.taverna.t2.reference.DaoException;
@@ -33,6 +34,7 @@ import net.sf.taverna.t2.reference.annotations.PutIdentifiedOperation;
 
 import org.hibernate.Query;
 import org.hibernate.Session;
+import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 
 /**
@@ -86,6 +88,36 @@ public class HibernateErrorDocumentDao extends HibernateDaoSupport implements
 
 	@PutIdentifiedOperation
 	public void store(ErrorDocument theDocument) throws DaoException {
+		checkStorable(theDocument);
+		try {
+			getHibernateTemplate().save(theDocument);
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	@PutIdentifiedOperation
+	public void storeAll(final Collection<ErrorDocument> errorDocuments)
+			throws DaoException {
+		for (ErrorDocument theDocument : errorDocuments) {
+			checkStorable(theDocument);
+		}
+		try {
+			// Save them all in one session rather than one session each
+			getHibernateTemplate().execute(new HibernateCallback() {
+				public Object doInHibernate(Session session) {
+					for (ErrorDocument theDocument : errorDocuments) {
+						session.save(theDocument);
+					}
+					return null;
+				}
+			});
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	private void checkStorable(ErrorDocument theDocument) throws DaoException {
 		if (theDocument.getId() == null) {
 			throw new DaoException(
 					"Supplied error document set has a null ID, allocate "
@@ -96,13 +128,7 @@ public class HibernateErrorDocumentDao extends HibernateDaoSupport implements
 					+ "T2ReferenceType.ErrorDocument, something has probably "
 					+ "gone badly wrong somewhere earlier!");
 		}
-		if (theDocument instanceof ErrorDocumentImpl) {
-			try {
-				getHibernateTemplate().save(theDocument);
-			} catch (Exception ex) {
-				throw new DaoException(ex);
-			}
-		} else {
+		if (!(theDocument instanceof ErrorDocumentImpl)) {
 			throw new DaoException(
 					"Supplied ErrorDocument not an instance of ErrorDocumentImpl");
 		}
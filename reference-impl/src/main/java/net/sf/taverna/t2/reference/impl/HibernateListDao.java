@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
 import java.util.List;
 
 import net.sf.taverna.t2.reference.DaoException;
@@ -33,6 +34,7 @@ import net.sf.taverna.t2.reference.annotations.PutIdentifiedOperation;
 
 import org.hibernate.Query;
 import org.hibernate.Session;
+import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 
 /**
@@ -86,6 +88,36 @@ public class HibernateListDao extends HibernateDaoSupport implements ListDao {
 
 	@PutIdentifiedOperation
 	public void store(IdentifiedList<T2Reference> theList) throws DaoException {
+		checkStorable(theList);
+		try {
+			getHibernateTemplate().save(theList);
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	@PutIdentifiedOperation
+	public void storeAll(final Collection<IdentifiedList<T2Reference>> lists)
+			throws DaoException {
+		for (IdentifiedList<T2Reference> theList : lists) {
+			checkStorable(theList);
+		}
+		try {
+			// Save them all in one session rather than one session each
+			getHibernateTemplate().execute(new HibernateCallback() {
+				public Object doInHibernate(Session session) {
+					for (IdentifiedList<T2Reference> theList : lists) {
+						session.save(theList);
+					}
+					return null;
+				}
+			});
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	private void checkStorable(IdentifiedList<T2Reference> theList) throws DaoException {
 		if (theList.getId() == null) {
 			throw new DaoException("Supplied list set has a null ID, allocate "
 					+ "an ID before calling the store method in the dao.");
@@ -95,13 +127,7 @@ public class HibernateListDao extends HibernateDaoSupport implements ListDao {
 					+ "T2ReferenceType.IdentifiedList, something has probably "
 					+ "gone badly wrong somewhere earlier!");
 		}
-		if (theList instanceof T2ReferenceListImpl) {
-			try {
-				getHibernateTemplate().save(theList);
-			} catch (Exception ex) {
-				throw new DaoException(ex);
-			}
-		} else {
+		if (!(theList instanceof T2ReferenceListImpl)) {
 			throw new DaoException(
 					"Supplied identifier list not an instance of T2ReferenceList");
 		}
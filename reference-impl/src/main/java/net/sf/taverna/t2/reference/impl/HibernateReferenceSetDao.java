@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
 import java.util.List;
 
 import net.sf.taverna.t2.reference.DaoException;
@@ -33,6 +34,7 @@ import net.sf.taverna.t2.reference.annotations.PutIdentifiedOperation;
 
 import org.hibernate.Query;
 import org.hibernate.Session;
+import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 
 /**
@@ -62,6 +64,36 @@ public class HibernateReferenceSetDao extends HibernateDaoSupport implements
 	 */
 	@PutIdentifiedOperation
 	public void store(ReferenceSet rs) throws DaoException {
+		checkStorable(rs);
+		try {
+			getHibernateTemplate().save(rs);
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	@PutIdentifiedOperation
+	public void storeAll(final Collection<ReferenceSet> referenceSets)
+			throws DaoException {
+		for (ReferenceSet rs : referenceSets) {
+			checkStorable(rs);
+		}
+		try {
+			// Save them all in one session rather than one session each
+			getHibernateTemplate().execute(new HibernateCallback() {
+				public Object doInHibernate(Session session) {
+					for (ReferenceSet rs : referenceSets) {
+						session.save(rs);
+					}
+					return null;
+				}
+			});
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	private void checkStorable(ReferenceSet rs) throws DaoException {
 		if (rs.getId() == null) {
 			throw new DaoException(
 					"Supplied reference set has a null ID, allocate "
@@ -73,16 +105,10 @@ public class HibernateReferenceSetDao extends HibernateDaoSupport implements
 							+ "T2ReferenceType.ReferenceSet, something has probably "
 							+ "gone badly wrong somewhere earlier!");
 		}
-		if (rs instanceof ReferenceSetImpl) {
-			try {
-				getHibernateTemplate().save(rs);				
-			} catch (Exception ex) {
-				throw new DaoException(ex);
-			}
-		} else {
+		if (!(rs instanceof ReferenceSetImpl)) {
 			throw new DaoException(
 					"Supplied reference set not an instance of ReferenceSetImpl");
-		}		
+		}
 	}
 
 	/**
@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -51,6 +52,13 @@ public class InMemoryErrorDocumentDao implements ErrorDocumentDao {
 	public synchronized void store(ErrorDocument theDoc) throws DaoException {
 		store.put(theDoc.getId(), theDoc);
 	}
+
+	public synchronized void storeAll(Collection<ErrorDocument> errorDocuments)
+			throws DaoException {
+		for (ErrorDocument theDoc : errorDocuments) {
+			store.put(theDoc.getId(), theDoc);
+		}
+	}
 	
 	public synchronized boolean delete(ErrorDocument theDoc) throws DaoException {
 		return store.remove(theDoc.getId())!=null;
@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -52,6 +53,13 @@ public class InMemoryListDao implements ListDao {
 		store.put(theList.getId(), theList);
 	}
 
+	public synchronized void storeAll(Collection<IdentifiedList<T2Reference>> lists)
+			throws DaoException {
+		for (IdentifiedList<T2Reference> theList : lists) {
+			store.put(theList.getId(), theList);
+		}
+	}
+
 	public boolean delete(
 			IdentifiedList<T2Reference> theList) throws DaoException {
 		return (store.remove(theList.getId())!=null);
@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -52,6 +53,13 @@ public class InMemoryReferenceSetDao implements ReferenceSetDao {
 		store.put(refSet.getId(), refSet);
 	}
 
+	public synchronized void storeAll(Collection<ReferenceSet> referenceSets)
+			throws DaoException {
+		for (ReferenceSet refSet : referenceSets) {
+			store.put(refSet.getId(), refSet);
+		}
+	}
+
 	public synchronized void update(ReferenceSet refSet) throws DaoException {
 		store.put(refSet.getId(), refSet);		
 	}
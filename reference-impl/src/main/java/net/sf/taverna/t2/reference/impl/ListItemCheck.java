@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import net.sf.taverna.t2.reference.ListServiceException;
+
+/**
+ * The checks ListService.registerList makes on the items of a new list, fed
+ * one item at a time, working out the depth and error content of the list
+ * from them. Used by {@link ListServiceImpl} and {@link BulkRegistration}.
+ */
+final class ListItemCheck {
+
+	private int itemDepth;
+
+	private boolean containsErrors = false;
+
+	private int count = 0;
+
+	/**
+	 * Check the next item of the list, the first sets the depth all the
+	 * others must have
+	 * 
+	 * @param item
+	 *            the item, or its reference, for the error messages
+	 */
+	void check(int depth, boolean itemContainsErrors, Object item)
+			throws ListServiceException {
+		if (count == 0) {
+			if (depth < 0) {
+				throw new ListServiceException(
+						"Can't register list of depth less than 1, but first item "
+								+ item + " has depth " + depth);
+			}
+			itemDepth = depth;
+		} else if (depth != itemDepth) {
+			throw new ListServiceException(
+					"Mismatched depths in list registration; reference at index '"
+							+ count + "' has depth " + depth
+							+ " but all preceeding items have depth "
+							+ itemDepth);
+		}
+		if (itemContainsErrors) {
+			// The collection's reference contains errors if any child does
+			containsErrors = true;
+		}
+		count++;
+	}
+
+	/**
+	 * The depth of the list, one more than that of its items
+	 */
+	int getListDepth() {
+		return itemDepth + 1;
+	}
+
+	boolean containsErrors() {
+		return containsErrors;
+	}
+
+}
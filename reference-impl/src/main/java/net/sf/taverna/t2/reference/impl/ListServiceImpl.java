@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import net.sf.taverna.t2.reference.DaoException;
@@ -29,6 +30,7 @@ import net.sf.taverna.t2.reference.ListServiceException;
 import net.sf.taverna.t2.reference.ReferenceContext;
 import net.sf.taverna.t2.reference.ReferenceServiceException;
 import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
 
 /**
  * Implementation of ListService, inject with an appropriate ListDao and
@@ -42,6 +44,9 @@ public class ListServiceImpl extends AbstractListServiceImpl implements
 
 	public IdentifiedList<T2Reference> getList(T2Reference id)
 			throws ListServiceException {
+		if (PackedArrays.isPackedList(id)) {
+			return PackedArrays.virtualList(id);
+		}
 		checkDao();
 		try {
 			return listDao.get(id);
@@ -73,48 +78,83 @@ public class ListServiceImpl extends AbstractListServiceImpl implements
 			throws ListServiceException {
 		checkDao();
 		checkGenerator();
-		if (items.isEmpty()) {
-			throw new ListServiceException(
-					"Can't register an empty list with this method,"
-							+ " use the registerEmptyList instead");
+		CheckedList checked = checkItems(items);
+		try {
+			T2ReferenceImpl newReference = T2ReferenceImpl
+					.getAsImpl(t2ReferenceGenerator.nextListReference(
+							checked.containsErrors, checked.depth, context));
+			checked.list.setTypedId(newReference);
+			listDao.store(checked.list);
+			return checked.list;
+		} catch (Throwable t) {
+			throw new ListServiceException(t);
 		}
-		// Track whether there are any items in the collection which are or
-		// contain error documents.
-		boolean containsErrors = false;
-		// Track depth, ensure that all items have the same depth, fail if not.
-		int depth = items.get(0).getDepth();
-		if (depth < 0) {
-			throw new ListServiceException("Can't register list of depth less than 1, but first item " + items.get(0) + " has depth " + depth);
+	}
+
+	public List<IdentifiedList<T2Reference>> registerLists(
+			List<List<T2Reference>> lists, ReferenceContext context)
+			throws ListServiceException {
+		checkDao();
+		checkGenerator();
+		// Check everything before allocating or storing anything
+		List<CheckedList> newLists = new ArrayList<CheckedList>(lists.size());
+		for (List<T2Reference> items : lists) {
+			newLists.add(checkItems(items));
 		}
-		T2ReferenceListImpl newList = new T2ReferenceListImpl();
-		int counter = 0;
-		for (T2Reference ref : items) {
-			if (ref.getDepth() != depth) {
-				throw new ListServiceException(
-						"Mismatched depths in list registration; reference at index '"
-								+ counter + "' has depth " + ref.getDepth()
-								+ " but all preceeding items have depth "
-								+ depth);
-			}
-			if (ref.containsErrors()) {
-				// The collection's reference contains errors if any child does
-				containsErrors = true;
-			}
-			newList.add(ref);
-			counter++;
+		if (newLists.isEmpty()) {
+			return new ArrayList<IdentifiedList<T2Reference>>();
 		}
 		try {
-			T2ReferenceImpl newReference = T2ReferenceImpl
-					.getAsImpl(t2ReferenceGenerator.nextListReference(
-							containsErrors, depth + 1, context));
-			newList.setTypedId(newReference);
-			listDao.store(newList);
-			return newList;
+			ReferenceAllocator allocator = new ReferenceAllocator(
+					t2ReferenceGenerator, newLists.size(), context);
+			List<IdentifiedList<T2Reference>> result = new ArrayList<IdentifiedList<T2Reference>>(
+					newLists.size());
+			for (CheckedList checked : newLists) {
+				T2ReferenceImpl newReference = allocator.next(
+						T2ReferenceType.IdentifiedList, checked.depth,
+						checked.containsErrors, t2ReferenceGenerator);
+				checked.list.setTypedId(newReference);
+				result.add(checked.list);
+			}
+			listDao.storeAll(result);
+			return result;
 		} catch (Throwable t) {
 			throw new ListServiceException(t);
 		}
 	}
 
+	/**
+	 * An unnamed list that has passed the checks for registration, along with
+	 * the depth and error content its reference should have
+	 */
+	private static final class CheckedList {
+		private final T2ReferenceListImpl list = new T2ReferenceListImpl();
+		private int depth;
+		private boolean containsErrors;
+	}
+
+	/**
+	 * Check the items of a list to be registered, collecting them into an
+	 * unnamed list
+	 */
+	private CheckedList checkItems(List<T2Reference> items)
+			throws ListServiceException {
+		if (items.isEmpty()) {
+			throw new ListServiceException(
+					"Can't register an empty list with this method,"
+							+ " use the registerEmptyList instead");
+		}
+		ListItemCheck check = new ListItemCheck();
+		CheckedList checked = new CheckedList();
+		for (T2Reference ref : items) {
+			check.check(ref.getDepth(), ref.containsErrors(), ref);
+			checked.list.add(ref);
+		}
+		checked.depth = check.getListDepth();
+		checked.containsErrors = check.containsErrors();
+		return checked;
+	}
+
 	public boolean delete(T2Reference reference)
 			throws ReferenceServiceException {
 		checkDao();
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.sf.taverna.t2.reference.T2Reference;
+
+/**
+ * Evicts the least recently used entry
+ */
+public class LruEvictionPolicy implements CacheEvictionPolicy {
+
+	private final LinkedHashMap<T2Reference, Boolean> order = new LinkedHashMap<T2Reference, Boolean>(
+			16, 0.75f, true);
+
+	public void recordInsertion(T2Reference id) {
+		order.put(id, Boolean.TRUE);
+	}
+
+	public void recordAccess(T2Reference id) {
+		// get() moves the key to the most recently used end
+		order.get(id);
+	}
+
+	public void recordRemoval(T2Reference id) {
+		order.remove(id);
+	}
+
+	public T2Reference selectVictim(T2Reference candidate) {
+		Iterator<T2Reference> keys = order.keySet().iterator();
+		if (keys.hasNext()) {
+			return keys.next();
+		}
+		return null;
+	}
+
+	public void clear() {
+		order.clear();
+	}
+
+	/**
+	 * @return the least recently used key other than the one given, or null
+	 */
+	T2Reference eldestExcept(T2Reference exclude) {
+		for (T2Reference key : order.keySet()) {
+			if (!key.equals(exclude)) {
+				return key;
+			}
+		}
+		return null;
+	}
+
+}
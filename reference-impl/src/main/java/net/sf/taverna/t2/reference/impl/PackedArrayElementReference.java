@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import net.sf.taverna.t2.reference.AbstractExternalReference;
+import net.sf.taverna.t2.reference.DereferenceException;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.ReferenceContext;
+import net.sf.taverna.t2.reference.ReferencedDataNature;
+import net.sf.taverna.t2.reference.ValueCarryingExternalReference;
+
+/**
+ * A single element unpacked from a {@link PackedArrayReference}, carrying the
+ * boxed value. These are only ever built on demand when an element of a
+ * packed array is resolved and are never stored.
+ */
+public class PackedArrayElementReference extends AbstractExternalReference
+		implements ValueCarryingExternalReference<Number> {
+
+	private final Number value;
+
+	public PackedArrayElementReference(Number value) {
+		this.value = value;
+	}
+
+	@SuppressWarnings("unchecked")
+	public Class<Number> getValueType() {
+		return (Class<Number>) value.getClass();
+	}
+
+	public Number getValue() {
+		return value;
+	}
+
+	public InputStream openStream(ReferenceContext context)
+			throws DereferenceException {
+		try {
+			return new ByteArrayInputStream(String.valueOf(value).getBytes(
+					getCharset()));
+		} catch (UnsupportedEncodingException e) {
+			throw new DereferenceException(e);
+		}
+	}
+
+	@Override
+	public ReferencedDataNature getDataNature() {
+		return ReferencedDataNature.TEXT;
+	}
+
+	@Override
+	public String getCharset() {
+		return "UTF-8";
+	}
+
+	public Long getApproximateSizeInBytes() {
+		return new Long(String.valueOf(value).length());
+	}
+
+	@Override
+	public String toString() {
+		return "packedElement{" + value + "}";
+	}
+
+	@Override
+	public ExternalReferenceSPI clone() throws CloneNotSupportedException {
+		return new PackedArrayElementReference(value);
+	}
+
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+
+import net.sf.taverna.t2.reference.AbstractExternalReference;
+import net.sf.taverna.t2.reference.DereferenceException;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.ReferenceContext;
+import net.sf.taverna.t2.reference.ReferencedDataNature;
+import net.sf.taverna.t2.reference.ValueCarryingExternalReference;
+
+/**
+ * A value carrying reference holding an entire array of a primitive numeric
+ * type (int, long, short, float or double) packed into a single byte array.
+ * Registered by the reference service in place of one reference set per
+ * element when registering such arrays with packing enabled, the reference
+ * set holding it is then exposed as a depth 1 list. Elements are unpacked
+ * one at a time through {@link #getElement(int)} as they are asked for.
+ * <p>
+ * The value of this reference is the primitive array itself, the stream form
+ * is the elements as text, one per line.
+ * 
+ * @see ReferenceServiceImpl#setPackPrimitiveArrays(boolean)
+ */
+public class PackedArrayReference extends AbstractExternalReference implements
+		ValueCarryingExternalReference<Object> {
+
+	private String elementType;
+
+	private int length;
+
+	private byte[] packed;
+
+	/**
+	 * Default constructor, used by Hibernate
+	 */
+	public PackedArrayReference() {
+		//
+	}
+
+	/**
+	 * Pack the specified array, which must be one for which
+	 * {@link #canPack(Object)} returns true
+	 */
+	public PackedArrayReference(Object array) {
+		if (!canPack(array)) {
+			throw new IllegalArgumentException("Can't pack " + array);
+		}
+		Class<?> componentType = array.getClass().getComponentType();
+		this.elementType = componentType.getName();
+		ByteBuffer buffer;
+		if (componentType == int.class) {
+			int[] values = (int[]) array;
+			length = values.length;
+			buffer = ByteBuffer.allocate(length * 4);
+			buffer.asIntBuffer().put(values);
+		} else if (componentType == long.class) {
+			long[] values = (long[]) array;
+			length = values.length;
+			buffer = ByteBuffer.allocate(length * 8);
+			buffer.asLongBuffer().put(values);
+		} else if (componentType == short.class) {
+			short[] values = (short[]) array;
+			length = values.length;
+			buffer = ByteBuffer.allocate(length * 2);
+			buffer.asShortBuffer().put(values);
+		} else if (componentType == float.class) {
+			float[] values = (float[]) array;
+			length = values.length;
+			buffer = ByteBuffer.allocate(length * 4);
+			buffer.asFloatBuffer().put(values);
+		} else {
+			double[] values = (double[]) array;
+			length = values.length;
+			buffer = ByteBuffer.allocate(length * 8);
+			buffer.asDoubleBuffer().put(values);
+		}
+		this.packed = buffer.array();
+	}
+
+	/**
+	 * Whether the object is a non empty array of a primitive numeric type
+	 */
+	public static boolean canPack(Object o) {
+		if (o == null || !o.getClass().isArray()) {
+			return false;
+		}
+		Class<?> componentType = o.getClass().getComponentType();
+		if (componentType != int.class && componentType != long.class
+				&& componentType != short.class
+				&& componentType != float.class
+				&& componentType != double.class) {
+			return false;
+		}
+		return java.lang.reflect.Array.getLength(o) > 0;
+	}
+
+	public String getElementType() {
+		return elementType;
+	}
+
+	public void setElementType(String elementType) {
+		this.elementType = elementType;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public void setLength(int length) {
+		this.length = length;
+	}
+
+	public byte[] getPacked() {
+		return packed;
+	}
+
+	public void setPacked(byte[] packed) {
+		this.packed = packed;
+	}
+
+	/**
+	 * The boxed type of the elements, Integer for an int array and so on
+	 */
+	public Class<? extends Number> getElementClass() {
+		if ("int".equals(elementType)) {
+			return Integer.class;
+		} else if ("long".equals(elementType)) {
+			return Long.class;
+		} else if ("short".equals(elementType)) {
+			return Short.class;
+		} else if ("float".equals(elementType)) {
+			return Float.class;
+		}
+		return Double.class;
+	}
+
+	/**
+	 * Unpack and box a single element
+	 */
+	public Number getElement(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index " + index
+					+ " of packed array of length " + length);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(packed);
+		if ("int".equals(elementType)) {
+			return buffer.getInt(index * 4);
+		} else if ("long".equals(elementType)) {
+			return buffer.getLong(index * 8);
+		} else if ("short".equals(elementType)) {
+			return buffer.getShort(index * 2);
+		} else if ("float".equals(elementType)) {
+			return buffer.getFloat(index * 4);
+		}
+		return buffer.getDouble(index * 8);
+	}
+
+	/**
+	 * A read only list view of the elements, each unpacked when fetched
+	 */
+	public List<Number> asList() {
+		return new AbstractList<Number>() {
+			@Override
+			public Number get(int index) {
+				return getElement(index);
+			}
+
+			@Override
+			public int size() {
+				return length;
+			}
+		};
+	}
+
+	/**
+	 * The type of the unpacked primitive array
+	 */
+	@SuppressWarnings("unchecked")
+	public Class<Object> getValueType() {
+		return (Class<Object>) java.lang.reflect.Array.newInstance(
+				primitiveType(), 0).getClass();
+	}
+
+	/**
+	 * Unpack the whole primitive array
+	 */
+	public Object getValue() {
+		ByteBuffer buffer = ByteBuffer.wrap(packed);
+		if ("int".equals(elementType)) {
+			int[] values = new int[length];
+			buffer.asIntBuffer().get(values);
+			return values;
+		} else if ("long".equals(elementType)) {
+			long[] values = new long[length];
+			buffer.asLongBuffer().get(values);
+			return values;
+		} else if ("short".equals(elementType)) {
+			short[] values = new short[length];
+			buffer.asShortBuffer().get(values);
+			return values;
+		} else if ("float".equals(elementType)) {
+			float[] values = new float[length];
+			buffer.asFloatBuffer().get(values);
+			return values;
+		}
+		double[] values = new double[length];
+		buffer.asDoubleBuffer().get(values);
+		return values;
+	}
+
+	private Class<?> primitiveType() {
+		if ("int".equals(elementType)) {
+			return int.class;
+		} else if ("long".equals(elementType)) {
+			return long.class;
+		} else if ("short".equals(elementType)) {
+			return short.class;
+		} else if ("float".equals(elementType)) {
+			return float.class;
+		}
+		return double.class;
+	}
+
+	/**
+	 * The elements as text, one per line
+	 */
+	public InputStream openStream(ReferenceContext context)
+			throws DereferenceException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append(getElement(i)).append('\n');
+		}
+		try {
+			return new ByteArrayInputStream(sb.toString().getBytes(
+					getCharset()));
+		} catch (UnsupportedEncodingException e) {
+			throw new DereferenceException(e);
+		}
+	}
+
+	@Override
+	public ReferencedDataNature getDataNature() {
+		return ReferencedDataNature.TEXT;
+	}
+
+	@Override
+	public String getCharset() {
+		return "UTF-8";
+	}
+
+	public Long getApproximateSizeInBytes() {
+		return new Long(packed == null ? 0 : packed.length);
+	}
+
+	@Override
+	public String toString() {
+		return "packed{" + elementType + "[" + length + "]}";
+	}
+
+	@Override
+	public ExternalReferenceSPI clone() throws CloneNotSupportedException {
+		PackedArrayReference result = new PackedArrayReference();
+		result.setElementType(elementType);
+		result.setLength(length);
+		result.setPacked(packed == null ? null : packed.clone());
+		return result;
+	}
+
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.util.AbstractList;
+
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.IdentifiedList;
+import net.sf.taverna.t2.reference.ReferenceSet;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+/**
+ * Identifiers for packed arrays. A packed array is stored as a single
+ * reference set holding a {@link PackedArrayReference}, and exposed as a depth
+ * 1 list whose identifier is derived from that of the reference set. The
+ * list and its elements are never stored, the list service and reference set
+ * service recognise these identifiers and build them on demand.
+ * <p>
+ * The local part of the list identifier is that of the reference set
+ * followed by {@link #MARKER} and the length of the array, the local part of
+ * an element appends a further '.' and the index of the element.
+ */
+final class PackedArrays {
+
+	static final String MARKER = ".packed.";
+
+	private PackedArrays() {
+	}
+
+	/**
+	 * The identifier of the list exposing the packed array held in the
+	 * specified reference set
+	 */
+	static T2ReferenceImpl listReference(T2Reference referenceSetId,
+			int length) {
+		T2ReferenceImpl r = new T2ReferenceImpl();
+		r.setNamespacePart(referenceSetId.getNamespacePart());
+		r.setLocalPart(referenceSetId.getLocalPart() + MARKER + length);
+		r.setReferenceType(T2ReferenceType.IdentifiedList);
+		r.setDepth(1);
+		r.setContainsErrors(false);
+		return r;
+	}
+
+	static boolean isPackedList(T2Reference ref) {
+		return ref.getReferenceType() == T2ReferenceType.IdentifiedList
+				&& isPacked(ref);
+	}
+
+	static boolean isPackedElement(T2Reference ref) {
+		return ref.getReferenceType() == T2ReferenceType.ReferenceSet
+				&& isPacked(ref);
+	}
+
+	private static boolean isPacked(T2Reference ref) {
+		return ref.getLocalPart() != null
+				&& ref.getLocalPart().indexOf(MARKER) >= 0;
+	}
+
+	/**
+	 * The identifier of the reference set holding the packed array for a
+	 * packed list or element identifier
+	 */
+	static T2ReferenceImpl backingReference(T2Reference ref) {
+		String localPart = ref.getLocalPart();
+		T2ReferenceImpl r = new T2ReferenceImpl();
+		r.setNamespacePart(ref.getNamespacePart());
+		r.setLocalPart(localPart.substring(0, localPart.indexOf(MARKER)));
+		r.setReferenceType(T2ReferenceType.ReferenceSet);
+		r.setDepth(0);
+		r.setContainsErrors(false);
+		return r;
+	}
+
+	/**
+	 * The length of a packed list from its identifier
+	 */
+	static int length(T2Reference packedList) {
+		String localPart = packedList.getLocalPart();
+		return Integer.parseInt(localPart.substring(localPart
+				.indexOf(MARKER)
+				+ MARKER.length()));
+	}
+
+	/**
+	 * The index of a packed element from its identifier
+	 */
+	static int index(T2Reference packedElement) {
+		String localPart = packedElement.getLocalPart();
+		return Integer.parseInt(localPart.substring(localPart
+				.lastIndexOf('.') + 1));
+	}
+
+	static T2ReferenceImpl elementReference(T2Reference packedList, int index) {
+		T2ReferenceImpl r = new T2ReferenceImpl();
+		r.setNamespacePart(packedList.getNamespacePart());
+		r.setLocalPart(packedList.getLocalPart() + "." + index);
+		r.setReferenceType(T2ReferenceType.ReferenceSet);
+		r.setDepth(0);
+		r.setContainsErrors(false);
+		return r;
+	}
+
+	/**
+	 * The list for a packed list identifier, element identifiers are only
+	 * created as they are fetched from it
+	 */
+	static IdentifiedList<T2Reference> virtualList(final T2Reference packedList) {
+		final int length = length(packedList);
+		T2ReferenceListImpl list = new T2ReferenceListImpl();
+		list.setListContents(new AbstractList<T2Reference>() {
+			@Override
+			public T2Reference get(int index) {
+				if (index < 0 || index >= length) {
+					throw new IndexOutOfBoundsException("Index " + index
+							+ " of packed list of length " + length);
+				}
+				return elementReference(packedList, index);
+			}
+
+			@Override
+			public int size() {
+				return length;
+			}
+		});
+		list.setTypedId(T2ReferenceImpl.getAsImpl(packedList));
+		return list;
+	}
+
+	/**
+	 * Find the packed array in a reference set, or null if there isn't one
+	 */
+	static PackedArrayReference findPackedArray(ReferenceSet rs) {
+		if (rs == null) {
+			return null;
+		}
+		for (ExternalReferenceSPI ers : rs.getExternalReferences()) {
+			if (ers instanceof PackedArrayReference) {
+				return (PackedArrayReference) ers;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.taverna.t2.reference.IdentifiedList;
+import net.sf.taverna.t2.reference.ListService;
+import net.sf.taverna.t2.reference.ListServiceException;
+import net.sf.taverna.t2.reference.ReferenceServiceException;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+/**
+ * Renders a collection identifier in three passes. The list structure is
+ * expanded one level at a time, fetching all lists of a level concurrently,
+ * then every leaf is rendered concurrently and finally the nested result
+ * lists are assembled in the original order.
+ * <p>
+ * Concurrency within a single call is limited to the parallelism given on
+ * construction whatever the size of the executor. The calling thread takes
+ * part in the work, so a call completes even if the executor is saturated
+ * and renders nested inside other renders cannot deadlock.
+ * 
+ */
+class ParallelRenderer {
+
+	/**
+	 * Renders a single leaf identifier, a reference set or a packed array
+	 */
+	interface LeafRenderer {
+		Object render(T2Reference leaf) throws ReferenceServiceException;
+	}
+
+	private final ListService listService;
+
+	private final LeafRenderer leafRenderer;
+
+	private final Executor executor;
+
+	private final int parallelism;
+
+	ParallelRenderer(ListService listService, LeafRenderer leafRenderer,
+			Executor executor, int parallelism) {
+		this.listService = listService;
+		this.leafRenderer = leafRenderer;
+		this.executor = executor;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	Object render(T2Reference id) throws ReferenceServiceException {
+		Node root = new Node(id);
+		List<Node> leaves = new ArrayList<Node>();
+		List<Node> level = new ArrayList<Node>();
+		if (isExpanded(id)) {
+			level.add(root);
+		} else {
+			leaves.add(root);
+		}
+		while (!level.isEmpty()) {
+			final List<Node> lists = level;
+			runAll(lists.size(), new Task() {
+				public void run(int index) {
+					Node node = lists.get(index);
+					node.children = fetch(node.id);
+				}
+			});
+			level = new ArrayList<Node>();
+			for (Node list : lists) {
+				for (Node child : list.children) {
+					if (isExpanded(child.id)) {
+						level.add(child);
+					} else {
+						leaves.add(child);
+					}
+				}
+			}
+		}
+		final List<Node> toRender = leaves;
+		runAll(toRender.size(), new Task() {
+			public void run(int index) {
+				Node leaf = toRender.get(index);
+				leaf.value = leafRenderer.render(leaf.id);
+			}
+		});
+		return root.assemble();
+	}
+
+	/**
+	 * Lists are expanded here, packed arrays are rendered as single leaves
+	 */
+	private static boolean isExpanded(T2Reference id) {
+		return id.getReferenceType() == T2ReferenceType.IdentifiedList
+				&& !PackedArrays.isPackedList(id);
+	}
+
+	private List<Node> fetch(T2Reference id) {
+		IdentifiedList<T2Reference> idList;
+		try {
+			idList = listService.getList(id);
+		} catch (ListServiceException lse) {
+			throw new ReferenceServiceException(lse);
+		}
+		if (idList == null) {
+			throw new ReferenceServiceException(
+					"Could not find IdentifiedList " + id);
+		}
+		List<Node> children = new ArrayList<Node>(idList.size());
+		for (T2Reference child : idList) {
+			children.add(new Node(child));
+		}
+		return children;
+	}
+
+	private interface Task {
+		void run(int index);
+	}
+
+	/**
+	 * Run the task for every index from 0 to count, using at most parallelism
+	 * threads including the caller. If any fail the exception of the lowest
+	 * failed index is rethrown once all running tasks have finished, so which
+	 * failure is reported does not depend on timing.
+	 */
+	private void runAll(final int count, final Task task) {
+		if (count == 0) {
+			return;
+		}
+		final AtomicInteger nextIndex = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(count);
+		final RuntimeException[] failure = new RuntimeException[1];
+		final int[] failedIndex = new int[] { Integer.MAX_VALUE };
+		Runnable worker = new Runnable() {
+			public void run() {
+				int index;
+				while ((index = nextIndex.getAndIncrement()) < count) {
+					try {
+						boolean failed;
+						synchronized (failure) {
+							failed = failure[0] != null;
+						}
+						if (!failed) {
+							task.run(index);
+						}
+					} catch (RuntimeException re) {
+						synchronized (failure) {
+							if (index < failedIndex[0]) {
+								failedIndex[0] = index;
+								failure[0] = re;
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}
+		};
+		int helpers = Math.min(parallelism, count) - 1;
+		for (int i = 0; i < helpers; i++) {
+			try {
+				executor.execute(worker);
+			} catch (RejectedExecutionException ree) {
+				break;
+			}
+		}
+		worker.run();
+		try {
+			done.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new ReferenceServiceException(
+					"Interrupted while rendering identifier", ie);
+		}
+		synchronized (failure) {
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+	}
+
+	private static class Node {
+
+		final T2Reference id;
+
+		List<Node> children = null;
+
+		Object value = null;
+
+		Node(T2Reference id) {
+			this.id = id;
+		}
+
+		Object assemble() {
+			if (children == null) {
+				return value;
+			}
+			List<Object> result = new ArrayList<Object>(children.size());
+			for (Node child : children) {
+				result.add(child.assemble());
+			}
+			return result;
+		}
+	}
+
+}
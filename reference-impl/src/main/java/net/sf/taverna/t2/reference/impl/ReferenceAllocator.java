@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.util.List;
+
+import net.sf.taverna.t2.reference.ReferenceContext;
+import net.sf.taverna.t2.reference.T2ReferenceGenerator;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+/**
+ * Hands out the references for a known number of new entities, from a single
+ * {@link AbstractT2ReferenceGenerator#nextReferenceBlock(int, ReferenceContext)
+ * block} where possible and otherwise one at a time from the generator of the
+ * service each entity belongs to. Either way the references are the same as
+ * registering the entities one by one would give. Used by
+ * {@link ListServiceImpl} and {@link BulkRegistration}.
+ */
+final class ReferenceAllocator {
+
+	private final ReferenceContext context;
+
+	private final List<T2ReferenceImpl> block;
+
+	private int next = 0;
+
+	/**
+	 * @param blockGenerator
+	 *            the generator to allocate the block from, or null to
+	 *            allocate one at a time
+	 */
+	ReferenceAllocator(T2ReferenceGenerator blockGenerator, int count,
+			ReferenceContext context) {
+		this.context = context;
+		if (blockGenerator instanceof AbstractT2ReferenceGenerator) {
+			block = ((AbstractT2ReferenceGenerator) blockGenerator)
+					.nextReferenceBlock(count, context);
+		} else {
+			block = null;
+		}
+	}
+
+	/**
+	 * The reference for the next entity
+	 * 
+	 * @param generator
+	 *            the generator of the service the entity belongs to, used
+	 *            when there is no block
+	 */
+	T2ReferenceImpl next(T2ReferenceType type, int depth,
+			boolean containsErrors, T2ReferenceGenerator generator) {
+		if (block != null) {
+			T2ReferenceImpl id = block.get(next++);
+			id.setReferenceType(type);
+			id.setDepth(type == T2ReferenceType.ReferenceSet ? 0 : depth);
+			id.setContainsErrors(containsErrors);
+			return id;
+		}
+		switch (type) {
+		case ReferenceSet:
+			return T2ReferenceImpl.getAsImpl(generator
+					.nextReferenceSetReference(context));
+		case ErrorDocument:
+			return T2ReferenceImpl.getAsImpl(generator
+					.nextErrorDocumentReference(depth, context));
+		default:
+			return T2ReferenceImpl.getAsImpl(generator.nextListReference(
+					containsErrors, depth, context));
+		}
+	}
+
+}
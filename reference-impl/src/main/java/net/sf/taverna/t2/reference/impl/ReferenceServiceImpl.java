@@ -29,6 +29,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.taverna.t2.reference.ContextualizedT2Reference;
 import net.sf.taverna.t2.reference.ErrorDocument;
@@ -42,6 +47,7 @@ import net.sf.taverna.t2.reference.ReferenceService;
 import net.sf.taverna.t2.reference.ReferenceServiceException;
 import net.sf.taverna.t2.reference.ReferenceSet;
 import net.sf.taverna.t2.reference.ReferenceSetServiceException;
+import net.sf.taverna.t2.reference.RenderingParallelismEntity;
 import net.sf.taverna.t2.reference.StreamToValueConverterSPI;
 import net.sf.taverna.t2.reference.T2Reference;
 import net.sf.taverna.t2.reference.T2ReferenceType;
@@ -66,6 +72,18 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 
 	private final Log log = LogFactory.getLog(ReferenceServiceImpl.class);
 
+	private int bulkBatchSize = 1000;
+
+	private boolean packPrimitiveArrays = false;
+
+	private int traversalPrefetch = 0;
+
+	private Executor traversalExecutor = null;
+
+	private int renderParallelism = 1;
+
+	private Executor renderExecutor = null;
+
 	/**
 	 * The top level registration method is used to register either as yet
 	 * unregistered ErrorDocuments and ReferenceSets (if these are passed in and
@@ -142,6 +160,137 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 		return getNameForObject(o, targetDepth, useConverterSPI, context);
 	}
 
+	/**
+	 * Register in bulk, see
+	 * {@link ReferenceService#registerBulk(Object, int, boolean, ReferenceContext)}.
+	 * If the component services aren't the implementations from this package
+	 * their daos can't be reached, in which case this falls back to
+	 * registering item by item as {@link #register} does.
+	 */
+	public T2Reference registerBulk(Object o, int targetDepth,
+			boolean useConverterSPI, ReferenceContext context)
+			throws ReferenceServiceException {
+		checkServices();
+		if (context == null) {
+			context = new EmptyReferenceContext();
+		}
+		if (useConverterSPI) {
+			checkConverterRegistry();
+		}
+		if (listService instanceof AbstractListServiceImpl
+				&& referenceSetService instanceof AbstractReferenceSetServiceImpl
+				&& errorDocumentService instanceof AbstractErrorDocumentServiceImpl) {
+			BulkRegistration registration = new BulkRegistration(this,
+					(AbstractListServiceImpl) listService,
+					(AbstractReferenceSetServiceImpl) referenceSetService,
+					(AbstractErrorDocumentServiceImpl) errorDocumentService,
+					useConverterSPI, context, bulkBatchSize);
+			if (registration.isConfigured()) {
+				return registration.register(o, targetDepth);
+			}
+		}
+		return getNameForObject(o, targetDepth, useConverterSPI, context);
+	}
+
+	/**
+	 * The maximum number of entities of each kind stored in a single dao
+	 * call by {@link #registerBulk}, defaults to 1000
+	 */
+	public void setBulkBatchSize(int bulkBatchSize) {
+		this.bulkBatchSize = Math.max(1, bulkBatchSize);
+	}
+
+	/**
+	 * If set, arrays of int, long, short, float or double registered at depth
+	 * 1 are stored as a single reference set holding a
+	 * {@link PackedArrayReference} rather than a list of one reference set
+	 * per boxed element. The returned reference is still that of a depth 1
+	 * list, its elements are unpacked only when they are asked for. Off by
+	 * default.
+	 */
+	public void setPackPrimitiveArrays(boolean packPrimitiveArrays) {
+		this.packPrimitiveArrays = packPrimitiveArrays;
+	}
+
+	/**
+	 * The number of sibling lists fetched ahead in the background by the
+	 * iterators returned from {@link #traverseFrom}, defaults to 0 which
+	 * fetches each list on the calling thread when the traversal reaches it
+	 */
+	public void setTraversalPrefetch(int traversalPrefetch) {
+		this.traversalPrefetch = Math.max(0, traversalPrefetch);
+	}
+
+	/**
+	 * The executor used for traversal prefetches, if not set and prefetching
+	 * is enabled a small pool is created on first use
+	 */
+	public synchronized void setTraversalExecutor(Executor traversalExecutor) {
+		this.traversalExecutor = traversalExecutor;
+	}
+
+	private synchronized Executor getTraversalExecutor() {
+		if (traversalExecutor == null) {
+			traversalExecutor = newDefaultExecutor(4);
+		}
+		return traversalExecutor;
+	}
+
+	/**
+	 * The default number of leaves {@link #renderIdentifier} resolves at the
+	 * same time when rendering a collection, defaults to 1 which renders
+	 * sequentially on the calling thread. A {@link RenderingParallelismEntity}
+	 * in the reference context overrides this for calls made with that
+	 * context.
+	 */
+	public void setRenderParallelism(int renderParallelism) {
+		this.renderParallelism = Math.max(1, renderParallelism);
+	}
+
+	/**
+	 * The executor parallel renders run on, bounding the number of threads
+	 * used by all concurrent renders together. If not set and a parallel
+	 * render is requested a pool of 16 threads is created on first use.
+	 */
+	public synchronized void setRenderExecutor(Executor renderExecutor) {
+		this.renderExecutor = renderExecutor;
+	}
+
+	private synchronized Executor getRenderExecutor() {
+		if (renderExecutor == null) {
+			renderExecutor = newDefaultExecutor(16);
+		}
+		return renderExecutor;
+	}
+
+	private static Executor newDefaultExecutor(int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				Executors.defaultThreadFactory());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * The rendering parallelism for calls made with the given context
+	 */
+	private int getRenderParallelism(ReferenceContext context) {
+		List<RenderingParallelismEntity> entities = context
+				.getEntities(RenderingParallelismEntity.class);
+		if (entities != null && !entities.isEmpty()) {
+			return entities.get(0).getLimit();
+		}
+		return renderParallelism;
+	}
+
+	/**
+	 * Whether the object would be registered as a packed array at this depth
+	 */
+	boolean isPacked(Object o, int currentDepth) {
+		return packPrimitiveArrays && currentDepth == 1
+				&& PackedArrayReference.canPack(o);
+	}
+
 	private T2Reference getNameForObject(Object o, int currentDepth,
 			boolean useConverterSPI, ReferenceContext context)
 			throws ReferenceServiceException {
@@ -167,6 +316,96 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 			return (T2Reference) o;
 		}
 		
+		if (isPacked(o, currentDepth)) {
+			PackedArrayReference packedArray = new PackedArrayReference(o);
+			try {
+				Set<ExternalReferenceSPI> references = new HashSet<ExternalReferenceSPI>();
+				references.add(packedArray);
+				ReferenceSet rs = referenceSetService.registerReferenceSet(
+						references, context);
+				return PackedArrays.listReference(rs.getId(), packedArray
+						.getLength());
+			} catch (ReferenceSetServiceException rsse) {
+				throw new ReferenceServiceException(rsse);
+			}
+		}
+
+		o = toList(o);
+
+		// Next check lists.
+		if (o instanceof List) {
+			if (currentDepth < 1) {
+				throw new ReferenceServiceException("Cannot register list at depth " + currentDepth);
+			}
+			List<?> l = (List<?>) o;
+			// If the list is empty then register a new empty list of the
+			// appropriate depth and return it
+			if (l.isEmpty()) {
+				try {
+					IdentifiedList<T2Reference> newList = listService
+							.registerEmptyList(currentDepth, context);
+					return newList.getId();
+				} catch (ListServiceException lse) {
+					throw new ReferenceServiceException(lse);
+				}
+			}
+			// Otherwise construct a new list of T2Reference and register it,
+			// calling the getNameForObject method on all children of the list
+			// to construct the list of references
+			else {
+				List<T2Reference> references = new ArrayList<T2Reference>();
+				for (Object item : l) {
+					// Recursively call this method with a depth one lower than
+					// the current depth
+					references.add(getNameForObject(item, currentDepth - 1,
+							useConverterSPI, context));
+				}
+				try {
+					IdentifiedList<T2Reference> newList = listService
+							.registerList(references, context);
+					return newList.getId();
+				} catch (ListServiceException lse) {
+					throw new ReferenceServiceException(lse);
+				}
+			}
+		} else {
+			o = convertLeaf(o, currentDepth, useConverterSPI, context);
+			// Have either a Throwable or an ExternalReferenceSPI
+			if (o instanceof Throwable) {
+				// Wrap in an ErrorDocument and return the ID
+				try {
+					ErrorDocument doc = errorDocumentService.registerError(
+							(Throwable) o, currentDepth, context);
+					return doc.getId();
+				} catch (ErrorDocumentServiceException edse) {
+					throw new ReferenceServiceException(edse);
+				}
+			} else if (o instanceof ExternalReferenceSPI) {
+				if (currentDepth != 0) {
+					throw new ReferenceServiceException("Cannot register external references at depth " + currentDepth);
+				}
+				try {
+					Set<ExternalReferenceSPI> references = new HashSet<ExternalReferenceSPI>();
+					references.add((ExternalReferenceSPI) o);
+					ReferenceSet rs = referenceSetService
+							.registerReferenceSet(references, context);
+					return rs.getId();
+				} catch (ReferenceSetServiceException rsse) {
+					throw new ReferenceServiceException(rsse);
+				}
+			}
+		}
+		throw new ReferenceServiceException(
+				"Should never see this, reference registration"
+						+ " logic has fallen off the end of the"
+						+ " world, check the code!");
+	}
+
+	/**
+	 * Arrays, other than byte arrays, and collections which aren't lists are
+	 * registered as lists, convert them here.
+	 */
+	static Object toList(Object o) {
 		if (o.getClass().isArray()) {
 			Class<?> elementType = o.getClass().getComponentType();
 			if (elementType.getCanonicalName().equals("char")) {
@@ -235,111 +474,53 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 			cList.addAll((Collection)o);
 			o = cList;
 		}
-		// Next check lists.
-		if (o instanceof List) {
-			if (currentDepth < 1) {
-				throw new ReferenceServiceException("Cannot register list at depth " + currentDepth);
-			}
-			List<?> l = (List<?>) o;
-			// If the list is empty then register a new empty list of the
-			// appropriate depth and return it
-			if (l.isEmpty()) {
-				try {
-					IdentifiedList<T2Reference> newList = listService
-							.registerEmptyList(currentDepth, context);
-					return newList.getId();
-				} catch (ListServiceException lse) {
-					throw new ReferenceServiceException(lse);
-				}
-			}
-			// Otherwise construct a new list of T2Reference and register it,
-			// calling the getNameForObject method on all children of the list
-			// to construct the list of references
-			else {
-				List<T2Reference> references = new ArrayList<T2Reference>();
-				for (Object item : l) {
-					// Recursively call this method with a depth one lower than
-					// the current depth
-					references.add(getNameForObject(item, currentDepth - 1,
-							useConverterSPI, context));
-				}
-				try {
-					IdentifiedList<T2Reference> newList = listService
-							.registerList(references, context);
-					return newList.getId();
-				} catch (ListServiceException lse) {
-					throw new ReferenceServiceException(lse);
-				}
-			}
-		} else {
-			// Neither a list nor an already identified object, first thing is
-			// to engage the converters if enabled. Only engage if we don't
-			// already have a Throwable or an ExternalReferenceSPI instance
-			if (useConverterSPI && (o instanceof Throwable == false)
-					&& (o instanceof ExternalReferenceSPI == false)) {
-				if (currentDepth != 0) {
-					throw new ReferenceServiceException(
-							"Cannot register object " + o + " at depth "
-									+ currentDepth);
-				}
-				
-				for (ValueToReferenceConverterSPI converter : converterRegistry) {
-					if (converter.canConvert(o, context)) {
-						try {
-							ExternalReferenceSPI ers = converter.convert(o,
-									context);
-							o = ers;
-							break;
-						} catch (ValueToReferenceConversionException vtrce) {
-							// Fail, but that doesn't matter at the moment as
-							// there may be more converters to try. TODO - log
-							// this!
-						}
-					}
-				}
-			}
-			// If the object is neither a Throwable nor an ExternalReferenceSPI
-			// instance at this point we should fail the registration process,
-			// this means either that the conversion process wasn't enabled or
-			// that it failed to map the object type correctly.
-			if ((o instanceof Throwable == false)
-					&& (o instanceof ExternalReferenceSPI == false)) {
+		return o;
+	}
+
+	/**
+	 * Turn an object to be registered as a single item into a Throwable or an
+	 * ExternalReferenceSPI, using the converters if enabled.
+	 */
+	Object convertLeaf(Object o, int currentDepth, boolean useConverterSPI,
+			ReferenceContext context) throws ReferenceServiceException {
+		// Neither a list nor an already identified object, first thing is
+		// to engage the converters if enabled. Only engage if we don't
+		// already have a Throwable or an ExternalReferenceSPI instance
+		if (useConverterSPI && (o instanceof Throwable == false)
+				&& (o instanceof ExternalReferenceSPI == false)) {
+			if (currentDepth != 0) {
 				throw new ReferenceServiceException(
-						"Failed to register object " + o + ", found a type '"
-								+ o.getClass().getCanonicalName()
-								+ "' which cannot currently be registered with the reference manager");
+						"Cannot register object " + o + " at depth "
+								+ currentDepth);
 			}
-			// Have either a Throwable or an ExternalReferenceSPI
-			else {
-				if (o instanceof Throwable) {
-					// Wrap in an ErrorDocument and return the ID
-					try {
-						ErrorDocument doc = errorDocumentService.registerError(
-								(Throwable) o, currentDepth, context);
-						return doc.getId();
-					} catch (ErrorDocumentServiceException edse) {
-						throw new ReferenceServiceException(edse);
-					}
-				} else if (o instanceof ExternalReferenceSPI) {
-					if (currentDepth != 0) {
-						throw new ReferenceServiceException("Cannot register external references at depth " + currentDepth);
-					}
+			
+			for (ValueToReferenceConverterSPI converter : converterRegistry) {
+				if (converter.canConvert(o, context)) {
 					try {
-						Set<ExternalReferenceSPI> references = new HashSet<ExternalReferenceSPI>();
-						references.add((ExternalReferenceSPI) o);
-						ReferenceSet rs = referenceSetService
-								.registerReferenceSet(references, context);
-						return rs.getId();
-					} catch (ReferenceSetServiceException rsse) {
-						throw new ReferenceServiceException(rsse);
+						ExternalReferenceSPI ers = converter.convert(o,
+								context);
+						o = ers;
+						break;
+					} catch (ValueToReferenceConversionException vtrce) {
+						// Fail, but that doesn't matter at the moment as
+						// there may be more converters to try. TODO - log
+						// this!
 					}
 				}
 			}
 		}
-		throw new ReferenceServiceException(
-				"Should never see this, reference registration"
-						+ " logic has fallen off the end of the"
-						+ " world, check the code!");
+		// If the object is neither a Throwable nor an ExternalReferenceSPI
+		// instance at this point we should fail the registration process,
+		// this means either that the conversion process wasn't enabled or
+		// that it failed to map the object type correctly.
+		if ((o instanceof Throwable == false)
+				&& (o instanceof ExternalReferenceSPI == false)) {
+			throw new ReferenceServiceException(
+					"Failed to register object " + o + ", found a type '"
+							+ o.getClass().getCanonicalName()
+							+ "' which cannot currently be registered with the reference manager");
+		}
+		return o;
 	}
 
 	/**
@@ -460,7 +641,22 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 					+ leafClass.getCanonicalName() + "'");
 		}
 
-		// Render the identifier
+		// Render the identifier, resolving the leaves of a collection
+		// concurrently if a parallelism above one applies to this context
+		int parallelism = getRenderParallelism(context);
+		if (parallelism > 1
+				&& id.getReferenceType() == T2ReferenceType.IdentifiedList) {
+			final Class<?> finalLeafClass = leafClass;
+			final ReferenceContext finalContext = context;
+			final StreamToValueConverterSPI<?> finalConverter = converter;
+			return new ParallelRenderer(listService,
+					new ParallelRenderer.LeafRenderer() {
+						public Object render(T2Reference leaf) {
+							return renderIdentifierInner(leaf, finalLeafClass,
+									finalContext, finalConverter);
+						}
+					}, getRenderExecutor(), parallelism).render(id);
+		}
 		return renderIdentifierInner(id, leafClass, context, converter);
 	}
 
@@ -472,6 +668,19 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 		switch (id.getReferenceType()) {
 
 		case IdentifiedList:
+			if (PackedArrays.isPackedList(id)) {
+				// Render the elements straight from the packed array if they
+				// are the type wanted, unpacking each only when it is read
+				PackedArrayReference packedArray = PackedArrays
+						.findPackedArray(referenceSetService
+								.getReferenceSet(PackedArrays
+										.backingReference(id)));
+				if (packedArray != null
+						&& leafClass.isAssignableFrom(packedArray
+								.getElementClass())) {
+					return packedArray.asList();
+				}
+			}
 			try {
 				IdentifiedList<T2Reference> idList = listService.getList(id);
 				if (idList == null) {
@@ -563,60 +772,10 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 			throw new ReferenceServiceException(
 					"Cannot traverse to a negative depth");
 		}
-		List<ContextualizedT2Reference> workingSet = new ArrayList<ContextualizedT2Reference>();
-		workingSet.add(new ContextualizedT2ReferenceImpl(source, new int[0]));
-		int currentDepth = source.getDepth();
-		while (currentDepth > desiredDepth) {
-			List<ContextualizedT2Reference> newSet = new ArrayList<ContextualizedT2Reference>();
-			for (ContextualizedT2Reference ci : workingSet) {
-				T2ReferenceImpl ref = (T2ReferenceImpl) ci.getReference();
-				switch (ref.getReferenceType()) {
-				case IdentifiedList:
-					try {
-						List<T2Reference> children = getListService().getList(
-								ref);
-						int position = 0;
-						for (T2Reference child : children) {
-							newSet.add(new ContextualizedT2ReferenceImpl(child,
-									addIndex(ci.getIndex(), position++)));
-						}
-					} catch (ListServiceException lse) {
-						throw new ReferenceServiceException(lse);
-					}
-					break;
-				case ReferenceSet:
-					throw new ReferenceServiceException(
-							"Should never be trying to drill inside a data document identifier");
-				case ErrorDocument:
-					newSet.add(new ContextualizedT2ReferenceImpl(ref
-							.getDeeperErrorReference(), addIndex(ci.getIndex(),
-							0)));
-					break;
-				default:
-					throw new ReferenceServiceException(
-							"Fallen off end of case statement, unknown reference type!");
-				}
-			}
-			currentDepth--;
-			workingSet = newSet;
-		}
-		return workingSet.iterator();
-	}
-
-	/**
-	 * Append to an int[]
-	 * 
-	 * @param current
-	 *            current int[]
-	 * @param head
-	 *            new int item to append to the current array
-	 * @return new array of int with the head added
-	 */
-	private static int[] addIndex(int[] current, int head) {
-		int[] result = new int[current.length + 1];
-		System.arraycopy(current, 0, result, 0, current.length);
-		result[current.length] = head;
-		return result;
+		int levels = Math.max(0, source.getDepth() - desiredDepth);
+		return new TraversalIterator(getListService(), source, levels,
+				traversalPrefetch, traversalPrefetch > 0 ? getTraversalExecutor()
+						: null);
 	}
 
 	/**
@@ -697,7 +856,12 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 		boolean result=false;
 		switch (reference.getReferenceType()) {
 		case IdentifiedList:
-			result=listService.delete(reference);
+			if (PackedArrays.isPackedList(reference)) {
+				result = referenceSetService.delete(PackedArrays
+						.backingReference(reference));
+			} else {
+				result=listService.delete(reference);
+			}
 			break;
 		case ReferenceSet:
 			result=referenceSetService.delete(reference);
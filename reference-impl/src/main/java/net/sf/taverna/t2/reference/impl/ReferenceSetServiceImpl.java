@@ -20,7 +20,10 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import net.sf.taverna.t2.reference.DaoException;
@@ -44,6 +47,25 @@ import net.sf.taverna.t2.reference.T2Reference;
 public class ReferenceSetServiceImpl extends AbstractReferenceSetServiceImpl
 		implements ReferenceSetService {
 
+	private static final int MAX_PACKED_ARRAYS_CACHED = 16;
+
+	/**
+	 * The packed arrays most recently read for their elements, by backing
+	 * reference set, so that going through the elements of an array doesn't
+	 * load it again for each one. Packed arrays are never updated, only
+	 * deleted.
+	 */
+	@SuppressWarnings("serial")
+	private final Map<T2Reference, PackedArrayReference> packedArrays = Collections
+			.synchronizedMap(new LinkedHashMap<T2Reference, PackedArrayReference>(
+					MAX_PACKED_ARRAYS_CACHED, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<T2Reference, PackedArrayReference> eldest) {
+					return size() > MAX_PACKED_ARRAYS_CACHED;
+				}
+			});
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -51,12 +73,36 @@ public class ReferenceSetServiceImpl extends AbstractReferenceSetServiceImpl
 			throws ReferenceSetServiceException {
 		checkDao();
 		try {
+			if (PackedArrays.isPackedElement(id)) {
+				return getPackedElement(id);
+			}
 			return referenceSetDao.get(id);
 		} catch (DaoException de) {
 			throw new ReferenceSetServiceException(de);
 		}
 	}
 
+	/**
+	 * Build the reference set for a single element of a packed array, this
+	 * is never stored
+	 */
+	private ReferenceSet getPackedElement(T2Reference id) throws DaoException {
+		T2Reference backing = PackedArrays.backingReference(id);
+		PackedArrayReference packedArray = packedArrays.get(backing);
+		if (packedArray == null) {
+			packedArray = PackedArrays.findPackedArray(referenceSetDao
+					.get(backing));
+			if (packedArray == null) {
+				return null;
+			}
+			packedArrays.put(backing, packedArray);
+		}
+		Set<ExternalReferenceSPI> references = new HashSet<ExternalReferenceSPI>();
+		references.add(new PackedArrayElementReference(packedArray
+				.getElement(PackedArrays.index(id))));
+		return new ReferenceSetImpl(references, T2ReferenceImpl.getAsImpl(id));
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -91,7 +137,9 @@ public class ReferenceSetServiceImpl extends AbstractReferenceSetServiceImpl
 						throw new ReferenceSetAugmentationException(
 								"Can't add new references back into existing reference set instance");
 					}
-					referenceSetDao.update(rs);
+					if (!PackedArrays.isPackedElement(id)) {
+						referenceSetDao.update(rs);
+					}
 				}
 				return rs;
 			}
@@ -138,6 +186,7 @@ public class ReferenceSetServiceImpl extends AbstractReferenceSetServiceImpl
 	public boolean delete(T2Reference reference)
 			throws ReferenceServiceException {
 		checkDao();
+		packedArrays.remove(T2ReferenceImpl.getAsImpl(reference));
 		ReferenceSet set=referenceSetDao.get(reference);
 		if (set==null) return false;
 		return referenceSetDao.delete(set);
@@ -146,6 +195,7 @@ public class ReferenceSetServiceImpl extends AbstractReferenceSetServiceImpl
 	public void deleteReferenceSetsForWorkflowRun(String workflowRunId)
 			throws ReferenceServiceException {
 		checkDao();
+		packedArrays.clear();
 		referenceSetDao.deleteReferenceSetsForWFRun(workflowRunId);
 	}
 }
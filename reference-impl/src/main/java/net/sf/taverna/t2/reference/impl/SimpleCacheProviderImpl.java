@@ -33,7 +33,8 @@ import org.apache.commons.logging.LogFactory;
 /**
  * Completely naive cache provider that just stores everything in a map. This
  * <em>will</em> run out of memory as it makes no attempt to evict old items,
- * it's really just here as a test!
+ * it's really just here as a test! Use {@link BoundedCacheProviderImpl} for a
+ * cache which can be left running.
  * 
  * @author Tom Oinn
  * 
@@ -45,12 +46,17 @@ public class SimpleCacheProviderImpl implements ReferenceServiceCacheProvider {
 	private Map<T2Reference, Identified> cache = new HashMap<T2Reference, Identified>();
 
 	public Identified get(T2Reference id) {
-		log.debug("Get " + id.toString() + " (" + cache.containsKey(id) + ")");
+		if (log.isDebugEnabled()) {
+			log.debug("Get " + id.toString() + " (" + cache.containsKey(id)
+					+ ")");
+		}
 		return cache.get(id);
 	}
 
 	public void put(Identified i) {
-		log.debug("Put " + i.getId().toString());
+		if (log.isDebugEnabled()) {
+			log.debug("Put " + i.getId().toString());
+		}
 		cache.put(i.getId(), i);
 	}
 
@@ -20,6 +20,9 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import net.sf.taverna.t2.reference.T2ReferenceGenerator;
 
 /**
@@ -62,4 +65,15 @@ public class SimpleT2ReferenceGenerator extends AbstractT2ReferenceGenerator imp
 		return localPrefix + (counter++);
 	}
 
+	@Override
+	protected synchronized List<String> getNextLocalParts(int count) {
+		List<String> localParts = new ArrayList<String>(count);
+		int first = counter;
+		counter += count;
+		for (int i = first; i < counter; i++) {
+			localParts.add(localPrefix + i);
+		}
+		return localParts;
+	}
+
 }
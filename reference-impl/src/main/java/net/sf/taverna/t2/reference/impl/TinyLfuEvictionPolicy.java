@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.util.Arrays;
+
+import net.sf.taverna.t2.reference.T2Reference;
+
+/**
+ * Least recently used eviction with a TinyLFU admission filter. An approximate
+ * access frequency is kept for every key seen, including keys no longer in the
+ * cache, in a count-min sketch whose counters are halved periodically so old
+ * popularity fades. When a newly inserted entry takes the cache over its bounds
+ * it is only kept if it has been requested more often than the least recently
+ * used entry it would displace, otherwise the new entry itself is evicted.
+ * <p>
+ * This protects entries which are read repeatedly, such as the lists and
+ * reference sets behind a workflow's inputs, from being flushed out by a scan
+ * of items which are each read only once.
+ */
+public class TinyLfuEvictionPolicy implements CacheEvictionPolicy {
+
+	private static final int DEPTH = 4;
+
+	private static final int MAX_COUNT = 15;
+
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35,
+			0x27D4EB2F };
+
+	private final LruEvictionPolicy recency = new LruEvictionPolicy();
+
+	private final int[][] counters;
+
+	private final int mask;
+
+	private final int sampleSize;
+
+	private int samples = 0;
+
+	/**
+	 * Sketch sized for about 10000 distinct hot keys
+	 */
+	public TinyLfuEvictionPolicy() {
+		this(10000);
+	}
+
+	/**
+	 * @param expectedEntries
+	 *            roughly the number of entries the cache holds, used to size
+	 *            the frequency sketch
+	 */
+	public TinyLfuEvictionPolicy(int expectedEntries) {
+		int width = 16;
+		while (width < expectedEntries && width < (1 << 24)) {
+			width <<= 1;
+		}
+		counters = new int[DEPTH][width];
+		mask = width - 1;
+		sampleSize = 10 * width;
+	}
+
+	public void recordInsertion(T2Reference id) {
+		increment(id);
+		recency.recordInsertion(id);
+	}
+
+	public void recordAccess(T2Reference id) {
+		increment(id);
+		recency.recordAccess(id);
+	}
+
+	public void recordRemoval(T2Reference id) {
+		recency.recordRemoval(id);
+	}
+
+	public T2Reference selectVictim(T2Reference candidate) {
+		if (candidate == null) {
+			return recency.selectVictim(null);
+		}
+		T2Reference victim = recency.eldestExcept(candidate);
+		if (victim == null) {
+			return candidate;
+		}
+		if (frequency(candidate) > frequency(victim)) {
+			return victim;
+		}
+		return candidate;
+	}
+
+	public void clear() {
+		recency.clear();
+		for (int[] row : counters) {
+			Arrays.fill(row, 0);
+		}
+		samples = 0;
+	}
+
+	/**
+	 * Estimated number of recent accesses to the key
+	 */
+	int frequency(T2Reference id) {
+		int hash = spread(id.hashCode());
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < DEPTH; i++) {
+			frequency = Math.min(frequency, counters[i][index(hash, i)]);
+		}
+		return frequency;
+	}
+
+	private void increment(T2Reference id) {
+		int hash = spread(id.hashCode());
+		boolean added = false;
+		for (int i = 0; i < DEPTH; i++) {
+			int index = index(hash, i);
+			if (counters[i][index] < MAX_COUNT) {
+				counters[i][index]++;
+				added = true;
+			}
+		}
+		if (added && ++samples >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * Halve all counters so that frequencies reflect recent history
+	 */
+	private void reset() {
+		for (int[] row : counters) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] >>>= 1;
+			}
+		}
+		samples /= 2;
+	}
+
+	private int index(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x45D9F3B;
+		return hash ^ (hash >>> 16);
+	}
+
+}
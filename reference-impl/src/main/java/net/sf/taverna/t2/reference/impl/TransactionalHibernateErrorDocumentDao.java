@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
 import java.util.List;
 
 import net.sf.taverna.t2.reference.DaoException;
@@ -32,6 +33,7 @@ import net.sf.taverna.t2.reference.annotations.GetIdentifiedOperation;
 import net.sf.taverna.t2.reference.annotations.PutIdentifiedOperation;
 
 import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 
 /**
@@ -94,6 +96,31 @@ public class TransactionalHibernateErrorDocumentDao implements ErrorDocumentDao
 
 	@PutIdentifiedOperation
 	public void store(ErrorDocument theDocument) throws DaoException {
+		checkStorable(theDocument);
+		try {
+			sessionFactory.getCurrentSession().save(theDocument);
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	@PutIdentifiedOperation
+	public void storeAll(final Collection<ErrorDocument> errorDocuments)
+			throws DaoException {
+		for (ErrorDocument theDocument : errorDocuments) {
+			checkStorable(theDocument);
+		}
+		try {
+			Session session = sessionFactory.getCurrentSession();
+			for (ErrorDocument theDocument : errorDocuments) {
+				session.save(theDocument);
+			}
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	private void checkStorable(ErrorDocument theDocument) throws DaoException {
 		if (theDocument.getId() == null) {
 			throw new DaoException(
 					"Supplied error document set has a null ID, allocate "
@@ -104,13 +131,7 @@ public class TransactionalHibernateErrorDocumentDao implements ErrorDocumentDao
 					+ "T2ReferenceType.ErrorDocument, something has probably "
 					+ "gone badly wrong somewhere earlier!");
 		}
-		if (theDocument instanceof ErrorDocumentImpl) {
-			try {
-				sessionFactory.getCurrentSession().save(theDocument);
-			} catch (Exception ex) {
-				throw new DaoException(ex);
-			}
-		} else {
+		if (!(theDocument instanceof ErrorDocumentImpl)) {
 			throw new DaoException(
 					"Supplied ErrorDocument not an instance of ErrorDocumentImpl");
 		}
@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
 import java.util.List;
 
 import net.sf.taverna.t2.reference.DaoException;
@@ -32,6 +33,7 @@ import net.sf.taverna.t2.reference.annotations.GetIdentifiedOperation;
 import net.sf.taverna.t2.reference.annotations.PutIdentifiedOperation;
 
 import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 
 /**
@@ -95,6 +97,31 @@ public class TransactionalHibernateListDao implements ListDao {
 
 	@PutIdentifiedOperation
 	public void store(IdentifiedList<T2Reference> theList) throws DaoException {
+		checkStorable(theList);
+		try {
+			sessionFactory.getCurrentSession().save(theList);
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	@PutIdentifiedOperation
+	public void storeAll(final Collection<IdentifiedList<T2Reference>> lists)
+			throws DaoException {
+		for (IdentifiedList<T2Reference> theList : lists) {
+			checkStorable(theList);
+		}
+		try {
+			Session session = sessionFactory.getCurrentSession();
+			for (IdentifiedList<T2Reference> theList : lists) {
+				session.save(theList);
+			}
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	private void checkStorable(IdentifiedList<T2Reference> theList) throws DaoException {
 		if (theList.getId() == null) {
 			throw new DaoException("Supplied list set has a null ID, allocate "
 					+ "an ID before calling the store method in the dao.");
@@ -104,13 +131,7 @@ public class TransactionalHibernateListDao implements ListDao {
 					+ "T2ReferenceType.IdentifiedList, something has probably "
 					+ "gone badly wrong somewhere earlier!");
 		}
-		if (theList instanceof T2ReferenceListImpl) {
-			try {
-				sessionFactory.getCurrentSession().save(theList);
-			} catch (Exception ex) {
-				throw new DaoException(ex);
-			}
-		} else {
+		if (!(theList instanceof T2ReferenceListImpl)) {
 			throw new DaoException(
 					"Supplied identifier list not an instance of T2ReferenceList");
 		}
@@ -20,6 +20,7 @@
  ******************************************************************************/
 package net.sf.taverna.t2.reference.impl;
 
+import java.util.Collection;
 import java.util.List;
 
 import net.sf.taverna.t2.reference.DaoException;
@@ -32,6 +33,7 @@ import net.sf.taverna.t2.reference.annotations.GetIdentifiedOperation;
 import net.sf.taverna.t2.reference.annotations.PutIdentifiedOperation;
 
 import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 
 /**
@@ -70,6 +72,31 @@ public class TransactionalHibernateReferenceSetDao implements ReferenceSetDao {
 	 */
 	@PutIdentifiedOperation
 	public void store(ReferenceSet rs) throws DaoException {
+		checkStorable(rs);
+		try {
+			sessionFactory.getCurrentSession().save(rs);
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	@PutIdentifiedOperation
+	public void storeAll(final Collection<ReferenceSet> referenceSets)
+			throws DaoException {
+		for (ReferenceSet rs : referenceSets) {
+			checkStorable(rs);
+		}
+		try {
+			Session session = sessionFactory.getCurrentSession();
+			for (ReferenceSet rs : referenceSets) {
+				session.save(rs);
+			}
+		} catch (Exception ex) {
+			throw new DaoException(ex);
+		}
+	}
+
+	private void checkStorable(ReferenceSet rs) throws DaoException {
 		if (rs.getId() == null) {
 			throw new DaoException(
 					"Supplied reference set has a null ID, allocate "
@@ -81,13 +108,7 @@ public class TransactionalHibernateReferenceSetDao implements ReferenceSetDao {
 							+ "T2ReferenceType.ReferenceSet, something has probably "
 							+ "gone badly wrong somewhere earlier!");
 		}
-		if (rs instanceof ReferenceSetImpl) {
-			try {
-				sessionFactory.getCurrentSession().save(rs);
-			} catch (Exception ex) {
-				throw new DaoException(ex);
-			}
-		} else {
+		if (!(rs instanceof ReferenceSetImpl)) {
 			throw new DaoException(
 					"Supplied reference set not an instance of ReferenceSetImpl");
 		}
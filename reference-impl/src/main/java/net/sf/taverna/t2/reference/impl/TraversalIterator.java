@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.sf.taverna.t2.reference.ContextualizedT2Reference;
+import net.sf.taverna.t2.reference.ListService;
+import net.sf.taverna.t2.reference.ListServiceException;
+import net.sf.taverna.t2.reference.ReferenceServiceException;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+/**
+ * Depth first, lazy iterator behind
+ * {@link ReferenceServiceImpl#traverseFrom(T2Reference, int)}. Lists are
+ * fetched from the list service only when the traversal reaches them, so the
+ * first reference is available after a single fetch per level and only the
+ * lists on the path to the current position are held in memory. References
+ * are returned in the same order as a level by level traversal would produce
+ * them.
+ * <p>
+ * If a prefetch count and executor are supplied, the next few sibling lists
+ * the traversal is going to descend into are fetched in the background while
+ * the current one is being consumed.
+ * 
+ */
+class TraversalIterator implements Iterator<ContextualizedT2Reference> {
+
+	private final ListService listService;
+
+	private final int levels;
+
+	private final int prefetch;
+
+	private final Executor executor;
+
+	private final List<Frame> stack = new ArrayList<Frame>();
+
+	private ContextualizedT2Reference next = null;
+
+	/**
+	 * @param listService
+	 *            the list service used to resolve collection identifiers
+	 * @param source
+	 *            the reference to traverse from
+	 * @param levels
+	 *            how many levels to descend below the source, 0 returns the
+	 *            source itself
+	 * @param prefetch
+	 *            how many sibling lists to fetch ahead, 0 to fetch every list
+	 *            on the calling thread as it is reached
+	 * @param executor
+	 *            executor for prefetches, may be null if prefetch is 0
+	 */
+	TraversalIterator(ListService listService, T2Reference source,
+			int levels, int prefetch, Executor executor) {
+		this.listService = listService;
+		this.levels = levels;
+		this.prefetch = executor == null ? 0 : prefetch;
+		this.executor = executor;
+		if (levels == 0) {
+			next = new ContextualizedT2ReferenceImpl(source, new int[0]);
+		} else {
+			push(source, new int[0], null);
+		}
+	}
+
+	public boolean hasNext() {
+		if (next == null) {
+			next = advance();
+		}
+		return next != null;
+	}
+
+	public ContextualizedT2Reference next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		ContextualizedT2Reference result = next;
+		next = null;
+		return result;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private ContextualizedT2Reference advance() {
+		while (!stack.isEmpty()) {
+			Frame frame = stack.get(stack.size() - 1);
+			if (frame.position >= frame.children.size()) {
+				stack.remove(stack.size() - 1);
+				continue;
+			}
+			int position = frame.position++;
+			T2Reference child = frame.children.get(position);
+			int[] index = addIndex(frame.index, position);
+			if (stack.size() == levels) {
+				return new ContextualizedT2ReferenceImpl(child, index);
+			}
+			Future<List<T2Reference>> fetched = frame.prefetched
+					.remove(position);
+			frame.prefetchAhead();
+			push(child, index, fetched);
+		}
+		return null;
+	}
+
+	/**
+	 * Push a frame holding the children of the specified reference
+	 */
+	private void push(T2Reference ref, int[] index,
+			Future<List<T2Reference>> fetched) {
+		List<T2Reference> children;
+		switch (ref.getReferenceType()) {
+		case IdentifiedList:
+			children = fetched != null ? await(fetched) : getList(ref);
+			break;
+		case ReferenceSet:
+			throw new ReferenceServiceException(
+					"Should never be trying to drill inside a data document identifier");
+		case ErrorDocument:
+			children = Collections.singletonList((T2Reference) ((T2ReferenceImpl) ref)
+					.getDeeperErrorReference());
+			break;
+		default:
+			throw new ReferenceServiceException(
+					"Fallen off end of case statement, unknown reference type!");
+		}
+		Frame frame = new Frame(children, index);
+		stack.add(frame);
+		if (stack.size() < levels) {
+			frame.prefetchAhead();
+		}
+	}
+
+	private List<T2Reference> getList(T2Reference ref) {
+		List<T2Reference> list = listService.getList(ref);
+		if (list == null) {
+			throw new ListServiceException("No list found for " + ref);
+		}
+		return list;
+	}
+
+	private static List<T2Reference> await(Future<List<T2Reference>> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new ReferenceServiceException(
+					"Interrupted while waiting for a list to be fetched", ie);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new ReferenceServiceException(cause);
+		}
+	}
+
+	private static int[] addIndex(int[] current, int head) {
+		int[] result = new int[current.length + 1];
+		System.arraycopy(current, 0, result, 0, current.length);
+		result[current.length] = head;
+		return result;
+	}
+
+	/**
+	 * The children of one list on the path to the current position
+	 */
+	private class Frame {
+
+		final List<T2Reference> children;
+
+		final int[] index;
+
+		int position = 0;
+
+		/**
+		 * Position of the next child to consider for prefetching
+		 */
+		int prefetchPosition = 0;
+
+		final Map<Integer, Future<List<T2Reference>>> prefetched = new HashMap<Integer, Future<List<T2Reference>>>();
+
+		Frame(List<T2Reference> children, int[] index) {
+			this.children = children;
+			this.index = index;
+		}
+
+		/**
+		 * Start fetching the child lists in the window following the current
+		 * position
+		 */
+		void prefetchAhead() {
+			if (prefetch <= 0) {
+				return;
+			}
+			prefetchPosition = Math.max(prefetchPosition, position);
+			while (prefetchPosition < children.size()
+					&& prefetchPosition < position + prefetch) {
+				final T2Reference child = children.get(prefetchPosition);
+				if (child.getReferenceType() == T2ReferenceType.IdentifiedList) {
+					FutureTask<List<T2Reference>> task = new FutureTask<List<T2Reference>>(
+							new Callable<List<T2Reference>>() {
+								public List<T2Reference> call() {
+									return getList(child);
+								}
+							});
+					try {
+						executor.execute(task);
+						prefetched.put(prefetchPosition, task);
+					} catch (RejectedExecutionException ree) {
+						// Fetched on the calling thread when it is reached
+					}
+				}
+				prefetchPosition++;
+			}
+		}
+	}
+
+}
@@ -21,43 +21,172 @@
 package net.sf.taverna.t2.reference.impl;
 
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.sf.taverna.t2.reference.DaoException;
 import net.sf.taverna.t2.reference.Identified;
 import net.sf.taverna.t2.reference.T2Reference;
 
+import org.apache.log4j.Logger;
 import org.aspectj.lang.ProceedingJoinPoint;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * An aspect used to intercept calls to the various data access objects and
- * execute data writes on a thread limited executer with an unbounded blocking queue.
+ * execute data writes behind the caller on a small number of writer threads.
+ * <p>
+ * Writes are queued in arrival order and drained in batches of up to
+ * {@link #setBatchSize(int) batchSize} entities, a writer waiting up to
+ * {@link #setLingerMillis(long) lingerMillis} for a batch to fill. If a
+ * transaction manager is configured each batch is written in a single
+ * transaction, and so a single Hibernate session; should the batch fail its
+ * entities are retried individually. Repeated writes of the same
+ * {@link T2Reference} while the first is still queued are coalesced into one
+ * write of the latest state. The queue is bounded by
+ * {@link #setMaximumPending(int) maximumPending}, callers block when it is
+ * full rather than performing the write themselves. A store of a collection
+ * of entities is queued as a write of each of them, written by calling the
+ * same method with just that entity.
+ * <p>
+ * An entity that can't be written even on its own is dropped from the queue
+ * and the cache, and reported by the next {@link #flush(String)} of its
+ * workflow run or {@link #flush()}.
  * 
  * @author David Withers
  */
 public class WriteQueueAspect {
 
-	private Map<T2Reference, Identified> store = new ConcurrentHashMap<T2Reference, Identified>();
+	private static Logger logger = Logger.getLogger(WriteQueueAspect.class);
+
+	private ConcurrentMap<T2Reference, Identified> store = new ConcurrentHashMap<T2Reference, Identified>();
 	
 	private Map<T2Reference, SoftReference<Identified>> cache = new ConcurrentHashMap<T2Reference, SoftReference<Identified>>();
 
 	private ThreadPoolExecutor executer;
-	
+
+	private final int threads;
+
+	private int batchSize = 100;
+
+	private long lingerMillis = 10;
+
+	private int maximumPending = 10000;
+
+	private PlatformTransactionManager transactionManager;
+
+	/**
+	 * Guards all of the queue state below
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final Condition batchReady = lock.newCondition();
+
+	private final Condition written = lock.newCondition();
+
+	/**
+	 * Writes not yet picked up by a writer, in arrival order and keyed by the
+	 * id of the entity so that later writes can be coalesced
+	 */
+	private final LinkedHashMap<T2Reference, PendingWrite> pending = new LinkedHashMap<T2Reference, PendingWrite>();
+
+	/**
+	 * Ids currently being written, a further write to one of these is held
+	 * back until the first completes so that writes never overtake each other
+	 */
+	private final Set<T2Reference> inFlight = new HashSet<T2Reference>();
+
+	private final Map<String, Integer> outstandingByRun = new HashMap<String, Integer>();
+
+	/**
+	 * Ids that could not be written, by workflow run, until reported by a
+	 * flush
+	 */
+	private final Map<String, List<T2Reference>> failedByRun = new HashMap<String, List<T2Reference>>();
+
+	private int outstanding = 0;
+
+	private int activeWriters = 0;
+
+	private int flushRequests = 0;
+
 	public WriteQueueAspect() {
 		this(5);
 	}
 	
 	public WriteQueueAspect(int threads) {
-		executer = new ThreadPoolExecutor(threads, threads, 60,
+		this.threads = Math.max(1, threads);
+		executer = new ThreadPoolExecutor(this.threads, this.threads, 60,
 				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), Executors
-						.defaultThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+						.defaultThreadFactory());
+		executer.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * The maximum number of entities written in a single batch, defaults to
+	 * 100
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * How long a writer waits for a batch to fill before writing what it has,
+	 * defaults to 10ms
+	 */
+	public void setLingerMillis(long lingerMillis) {
+		this.lingerMillis = Math.max(0, lingerMillis);
+	}
+
+	public long getLingerMillis() {
+		return lingerMillis;
+	}
+
+	/**
+	 * The maximum number of queued writes before callers block, defaults to
+	 * 10000
+	 */
+	public void setMaximumPending(int maximumPending) {
+		this.maximumPending = Math.max(1, maximumPending);
+	}
+
+	public int getMaximumPending() {
+		return maximumPending;
+	}
+
+	/**
+	 * If set each batch is written within a single transaction from this
+	 * manager, otherwise each write runs as it would without the aspect.
+	 */
+	public void setTransactionManager(
+			PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
 	}
-	
 	
 	/**
 	 * Handle a 'get by T2Reference' operation on a Dao
@@ -110,8 +239,9 @@ public class WriteQueueAspect {
 
 	/**
 	 * Called around a write or update operation on the backing store, writes
-	 * through to the cache after modifying the state of the backing store and
-	 * before returning from the dao method
+	 * through to the cache and queues the write to the backing store before
+	 * returning from the dao method. Blocks if the write queue is full. The
+	 * method may store a single {@link Identified} or a collection of them.
 	 * 
 	 * @param pjp
 	 *            join point representing the ongoing method invocation to cache
@@ -120,36 +250,327 @@ public class WriteQueueAspect {
 	 */
 	public void putObject(final ProceedingJoinPoint pjp) throws DaoException {
 
-		// Get the Identified being stored by the method we're advising
-		final Identified storedObject = (Identified) pjp.getArgs()[0];
+		// Get the Identified, or collection of them, being stored by the
+		// method we're advising
+		Object stored = pjp.getArgs()[0];
+		if (stored instanceof Collection) {
+			for (Object storedObject : (Collection<?>) stored) {
+				queueWrite(pjp, (Identified) storedObject, true);
+			}
+		} else {
+			queueWrite(pjp, (Identified) stored, false);
+		}
+	}
 
-		Runnable task = new Runnable() {
+	private void queueWrite(ProceedingJoinPoint pjp,
+			Identified storedObject, boolean inCollection) throws DaoException {
+		final T2Reference id = storedObject.getId();
 
-			public void run() {
-				try {
-					// Run the store or update method
-					pjp.proceed();
-					store.remove(storedObject.getId());
-				} catch (Throwable e) {
-					if (e instanceof DaoException) {
-						throw ((DaoException) e);
-					} else {
-						throw new DaoException(
-								"Unexpected exception type during aspect "
-										+ "based invocation", e);
-					}
+		cache.put(id, new SoftReference<Identified>(storedObject));
+		store.put(id, storedObject);
+
+		lock.lock();
+		try {
+			while (true) {
+				PendingWrite existing = pending.get(id);
+				if (existing != null) {
+					// Coalesce with the write already queued for this id
+					existing.latest = storedObject;
+					return;
+				}
+				if (pending.size() < maximumPending) {
+					break;
+				}
+				notFull.await();
+			}
+			pending.put(id, new PendingWrite(pjp, storedObject, inCollection));
+			outstanding++;
+			String runId = id.getNamespacePart();
+			Integer count = outstandingByRun.get(runId);
+			outstandingByRun.put(runId, count == null ? 1 : count + 1);
+			if (pending.size() >= batchSize) {
+				batchReady.signal();
+			}
+			startWriterIfNeeded();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new DaoException("Interrupted while waiting to queue write of "
+					+ id, ie);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Block until all writes queued so far for entities in the given workflow
+	 * run have reached the backing store, allowing the run to be read from
+	 * elsewhere. Writes for other runs are drained along the way but not
+	 * waited for.
+	 * 
+	 * @param workflowRunId
+	 *            the namespace part of the references to wait for
+	 * @throws DaoException
+	 *             if any entity of the run could not be written since the
+	 *             last flush reporting it
+	 */
+	public void flush(String workflowRunId) throws InterruptedException,
+			DaoException {
+		lock.lock();
+		try {
+			flushRequests++;
+			try {
+				batchReady.signalAll();
+				startWriterIfNeeded();
+				while (outstandingByRun.containsKey(workflowRunId)) {
+					written.await();
+				}
+			} finally {
+				flushRequests--;
+			}
+			List<T2Reference> failed = failedByRun.remove(workflowRunId);
+			if (failed != null) {
+				throw new DaoException("Could not write " + failed.size()
+						+ " entities of workflow run " + workflowRunId + ": "
+						+ failed);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Block until every write queued so far has reached the backing store
+	 * 
+	 * @throws DaoException
+	 *             if any entity could not be written since the last flush
+	 *             reporting it
+	 */
+	public void flush() throws InterruptedException, DaoException {
+		lock.lock();
+		try {
+			flushRequests++;
+			try {
+				batchReady.signalAll();
+				startWriterIfNeeded();
+				while (outstanding > 0) {
+					written.await();
+				}
+			} finally {
+				flushRequests--;
+			}
+			if (!failedByRun.isEmpty()) {
+				List<T2Reference> failed = new ArrayList<T2Reference>();
+				for (List<T2Reference> ids : failedByRun.values()) {
+					failed.addAll(ids);
 				}
+				failedByRun.clear();
+				throw new DaoException("Could not write " + failed.size()
+						+ " entities: " + failed);
 			}
-			
-		};
-		
-		cache.put(storedObject.getId(), new SoftReference<Identified>(storedObject));
-		store.put(storedObject.getId(), storedObject);
-		executer.execute(task);
+		} finally {
+			lock.unlock();
+		}
 	}
 	
+	/**
+	 * @return the number of writes queued or in progress
+	 */
 	public int cacheSize() {
-		return executer.getActiveCount() + executer.getQueue().size();
+		lock.lock();
+		try {
+			return outstanding;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Start another writer if there is work and capacity for one, called with
+	 * the lock held
+	 */
+	private void startWriterIfNeeded() {
+		if (pending.isEmpty() || activeWriters >= threads) {
+			return;
+		}
+		if (activeWriters == 0 || pending.size() >= batchSize * activeWriters) {
+			activeWriters++;
+			executer.execute(new Writer());
+		}
+	}
+
+	/**
+	 * Take the next batch of writes from the queue, waiting for up to the
+	 * linger time for it to fill. Called with the lock held, returns an empty
+	 * list if there is nothing this writer can take.
+	 */
+	private List<PendingWrite> takeBatch() throws InterruptedException {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		if (pending.isEmpty()) {
+			return batch;
+		}
+		long remaining = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		while (pending.size() < batchSize && flushRequests == 0
+				&& remaining > 0) {
+			remaining = batchReady.awaitNanos(remaining);
+		}
+		Iterator<Map.Entry<T2Reference, PendingWrite>> entries = pending
+				.entrySet().iterator();
+		while (entries.hasNext() && batch.size() < batchSize) {
+			Map.Entry<T2Reference, PendingWrite> entry = entries.next();
+			if (inFlight.add(entry.getKey())) {
+				batch.add(entry.getValue());
+				entries.remove();
+			}
+		}
+		if (!batch.isEmpty()) {
+			notFull.signalAll();
+		}
+		return batch;
+	}
+
+	/**
+	 * Mark a batch as written, called with the lock held
+	 */
+	private void completeBatch(List<PendingWrite> batch) {
+		for (PendingWrite write : batch) {
+			T2Reference id = write.latest.getId();
+			inFlight.remove(id);
+			store.remove(id, write.latest);
+			if (write.failed) {
+				// Not in the backing store either, so drop it rather than
+				// serve it from memory and leave it for a flush to report
+				SoftReference<Identified> cached = cache.get(id);
+				if (cached != null && cached.get() == write.latest) {
+					cache.remove(id);
+				}
+				String runId = id.getNamespacePart();
+				List<T2Reference> failed = failedByRun.get(runId);
+				if (failed == null) {
+					failed = new ArrayList<T2Reference>();
+					failedByRun.put(runId, failed);
+				}
+				failed.add(id);
+			}
+		}
+		for (PendingWrite write : batch) {
+			outstanding--;
+			String runId = write.latest.getId().getNamespacePart();
+			Integer count = outstandingByRun.get(runId);
+			if (count == null || count <= 1) {
+				outstandingByRun.remove(runId);
+			} else {
+				outstandingByRun.put(runId, count - 1);
+			}
+		}
+		written.signalAll();
+	}
+
+	private void writeBatch(final List<PendingWrite> batch) {
+		if (transactionManager != null && batch.size() > 1) {
+			try {
+				new TransactionTemplate(transactionManager)
+						.execute(new TransactionCallback() {
+							public Object doInTransaction(
+									TransactionStatus status) {
+								for (PendingWrite write : batch) {
+									try {
+										write.proceed();
+									} catch (RuntimeException re) {
+										throw re;
+									} catch (Throwable t) {
+										throw new DaoException(
+												"Unexpected exception type during aspect "
+														+ "based invocation", t);
+									}
+								}
+								return null;
+							}
+						});
+				return;
+			} catch (RuntimeException re) {
+				logger.warn("Batch write of " + batch.size()
+						+ " entities failed, retrying individually", re);
+			}
+		}
+		for (PendingWrite write : batch) {
+			try {
+				write.proceed();
+			} catch (Throwable t) {
+				write.failed = true;
+				logger.error("Could not write " + write.latest.getId(), t);
+			}
+		}
+	}
+
+	private class Writer implements Runnable {
+
+		public void run() {
+			while (true) {
+				List<PendingWrite> batch;
+				lock.lock();
+				try {
+					try {
+						batch = takeBatch();
+					} catch (InterruptedException ie) {
+						batch = new ArrayList<PendingWrite>();
+					}
+					if (batch.isEmpty()) {
+						activeWriters--;
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+				try {
+					writeBatch(batch);
+				} finally {
+					lock.lock();
+					try {
+						completeBatch(batch);
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A queued write, the join point of the first call and the most recent
+	 * state of the entity to write with it. If the call stored a collection
+	 * the entity is written on its own in a collection of one.
+	 */
+	private static class PendingWrite {
+
+		private final ProceedingJoinPoint pjp;
+
+		private final Identified original;
+
+		private final boolean inCollection;
+
+		private Identified latest;
+
+		private boolean failed = false;
+
+		PendingWrite(ProceedingJoinPoint pjp, Identified original,
+				boolean inCollection) {
+			this.pjp = pjp;
+			this.original = original;
+			this.inCollection = inCollection;
+			this.latest = original;
+		}
+
+		void proceed() throws Throwable {
+			if (inCollection) {
+				pjp.proceed(new Object[] { Collections.singletonList(latest) });
+			} else if (latest == original) {
+				pjp.proceed();
+			} else {
+				pjp.proceed(new Object[] { latest });
+			}
+		}
+
 	}
 	
 }
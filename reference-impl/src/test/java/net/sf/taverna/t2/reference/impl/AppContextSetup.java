@@ -13,7 +13,7 @@ public class AppContextSetup {
 		if (contextList == null){
 			
 			contextList = new ArrayList<ApplicationContext>();
-			//Add all three contexts for storing referenced data
+			//Add all four contexts for storing referenced data
 			contextList = new ArrayList<ApplicationContext>();
 			ApplicationContext context = null;
 			context = new ClassPathXmlApplicationContext(
@@ -25,6 +25,9 @@ public class AppContextSetup {
 			context = new ClassPathXmlApplicationContext(
 			"vanillaHibernateTransactionalAppContext.xml");
 			contextList.add(context);	 // transactional hibernate context
+			context = new ClassPathXmlApplicationContext(
+			"cachedInMemoryAppContext.xml");
+			contextList.add(context); // in memory behind the cache aspect
 			
 		}
 	}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashSet;
+
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+
+import org.junit.Test;
+
+public class BoundedCacheProviderImplTest {
+
+	private static ReferenceSetImpl referenceSet(String run, String local) {
+		T2ReferenceImpl id = new T2ReferenceImpl();
+		id.setNamespacePart(run);
+		id.setLocalPart(local);
+		return new ReferenceSetImpl(new HashSet<ExternalReferenceSPI>(), id);
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		BoundedCacheProviderImpl cache = new BoundedCacheProviderImpl();
+		ReferenceSetImpl rs = referenceSet("run", "a");
+		assertNull(cache.get(rs.getId()));
+		cache.put(rs);
+		assertSame(rs, cache.get(rs.getId()));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.5, cache.getHitRate(), 0.0);
+	}
+
+	@Test
+	public void testEntryBoundEvictsLeastRecentlyUsed() {
+		BoundedCacheProviderImpl cache = new BoundedCacheProviderImpl();
+		cache.setMaximumEntries(2);
+		ReferenceSetImpl a = referenceSet("run", "a");
+		ReferenceSetImpl b = referenceSet("run", "b");
+		ReferenceSetImpl c = referenceSet("run", "c");
+		cache.put(a);
+		cache.put(b);
+		cache.get(a.getId());
+		cache.put(c);
+		assertEquals(2, cache.getSize());
+		assertEquals(1, cache.getEvictionCount());
+		assertNotNull(cache.get(a.getId()));
+		assertNull(cache.get(b.getId()));
+		assertNotNull(cache.get(c.getId()));
+	}
+
+	@Test
+	public void testByteBound() {
+		BoundedCacheProviderImpl cache = new BoundedCacheProviderImpl();
+		long entrySize = BoundedCacheProviderImpl.estimateSize(referenceSet(
+				"run", "x"));
+		cache.setMaximumEntries(0);
+		cache.setMaximumBytes(entrySize * 3);
+		for (int i = 0; i < 10; i++) {
+			cache.put(referenceSet("run", "item" + i));
+		}
+		assertEquals(3, cache.getSize());
+		assertEquals(entrySize * 3, cache.getSizeInBytes());
+		assertEquals(7, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testRemoveWorkflowRun() {
+		BoundedCacheProviderImpl cache = new BoundedCacheProviderImpl();
+		ReferenceSetImpl a = referenceSet("run1", "a");
+		ReferenceSetImpl b = referenceSet("run1", "b");
+		ReferenceSetImpl c = referenceSet("run2", "c");
+		cache.put(a);
+		cache.put(b);
+		cache.put(c);
+		cache.removeWorkflowRun("run1");
+		assertNull(cache.get(a.getId()));
+		assertNull(cache.get(b.getId()));
+		assertNotNull(cache.get(c.getId()));
+		assertEquals(1, cache.getSize());
+		cache.remove(c.getId());
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getSizeInBytes());
+	}
+
+	@Test
+	public void testTinyLfuKeepsFrequentEntries() {
+		BoundedCacheProviderImpl cache = new BoundedCacheProviderImpl();
+		cache.setEvictionPolicy(new TinyLfuEvictionPolicy(100));
+		cache.setMaximumEntries(10);
+		ReferenceSetImpl hot = referenceSet("run", "hot");
+		cache.put(hot);
+		for (int i = 0; i < 5; i++) {
+			cache.get(hot.getId());
+		}
+		// A scan of items read once shouldn't displace the hot entry
+		for (int i = 0; i < 100; i++) {
+			cache.put(referenceSet("run", "scan" + i));
+		}
+		assertSame(hot, cache.get(hot.getId()));
+		assertEquals(10, cache.getSize());
+	}
+
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.taverna.t2.reference.ErrorDocument;
+import net.sf.taverna.t2.reference.IdentifiedList;
+import net.sf.taverna.t2.reference.ReferenceServiceException;
+import net.sf.taverna.t2.reference.ReferenceSet;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2referencetest.GreenReference;
+
+import org.junit.Test;
+
+public class BulkRegistrationTest {
+
+	private static ReferenceServiceImpl newReferenceService() {
+		SimpleT2ReferenceGenerator generator = new SimpleT2ReferenceGenerator();
+		ListServiceImpl listService = new ListServiceImpl();
+		listService.setListDao(new InMemoryListDao());
+		listService.setT2ReferenceGenerator(generator);
+		ReferenceSetServiceImpl referenceSetService = new ReferenceSetServiceImpl();
+		referenceSetService.setReferenceSetDao(new InMemoryReferenceSetDao());
+		referenceSetService.setT2ReferenceGenerator(generator);
+		ErrorDocumentServiceImpl errorDocumentService = new ErrorDocumentServiceImpl();
+		errorDocumentService.setErrorDao(new InMemoryErrorDocumentDao());
+		errorDocumentService.setT2ReferenceGenerator(generator);
+		ReferenceServiceImpl referenceService = new ReferenceServiceImpl();
+		referenceService.setListService(listService);
+		referenceService.setReferenceSetService(referenceSetService);
+		referenceService.setErrorDocumentService(errorDocumentService);
+		referenceService.setBulkBatchSize(3);
+		return referenceService;
+	}
+
+	private static List<Object> nestedStructure() {
+		List<Object> structure = new ArrayList<Object>();
+		for (int i = 0; i < 4; i++) {
+			List<Object> inner = new ArrayList<Object>();
+			for (int j = 0; j < 5; j++) {
+				inner.add(new GreenReference(i + "." + j));
+			}
+			structure.add(inner);
+		}
+		structure.add(Collections.emptyList());
+		structure.add(Arrays.asList(new GreenReference("a"),
+				new Exception("failed")));
+		structure.add(new Exception("failed list"));
+		return structure;
+	}
+
+	/**
+	 * Check the entity registered under each reference is the same in both
+	 * services
+	 */
+	private static void assertSameEntities(T2Reference expected,
+			ReferenceServiceImpl expectedService, T2Reference actual,
+			ReferenceServiceImpl actualService) {
+		assertEquals(expected.toString(), actual.toString());
+		switch (expected.getReferenceType()) {
+		case IdentifiedList:
+			IdentifiedList<T2Reference> expectedList = expectedService
+					.getListService().getList(expected);
+			IdentifiedList<T2Reference> actualList = actualService
+					.getListService().getList(actual);
+			assertEquals(expectedList.size(), actualList.size());
+			for (int i = 0; i < expectedList.size(); i++) {
+				assertSameEntities(expectedList.get(i), expectedService,
+						actualList.get(i), actualService);
+			}
+			break;
+		case ReferenceSet:
+			ReferenceSet expectedSet = expectedService
+					.getReferenceSetService().getReferenceSet(expected);
+			ReferenceSet actualSet = actualService.getReferenceSetService()
+					.getReferenceSet(actual);
+			assertEquals(((GreenReference) expectedSet.getExternalReferences()
+					.iterator().next()).getContents(),
+					((GreenReference) actualSet.getExternalReferences()
+							.iterator().next()).getContents());
+			break;
+		case ErrorDocument:
+			ErrorDocument expectedError = expectedService
+					.getErrorDocumentService().getError(expected);
+			ErrorDocument actualError = actualService
+					.getErrorDocumentService().getError(actual);
+			assertEquals(expectedError.getMessage(), actualError.getMessage());
+			assertEquals(expectedError.getExceptionMessage(), actualError
+					.getExceptionMessage());
+			assertEquals(expectedError.getStackTraceStrings().size(),
+					actualError.getStackTraceStrings().size());
+			if (expected.getDepth() > 0) {
+				T2Reference expectedChild = expectedService
+						.getErrorDocumentService().getChild(expected);
+				T2Reference actualChild = actualService
+						.getErrorDocumentService().getChild(actual);
+				assertSameEntities(expectedChild, expectedService,
+						actualChild, actualService);
+			}
+			break;
+		}
+	}
+
+	@Test
+	public void testMatchesRecursiveRegistration() {
+		List<Object> structure = nestedStructure();
+		ReferenceServiceImpl recursive = newReferenceService();
+		ReferenceServiceImpl bulk = newReferenceService();
+		T2Reference expected = recursive.register(structure, 2, false, null);
+		T2Reference actual = bulk.registerBulk(structure, 2, false, null);
+		assertSameEntities(expected, recursive, actual, bulk);
+	}
+
+	@Test
+	public void testExistingReferences() {
+		ReferenceServiceImpl recursive = newReferenceService();
+		ReferenceServiceImpl bulk = newReferenceService();
+		T2Reference expectedItem = recursive.register(new GreenReference("x"),
+				0, false, null);
+		T2Reference actualItem = bulk.register(new GreenReference("x"), 0,
+				false, null);
+		T2Reference expected = recursive.register(Arrays.asList(expectedItem,
+				new GreenReference("y")), 1, false, null);
+		T2Reference actual = bulk.registerBulk(Arrays.asList(actualItem,
+				new GreenReference("y")), 1, false, null);
+		assertSameEntities(expected, recursive, actual, bulk);
+		assertEquals(actualItem, bulk.getListService().getList(actual).get(0));
+	}
+
+	@Test
+	public void testNothingStoredOnFailure() {
+		ReferenceServiceImpl bulk = newReferenceService();
+		List<Object> mismatched = Arrays.<Object> asList(
+				new GreenReference("a"), Arrays.asList(new GreenReference(
+						"b")));
+		try {
+			bulk.registerBulk(mismatched, 1, false, null);
+			fail("Expected a ReferenceServiceException");
+		} catch (ReferenceServiceException expected) {
+		}
+		// The first reference set would have been test0, it was never
+		// allocated or stored
+		T2ReferenceImpl first = new T2ReferenceImpl();
+		first.setNamespacePart("testNS");
+		first.setLocalPart("test0");
+		assertEquals(null, bulk.getReferenceSetService()
+				.getReferenceSet(first));
+	}
+
+}
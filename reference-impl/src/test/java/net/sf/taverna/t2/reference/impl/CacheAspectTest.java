@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+
+import net.sf.taverna.t2.reference.DaoException;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.ReferenceSet;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheAspectTest {
+
+	private InMemoryReferenceSetDao dao;
+
+	private BoundedCacheProviderImpl cacheProvider;
+
+	private CacheAspect aspect;
+
+	@Before
+	public void createAspect() {
+		dao = new InMemoryReferenceSetDao();
+		cacheProvider = new BoundedCacheProviderImpl();
+		aspect = new CacheAspect();
+		aspect.setCacheProvider(cacheProvider);
+	}
+
+	private static ReferenceSetImpl referenceSet(String run, String local) {
+		T2ReferenceImpl id = new T2ReferenceImpl();
+		id.setNamespacePart(run);
+		id.setLocalPart(local);
+		return new ReferenceSetImpl(new HashSet<ExternalReferenceSPI>(), id);
+	}
+
+	/**
+	 * A join point for a dao method called with the argument, proceeding
+	 * with the callable
+	 */
+	private ProceedingJoinPoint call(final Object argument,
+			final Callable<?> method) {
+		return (ProceedingJoinPoint) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class[] { ProceedingJoinPoint.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args)
+							throws Throwable {
+						if (m.getName().equals("getArgs")) {
+							return new Object[] { argument };
+						} else if (m.getName().equals("proceed")) {
+							return method.call();
+						}
+						throw new UnsupportedOperationException(m.getName());
+					}
+				});
+	}
+
+	private void store(final ReferenceSetImpl rs) throws DaoException {
+		aspect.putObject(call(rs, new Callable<Object>() {
+			public Object call() throws Exception {
+				dao.store(rs);
+				return null;
+			}
+		}));
+	}
+
+	private Object delete(final ReferenceSetImpl rs) throws DaoException {
+		return aspect.deleteObject(call(rs, new Callable<Object>() {
+			public Object call() throws Exception {
+				return dao.delete(rs);
+			}
+		}));
+	}
+
+	@Test
+	public void testDeleteEvicts() throws Exception {
+		ReferenceSetImpl rs = referenceSet("run1", "a");
+		store(rs);
+		assertSame(rs, cacheProvider.get(rs.getId()));
+		assertEquals(Boolean.TRUE, delete(rs));
+		assertNull(cacheProvider.get(rs.getId()));
+		assertNull(dao.get(rs.getId()));
+	}
+
+	@Test
+	public void testFailedDeleteEvicts() throws Exception {
+		ReferenceSetImpl rs = referenceSet("run1", "a");
+		store(rs);
+		try {
+			aspect.deleteObject(call(rs, new Callable<Object>() {
+				public Object call() throws Exception {
+					throw new DaoException("Failed part way");
+				}
+			}));
+			fail("Dao exception not passed on");
+		} catch (DaoException e) {
+			// expected
+		}
+		// Refilled from the store on the next read
+		assertNull(cacheProvider.get(rs.getId()));
+	}
+
+	@Test
+	public void testDeleteForWorkflowRunEvictsRun() throws Exception {
+		ReferenceSetImpl a = referenceSet("run1", "a");
+		ReferenceSetImpl b = referenceSet("run1", "b");
+		ReferenceSetImpl c = referenceSet("run2", "c");
+		store(a);
+		store(b);
+		store(c);
+		aspect.deleteObjectsForWorkflowRun(call("run1",
+				new Callable<Object>() {
+					public Object call() throws Exception {
+						dao.deleteReferenceSetsForWFRun("run1");
+						return null;
+					}
+				}));
+		assertNull(cacheProvider.get(a.getId()));
+		assertNull(cacheProvider.get(b.getId()));
+		assertNotNull(cacheProvider.get(c.getId()));
+	}
+
+	@Test
+	public void testStoreAllCachesEach() throws Exception {
+		final ReferenceSetImpl a = referenceSet("run1", "a");
+		final ReferenceSetImpl b = referenceSet("run1", "b");
+		aspect.putObject(call(Arrays.asList(a, b), new Callable<Object>() {
+			public Object call() throws Exception {
+				dao.storeAll(Arrays.<ReferenceSet> asList(a, b));
+				return null;
+			}
+		}));
+		assertSame(a, cacheProvider.get(a.getId()));
+		assertSame(b, cacheProvider.get(b.getId()));
+	}
+
+}
@@ -40,6 +40,11 @@ public class ErrorDocumentServiceTest {
 			service.setErrorDao((ErrorDocumentDao)AppContextSetup.contextList.get(2).getBean("testErrorDao")); // transactional hibernate
 			service.setT2ReferenceGenerator(new SimpleT2ReferenceGenerator());
 			serviceList.add(service);
+
+			service = new ErrorDocumentServiceImpl();
+			service.setErrorDao((ErrorDocumentDao)AppContextSetup.contextList.get(3).getBean("testErrorDao")); // cached in memory
+			service.setT2ReferenceGenerator(new SimpleT2ReferenceGenerator());
+			serviceList.add(service);
 				
 	}
 	
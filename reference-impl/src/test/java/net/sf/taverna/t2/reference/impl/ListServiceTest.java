@@ -1,15 +1,19 @@
 package net.sf.taverna.t2.reference.impl;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import net.sf.taverna.t2.reference.IdentifiedList;
 import net.sf.taverna.t2.reference.ListDao;
+import net.sf.taverna.t2.reference.ListServiceException;
 import net.sf.taverna.t2.reference.T2Reference;
 import net.sf.taverna.t2.reference.WorkflowRunIdEntity;
 
@@ -42,6 +46,11 @@ public class ListServiceTest {
 			service.setListDao((ListDao)AppContextSetup.contextList.get(2).getBean("testListDao")); // transactional hibernate
 			service.setT2ReferenceGenerator(new SimpleT2ReferenceGenerator());	
 			serviceList.add(service);
+
+			service = new ListServiceImpl();
+			service.setListDao((ListDao)AppContextSetup.contextList.get(3).getBean("testListDao")); // cached in memory
+			service.setT2ReferenceGenerator(new SimpleT2ReferenceGenerator());
+			serviceList.add(service);
 		
 	}
 	
@@ -88,4 +97,34 @@ public class ListServiceTest {
 		}
 	}
 
+	@Test
+	public void testRegisterLists() throws Exception {
+		ReferenceContextImpl invocationContext = new ReferenceContextImpl();
+		invocationContext.addEntity(new WorkflowRunIdEntity("wfRunListsTest"));
+		for (ListServiceImpl service : serviceList){
+			T2Reference a = service.registerEmptyList(1, invocationContext).getId();
+			T2Reference b = service.registerEmptyList(1, invocationContext).getId();
+			List<List<T2Reference>> lists = new ArrayList<List<T2Reference>>();
+			lists.add(Arrays.asList(a, b));
+			lists.add(Arrays.asList(b));
+			List<IdentifiedList<T2Reference>> registered = service.registerLists(lists, invocationContext);
+			assertEquals(2, registered.size());
+			for (int i = 0; i < 2; i++) {
+				T2Reference id = registered.get(i).getId();
+				assertEquals(2, id.getDepth());
+				assertEquals(lists.get(i), new ArrayList<T2Reference>(service.getList(id)));
+			}
+			assertFalse(registered.get(0).getId().equals(registered.get(1).getId()));
+
+			T2Reference c = registered.get(0).getId();
+			lists.add(Arrays.asList(a, c));
+			try {
+				service.registerLists(lists, invocationContext);
+				fail("Registered a list with mismatched depths");
+			} catch (ListServiceException e) {
+				// expected
+			}
+		}
+	}
+
 }
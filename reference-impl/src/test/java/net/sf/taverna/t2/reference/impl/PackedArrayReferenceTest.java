@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import net.sf.taverna.t2.reference.ContextualizedT2Reference;
+import net.sf.taverna.t2.reference.DaoException;
+import net.sf.taverna.t2.reference.IdentifiedList;
+import net.sf.taverna.t2.reference.ReferenceSet;
+import net.sf.taverna.t2.reference.ReferenceSetDao;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+import org.junit.Test;
+
+public class PackedArrayReferenceTest {
+
+	private static ReferenceServiceImpl newReferenceService() {
+		return newReferenceService(new InMemoryReferenceSetDao());
+	}
+
+	private static ReferenceServiceImpl newReferenceService(
+			ReferenceSetDao referenceSetDao) {
+		SimpleT2ReferenceGenerator generator = new SimpleT2ReferenceGenerator();
+		ListServiceImpl listService = new ListServiceImpl();
+		listService.setListDao(new InMemoryListDao());
+		listService.setT2ReferenceGenerator(generator);
+		ReferenceSetServiceImpl referenceSetService = new ReferenceSetServiceImpl();
+		referenceSetService.setReferenceSetDao(referenceSetDao);
+		referenceSetService.setT2ReferenceGenerator(generator);
+		ErrorDocumentServiceImpl errorDocumentService = new ErrorDocumentServiceImpl();
+		errorDocumentService.setErrorDao(new InMemoryErrorDocumentDao());
+		errorDocumentService.setT2ReferenceGenerator(generator);
+		ReferenceServiceImpl referenceService = new ReferenceServiceImpl();
+		referenceService.setListService(listService);
+		referenceService.setReferenceSetService(referenceSetService);
+		referenceService.setErrorDocumentService(errorDocumentService);
+		referenceService.setPackPrimitiveArrays(true);
+		return referenceService;
+	}
+
+	@Test
+	public void testPackAndUnpack() {
+		long[] longs = new long[] { 1L, Long.MAX_VALUE, -3L };
+		PackedArrayReference packed = new PackedArrayReference(longs);
+		assertEquals(3, packed.getLength());
+		assertEquals(24L, packed.getApproximateSizeInBytes().longValue());
+		assertEquals(Long.MAX_VALUE, packed.getElement(1));
+		assertTrue(Arrays.equals(longs, (long[]) packed.getValue()));
+		assertEquals(long[].class, packed.getValueType());
+		assertFalse(PackedArrayReference.canPack(new int[0]));
+		assertFalse(PackedArrayReference.canPack(new byte[] { 1 }));
+	}
+
+	@Test
+	public void testRegisteredAsVirtualList() {
+		ReferenceServiceImpl referenceService = newReferenceService();
+		double[] values = new double[] { 0.5, 1.5, 2.5, 3.5 };
+		T2Reference ref = referenceService.register(values, 1, false, null);
+		assertEquals(T2ReferenceType.IdentifiedList, ref.getReferenceType());
+		assertEquals(1, ref.getDepth());
+
+		IdentifiedList<T2Reference> list = referenceService.getListService()
+				.getList(ref);
+		assertEquals(4, list.size());
+
+		List<?> rendered = (List<?>) referenceService.renderIdentifier(ref,
+				Double.class, null);
+		assertEquals(Arrays.asList(0.5, 1.5, 2.5, 3.5), rendered);
+
+		Iterator<ContextualizedT2Reference> elements = referenceService
+				.traverseFrom(ref, 0);
+		int count = 0;
+		while (elements.hasNext()) {
+			ContextualizedT2Reference element = elements.next();
+			assertEquals(count, element.getIndex()[0]);
+			assertEquals(values[count], referenceService.renderIdentifier(
+					element.getReference(), Double.class, null));
+			count++;
+		}
+		assertEquals(4, count);
+
+		assertTrue(referenceService.delete(ref));
+		assertNull(referenceService.getReferenceSetService().getReferenceSet(
+				list.get(0)));
+	}
+
+	@Test
+	public void testElementsShareLoadedArray() {
+		final int[] loads = new int[1];
+		ReferenceServiceImpl referenceService = newReferenceService(new InMemoryReferenceSetDao() {
+			@Override
+			public synchronized ReferenceSet get(T2Reference reference)
+					throws DaoException {
+				loads[0]++;
+				return super.get(reference);
+			}
+		});
+		double[] values = new double[100];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i;
+		}
+		T2Reference ref = referenceService.register(values, 1, false, null);
+		IdentifiedList<T2Reference> list = referenceService.getListService()
+				.getList(ref);
+		loads[0] = 0;
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(values[i], referenceService.renderIdentifier(list
+					.get(i), Double.class, null));
+		}
+		assertEquals(1, loads[0]);
+
+		assertTrue(referenceService.delete(ref));
+		assertNull(referenceService.getReferenceSetService().getReferenceSet(
+				list.get(0)));
+	}
+
+	@Test
+	public void testOnlyPackedAtDepthOne() {
+		ReferenceServiceImpl referenceService = newReferenceService();
+		T2Reference ref = referenceService.register(Arrays.asList(new int[] {
+				1, 2 }, new int[] { 3 }), 2, false, null);
+		IdentifiedList<T2Reference> outer = referenceService
+				.getListService().getList(ref);
+		assertEquals(2, outer.size());
+		assertTrue(PackedArrays.isPackedList(outer.get(0)));
+		assertEquals(Arrays.asList(3), referenceService.renderIdentifier(
+				outer.get(1), Integer.class, null));
+	}
+
+	@Test
+	public void testBulkMatchesRecursive() {
+		ReferenceServiceImpl recursive = newReferenceService();
+		ReferenceServiceImpl bulk = newReferenceService();
+		List<int[]> structure = Arrays.asList(new int[] { 1, 2 },
+				new int[] { 3 });
+		T2Reference expected = recursive.register(structure, 2, false, null);
+		T2Reference actual = bulk.registerBulk(structure, 2, false, null);
+		assertEquals(expected.toString(), actual.toString());
+		assertEquals(recursive.getListService().getList(expected).get(1)
+				.toString(), bulk.getListService().getList(actual).get(1)
+				.toString());
+		assertEquals(Arrays.asList(3), bulk.renderIdentifier(bulk
+				.getListService().getList(actual).get(1), Integer.class, null));
+	}
+
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.taverna.t2.reference.AbstractExternalReference;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.ReferenceContext;
+import net.sf.taverna.t2.reference.ReferenceServiceException;
+import net.sf.taverna.t2.reference.RenderingParallelismEntity;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.ValueCarryingExternalReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelRenderTest {
+
+	private static final AtomicInteger running = new AtomicInteger();
+
+	private static final AtomicInteger maximumRunning = new AtomicInteger();
+
+	private ExecutorService executor;
+
+	private ReferenceServiceImpl referenceService;
+
+	/**
+	 * Value carrying reference that takes a while to give up its value and
+	 * records how many are being read at once
+	 */
+	public static class SlowReference extends AbstractExternalReference
+			implements ValueCarryingExternalReference<String> {
+
+		private final String value;
+
+		public SlowReference(String value) {
+			this.value = value;
+		}
+
+		public Class<String> getValueType() {
+			return String.class;
+		}
+
+		public String getValue() {
+			int now = running.incrementAndGet();
+			synchronized (maximumRunning) {
+				maximumRunning.set(Math.max(maximumRunning.get(), now));
+			}
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				running.decrementAndGet();
+			}
+			if (value.equals("fail")) {
+				throw new IllegalStateException(value);
+			}
+			return value;
+		}
+
+		public InputStream openStream(ReferenceContext context) {
+			return new ByteArrayInputStream(value.getBytes());
+		}
+
+		public Long getApproximateSizeInBytes() {
+			return new Long(value.length());
+		}
+
+		@Override
+		public ExternalReferenceSPI clone() throws CloneNotSupportedException {
+			return new SlowReference(value);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		SimpleT2ReferenceGenerator generator = new SimpleT2ReferenceGenerator();
+		ListServiceImpl listService = new ListServiceImpl();
+		listService.setListDao(new InMemoryListDao());
+		listService.setT2ReferenceGenerator(generator);
+		ReferenceSetServiceImpl referenceSetService = new ReferenceSetServiceImpl();
+		referenceSetService.setReferenceSetDao(new InMemoryReferenceSetDao());
+		referenceSetService.setT2ReferenceGenerator(generator);
+		ErrorDocumentServiceImpl errorDocumentService = new ErrorDocumentServiceImpl();
+		errorDocumentService.setErrorDao(new InMemoryErrorDocumentDao());
+		errorDocumentService.setT2ReferenceGenerator(generator);
+		referenceService = new ReferenceServiceImpl();
+		referenceService.setListService(listService);
+		referenceService.setReferenceSetService(referenceSetService);
+		referenceService.setErrorDocumentService(errorDocumentService);
+		executor = Executors.newFixedThreadPool(8);
+		referenceService.setRenderExecutor(executor);
+		maximumRunning.set(0);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	private static List<Object> structure(String... leaves) {
+		List<Object> result = new ArrayList<Object>();
+		List<Object> inner = new ArrayList<Object>();
+		for (String leaf : leaves) {
+			inner.add(new SlowReference(leaf));
+			if (inner.size() == 3) {
+				result.add(inner);
+				inner = new ArrayList<Object>();
+			}
+		}
+		result.add(inner);
+		result.add(Collections.emptyList());
+		return result;
+	}
+
+	private static List<Object> expected(String... leaves) {
+		List<Object> result = new ArrayList<Object>();
+		List<Object> inner = new ArrayList<Object>();
+		for (String leaf : leaves) {
+			inner.add(leaf);
+			if (inner.size() == 3) {
+				result.add(inner);
+				inner = new ArrayList<Object>();
+			}
+		}
+		result.add(inner);
+		result.add(Collections.emptyList());
+		return result;
+	}
+
+	@Test
+	public void testSameStructureAsSequential() {
+		String[] leaves = new String[] { "a", "b", "c", "d", "e", "f", "g",
+				"h" };
+		T2Reference ref = referenceService.register(structure(leaves), 2,
+				false, null);
+		Object sequential = referenceService.renderIdentifier(ref,
+				String.class, null);
+		assertEquals(expected(leaves), sequential);
+		assertEquals(1, maximumRunning.get());
+
+		referenceService.setRenderParallelism(4);
+		maximumRunning.set(0);
+		assertEquals(sequential, referenceService.renderIdentifier(ref,
+				String.class, null));
+		assertTrue(maximumRunning.get() > 1);
+		assertTrue(maximumRunning.get() <= 4);
+	}
+
+	@Test
+	public void testLimitFromContext() {
+		String[] leaves = new String[] { "a", "b", "c", "d", "e", "f" };
+		T2Reference ref = referenceService.register(structure(leaves), 2,
+				false, null);
+		referenceService.setRenderParallelism(6);
+		ReferenceContextImpl context = new ReferenceContextImpl();
+		context.addEntity(new RenderingParallelismEntity(2));
+		assertEquals(expected(leaves), referenceService.renderIdentifier(ref,
+				String.class, context));
+		assertTrue(maximumRunning.get() <= 2);
+	}
+
+	@Test
+	public void testFailureReported() {
+		T2Reference ref = referenceService.register(Arrays.asList(
+				new SlowReference("a"), new SlowReference("fail"),
+				new SlowReference("c")), 1, false, null);
+		referenceService.setRenderParallelism(3);
+		try {
+			referenceService.renderIdentifier(ref, String.class, null);
+			fail("Expected the failing leaf to fail the render");
+		} catch (ReferenceServiceException rse) {
+			// Expected
+		}
+	}
+
+}
@@ -42,6 +42,11 @@ public class ReferenceSetServiceTest {
 		service.setT2ReferenceGenerator(new SimpleT2ReferenceGenerator());	
 		serviceList.add(service);
 
+		service = new ReferenceSetServiceImpl();
+		service.setReferenceSetDao((ReferenceSetDao)AppContextSetup.contextList.get(3).getBean("testDao")); // cached in memory
+		service.setT2ReferenceGenerator(new SimpleT2ReferenceGenerator());
+		serviceList.add(service);
+
 	}
 	
 	@Test
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.taverna.t2.reference.ContextualizedT2Reference;
+import net.sf.taverna.t2.reference.IdentifiedList;
+import net.sf.taverna.t2.reference.ListServiceException;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2referencetest.GreenReference;
+
+import org.junit.Test;
+
+public class TraversalIteratorTest {
+
+	private final AtomicInteger listFetches = new AtomicInteger();
+
+	private ReferenceServiceImpl newReferenceService() {
+		SimpleT2ReferenceGenerator generator = new SimpleT2ReferenceGenerator();
+		ListServiceImpl listService = new ListServiceImpl() {
+			@Override
+			public IdentifiedList<T2Reference> getList(T2Reference id)
+					throws ListServiceException {
+				listFetches.incrementAndGet();
+				return super.getList(id);
+			}
+		};
+		listService.setListDao(new InMemoryListDao());
+		listService.setT2ReferenceGenerator(generator);
+		ReferenceSetServiceImpl referenceSetService = new ReferenceSetServiceImpl();
+		referenceSetService.setReferenceSetDao(new InMemoryReferenceSetDao());
+		referenceSetService.setT2ReferenceGenerator(generator);
+		ErrorDocumentServiceImpl errorDocumentService = new ErrorDocumentServiceImpl();
+		errorDocumentService.setErrorDao(new InMemoryErrorDocumentDao());
+		errorDocumentService.setT2ReferenceGenerator(generator);
+		ReferenceServiceImpl referenceService = new ReferenceServiceImpl();
+		referenceService.setListService(listService);
+		referenceService.setReferenceSetService(referenceSetService);
+		referenceService.setErrorDocumentService(errorDocumentService);
+		return referenceService;
+	}
+
+	private static List<Object> structure() {
+		List<Object> result = new ArrayList<Object>();
+		result.add(Arrays.asList(Arrays.asList(green("a"), green("b")),
+				Collections.emptyList(), Arrays.asList(green("c"))));
+		result.add(Collections.emptyList());
+		result.add(Arrays.asList(Arrays.asList(green("d"), green("e"),
+				green("f"))));
+		return result;
+	}
+
+	private static GreenReference green(String contents) {
+		return new GreenReference(contents);
+	}
+
+	/**
+	 * The index of each reference in the iteration followed by the contents
+	 * of the green reference it identifies
+	 */
+	private static List<String> render(ReferenceServiceImpl referenceService,
+			Iterator<ContextualizedT2Reference> iterator) {
+		List<String> result = new ArrayList<String>();
+		while (iterator.hasNext()) {
+			ContextualizedT2Reference ci = iterator.next();
+			GreenReference green = (GreenReference) referenceService
+					.getReferenceSetService().getReferenceSet(
+							ci.getReference()).getExternalReferences()
+					.iterator().next();
+			result.add(Arrays.toString(ci.getIndex()) + green.getContents());
+		}
+		return result;
+	}
+
+	@Test
+	public void testDepthFirstOrder() {
+		ReferenceServiceImpl referenceService = newReferenceService();
+		T2Reference ref = referenceService.register(structure(), 3, false, null);
+		assertEquals(Arrays.asList("[0, 0, 0]a", "[0, 0, 1]b", "[0, 2, 0]c",
+				"[2, 0, 0]d", "[2, 0, 1]e", "[2, 0, 2]f"), render(
+				referenceService, referenceService.traverseFrom(ref, 0)));
+		List<String> lists = new ArrayList<String>();
+		Iterator<ContextualizedT2Reference> iterator = referenceService
+				.traverseFrom(ref, 1);
+		while (iterator.hasNext()) {
+			ContextualizedT2Reference ci = iterator.next();
+			assertEquals(1, ci.getReference().getDepth());
+			lists.add(Arrays.toString(ci.getIndex()));
+		}
+		assertEquals(Arrays.asList("[0, 0]", "[0, 1]", "[0, 2]", "[2, 0]"),
+				lists);
+		iterator = referenceService.traverseFrom(ref, 3);
+		assertEquals(ref, iterator.next().getReference());
+		assertFalse(iterator.hasNext());
+	}
+
+	@Test
+	public void testListsFetchedOnDemand() {
+		ReferenceServiceImpl referenceService = newReferenceService();
+		T2Reference ref = referenceService.register(structure(), 3, false, null);
+		listFetches.set(0);
+		Iterator<ContextualizedT2Reference> iterator = referenceService
+				.traverseFrom(ref, 0);
+		assertEquals(1, listFetches.get());
+		iterator.next();
+		assertEquals(3, listFetches.get());
+	}
+
+	@Test
+	public void testPrefetchGivesSameResult() {
+		ReferenceServiceImpl referenceService = newReferenceService();
+		T2Reference ref = referenceService.register(structure(), 3, false, null);
+		List<String> expected = render(referenceService, referenceService
+				.traverseFrom(ref, 0));
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			referenceService.setTraversalExecutor(executor);
+			referenceService.setTraversalPrefetch(2);
+			assertEquals(expected, render(referenceService, referenceService
+					.traverseFrom(ref, 0)));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
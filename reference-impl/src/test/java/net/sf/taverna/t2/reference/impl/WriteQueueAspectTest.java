@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.reference.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import net.sf.taverna.t2.reference.DaoException;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.Identified;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.Test;
+
+public class WriteQueueAspectTest {
+
+	private final List<Identified> written = Collections
+			.synchronizedList(new ArrayList<Identified>());
+
+	private CountDownLatch gate = new CountDownLatch(0);
+
+	private static ReferenceSetImpl referenceSet(String run, String local) {
+		T2ReferenceImpl id = new T2ReferenceImpl();
+		id.setNamespacePart(run);
+		id.setLocalPart(local);
+		return new ReferenceSetImpl(new HashSet<ExternalReferenceSPI>(), id);
+	}
+
+	/**
+	 * A join point for a dao write which records what it was asked to write
+	 */
+	private ProceedingJoinPoint write(final Identified object) {
+		return (ProceedingJoinPoint) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class[] { ProceedingJoinPoint.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getName().equals("getArgs")) {
+							return new Object[] { object };
+						} else if (method.getName().equals("proceed")) {
+							gate.await();
+							if (object.getId().getLocalPart().equals("bad")) {
+								throw new DaoException("Can't write "
+										+ object.getId());
+							}
+							written.add(args == null ? object
+									: (Identified) ((Object[]) args[0])[0]);
+							return null;
+						}
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+	}
+
+	@Test
+	public void testFlushWritesEverything() throws Exception {
+		WriteQueueAspect aspect = new WriteQueueAspect(2);
+		aspect.setBatchSize(3);
+		aspect.setLingerMillis(1000);
+		for (int i = 0; i < 10; i++) {
+			aspect.putObject(write(referenceSet("run", "" + i)));
+		}
+		aspect.flush("run");
+		assertEquals(10, written.size());
+		assertEquals(0, aspect.cacheSize());
+	}
+
+	@Test
+	public void testRepeatedWritesCoalesce() throws Exception {
+		gate = new CountDownLatch(1);
+		WriteQueueAspect aspect = new WriteQueueAspect(1);
+		aspect.setBatchSize(1);
+		ReferenceSetImpl blocker = referenceSet("run", "blocker");
+		aspect.putObject(write(blocker));
+		// The single writer is held on the blocker so both writes of "a"
+		// stay queued together
+		ReferenceSetImpl first = referenceSet("run", "a");
+		ReferenceSetImpl second = referenceSet("run", "a");
+		aspect.putObject(write(first));
+		aspect.putObject(write(second));
+		gate.countDown();
+		aspect.flush();
+		assertEquals(2, written.size());
+		assertSame(blocker, written.get(0));
+		assertSame(second, written.get(1));
+	}
+
+	@Test
+	public void testFlushOnlyWaitsForRun() throws Exception {
+		WriteQueueAspect aspect = new WriteQueueAspect(1);
+		aspect.setLingerMillis(0);
+		aspect.putObject(write(referenceSet("run1", "a")));
+		aspect.putObject(write(referenceSet("run2", "b")));
+		aspect.flush("run1");
+		assertTrue(written.size() >= 1);
+		aspect.flush("unknown");
+		aspect.flush();
+		assertEquals(2, written.size());
+	}
+
+	/**
+	 * A join point for a dao write of a collection which records each entity
+	 * it was asked to write
+	 */
+	private ProceedingJoinPoint writeAll(final Collection<?> objects) {
+		return (ProceedingJoinPoint) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class[] { ProceedingJoinPoint.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getName().equals("getArgs")) {
+							return new Object[] { objects };
+						} else if (method.getName().equals("proceed")) {
+							Collection<?> writing = args == null ? objects
+									: (Collection<?>) ((Object[]) args[0])[0];
+							for (Object object : writing) {
+								written.add((Identified) object);
+							}
+							return null;
+						}
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+	}
+
+	/**
+	 * A join point for a dao read finding nothing in the backing store
+	 */
+	private ProceedingJoinPoint read(final Identified object) {
+		return (ProceedingJoinPoint) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class[] { ProceedingJoinPoint.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getName().equals("getArgs")) {
+							return new Object[] { object.getId() };
+						} else if (method.getName().equals("proceed")) {
+							return null;
+						}
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+	}
+
+	@Test
+	public void testFlushReportsFailedWrites() throws Exception {
+		WriteQueueAspect aspect = new WriteQueueAspect(1);
+		aspect.setLingerMillis(0);
+		ReferenceSetImpl bad = referenceSet("run1", "bad");
+		aspect.putObject(write(referenceSet("run1", "a")));
+		aspect.putObject(write(bad));
+		aspect.putObject(write(referenceSet("run2", "b")));
+		aspect.flush("run2");
+		try {
+			aspect.flush("run1");
+			fail("Failed write not reported");
+		} catch (DaoException e) {
+			assertTrue(e.getMessage().contains(bad.getId().toString()));
+		}
+		// Reported once, and no longer held in memory
+		aspect.flush("run1");
+		aspect.flush();
+		assertEquals(0, aspect.cacheSize());
+		assertNull(aspect.getObject(read(bad)));
+		assertEquals(2, written.size());
+	}
+
+	@Test
+	public void testStoreAllQueuedPerEntity() throws Exception {
+		WriteQueueAspect aspect = new WriteQueueAspect(1);
+		aspect.setLingerMillis(0);
+		ReferenceSetImpl a = referenceSet("run", "a");
+		ReferenceSetImpl b = referenceSet("run", "b");
+		aspect.putObject(writeAll(Arrays.asList(a, b)));
+		aspect.flush("run");
+		assertEquals(2, written.size());
+		assertTrue(written.contains(a));
+		assertTrue(written.contains(b));
+		assertEquals(0, aspect.cacheSize());
+	}
+
+}
@@ -28,15 +28,24 @@ import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
 /**
  * Tree cache for jobs waiting to be combined and dispatched down the iteration
  * system
+ * <p>
+ * The cache is a trie keyed on the elements of each job's index array. Index
+ * arrays are list positions, so each node holds its children in an array
+ * indexed directly by position, grown on demand, with unused positions left
+ * null. Paths are walked in place without copying the index array at each
+ * level, and each public operation takes the cache's monitor once rather
+ * than once per level.
  * 
  * @author Tom Oinn
  * 
  */
 public class TreeCache {
 
+	private static final NamedNode[] NO_CHILDREN = new NamedNode[0];
+
 	private NamedNode root = null;
 
-	private int indexDepth = -1;
+	private volatile int indexDepth = -1;
 
 	/**
 	 * Show the tree structure, printing each node recursively
@@ -46,66 +55,88 @@ public class TreeCache {
 		StringBuffer sb = new StringBuffer();
 		if (root != null) {
 			printNode(root, sb, "");
-		}
-		else {
+		} else {
 			sb.append("No root node defined.");
 		}
 		return sb.toString();
 	}
-	
-	private synchronized void printNode(NamedNode node, StringBuffer sb, String indent) {
-		sb.append(indent+"Node ("+node.contents+")\n");
+
+	private void printNode(NamedNode node, StringBuffer sb, String indent) {
+		sb.append(indent + "Node (" + node.contents + ")\n");
 		String newIndent = indent + "  ";
-		for (NamedNode child : node.children) {
+		for (int i = 0; i < node.childCount; i++) {
+			NamedNode child = node.children[i];
 			if (child == null) {
-				sb.append(newIndent+"null\n");
-			}
-			else {
+				sb.append(newIndent + "null\n");
+			} else {
 				printNode(child, sb, newIndent);
 			}
 		}
 	}
-	
+
 	public class NamedNode {
 
 		public Job contents = null;
 
-		public List<NamedNode> children = new ArrayList<NamedNode>();
+		private NamedNode[] children = NO_CHILDREN;
+
+		/**
+		 * One more than the highest position ever occupied, positions below
+		 * this may be null
+		 */
+		private int childCount = 0;
 
 		public void insertJob(Job j) {
 			insertJobAt(j, j.getIndex());
 		}
 
 		private void insertJobAt(Job j, int[] position) {
-			if (position.length == 0) {
-				this.contents = j;
-				return;
-			}
-			int firstIndex = position[0];
-			if (firstIndex >= children.size()) {
-				// Pad with blank NamedNode objects
-				for (int i = children.size(); i <= firstIndex; i++) {
-					children.add(null);
+			NamedNode node = this;
+			for (int i = 0; i < position.length; i++) {
+				NamedNode child = node.childAt(position[i]);
+				if (child == null) {
+					child = new NamedNode();
+					node.setChild(position[i], child);
 				}
+				node = child;
 			}
-			NamedNode child = children.get(firstIndex);
-			if (child == null) {
-				child = new NamedNode();
-				children.set(firstIndex, child);
-			}
-
-			int[] newTarget = new int[position.length - 1];
-			for (int i = 1; i < position.length; i++) {
-				newTarget[i - 1] = position[i];
-			}
-			child.insertJobAt(j, newTarget);
+			node.contents = j;
 		}
 
 		public NamedNode childAt(int i) {
-			if (i >= children.size()) {
+			if (i >= childCount) {
 				return null;
 			} else {
-				return children.get(i);
+				return children[i];
+			}
+		}
+
+		/**
+		 * The number of child positions, including empty ones, that is one
+		 * more than the highest position a child has been placed at
+		 */
+		public int getChildCount() {
+			return childCount;
+		}
+
+		/**
+		 * Discard all children of this node
+		 */
+		public void clearChildren() {
+			children = NO_CHILDREN;
+			childCount = 0;
+		}
+
+		private void setChild(int i, NamedNode child) {
+			if (i >= children.length) {
+				int newLength = Math.max(i + 1, children.length * 2);
+				NamedNode[] newChildren = new NamedNode[newLength];
+				System.arraycopy(children, 0, newChildren, 0, childCount);
+				children = newChildren;
+			}
+			children[i] = child;
+			if (i >= childCount) {
+				childCount = i + 1;
 			}
 		}
 
@@ -138,13 +169,18 @@ public class TreeCache {
 	}
 
 	protected synchronized NamedNode nodeAt(int[] position) {
-		if (root == null) {
-			return null;
-		}
+		return find(position, position.length);
+	}
+
+	/**
+	 * The node at the path given by the first <code>length</code> elements of
+	 * the position array, or null if there is no such node. Callers must hold
+	 * the monitor.
+	 */
+	private NamedNode find(int[] position, int length) {
 		NamedNode result = root;
-		int index = 0;
-		while (index < position.length && result != null) {
-			result = result.childAt(position[index++]);
+		for (int index = 0; index < length && result != null; index++) {
+			result = result.childAt(position[index]);
 		}
 		return result;
 	}
@@ -156,12 +192,10 @@ public class TreeCache {
 	 */
 	public synchronized void cut(int[] indexArray) {
 		if (indexArray.length > 0) {
-			int[] newIndex = tail(indexArray);
-			NamedNode node = nodeAt(newIndex);
-			if (node != null) {
-				if (node.children.size() >= indexArray[indexArray.length - 1]) {
-					node.children.set(indexArray[indexArray.length - 1], null);
-				}
+			NamedNode node = find(indexArray, indexArray.length - 1);
+			int last = indexArray[indexArray.length - 1];
+			if (node != null && last < node.childCount) {
+				node.children[last] = null;
 			}
 		}
 	}
@@ -172,19 +206,21 @@ public class TreeCache {
 	 */
 	public synchronized List<Job> jobsWithPrefix(int[] prefix) {
 		List<Job> jobs = new ArrayList<Job>();
-		NamedNode prefixNode = nodeAt(prefix);
+		NamedNode prefixNode = find(prefix, prefix.length);
 		if (prefixNode != null) {
 			getJobsUnder(prefixNode, jobs);
 		}
 		return jobs;
 	}
 
-	private synchronized void getJobsUnder(NamedNode node, List<Job> jobs) {
+	private void getJobsUnder(NamedNode node, List<Job> jobs) {
 		if (node.contents != null) {
 			jobs.add(node.contents);
 		} else {
-			for (NamedNode child : node.children) {
-				getJobsUnder(child, jobs);
+			for (int i = 0; i < node.childCount; i++) {
+				if (node.children[i] != null) {
+					getJobsUnder(node.children[i], jobs);
+				}
 			}
 		}
 	}
@@ -195,7 +231,7 @@ public class TreeCache {
 	 * @param location
 	 * @return whether the contents of the location are non null
 	 */
-	public synchronized boolean containsLocation(int[] location) {
+	public boolean containsLocation(int[] location) {
 		return (get(location) != null);
 	}
 
@@ -206,25 +242,11 @@ public class TreeCache {
 	 * @return Job at the specified location or null if no such job was found
 	 */
 	public synchronized Job get(int[] location) {
-		NamedNode n = nodeAt(location);
+		NamedNode n = find(location, location.length);
 		if (n == null) {
 			return null;
 		}
 		return n.contents;
 	}
 
-	/**
-	 * Chop the last index off an int[]
-	 * 
-	 * @param arg
-	 * @return
-	 */
-	private static int[] tail(int[] arg) {
-		int result[] = new int[arg.length - 1];
-		for (int i = 0; i < arg.length - 1; i++) {
-			result[i] = arg[i];
-		}
-		return result;
-	}
-
 }
@@ -20,9 +20,8 @@
  ******************************************************************************/
 package net.sf.taverna.t2.workflowmodel.processor.iteration;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.sf.taverna.t2.invocation.Completion;
 import net.sf.taverna.t2.invocation.InvocationContext;
@@ -82,7 +81,7 @@ public abstract class CompletionHandlingAbstractIterationStrategyNode extends
 		}
 	}
 
-	private Map<String, CompletionState> ownerToCompletion = Collections.synchronizedMap(new HashMap<String, CompletionState>());
+	private ConcurrentMap<String, CompletionState> ownerToCompletion = new ConcurrentHashMap<String, CompletionState>();
 
 	public final void receiveCompletion(int inputIndex, Completion completion) {
 		innerReceiveCompletion(inputIndex, completion);
@@ -112,28 +111,32 @@ public abstract class CompletionHandlingAbstractIterationStrategyNode extends
 	private void pingCompletionState(int inputIndex, String owningProcess,
 			boolean isCompletion, InvocationContext context) {
 		CompletionState cs = getCompletionState(owningProcess);
-		cs.inputComplete[inputIndex] = true;
-		if (isCompletion) {
-			cs.receivedCompletion = true;
-		}
-		if (cs.isComplete()) {
-			cleanUp(owningProcess);
-			ownerToCompletion.remove(owningProcess);
-			if (cs.receivedCompletion) {
-				pushCompletion(new Completion(owningProcess, new int[0],
-						context));
+		synchronized (cs) {
+			cs.inputComplete[inputIndex] = true;
+			if (isCompletion) {
+				cs.receivedCompletion = true;
+			}
+			if (!cs.isComplete()
+					|| !ownerToCompletion.remove(owningProcess, cs)) {
+				return;
 			}
 		}
+		cleanUp(owningProcess);
+		if (cs.receivedCompletion) {
+			pushCompletion(new Completion(owningProcess, new int[0], context));
+		}
 	}
 
 	protected CompletionState getCompletionState(String owningProcess) {
-		if (ownerToCompletion.containsKey(owningProcess)) {
-			return ownerToCompletion.get(owningProcess);
-		} else {
-			CompletionState cs = new CompletionState(getChildCount());
-			ownerToCompletion.put(owningProcess, cs);
-			return cs;
+		CompletionState cs = ownerToCompletion.get(owningProcess);
+		if (cs == null) {
+			CompletionState newState = new CompletionState(getChildCount());
+			cs = ownerToCompletion.putIfAbsent(owningProcess, newState);
+			if (cs == null) {
+				cs = newState;
+			}
 		}
+		return cs;
 	}
 
 	protected abstract void innerReceiveCompletion(int inputIndex,
@@ -20,13 +20,12 @@
  ******************************************************************************/
 package net.sf.taverna.t2.workflowmodel.processor.iteration;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.sf.taverna.t2.invocation.Completion;
 import net.sf.taverna.t2.reference.T2Reference;
@@ -37,84 +36,173 @@ import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
  * a new job is received on index 'n' a set of jobs is emited corresponding to
  * the combination of the new job with all other jobs on input indices other
  * than 'n'.
+ * <p>
+ * Combinations are generated lazily and pushed one at a time, so each output
+ * job is only built when the parent is ready to receive it. This avoids
+ * building the whole product in memory before the first job is emitted.
+ * Jobs received so far are held per owning process in append-only arrays,
+ * one per input.
  * 
  * @author Tom Oinn
  * @author David Withers
  */
 public class CrossProduct extends CompletionHandlingAbstractIterationStrategyNode {
 
-	private Map<String, List<Set<Job>>> ownerToCache = Collections.synchronizedMap(new HashMap<String, List<Set<Job>>>());
+	private ConcurrentMap<String, InputCaches> ownerToCache = new ConcurrentHashMap<String, InputCaches>();
 
 	/**
 	 * Receive a job, emit jobs corresponding to the orthogonal join of the new
 	 * job with all jobs in all other input lists.
 	 */
 	@Override
-	public synchronized void innerReceiveJob(int inputIndex, Job newJob) {
+	public void innerReceiveJob(int inputIndex, Job newJob) {
 		if (getChildCount() == 1) {
 			// there's only one input and there's nothing to do here so push the
 			// job through
 			pushJob(newJob);
 			return;
 		}
-		if (!ownerToCache.containsKey(newJob.getOwningProcess())) {
-			List<Set<Job>> perInputCache = new ArrayList<Set<Job>>();
-			for (int i = 0; i < getChildCount(); i++) {
-				perInputCache.add(new HashSet<Job>());
+		String owningProcess = newJob.getOwningProcess();
+		InputCaches caches = ownerToCache.get(owningProcess);
+		if (caches == null) {
+			InputCaches newCaches = new InputCaches(getChildCount());
+			caches = ownerToCache.putIfAbsent(owningProcess, newCaches);
+			if (caches == null) {
+				caches = newCaches;
 			}
-			ownerToCache.put(newJob.getOwningProcess(), perInputCache);
 		}
-		// Store the new job
-		List<Set<Job>> perInputCache = ownerToCache.get(newJob.getOwningProcess());
-		perInputCache.get(inputIndex).add(newJob);
-		// Find all combinations of the new job with all permutations of jobs in
-		// the other caches. We could make this a lot easier by restricting it
-		// to a single pair of inputs, this might be a more sane way to go in
-		// the future...
-		Set<Job> workingSet = perInputCache.get(0);
-		if (inputIndex == 0) {
-			workingSet = new HashSet<Job>();
-			workingSet.add(newJob);
+		Job[][] jobs;
+		int[] sizes;
+		synchronized (caches) {
+			// Take a snapshot of the other inputs, as the arrays are only ever
+			// appended to the snapshot stays valid after the lock is released.
+			// Whichever of two concurrent jobs stores itself first is seen by
+			// the other, so each combination is produced exactly once.
+			jobs = caches.jobs.clone();
+			sizes = caches.sizes.clone();
+			if (canClearCache(inputIndex, owningProcess)) {
+				// If we've seen completions for all the other indexes we don't
+				// need to cache jobs for this index
+				caches.clear(inputIndex);
+			} else {
+				caches.add(inputIndex, newJob);
+			}
+		}
+		jobs[inputIndex] = new Job[] { newJob };
+		sizes[inputIndex] = 1;
+		Iterator<Job> combinations = new Combinations(jobs, sizes);
+		while (combinations.hasNext()) {
+			pushJob(combinations.next());
 		}
-		for (int i = 1; i < getChildCount(); i++) {
-			Set<Job> thisSet = perInputCache.get(i);
-			if (i == inputIndex) {
-				// This is the cache for the new job, so we rewrite the set to a
-				// single element one containing only the newly submitted job
-				thisSet = new HashSet<Job>();
-				thisSet.add(newJob);
+	}
+
+	/**
+	 * Jobs received for a single owning process, held as one growable array
+	 * per input index.
+	 */
+	private static final class InputCaches {
+
+		private final Job[][] jobs;
+
+		private final int[] sizes;
+
+		InputCaches(int inputs) {
+			jobs = new Job[inputs][];
+			sizes = new int[inputs];
+			for (int i = 0; i < inputs; i++) {
+				jobs[i] = new Job[8];
 			}
-			workingSet = merge(workingSet, thisSet);
 		}
-		for (Job outputJob : workingSet) {
-			pushJob(outputJob);
+
+		void add(int inputIndex, Job job) {
+			Job[] array = jobs[inputIndex];
+			int size = sizes[inputIndex];
+			if (size == array.length) {
+				// Copy rather than grow in place, any snapshot keeps the old
+				// array
+				Job[] newArray = new Job[size * 2];
+				System.arraycopy(array, 0, newArray, 0, size);
+				jobs[inputIndex] = array = newArray;
+			}
+			array[size] = job;
+			sizes[inputIndex] = size + 1;
 		}
-		if (canClearCache(inputIndex, newJob.getOwningProcess())) {
-			// If we've seen completions for all the other indexes we don't need
-			// to cache jobs for this index
-			perInputCache.get(inputIndex).clear();
+
+		void clear(int inputIndex) {
+			jobs[inputIndex] = new Job[0];
+			sizes[inputIndex] = 0;
 		}
 	}
 
-	private Set<Job> merge(Set<Job> set1, Set<Job> set2) {
-		Set<Job> newSet = new HashSet<Job>();
-		for (Job job1 : set1) {
-			for (Job job2 : set2) {
-				int[] newIndex = new int[job1.getIndex().length + job2.getIndex().length];
-				int j = 0;
-				for (int i = 0; i < job1.getIndex().length; i++) {
-					newIndex[j++] = job1.getIndex()[i];
+	/**
+	 * Walks every combination of one job from each input, varying the last
+	 * input fastest. Each call to {@link #next()} builds a single job, with an
+	 * index array formed by concatenating the index arrays of its parts in
+	 * input order and a data map merged in the same order.
+	 */
+	private static final class Combinations implements Iterator<Job> {
+
+		private final Job[][] jobs;
+
+		private final int[] sizes;
+
+		private final int[] position;
+
+		private boolean hasNext = true;
+
+		Combinations(Job[][] jobs, int[] sizes) {
+			this.jobs = jobs;
+			this.sizes = sizes;
+			this.position = new int[sizes.length];
+			for (int size : sizes) {
+				if (size == 0) {
+					hasNext = false;
 				}
-				for (int i = 0; i < job2.getIndex().length; i++) {
-					newIndex[j++] = job2.getIndex()[i];
+			}
+		}
+
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		public Job next() {
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			int indexLength = 0;
+			for (int i = 0; i < jobs.length; i++) {
+				indexLength += jobs[i][position[i]].getIndex().length;
+			}
+			int[] newIndex = new int[indexLength];
+			Map<String, T2Reference> newDataMap = new HashMap<String, T2Reference>();
+			int j = 0;
+			for (int i = 0; i < jobs.length; i++) {
+				Job job = jobs[i][position[i]];
+				int[] index = job.getIndex();
+				System.arraycopy(index, 0, newIndex, j, index.length);
+				j += index.length;
+				newDataMap.putAll(job.getData());
+			}
+			Job first = jobs[0][position[0]];
+			Job result = new Job(first.getOwningProcess(), newIndex,
+					newDataMap, first.getContext());
+			advance();
+			return result;
+		}
+
+		private void advance() {
+			for (int i = position.length - 1; i >= 0; i--) {
+				if (++position[i] < sizes[i]) {
+					return;
 				}
-				Map<String, T2Reference> newDataMap = new HashMap<String, T2Reference>();
-				newDataMap.putAll(job1.getData());
-				newDataMap.putAll(job2.getData());
-				newSet.add(new Job(job1.getOwningProcess(), newIndex, newDataMap, job1.getContext()));
+				position[i] = 0;
 			}
+			hasNext = false;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
-		return newSet;
 	}
 
 	@Override
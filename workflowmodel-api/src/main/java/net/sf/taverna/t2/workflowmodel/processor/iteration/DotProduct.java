@@ -20,9 +20,10 @@
  ******************************************************************************/
 package net.sf.taverna.t2.workflowmodel.processor.iteration;
 
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.sf.taverna.t2.invocation.Completion;
 import net.sf.taverna.t2.invocation.TreeCache;
@@ -33,16 +34,41 @@ import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
  * The dot product matches jobs by index array, when a job is received a job is
  * emited if and only if the index array of the new job is matched exactly by
  * index arrays of one job in each other input index.
+ * <p>
+ * Jobs for different owning processes never meet, so rather than serialising
+ * on the node all state is held per owning process and locking is striped on
+ * the cache array for that process. Several workflow runs sharing a dataflow
+ * can therefore iterate through the same node in parallel.
  * 
  * @author Tom Oinn
  * 
  */
 public class DotProduct extends CompletionHandlingAbstractIterationStrategyNode {
 
-	Map<String, TreeCache[]> ownerToCache = Collections.synchronizedMap(new HashMap<String, TreeCache[]>());
+	final ConcurrentMap<String, TreeCache[]> ownerToCache = new ConcurrentHashMap<String, TreeCache[]>();
+
+	/**
+	 * Get the caches for the specified owning process, creating them if this
+	 * is the first job seen for it. The returned array is also the lock to
+	 * hold while reading or modifying the caches.
+	 */
+	TreeCache[] getCaches(String owningProcess) {
+		TreeCache[] caches = ownerToCache.get(owningProcess);
+		if (caches == null) {
+			TreeCache[] newCaches = new TreeCache[getChildCount()];
+			for (int i = 0; i < newCaches.length; i++) {
+				newCaches[i] = new TreeCache();
+			}
+			caches = ownerToCache.putIfAbsent(owningProcess, newCaches);
+			if (caches == null) {
+				caches = newCaches;
+			}
+		}
+		return caches;
+	}
 
 	@Override
-	public synchronized void innerReceiveJob(int inputIndex, Job newJob) {
+	public void innerReceiveJob(int inputIndex, Job newJob) {
 		if (getChildCount() == 1) {
 			// if there's only one input there's nothing to do here so push the
 			// job through
@@ -50,40 +76,39 @@ public class DotProduct extends CompletionHandlingAbstractIterationStrategyNode
 			return;
 		}
 		String owningProcess = newJob.getOwningProcess();
-		if (!ownerToCache.containsKey(owningProcess)) {
-			TreeCache[] caches = new TreeCache[getChildCount()];
-			for (int i = 0; i < getChildCount(); i++) {
-				caches[i] = new TreeCache();
+		int[] indexArray = newJob.getIndex();
+		TreeCache[] caches = getCaches(owningProcess);
+		Job[] partners = new Job[caches.length];
+		synchronized (caches) {
+			// Look for a partner on every other input before storing anything,
+			// the new job only needs to be cached if one of them is missing
+			for (int i = 0; i < caches.length; i++) {
+				if (i != inputIndex) {
+					partners[i] = caches[i].get(indexArray);
+					if (partners[i] == null) {
+						caches[inputIndex].insertJob(newJob);
+						return;
+					}
+				}
+			}
+			// Remove all copies of the job with this index from the cache,
+			// we'll never use it again and it pays to be tidy
+			for (int i = 0; i < caches.length; i++) {
+				if (i != inputIndex) {
+					caches[i].cut(indexArray);
+				}
 			}
-			ownerToCache.put(owningProcess, caches);
 		}
-		// Firstly store the new job in the cache, this isn't optimal but is
-		// safe for now - we can make this more efficient by doing the
-		// comparison first and only storing the job if required
-		TreeCache[] caches = ownerToCache.get(owningProcess);
-		caches[inputIndex].insertJob(newJob);
-		int[] indexArray = newJob.getIndex();
-		boolean foundMatch = true;
 		Map<String, T2Reference> newDataMap = new HashMap<String, T2Reference>();
-		for (TreeCache cache : caches) {
-
-			if (cache.containsLocation(indexArray)) {
-				newDataMap.putAll(cache.get(indexArray).getData());
+		for (int i = 0; i < partners.length; i++) {
+			if (i == inputIndex) {
+				newDataMap.putAll(newJob.getData());
 			} else {
-				foundMatch = false;
-			}
-		}
-		if (foundMatch) {
-			Job j = new Job(owningProcess, indexArray, newDataMap, newJob
-					.getContext());
-			// Remove all copies of the job with this index from the cache,
-			// we'll never use it
-			// again and it pays to be tidy
-			for (TreeCache cache : caches) {
-				cache.cut(indexArray);
+				newDataMap.putAll(partners[i].getData());
 			}
-			pushJob(j);
 		}
+		pushJob(new Job(owningProcess, indexArray, newDataMap, newJob
+				.getContext()));
 	}
 
 	/**
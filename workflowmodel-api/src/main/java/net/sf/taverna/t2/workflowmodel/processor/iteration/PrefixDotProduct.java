@@ -39,28 +39,14 @@ import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
 public class PrefixDotProduct extends DotProduct {
 
 	@Override
-	protected synchronized final void cleanUp(String owningProcess) {
+	protected final void cleanUp(String owningProcess) {
 		ownerToCache.remove(owningProcess);
 	}
 
 	@Override
 	public void innerReceiveJob(int inputIndex, Job newJob) {
 		String owningProcess = newJob.getOwningProcess();
-		TreeCache[] caches;
-		synchronized (ownerToCache) {
-			caches = ownerToCache.get(owningProcess);
-			// Create the caches if not already initialized
-			if (caches == null) {
-				caches = new TreeCache[getChildCount()];
-				for (int i = 0; i < getChildCount(); i++) {
-					caches[i] = new TreeCache();
-				}
-				ownerToCache.put(owningProcess, caches);
-			}
-		}
-
-		// Store the job
-		caches[inputIndex].insertJob(newJob);
+		TreeCache[] caches = getCaches(owningProcess);
 
 		// If this job came in on index 0 we have to find all jobs in the cache
 		// for index 1 which have the index array as a prefix. Fortunately this
@@ -69,7 +55,10 @@ public class PrefixDotProduct extends DotProduct {
 		if (inputIndex == 0) {
 			int[] prefixIndexArray = newJob.getIndex();
 			List<Job> matchingJobs;
-			synchronized (caches[1]) {
+			synchronized (caches) {
+				// Later jobs on index 1 may still match this one so it is
+				// always stored
+				caches[0].insertJob(newJob);
 				// Match all jobs and remove them so other calls can't produce
 				// duplicates
 				matchingJobs = caches[1].jobsWithPrefix(prefixIndexArray);
@@ -87,24 +76,31 @@ public class PrefixDotProduct extends DotProduct {
 
 		// If the job came in on index 1 we have to find the job on index 0 that
 		// matches the first 'n' indices, where 'n' is determined by the depth
-		// of jobs on the cache for index 0.
+		// of jobs on the cache for index 0. The job is only stored if there
+		// is no such match yet.
 		else if (inputIndex == 1) {
-			// Only act if we've received jobs on the cache at index 0
-			if (caches[0].getIndexLength() > 0) {
-				int[] prefix = new int[caches[0].getIndexLength()];
-				for (int i = 0; i < prefix.length; i++) {
-					prefix[i] = newJob.getIndex()[i];
+			Job j = null;
+			synchronized (caches) {
+				// Only look if we've received jobs on the cache at index 0
+				if (caches[0].getIndexLength() > 0) {
+					int[] prefix = new int[caches[0].getIndexLength()];
+					for (int i = 0; i < prefix.length; i++) {
+						prefix[i] = newJob.getIndex()[i];
+					}
+					j = caches[0].get(prefix);
 				}
-				Job j = caches[0].get(prefix);
-				if (j != null) {
-					Map<String, T2Reference> newDataMap = new HashMap<String, T2Reference>();
-					newDataMap.putAll(j.getData());
-					newDataMap.putAll(newJob.getData());
-					Job mergedJob = new Job(owningProcess, newJob.getIndex(),
-							newDataMap, newJob.getContext());
-					pushJob(mergedJob);
+				if (j == null) {
+					caches[1].insertJob(newJob);
 				}
 			}
+			if (j != null) {
+				Map<String, T2Reference> newDataMap = new HashMap<String, T2Reference>();
+				newDataMap.putAll(j.getData());
+				newDataMap.putAll(newJob.getData());
+				Job mergedJob = new Job(owningProcess, newJob.getIndex(),
+						newDataMap, newJob.getContext());
+				pushJob(mergedJob);
+			}
 		}
 
 	}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.invocation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+
+import net.sf.taverna.t2.invocation.TreeCache.NamedNode;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
+import net.sf.taverna.t2.workflowmodel.processor.iteration.DummyInvocationContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test insertion, lookup and cutting in {@link TreeCache}
+ * 
+ */
+public class TestTreeCache {
+
+	private InvocationContext context;
+
+	private TreeCache cache;
+
+	@Test
+	public void emptyCache() {
+		assertEquals(-1, cache.getIndexLength());
+		assertNull(cache.get(new int[] { 0 }));
+		assertNull(cache.get(new int[0]));
+		assertTrue(cache.jobsWithPrefix(new int[0]).isEmpty());
+		cache.cut(new int[] { 1, 2 });
+	}
+
+	@Test
+	public void insertAndGet() {
+		Job a = job(0, 3);
+		Job b = job(2, 1);
+		cache.insertJob(a);
+		cache.insertJob(b);
+		assertEquals(2, cache.getIndexLength());
+		assertSame(a, cache.get(new int[] { 0, 3 }));
+		assertSame(b, cache.get(new int[] { 2, 1 }));
+		assertFalse(cache.containsLocation(new int[] { 1, 0 }));
+		assertFalse(cache.containsLocation(new int[] { 0, 2 }));
+		assertFalse(cache.containsLocation(new int[] { 0, 30 }));
+		// Intermediate nodes have no contents
+		assertFalse(cache.containsLocation(new int[] { 0 }));
+	}
+
+	@Test
+	public void sparseChildren() {
+		cache.insertJob(job(5));
+		NamedNode root = cache.nodeAt(new int[0]);
+		assertEquals(6, root.getChildCount());
+		for (int i = 0; i < 5; i++) {
+			assertNull(root.childAt(i));
+		}
+		assertSame(cache.get(new int[] { 5 }), root.childAt(5).contents);
+		assertNull(root.childAt(6));
+		root.clearChildren();
+		assertEquals(0, root.getChildCount());
+		assertNull(cache.get(new int[] { 5 }));
+	}
+
+	@Test
+	public void cut() {
+		cache.insertJob(job(0, 0));
+		cache.insertJob(job(0, 1));
+		cache.insertJob(job(1, 0));
+		cache.cut(new int[] { 0, 1 });
+		assertTrue(cache.containsLocation(new int[] { 0, 0 }));
+		assertFalse(cache.containsLocation(new int[] { 0, 1 }));
+		// Cutting leaves the position in place but empty
+		assertEquals(2, cache.nodeAt(new int[] { 0 }).getChildCount());
+		cache.cut(new int[] { 1 });
+		assertFalse(cache.containsLocation(new int[] { 1, 0 }));
+	}
+
+	@Test
+	public void jobsWithPrefix() {
+		cache.insertJob(job(0, 0));
+		cache.insertJob(job(0, 2));
+		cache.insertJob(job(1, 0));
+		List<Job> jobs = cache.jobsWithPrefix(new int[] { 0 });
+		assertEquals(2, jobs.size());
+		cache.cut(new int[] { 0, 0 });
+		jobs = cache.jobsWithPrefix(new int[] { 0 });
+		assertEquals(1, jobs.size());
+		assertSame(cache.get(new int[] { 0, 2 }), jobs.get(0));
+		assertEquals(2, cache.jobsWithPrefix(new int[0]).size());
+	}
+
+	@Before
+	public void makeCache() {
+		cache = new TreeCache();
+		context = new DummyInvocationContext();
+	}
+
+	private Job job(int... index) {
+		return new Job("test", index, new HashMap<String, T2Reference>(),
+				context);
+	}
+
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.invocation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
+import net.sf.taverna.t2.workflowmodel.processor.iteration.DummyInvocationContext;
+
+/**
+ * Times {@link TreeCache} against the ArrayList based implementation it
+ * replaced, which padded child lists with nulls and copied the index array at
+ * every level of the tree.
+ * <p>
+ * Each round mimics a dot product over jobs of the given depth: every job is
+ * inserted, looked up and then cut, followed by a prefix fetch over the whole
+ * of the first top level branch. Run with
+ * <code>java ... TreeCacheBenchmark [width depth rounds]</code>, the number
+ * of jobs per round is width to the power of depth.
+ */
+public class TreeCacheBenchmark {
+
+	public static void main(String[] args) {
+		int width = 30;
+		int depth = 3;
+		int rounds = 20;
+		if (args.length == 3) {
+			width = Integer.parseInt(args[0]);
+			depth = Integer.parseInt(args[1]);
+			rounds = Integer.parseInt(args[2]);
+		}
+		List<Job> jobs = makeJobs(width, depth);
+		// warm up
+		for (int i = 0; i < 5; i++) {
+			runLegacy(jobs);
+			runCurrent(jobs);
+		}
+		long legacy = 0;
+		long current = 0;
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			runLegacy(jobs);
+			legacy += System.nanoTime() - start;
+			start = System.nanoTime();
+			runCurrent(jobs);
+			current += System.nanoTime() - start;
+		}
+		System.out.println(String.format(
+				"%d jobs of depth %d, %d rounds", jobs.size(), depth, rounds));
+		System.out.println(String.format("legacy   %8.2f ms/round",
+				legacy / 1e6 / rounds));
+		System.out.println(String.format("current  %8.2f ms/round",
+				current / 1e6 / rounds));
+	}
+
+	private static int runCurrent(List<Job> jobs) {
+		TreeCache cache = new TreeCache();
+		int found = 0;
+		for (Job job : jobs) {
+			cache.insertJob(job);
+		}
+		found += cache.jobsWithPrefix(new int[] { 0 }).size();
+		for (Job job : jobs) {
+			if (cache.containsLocation(job.getIndex())) {
+				found++;
+			}
+			cache.cut(job.getIndex());
+		}
+		return found;
+	}
+
+	private static int runLegacy(List<Job> jobs) {
+		LegacyTreeCache cache = new LegacyTreeCache();
+		int found = 0;
+		for (Job job : jobs) {
+			cache.insertJob(job);
+		}
+		found += cache.jobsWithPrefix(new int[] { 0 }).size();
+		for (Job job : jobs) {
+			if (cache.containsLocation(job.getIndex())) {
+				found++;
+			}
+			cache.cut(job.getIndex());
+		}
+		return found;
+	}
+
+	private static List<Job> makeJobs(int width, int depth) {
+		InvocationContext context = new DummyInvocationContext();
+		Map<String, T2Reference> data = new HashMap<String, T2Reference>();
+		List<Job> jobs = new ArrayList<Job>();
+		int[] index = new int[depth];
+		while (true) {
+			jobs.add(new Job("benchmark", index.clone(), data, context));
+			int level = depth - 1;
+			while (level >= 0 && ++index[level] == width) {
+				index[level--] = 0;
+			}
+			if (level < 0) {
+				return jobs;
+			}
+		}
+	}
+
+	/**
+	 * The previous implementation of the operations timed here, kept for
+	 * comparison
+	 */
+	private static class LegacyTreeCache {
+
+		private NamedNode root = null;
+
+		private class NamedNode {
+
+			private Job contents = null;
+
+			private List<NamedNode> children = new ArrayList<NamedNode>();
+
+			private void insertJobAt(Job j, int[] position) {
+				if (position.length == 0) {
+					this.contents = j;
+					return;
+				}
+				int firstIndex = position[0];
+				if (firstIndex >= children.size()) {
+					for (int i = children.size(); i <= firstIndex; i++) {
+						children.add(null);
+					}
+				}
+				NamedNode child = children.get(firstIndex);
+				if (child == null) {
+					child = new NamedNode();
+					children.set(firstIndex, child);
+				}
+				int[] newTarget = new int[position.length - 1];
+				for (int i = 1; i < position.length; i++) {
+					newTarget[i - 1] = position[i];
+				}
+				child.insertJobAt(j, newTarget);
+			}
+
+			private NamedNode childAt(int i) {
+				if (i >= children.size()) {
+					return null;
+				}
+				return children.get(i);
+			}
+		}
+
+		public synchronized void insertJob(Job j) {
+			if (root == null) {
+				root = new NamedNode();
+			}
+			root.insertJobAt(j, j.getIndex());
+		}
+
+		private synchronized NamedNode nodeAt(int[] position) {
+			if (root == null) {
+				return null;
+			}
+			NamedNode result = root;
+			int index = 0;
+			while (index < position.length && result != null) {
+				result = result.childAt(position[index++]);
+			}
+			return result;
+		}
+
+		public synchronized void cut(int[] indexArray) {
+			if (indexArray.length > 0) {
+				int[] newIndex = new int[indexArray.length - 1];
+				for (int i = 0; i < indexArray.length - 1; i++) {
+					newIndex[i] = indexArray[i];
+				}
+				NamedNode node = nodeAt(newIndex);
+				if (node != null
+						&& node.children.size() > indexArray[indexArray.length - 1]) {
+					node.children.set(indexArray[indexArray.length - 1], null);
+				}
+			}
+		}
+
+		public synchronized List<Job> jobsWithPrefix(int[] prefix) {
+			List<Job> jobs = new ArrayList<Job>();
+			NamedNode prefixNode = nodeAt(prefix);
+			if (prefixNode != null) {
+				getJobsUnder(prefixNode, jobs);
+			}
+			return jobs;
+		}
+
+		private synchronized void getJobsUnder(NamedNode node, List<Job> jobs) {
+			if (node.contents != null) {
+				jobs.add(node.contents);
+			} else {
+				for (NamedNode child : node.children) {
+					if (child != null) {
+						getJobsUnder(child, jobs);
+					}
+				}
+			}
+		}
+
+		public synchronized boolean containsLocation(int[] location) {
+			NamedNode n = nodeAt(location);
+			return n != null && n.contents != null;
+		}
+	}
+
+}
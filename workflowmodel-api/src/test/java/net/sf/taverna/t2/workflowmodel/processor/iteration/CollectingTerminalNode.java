@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.iteration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.taverna.t2.invocation.Completion;
+import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
+
+/**
+ * A {@link TerminalNode} for tests which keeps the jobs it receives, from
+ * any number of threads.
+ * 
+ */
+public class CollectingTerminalNode extends TerminalNode {
+
+	private final List<Job> jobs = Collections
+			.synchronizedList(new ArrayList<Job>());
+
+	/**
+	 * The jobs received so far, in the order they arrived
+	 */
+	public List<Job> getJobs() {
+		return jobs;
+	}
+
+	public int getIterationDepth(Map<String, Integer> inputDepths)
+			throws IterationTypeMismatchException {
+		return 0;
+	}
+
+	public void receiveCompletion(int inputIndex, Completion completion) {
+	}
+
+	public void receiveJob(int inputIndex, Job newJob) {
+		jobs.add(newJob);
+	}
+}
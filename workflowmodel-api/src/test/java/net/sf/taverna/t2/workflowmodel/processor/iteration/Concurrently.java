@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.iteration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs a task on several threads, all let go at the same time to make races
+ * between them likely, and fails if any of them failed.
+ * 
+ */
+public final class Concurrently {
+
+	/**
+	 * The part of the test run by each thread
+	 */
+	public static interface Task {
+		public void run(int thread) throws Exception;
+	}
+
+	private Concurrently() {
+	}
+
+	/**
+	 * Run the task on the given number of threads, numbered from 0, and wait
+	 * for all of them to finish
+	 */
+	public static void run(int threads, final Task task) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> failures = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> started = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			Thread runner = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						task.run(thread);
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			};
+			runner.start();
+			started.add(runner);
+		}
+		start.countDown();
+		for (Thread runner : started) {
+			runner.join();
+		}
+		assertEquals(Collections.emptyList(), failures);
+	}
+}
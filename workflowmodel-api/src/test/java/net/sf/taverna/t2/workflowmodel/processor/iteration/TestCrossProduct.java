@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.iteration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the combinations emitted by {@link CrossProduct}.
+ * 
+ */
+public class TestCrossProduct {
+
+	private InvocationContext context = new DummyInvocationContext();
+
+	private CollectingTerminalNode root;
+
+	private CrossProduct crossProduct;
+
+	@Test
+	public void threeWayProduct() throws Exception {
+		makeInputs(3);
+		for (int i = 0; i < 4; i++) {
+			for (int input = 0; input < 3; input++) {
+				crossProduct.receiveJob(input, job("p1", input, i));
+			}
+		}
+		assertEquals(4 * 4 * 4, root.getJobs().size());
+		Set<String> indices = new HashSet<String>();
+		for (Job job : root.getJobs()) {
+			assertEquals(3, job.getIndex().length);
+			assertEquals(3, job.getData().size());
+			assertTrue(indices.add(Arrays.toString(job.getIndex())));
+		}
+	}
+
+	@Test
+	public void indexAndDataInInputOrder() throws Exception {
+		makeInputs(2);
+		crossProduct.receiveJob(1, job("p1", 1, 5));
+		crossProduct.receiveJob(0, job("p1", 0, 2));
+		assertEquals(1, root.getJobs().size());
+		Job job = root.getJobs().get(0);
+		assertEquals("p1", job.getOwningProcess());
+		assertTrue(Arrays.equals(new int[] { 2, 5 }, job.getIndex()));
+		assertTrue(job.getData().keySet().containsAll(
+				Arrays.asList("input0", "input1")));
+	}
+
+	@Test
+	public void concurrentInputsOneOwner() throws Exception {
+		makeInputs(2);
+		final int perThread = 100;
+		Concurrently.run(4, new Concurrently.Task() {
+			public void run(int thread) {
+				int input = thread % 2;
+				int offset = (thread / 2) * perThread;
+				for (int i = 0; i < perThread; i++) {
+					crossProduct.receiveJob(input, job("p1", input, offset + i));
+				}
+			}
+		});
+		assertEquals(2 * perThread * 2 * perThread, root.getJobs().size());
+		Set<String> indices = new HashSet<String>();
+		for (Job job : root.getJobs()) {
+			assertTrue(indices.add(Arrays.toString(job.getIndex())));
+		}
+	}
+
+	@Before
+	public void makeNodes() {
+		root = new CollectingTerminalNode();
+		crossProduct = new CrossProduct();
+		crossProduct.setParent(root);
+	}
+
+	private void makeInputs(int inputs) {
+		for (int i = 0; i < inputs; i++) {
+			crossProduct.insert(new NamedInputPortNode("input" + i, 1));
+		}
+	}
+
+	private Job job(String owner, int input, int index) {
+		Map<String, T2Reference> data = new HashMap<String, T2Reference>();
+		data.put("input" + input, null);
+		return new Job(owner, new int[] { index }, data, context);
+	}
+
+}
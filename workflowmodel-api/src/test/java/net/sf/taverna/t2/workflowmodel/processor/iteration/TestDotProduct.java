@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.iteration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.invocation.TreeCache;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test matching in {@link DotProduct} and {@link PrefixDotProduct}, including
+ * jobs for several owning processes arriving from different threads.
+ * 
+ */
+public class TestDotProduct {
+
+	private static final int THREADS = 8;
+
+	private static final int JOBS = 200;
+
+	private InvocationContext context = new DummyInvocationContext();
+
+	private CollectingTerminalNode root;
+
+	@Test
+	public void matchOnce() throws Exception {
+		DotProduct dotProduct = makeNode(new DotProduct());
+		dotProduct.receiveJob(0, job("p1", 0, new int[] { 1 }));
+		assertEquals(0, root.getJobs().size());
+		dotProduct.receiveJob(1, job("p1", 1, new int[] { 1 }));
+		assertEquals(1, root.getJobs().size());
+		Job job = root.getJobs().get(0);
+		assertEquals(2, job.getData().size());
+		assertTrue(job.getData().containsKey("input0"));
+		assertTrue(job.getData().containsKey("input1"));
+		// The matching job was never stored and its partner has been cut
+		TreeCache[] caches = dotProduct.ownerToCache.get("p1");
+		assertEquals(null, caches[0].get(new int[] { 1 }));
+		assertEquals(null, caches[1].get(new int[] { 1 }));
+	}
+
+	@Test
+	public void differentOwnersDontMatch() throws Exception {
+		DotProduct dotProduct = makeNode(new DotProduct());
+		dotProduct.receiveJob(0, job("p1", 0, new int[] { 0 }));
+		dotProduct.receiveJob(1, job("p2", 1, new int[] { 0 }));
+		assertEquals(0, root.getJobs().size());
+	}
+
+	@Test
+	public void concurrentOwners() throws Exception {
+		final DotProduct dotProduct = makeNode(new DotProduct());
+		Concurrently.run(THREADS, new Concurrently.Task() {
+			public void run(int thread) {
+				String owner = "p" + thread;
+				for (int i = 0; i < JOBS; i++) {
+					dotProduct.receiveJob(i % 2, job(owner, i % 2,
+							new int[] { i }));
+					dotProduct.receiveJob(1 - i % 2, job(owner, 1 - i % 2,
+							new int[] { i }));
+				}
+			}
+		});
+		assertEquals(THREADS * JOBS, root.getJobs().size());
+		assertUnique(root.getJobs());
+	}
+
+	@Test
+	public void concurrentInputsOneOwner() throws Exception {
+		final DotProduct dotProduct = makeNode(new DotProduct());
+		Concurrently.run(THREADS, new Concurrently.Task() {
+			public void run(int thread) {
+				int input = thread % 2;
+				for (int i = thread / 2; i < JOBS * THREADS / 2; i += THREADS / 2) {
+					dotProduct.receiveJob(input, job("p1", input,
+							new int[] { i }));
+				}
+			}
+		});
+		assertEquals(JOBS * THREADS / 2, root.getJobs().size());
+		assertUnique(root.getJobs());
+	}
+
+	@Test
+	public void concurrentPrefixInputsOneOwner() throws Exception {
+		final PrefixDotProduct dotProduct = makeNode(new PrefixDotProduct());
+		Concurrently.run(THREADS, new Concurrently.Task() {
+			public void run(int thread) {
+				for (int i = thread; i < JOBS; i += THREADS) {
+					if (thread % 2 == 0) {
+						dotProduct.receiveJob(0, job("p1", 0, new int[] { i }));
+						dotProduct.receiveJob(0, job("p1", 0,
+								new int[] { i + 1 }));
+					} else {
+						dotProduct.receiveJob(1, job("p1", 1, new int[] {
+								i - 1, 0 }));
+						dotProduct.receiveJob(1, job("p1", 1, new int[] {
+								i - 1, 1 }));
+						dotProduct.receiveJob(1, job("p1", 1, new int[] { i,
+								0 }));
+						dotProduct.receiveJob(1, job("p1", 1, new int[] { i,
+								1 }));
+					}
+				}
+			}
+		});
+		assertEquals(JOBS * 2, root.getJobs().size());
+		assertUnique(root.getJobs());
+	}
+
+	@Before
+	public void makeRoot() {
+		root = new CollectingTerminalNode();
+	}
+
+	private <T extends DotProduct> T makeNode(T dotProduct) {
+		dotProduct.setParent(root);
+		dotProduct.insert(new NamedInputPortNode("input0", 0));
+		dotProduct.insert(new NamedInputPortNode("input1", 0));
+		return dotProduct;
+	}
+
+	private Job job(String owner, int input, int[] index) {
+		Map<String, T2Reference> data = new HashMap<String, T2Reference>();
+		data.put("input" + input, null);
+		return new Job(owner, index, data, context);
+	}
+
+	private void assertUnique(List<Job> jobs) {
+		Set<String> seen = new HashSet<String>();
+		for (Job job : jobs) {
+			String key = job.getOwningProcess()
+					+ java.util.Arrays.toString(job.getIndex());
+			assertTrue("Duplicate job " + key, seen.add(key));
+			assertEquals(2, job.getData().size());
+		}
+	}
+
+}
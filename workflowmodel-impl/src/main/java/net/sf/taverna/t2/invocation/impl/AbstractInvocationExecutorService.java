@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.invocation.impl;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Common base for the {@link InvocationExecutorService} implementations,
+ * wraps tasks so that they run with the requested thread name and context
+ * classloader, report uncaught exceptions to the supplied handler and are
+ * counted for the queue size and active count.
+ */
+public abstract class AbstractInvocationExecutorService implements
+		InvocationExecutorService {
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	public int getQueueSize() {
+		return queued.get();
+	}
+
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * Wrap the task and count it as queued, subclasses should call this from
+	 * {@link #execute(Runnable, String, ClassLoader, UncaughtExceptionHandler)}
+	 * and hand the returned runnable to their underlying thread source.
+	 */
+	protected Runnable wrap(Runnable runMe, String name,
+			ClassLoader contextClassLoader,
+			UncaughtExceptionHandler exceptionHandler) {
+		queued.incrementAndGet();
+		return new InvocationTask(runMe, name, contextClassLoader,
+				exceptionHandler);
+	}
+
+	/**
+	 * Called from the thread running a task immediately before the task itself
+	 * is run, the default does nothing.
+	 */
+	protected void beforeRun() throws InterruptedException {
+		// Do nothing by default
+	}
+
+	/**
+	 * Called from the thread running a task once it has finished, whether it
+	 * completed normally or not. Only called if {@link #beforeRun()} returned
+	 * normally.
+	 */
+	protected void afterRun() {
+		// Do nothing by default
+	}
+
+	private class InvocationTask implements Runnable {
+
+		private final Runnable runMe;
+		private final String name;
+		private final ClassLoader contextClassLoader;
+		private final UncaughtExceptionHandler exceptionHandler;
+
+		InvocationTask(Runnable runMe, String name,
+				ClassLoader contextClassLoader,
+				UncaughtExceptionHandler exceptionHandler) {
+			this.runMe = runMe;
+			this.name = name;
+			this.contextClassLoader = contextClassLoader;
+			this.exceptionHandler = exceptionHandler;
+		}
+
+		public void run() {
+			Thread thread = Thread.currentThread();
+			String oldName = thread.getName();
+			ClassLoader oldClassLoader = thread.getContextClassLoader();
+			try {
+				beforeRun();
+			} catch (InterruptedException e) {
+				queued.decrementAndGet();
+				exceptionHandler.uncaughtException(thread, e);
+				return;
+			}
+			queued.decrementAndGet();
+			active.incrementAndGet();
+			try {
+				thread.setName(name);
+				thread.setContextClassLoader(contextClassLoader);
+				runMe.run();
+			} catch (Throwable t) {
+				exceptionHandler.uncaughtException(thread, t);
+			} finally {
+				thread.setContextClassLoader(oldClassLoader);
+				thread.setName(oldName);
+				active.decrementAndGet();
+				afterRun();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.invocation.impl;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+/**
+ * Runs the work handed to
+ * {@link AsynchronousActivityCallback#requestRun(Runnable)} by asynchronous
+ * activities. The Invoke dispatch layer looks for an instance of this interface
+ * amongst the entities of the job's {@link InvocationContext}, so a workflow
+ * run can select its own executor by adding one with
+ * {@link InvocationContext#addEntity(Object)} before the run starts. If no
+ * executor is present a new thread is created for every invocation, as
+ * {@link ThreadPerInvocationExecutorService} does.
+ * <p>
+ * Implementations must run each task with the supplied context classloader
+ * installed and must pass any {@link Throwable} escaping from the task to the
+ * supplied {@link UncaughtExceptionHandler}, this is what the Invoke layer
+ * relies on to report failed invocations.
+ * 
+ * @see PooledInvocationExecutorService
+ * @see ThreadPerInvocationExecutorService
+ */
+public interface InvocationExecutorService {
+
+	/**
+	 * Schedule a task for execution
+	 * 
+	 * @param runMe
+	 *            the task passed to requestRun by the activity
+	 * @param name
+	 *            a descriptive name for the thread running the task
+	 * @param contextClassLoader
+	 *            the classloader to install as the context classloader while
+	 *            the task runs, normally that of the activity
+	 * @param exceptionHandler
+	 *            called if the task terminates with an uncaught exception
+	 */
+	public void execute(Runnable runMe, String name,
+			ClassLoader contextClassLoader,
+			UncaughtExceptionHandler exceptionHandler);
+
+	/**
+	 * @return the number of tasks which have been submitted but have not yet
+	 *         started running
+	 */
+	public int getQueueSize();
+
+	/**
+	 * @return the number of tasks currently running
+	 */
+	public int getActiveCount();
+
+	/**
+	 * Stop accepting new tasks and release any threads once the tasks already
+	 * submitted have completed.
+	 */
+	public void shutdown();
+
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.invocation.impl;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@link InvocationExecutorService} which runs at most a fixed number of
+ * invocations at any one time, further tasks are queued until a running
+ * invocation finishes. This avoids creating a thread for every iteration of
+ * large runs.
+ * <p>
+ * By default the tasks run on a pool of platform threads which time out when
+ * idle. If virtual threads are requested and the Java runtime provides them
+ * (Java 21 or later) each task runs on its own virtual thread instead and the
+ * bound is enforced by a semaphore. On older runtimes the request is logged and
+ * the platform thread pool is used.
+ * <p>
+ * Note that an activity which blocks inside requestRun waiting for other
+ * invocations to complete can starve a bounded executor, such activities
+ * should not be run through a pool smaller than their expected nesting.
+ */
+public class PooledInvocationExecutorService extends
+		AbstractInvocationExecutorService {
+
+	private static Logger logger = Logger
+			.getLogger(PooledInvocationExecutorService.class);
+
+	public static final int DEFAULT_MAXIMUM_THREADS = 32;
+
+	private static final long KEEP_ALIVE_SECONDS = 60L;
+
+	private static final AtomicInteger poolCount = new AtomicInteger();
+
+	private final ExecutorService executor;
+
+	private final Semaphore permits;
+
+	private final int maximumThreads;
+
+	/**
+	 * Pool of {@value #DEFAULT_MAXIMUM_THREADS} platform threads
+	 */
+	public PooledInvocationExecutorService() {
+		this(DEFAULT_MAXIMUM_THREADS, false);
+	}
+
+	/**
+	 * @param maximumThreads
+	 *            maximum number of concurrently running invocations
+	 * @param useVirtualThreads
+	 *            run each invocation on a virtual thread if the runtime
+	 *            supports them
+	 */
+	public PooledInvocationExecutorService(int maximumThreads,
+			boolean useVirtualThreads) {
+		if (maximumThreads < 1) {
+			throw new IllegalArgumentException(
+					"Maximum threads must be at least 1, was " + maximumThreads);
+		}
+		this.maximumThreads = maximumThreads;
+		ExecutorService virtualExecutor = null;
+		if (useVirtualThreads) {
+			virtualExecutor = createVirtualThreadExecutor();
+		}
+		if (virtualExecutor != null) {
+			executor = virtualExecutor;
+			permits = new Semaphore(maximumThreads, true);
+		} else {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(maximumThreads,
+					maximumThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new InvocationThreadFactory());
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+			permits = null;
+		}
+	}
+
+	public void execute(Runnable runMe, String name,
+			ClassLoader contextClassLoader,
+			UncaughtExceptionHandler exceptionHandler) {
+		executor.execute(wrap(runMe, name, contextClassLoader,
+				exceptionHandler));
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public int getMaximumThreads() {
+		return maximumThreads;
+	}
+
+	/**
+	 * @return true if invocations are run on virtual threads
+	 */
+	public boolean isUsingVirtualThreads() {
+		return permits != null;
+	}
+
+	@Override
+	protected void beforeRun() throws InterruptedException {
+		if (permits != null) {
+			permits.acquire();
+		}
+	}
+
+	@Override
+	protected void afterRun() {
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			logger.warn("Virtual threads are not supported by this Java "
+					+ "runtime, using a pool of platform threads");
+		} catch (Exception e) {
+			logger.warn("Could not create virtual thread executor, "
+					+ "using a pool of platform threads", e);
+		}
+		return null;
+	}
+
+	private static class InvocationThreadFactory implements ThreadFactory {
+
+		private final int poolNumber = poolCount.incrementAndGet();
+
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "Invocation pool " + poolNumber + " thread "
+					+ threadCount.incrementAndGet());
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.invocation.impl;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+
+/**
+ * Default {@link InvocationExecutorService}, starts a new thread for every
+ * task. This is the behaviour of the Invoke layer when the invocation context
+ * doesn't contain an executor service.
+ */
+public class ThreadPerInvocationExecutorService extends
+		AbstractInvocationExecutorService {
+
+	public void execute(Runnable runMe, String name,
+			ClassLoader contextClassLoader,
+			UncaughtExceptionHandler exceptionHandler) {
+		Thread thread = new Thread(wrap(runMe, name, contextClassLoader,
+				exceptionHandler), name);
+		thread.setContextClassLoader(contextClassLoader);
+		thread.setUncaughtExceptionHandler(exceptionHandler);
+		thread.start();
+	}
+
+	public void shutdown() {
+		// Nothing to release, threads end with their tasks
+	}
+
+}
@@ -29,6 +29,7 @@ import net.sf.taverna.t2.invocation.Completion;
 import net.sf.taverna.t2.invocation.InvocationContext;
 import net.sf.taverna.t2.invocation.IterationInternalEvent;
 import net.sf.taverna.t2.invocation.TreeCache;
+import net.sf.taverna.t2.reference.IdentifiedList;
 import net.sf.taverna.t2.reference.T2Reference;
 import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
 
@@ -43,6 +44,12 @@ import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
  * public API (although for termination of partially complete workflows it may
  * be sensible for subclasses to provide one)
  * <p>
+ * When a completion names a whole subtree of the index structure the lists
+ * are registered a level at a time from the bottom up, with all the lists on
+ * a level registered in a single call to the list service. The child jobs of
+ * each node are dropped as soon as its own lists are registered, so only the
+ * jobs below collections which are still incomplete are held.
+ * <p>
  * 
  * @author Tom Oinn
  * @author David Withers
@@ -133,68 +140,110 @@ public abstract class AbstractCrystalizer implements Crystalizer {
 
 		private void assignNamesTo(NamedNode n, int[] index) {
 			// Only act if contents of this node undefined
-			// StringBuffer iString = new StringBuffer();
-			// for (int foo : index) {
-			// iString.append(foo+" ");
-			// }
 			if (n.contents == null) {
-				Map<String, List<T2Reference>> listItems = new HashMap<String, List<T2Reference>>();
-				int pos = 0;
-			for (NamedNode child : n.children) {
+				List<List<UnnamedNode>> levels = new ArrayList<List<UnnamedNode>>();
+				collectUnnamed(n, index, levels);
+				for (List<UnnamedNode> level : levels) {
+					nameLevel(level);
+				}
+			}
+		}
 
-					// If child doesn't have a defined name map yet then define
-					// it
-					Job j;
+		/**
+		 * Add the specified unnamed node and all unnamed nodes below it to the
+		 * levels list, indexed by height above the nearest named jobs, filling
+		 * any gaps in the structure with empty jobs on the way.
+		 * 
+		 * @return the height of the level the node was added to, plus one
+		 */
+		private int collectUnnamed(NamedNode n, int[] index,
+				List<List<UnnamedNode>> levels) {
+			int height = 0;
+			for (int pos = 0; pos < n.getChildCount(); pos++) {
+				NamedNode child = n.childAt(pos);
+				if (child == null || child.contents == null) {
+					int[] newIndex = new int[index.length + 1];
+					System.arraycopy(index, 0, newIndex, 0, index.length);
+					newIndex[index.length] = pos;
 					if (child == null) {
 						// happens if we're completing a partially empty
-						// collection structure
-						int[] newIndex = new int[index.length + 1];
-						for (int i = 0; i < index.length; i++) {
-							newIndex[i] = index[i];
-						}
-						newIndex[index.length] = pos++;
-						j = getEmptyJob(owningProcess, newIndex, context);
+						// collection structure, store the empty job where the
+						// child would have been
+						Job j = getEmptyJob(owningProcess, newIndex, context);
+						insertJob(j);
 						AbstractCrystalizer.this.jobCreated(j);
 					} else {
-
-						if (child.contents == null) {
-							int[] newIndex = new int[index.length + 1];
-							for (int i = 0; i < index.length; i++) {
-								newIndex[i] = index[i];
-							}
-							newIndex[index.length] = pos++;
-							assignNamesTo(child, newIndex);
-						} else {
-							pos++;
-						}
-						j = child.contents;
+						height = Math.max(height, collectUnnamed(child,
+								newIndex, levels));
 					}
-					// Now pull the names out of the child job map and push them
-					// into lists to be registered
+				}
+			}
+			while (levels.size() <= height) {
+				levels.add(new ArrayList<UnnamedNode>());
+			}
+			levels.get(height).add(new UnnamedNode(n, index));
+			return height + 1;
+		}
 
+		/**
+		 * Name a set of nodes whose children are all named, registering the
+		 * lists for every node and output name in one go
+		 */
+		private void nameLevel(List<UnnamedNode> level) {
+			List<List<T2Reference>> lists = new ArrayList<List<T2Reference>>();
+			for (UnnamedNode unnamed : level) {
+				// Pull the names out of the child job maps and push them into
+				// lists to be registered
+				NamedNode n = unnamed.node;
+				for (int pos = 0; pos < n.getChildCount(); pos++) {
+					Job j = n.childAt(pos).contents;
 					for (String outputName : j.getData().keySet()) {
-						List<T2Reference> items = listItems.get(outputName);
+						List<T2Reference> items = unnamed.listItems
+								.get(outputName);
 						if (items == null) {
 							items = new ArrayList<T2Reference>();
-							listItems.put(outputName, items);
+							unnamed.listItems.put(outputName, items);
 						}
 						items.add(j.getData().get(outputName));
 					}
 				}
+				lists.addAll(unnamed.listItems.values());
+			}
+			List<IdentifiedList<T2Reference>> registered = context
+					.getReferenceService().getListService().registerLists(
+							lists, context);
+			int i = 0;
+			for (UnnamedNode unnamed : level) {
 				Map<String, T2Reference> newDataMap = new HashMap<String, T2Reference>();
-				for (String outputName : listItems.keySet()) {
-					List<T2Reference> idlist = listItems.get(outputName);
-					newDataMap.put(outputName, context.getReferenceService()
-							.getListService().registerList(idlist, context).getId());
-
+				for (String outputName : unnamed.listItems.keySet()) {
+					newDataMap.put(outputName, registered.get(i++).getId());
 				}
-				Job newJob = new Job(owningProcess, index, newDataMap, context);
-				n.contents = newJob;
+				NamedNode n = unnamed.node;
+				n.contents = new Job(owningProcess, unnamed.index, newDataMap,
+						context);
 				// Get rid of the children as we've now named this node
-				n.children.clear();
+				n.clearChildren();
 				AbstractCrystalizer.this.jobCreated(n.contents);
 			}
 		}
 	}
 
+	/**
+	 * A node waiting to be named along with its index and, once its children
+	 * have been read, the items of the lists to register for it
+	 */
+	private static final class UnnamedNode {
+
+		private final TreeCache.NamedNode node;
+
+		private final int[] index;
+
+		private final Map<String, List<T2Reference>> listItems = new HashMap<String, List<T2Reference>>();
+
+		UnnamedNode(TreeCache.NamedNode node, int[] index) {
+			this.node = node;
+			this.index = index;
+		}
+	}
+
 }
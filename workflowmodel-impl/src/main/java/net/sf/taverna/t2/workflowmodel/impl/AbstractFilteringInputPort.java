@@ -22,6 +22,7 @@ package net.sf.taverna.t2.workflowmodel.impl;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 
 import net.sf.taverna.t2.invocation.InvocationContext;
@@ -57,35 +58,50 @@ public abstract class AbstractFilteringInputPort extends
 		receiveToken(token);
 	}
 
+	/**
+	 * Push the data in the token down to the desired depth, emitting a data
+	 * event for each item at that depth followed by a completion event for
+	 * each enclosing collection once all its children have been pushed.
+	 * Collections are walked depth first through lazy traversals one level
+	 * at a time, so the first item is pushed as soon as the lists on the path
+	 * to it have been fetched rather than after the whole structure has been
+	 * expanded.
+	 */
 	public void pushToken(WorkflowDataToken dt, String owningProcess,
 			int desiredDepth) {
 		if (dt.getData().getDepth() == desiredDepth) {
 			pushData(getName(), owningProcess, dt.getIndex(), dt.getData(), dt
 					.getContext());
-		} else {
-
-			ReferenceService rs = dt.getContext().getReferenceService();
-
-			Iterator<ContextualizedT2Reference> children = rs.traverseFrom(dt
-					.getData(), dt.getData().getDepth() - 1);
-
-			while (children.hasNext()) {
-				ContextualizedT2Reference ci = children.next();
-				int[] newIndex = new int[dt.getIndex().length
-						+ ci.getIndex().length];
-				int i = 0;
-				for (int indx : dt.getIndex()) {
-					newIndex[i++] = indx;
-				}
-				for (int indx : ci.getIndex()) {
-					newIndex[i++] = indx;
-				}
-				pushToken(new WorkflowDataToken(owningProcess, newIndex, ci
-						.getReference(), dt.getContext()), owningProcess,
-						desiredDepth);
+			return;
+		}
+		InvocationContext context = dt.getContext();
+		ReferenceService rs = context.getReferenceService();
+		LinkedList<Iterator<ContextualizedT2Reference>> children = new LinkedList<Iterator<ContextualizedT2Reference>>();
+		LinkedList<int[]> indices = new LinkedList<int[]>();
+		children.addFirst(rs.traverseFrom(dt.getData(),
+				dt.getData().getDepth() - 1));
+		indices.addFirst(dt.getIndex());
+		while (!children.isEmpty()) {
+			if (!children.getFirst().hasNext()) {
+				children.removeFirst();
+				pushCompletion(getName(), owningProcess, indices.removeFirst(),
+						context);
+				continue;
+			}
+			ContextualizedT2Reference ci = children.getFirst().next();
+			int[] parentIndex = indices.getFirst();
+			int[] newIndex = new int[parentIndex.length
+					+ ci.getIndex().length];
+			System.arraycopy(parentIndex, 0, newIndex, 0, parentIndex.length);
+			System.arraycopy(ci.getIndex(), 0, newIndex, parentIndex.length,
+					ci.getIndex().length);
+			T2Reference child = ci.getReference();
+			if (child.getDepth() == desiredDepth) {
+				pushData(getName(), owningProcess, newIndex, child, context);
+			} else {
+				children.addFirst(rs.traverseFrom(child, child.getDepth() - 1));
+				indices.addFirst(newIndex);
 			}
-			pushCompletion(getName(), owningProcess, dt.getIndex(), dt
-					.getContext());
 		}
 	}
 
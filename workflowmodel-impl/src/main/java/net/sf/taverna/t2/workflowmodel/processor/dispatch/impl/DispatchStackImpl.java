@@ -22,10 +22,10 @@ package net.sf.taverna.t2.workflowmodel.processor.dispatch.impl;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import net.sf.taverna.t2.annotation.AbstractAnnotatedThing;
@@ -62,10 +62,32 @@ public abstract class DispatchStackImpl extends
 
 	private static Logger logger = Logger.getLogger(DispatchStackImpl.class);
 
-	private Map<String, BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>> queues = new HashMap<String, BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>>();
+	private ConcurrentMap<String, OwnerQueue> queues = new ConcurrentHashMap<String, OwnerQueue>();
 
 	private List<DispatchLayer<?>> dispatchLayers = new ArrayList<DispatchLayer<?>>();
 
+	/**
+	 * The NotifiableLayer instances in the stack, recomputed whenever a layer
+	 * is added or removed so they don't have to be found for every event
+	 */
+	private volatile NotifiableLayer[] notifiableLayers = new NotifiableLayer[0];
+
+	/**
+	 * The queue of events for a single owning process along with whether it
+	 * has been pushed to the first layer yet. The queue is pushed at most once
+	 * and while it hasn't been, events are added to it holding its monitor.
+	 */
+	private static final class OwnerQueue {
+
+		private final BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> events = new LinkedBlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>();
+
+		/**
+		 * Only set once the first layer has received the queue, so layers are
+		 * never notified about a queue they haven't seen
+		 */
+		private volatile boolean pushed = false;
+	}
+
 	/**
 	 * Override to return the list of activities to be used by this dispatch
 	 * stack.
@@ -128,43 +150,58 @@ public abstract class DispatchStackImpl extends
 	 */
 	@SuppressWarnings("unchecked")
 	public void receiveEvent(IterationInternalEvent event) {
-		BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> queue = null;
 		String owningProcess = event.getOwningProcess();
-		synchronized (queues) {
-			String enclosingProcess = owningProcess.substring(0, owningProcess
-					.lastIndexOf(':'));
-			if (!queues.containsKey(owningProcess)) {
-				queue = new LinkedBlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>();
-				queues.put(owningProcess, queue);
-				queue.add(event);
-
-				// If all preconditions are satisfied push the queue to the
-				// dispatch layer
-				if (conditionsSatisfied(enclosingProcess)) {
-					firstLayer().receiveJobQueue(
-							new DispatchJobQueueEvent(owningProcess, event
-									.getContext(), queue, getActivities()));
-				}
-			} else {
-				queue = queues.get(owningProcess);
-				queue.add(event);
-
-				// If all preconditions are satisfied then notify the queue
-				// addition to any NotifiableLayer instances. If the
-				// preconditions are not satisfied the queue isn't visible to
-				// the dispatch stack yet so do nothing.
-				if (conditionsSatisfied(enclosingProcess)) {
-					for (DispatchLayer layer : dispatchLayers) {
-						if (layer instanceof NotifiableLayer) {
-							((NotifiableLayer) layer).eventAdded(owningProcess);
-						}
-					}
-				}
+		String enclosingProcess = owningProcess.substring(0, owningProcess
+				.lastIndexOf(':'));
+		OwnerQueue queue = queues.get(owningProcess);
+		if (queue == null) {
+			OwnerQueue newQueue = new OwnerQueue();
+			queue = queues.putIfAbsent(owningProcess, newQueue);
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		if (queue.pushed) {
+			// The queue is already visible to the dispatch stack so add the
+			// event and notify any NotifiableLayer instances, no locking is
+			// needed as the preconditions can't become unsatisfied again
+			queue.events.add(event);
+			notifyEventAdded(owningProcess);
+			return;
+		}
+		boolean notify;
+		synchronized (queue) {
+			queue.events.add(event);
+			// Another event may have pushed the queue while we were waiting
+			notify = queue.pushed;
+			// If all preconditions are satisfied push the queue to the
+			// dispatch layer, otherwise the queue isn't visible to the
+			// dispatch stack yet so do nothing.
+			if (!notify && conditionsSatisfied(enclosingProcess)) {
+				pushQueue(owningProcess, queue);
 			}
 		}
+		if (notify) {
+			notifyEventAdded(owningProcess);
+		}
 	}
 
+	private void notifyEventAdded(String owningProcess) {
+		for (NotifiableLayer layer : notifiableLayers) {
+			layer.eventAdded(owningProcess);
+		}
+	}
 
+	/**
+	 * Message the first layer with the queue and activity set, the caller
+	 * must hold the queue's monitor and have checked it hasn't been pushed
+	 */
+	private void pushQueue(String owningProcess, OwnerQueue queue) {
+		firstLayer().receiveJobQueue(
+				new DispatchJobQueueEvent(owningProcess, queue.events.peek()
+						.getContext(), queue.events, getActivities()));
+		queue.pushed = true;
+	}
 
 	/**
 	 * Called when a set of conditions which were unsatisfied in the context of
@@ -179,27 +216,27 @@ public abstract class DispatchStackImpl extends
 	public void satisfyConditions(String enclosingProcess) {
 		if (conditionsSatisfied(enclosingProcess)) {
 			String owningProcess = enclosingProcess + ":" + getProcessName();
-			synchronized (queues) {
-				if (queues.containsKey(owningProcess)) {
-					/**
-					 * At least one event has been received with this process ID
-					 * and a queue exists for it.
-					 */
-					firstLayer()
-							.receiveJobQueue(
-									new DispatchJobQueueEvent(owningProcess,
-											queues.get(owningProcess).peek()
-													.getContext(), queues
-													.get(owningProcess),
-											getActivities()));
-				} else {
-					/**
-					 * Do nothing, if the conditions are satisfied before any
-					 * jobs are received this mechanism is effectively redundant
-					 * and the normal notification system for the events will
-					 * let everything work through as per usual
-					 */
+			OwnerQueue queue = queues.get(owningProcess);
+			if (queue != null) {
+				/**
+				 * At least one event has been received with this process ID
+				 * and a queue exists for it, push it unless an event arriving
+				 * after the conditions were satisfied has done so already. If
+				 * the first event is still on its way it will see the
+				 * conditions satisfied and push the queue itself.
+				 */
+				synchronized (queue) {
+					if (!queue.pushed && !queue.events.isEmpty()) {
+						pushQueue(owningProcess, queue);
+					}
 				}
+			} else {
+				/**
+				 * Do nothing, if the conditions are satisfied before any
+				 * jobs are received this mechanism is effectively redundant
+				 * and the normal notification system for the events will
+				 * let everything work through as per usual
+				 */
 			}
 		}
 	}
@@ -216,19 +253,33 @@ public abstract class DispatchStackImpl extends
 	public void addLayer(DispatchLayer<?> newLayer) {
 		dispatchLayers.add(newLayer);
 		newLayer.setDispatchStack(this);
+		updateNotifiableLayers();
 	}
 
 	public void addLayer(DispatchLayer<?> newLayer, int index) {
 		dispatchLayers.add(index, newLayer);
 		newLayer.setDispatchStack(this);
+		updateNotifiableLayers();
 	}
 
 	public int removeLayer(DispatchLayer<?> layer) {
 		int priorIndex = dispatchLayers.indexOf(layer);
 		dispatchLayers.remove(layer);
+		updateNotifiableLayers();
 		return priorIndex;
 	}
 
+	private void updateNotifiableLayers() {
+		List<NotifiableLayer> notifiable = new ArrayList<NotifiableLayer>();
+		for (DispatchLayer<?> layer : dispatchLayers) {
+			if (layer instanceof NotifiableLayer) {
+				notifiable.add((NotifiableLayer) layer);
+			}
+		}
+		notifiableLayers = notifiable.toArray(new NotifiableLayer[notifiable
+				.size()]);
+	}
+
 	/**
 	 * Return the layer above (lower index!) the specified layer, or a reference
 	 * to the internal top layer dispatch layer if there is no layer above the
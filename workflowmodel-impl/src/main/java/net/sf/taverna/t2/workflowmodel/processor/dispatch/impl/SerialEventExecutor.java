@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.dispatch.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers events for a single dispatch stack one at a time, in the order they
+ * were submitted, on a thread other than the caller's. Used by dispatch layers
+ * which must not deliver an event from within their own locks, as doing so can
+ * re-enter the dispatch stack and deadlock.
+ * <p>
+ * No thread is owned by an instance, a drain task is submitted to a shared
+ * daemon pool whenever events are waiting and none is running, so bursts of
+ * events reuse the same thread rather than creating one per event.
+ */
+public class SerialEventExecutor implements Executor {
+
+	private static Logger logger = Logger.getLogger(SerialEventExecutor.class);
+
+	private static final ExecutorService sharedPool = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Dispatch event delivery "
+							+ threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Queue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	private final String name;
+
+	private final Runnable drainer = new Runnable() {
+		public void run() {
+			Thread thread = Thread.currentThread();
+			String oldName = thread.getName();
+			thread.setName(name);
+			try {
+				Runnable event;
+				while ((event = events.poll()) != null) {
+					try {
+						event.run();
+					} catch (RuntimeException e) {
+						logger.error("Could not deliver event for " + name, e);
+					}
+				}
+			} finally {
+				thread.setName(oldName);
+				scheduled.set(false);
+				// An event may have been added after the last poll but before
+				// the flag was cleared
+				if (!events.isEmpty()) {
+					schedule();
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param name
+	 *            name given to the delivery thread while it is draining events
+	 *            for this executor
+	 */
+	public SerialEventExecutor(String name) {
+		this.name = name;
+	}
+
+	public void execute(Runnable event) {
+		events.add(event);
+		schedule();
+	}
+
+	/**
+	 * @return the number of events waiting to be delivered
+	 */
+	public int getPendingCount() {
+		return events.size();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			sharedPool.execute(drainer);
+		}
+	}
+
+}
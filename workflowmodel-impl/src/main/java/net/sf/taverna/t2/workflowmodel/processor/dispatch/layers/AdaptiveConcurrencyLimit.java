@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.dispatch.layers;
+
+import java.util.Arrays;
+
+/**
+ * Concurrency limit for the parallelize layer which adapts to the observed
+ * behaviour of the service behind a processor.
+ * <p>
+ * Each finished job is reported as a sample with its latency and whether it
+ * failed. Failures reduce the limit multiplicatively. Otherwise the limit
+ * follows the gradient between the lowest latency seen recently, taken as the
+ * latency of an unloaded service, and the smoothed current latency: while the
+ * two are close the limit grows by roughly the square root of its value, as
+ * latency rises relative to the minimum the limit shrinks in proportion. The
+ * limit always stays within the configured bounds.
+ * <p>
+ * The limit applies to the jobs of all owning processes of the layer
+ * together. A job is only sent down the stack once {@link #tryAcquire()} has
+ * given it one of the slots, and gives it back with {@link #release()} when
+ * it finishes, so the service sees at most the limit however many processes
+ * are in flight.
+ * <p>
+ * The most recent latencies are kept so that percentiles can be reported to
+ * the monitor.
+ */
+public class AdaptiveConcurrencyLimit {
+
+	/**
+	 * Factor applied to the limit when a job fails
+	 */
+	static final double BACKOFF_RATIO = 0.9;
+
+	/**
+	 * Weight of a new sample in the smoothed latency and limit
+	 */
+	static final double SMOOTHING = 0.2;
+
+	/**
+	 * Lowest gradient applied in one step, limits how fast the window closes
+	 * on a latency spike
+	 */
+	static final double MIN_GRADIENT = 0.5;
+
+	/**
+	 * Number of samples after which the minimum latency is forgotten, so the
+	 * limit can recover if the service gets permanently slower
+	 */
+	static final int MIN_LATENCY_WINDOW = 1000;
+
+	/**
+	 * Number of recent latencies kept for percentiles
+	 */
+	static final int LATENCY_HISTORY = 256;
+
+	private final int minimumLimit;
+
+	private final int maximumLimit;
+
+	private double limit;
+
+	private double smoothedLatency = -1;
+
+	private long minLatency = Long.MAX_VALUE;
+
+	private int samplesSinceMinReset = 0;
+
+	private final long[] latencies = new long[LATENCY_HISTORY];
+
+	private int latencyCount = 0;
+
+	private int latencyNext = 0;
+
+	private int inFlight = 0;
+
+	/**
+	 * @param minimumLimit
+	 *            lowest value of the limit, at least 1
+	 * @param maximumLimit
+	 *            highest value of the limit, raised to the minimum if lower
+	 */
+	public AdaptiveConcurrencyLimit(int minimumLimit, int maximumLimit) {
+		this.minimumLimit = Math.max(1, minimumLimit);
+		this.maximumLimit = Math.max(this.minimumLimit, maximumLimit);
+		this.limit = this.minimumLimit;
+	}
+
+	/**
+	 * @return the number of jobs which may currently be in flight
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Take a slot for a job about to be sent down the stack
+	 * 
+	 * @return false if as many jobs as the limit allows are already in flight
+	 */
+	public synchronized boolean tryAcquire() {
+		if (inFlight >= (int) limit) {
+			return false;
+		}
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Give back the slot of a finished job
+	 */
+	public synchronized void release() {
+		if (inFlight > 0) {
+			inFlight--;
+		}
+	}
+
+	/**
+	 * @return the number of jobs holding a slot
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public int getMinimumLimit() {
+		return minimumLimit;
+	}
+
+	public int getMaximumLimit() {
+		return maximumLimit;
+	}
+
+	/**
+	 * Report a finished job and adjust the limit
+	 * 
+	 * @param latencyNanos
+	 *            time between sending the job down the stack and receiving its
+	 *            result
+	 * @param failed
+	 *            true if the job failed
+	 */
+	public synchronized void addSample(long latencyNanos, boolean failed) {
+		latencies[latencyNext] = latencyNanos;
+		latencyNext = (latencyNext + 1) % LATENCY_HISTORY;
+		if (latencyCount < LATENCY_HISTORY) {
+			latencyCount++;
+		}
+
+		if (failed) {
+			setLimit(limit * BACKOFF_RATIO);
+			return;
+		}
+
+		if (++samplesSinceMinReset > MIN_LATENCY_WINDOW) {
+			minLatency = Long.MAX_VALUE;
+			samplesSinceMinReset = 0;
+		}
+		minLatency = Math.min(minLatency, Math.max(1L, latencyNanos));
+		if (smoothedLatency < 0) {
+			smoothedLatency = latencyNanos;
+		} else {
+			smoothedLatency = (1 - SMOOTHING) * smoothedLatency + SMOOTHING
+					* latencyNanos;
+		}
+
+		double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, minLatency
+				/ Math.max(1.0, smoothedLatency)));
+		double newLimit = limit * gradient + Math.sqrt(limit);
+		setLimit((1 - SMOOTHING) * limit + SMOOTHING * newLimit);
+	}
+
+	/**
+	 * Latency percentile over the most recent samples
+	 * 
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the latency in milliseconds, or -1 if there are no samples yet
+	 */
+	public double getLatencyPercentile(double percentile) {
+		long[] sorted;
+		synchronized (this) {
+			if (latencyCount == 0) {
+				return -1;
+			}
+			sorted = new long[latencyCount];
+			System.arraycopy(latencies, 0, sorted, 0, latencyCount);
+		}
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		rank = Math.max(0, Math.min(sorted.length - 1, rank));
+		return sorted[rank] / 1000000.0;
+	}
+
+	private void setLimit(double newLimit) {
+		limit = Math.max(minimumLimit, Math.min(maximumLimit, newLimit));
+	}
+
+}
@@ -37,8 +37,11 @@ import java.util.UUID;
 import org.apache.log4j.Logger;
 
 import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.invocation.impl.InvocationExecutorService;
+import net.sf.taverna.t2.invocation.impl.ThreadPerInvocationExecutorService;
 import net.sf.taverna.t2.monitor.MonitorManager;
 import net.sf.taverna.t2.monitor.MonitorableProperty;
+import net.sf.taverna.t2.monitor.NoSuchPropertyException;
 import net.sf.taverna.t2.provenance.item.InvocationStartedProvenanceItem;
 import net.sf.taverna.t2.provenance.item.IterationProvenanceItem;
 import net.sf.taverna.t2.provenance.reporter.ProvenanceReporter;
@@ -71,6 +74,11 @@ import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchResultE
  * this point, i.e. by the insertion of a failover layer.
  * <p>
  * Currently only handles activities implementing {@link AsynchronousActivity}.
+ * <p>
+ * Work requested by activities through
+ * {@link AsynchronousActivityCallback#requestRun(Runnable)} is run by the
+ * first {@link InvocationExecutorService} found in the entities of the
+ * invocation context, or on a new thread per invocation if there isn't one.
  * 
  * @author Tom Oinn
  * @author Stian Soiland-Reyes
@@ -84,6 +92,8 @@ public class Invoke extends AbstractDispatchLayer<Object> {
 	
 	private static Long invocationCount = 0L;
 
+	private static final InvocationExecutorService defaultExecutorService = new ThreadPerInvocationExecutorService();
+
 	private static String getNextProcessID() {
 		synchronized (invocationCount) {
 			invocationCount = invocationCount + 1L;
@@ -126,7 +136,8 @@ public class Invoke extends AbstractDispatchLayer<Object> {
 						.getOwningProcess();
 				MonitorManager.getInstance().registerNode(activity,
 						invocationProcessIdentifier.split(":"),
-						new HashSet<MonitorableProperty<?>>());
+						getExecutorProperties(getExecutorService(jobEvent
+								.getContext())));
 
 				// The activity is an AsynchronousActivity so we invoke it with
 				// an AsynchronousActivityCallback object containing appropriate
@@ -196,6 +207,63 @@ public class Invoke extends AbstractDispatchLayer<Object> {
 		}
 	}
 
+	/**
+	 * Find the executor service used to run work requested by activities
+	 * invoked within the given context
+	 * 
+	 * @return the first {@link InvocationExecutorService} entity of the
+	 *         context, or the default thread per invocation executor if there
+	 *         is none
+	 */
+	protected InvocationExecutorService getExecutorService(
+			InvocationContext context) {
+		if (context != null) {
+			List<InvocationExecutorService> executors = context
+					.getEntities(InvocationExecutorService.class);
+			if (!executors.isEmpty()) {
+				return executors.get(0);
+			}
+		}
+		return defaultExecutorService;
+	}
+
+	/**
+	 * Properties <code>invoke.executor.queuesize [Integer]</code> and
+	 * <code>invoke.executor.activethreads [Integer]</code> exposing the state
+	 * of the executor service used for an invocation
+	 */
+	private Set<MonitorableProperty<?>> getExecutorProperties(
+			final InvocationExecutorService executor) {
+		Set<MonitorableProperty<?>> properties = new HashSet<MonitorableProperty<?>>();
+		properties.add(new MonitorableProperty<Integer>() {
+			public Date getLastModified() {
+				return new Date(System.currentTimeMillis());
+			}
+
+			public String[] getName() {
+				return new String[] { "invoke", "executor", "queuesize" };
+			}
+
+			public Integer getValue() throws NoSuchPropertyException {
+				return executor.getQueueSize();
+			}
+		});
+		properties.add(new MonitorableProperty<Integer>() {
+			public Date getLastModified() {
+				return new Date(System.currentTimeMillis());
+			}
+
+			public String[] getName() {
+				return new String[] { "invoke", "executor", "activethreads" };
+			}
+
+			public Integer getValue() throws NoSuchPropertyException {
+				return executor.getActiveCount();
+			}
+		});
+		return properties;
+	}
+
 	protected IntermediateProvenance findIntermediateProvenance() {
 		List<DispatchLayer<?>> layers = getProcessor().getDispatchStack().getLayers();
 		for (DispatchLayer<?> layer : layers) {
@@ -356,13 +424,14 @@ public class Invoke extends AbstractDispatchLayer<Object> {
 
 		public void requestRun(Runnable runMe) {
 			String newThreadName = jobEvent.toString();
-			Thread thread = new Thread(runMe, newThreadName);
-			thread.setContextClassLoader(asyncActivity.getClass().getClassLoader());
-			thread.setUncaughtExceptionHandler(new UncaughtExceptionHandler(){
-				public void uncaughtException(Thread t, Throwable e) {
-					fail("Uncaught exception while invoking " + asyncActivity, e);
-				}});
-			thread.start();
+			getExecutorService(jobEvent.getContext()).execute(runMe,
+					newThreadName, asyncActivity.getClass().getClassLoader(),
+					new UncaughtExceptionHandler() {
+						public void uncaughtException(Thread t, Throwable e) {
+							fail("Uncaught exception while invoking "
+									+ asyncActivity, e);
+						}
+					});
 		}
 	}
 
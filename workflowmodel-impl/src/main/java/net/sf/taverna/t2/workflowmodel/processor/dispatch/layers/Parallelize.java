@@ -25,19 +25,22 @@ import static net.sf.taverna.t2.workflowmodel.processor.dispatch.description.Dis
 import static net.sf.taverna.t2.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.REMOVE_PROCESS_STATE;
 import static net.sf.taverna.t2.workflowmodel.processor.dispatch.description.DispatchMessageType.JOB;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.taverna.t2.invocation.Completion;
 import net.sf.taverna.t2.invocation.IterationInternalEvent;
 import net.sf.taverna.t2.monitor.MonitorableProperty;
 import net.sf.taverna.t2.monitor.NoSuchPropertyException;
+import net.sf.taverna.t2.reference.T2Reference;
 import net.sf.taverna.t2.workflowmodel.WorkflowStructureException;
 import net.sf.taverna.t2.workflowmodel.processor.activity.Activity;
 import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
@@ -55,6 +58,7 @@ import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchErrorEv
 import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchJobEvent;
 import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchJobQueueEvent;
 import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.impl.SerialEventExecutor;
 
 import org.apache.log4j.Logger;
 
@@ -82,13 +86,34 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 
 	private static Logger logger = Logger.getLogger(Parallelize.class);
 	
-	private Map<String, StateModel> stateMap = new HashMap<String, StateModel>();
+	private Map<String, StateModel> stateMap = new ConcurrentHashMap<String, StateModel>();
 
 	private ParallelizeConfig config = new ParallelizeConfig();
 
-	int sentJobsCount = 0;
+	/**
+	 * Shared by the state models of all owning processes if the configuration
+	 * is adaptive, null otherwise
+	 */
+	private volatile AdaptiveConcurrencyLimit adaptiveLimit = null;
+
+	final AtomicInteger sentJobsCount = new AtomicInteger();
+
+	final AtomicInteger completedJobsCount = new AtomicInteger();
+
+	/**
+	 * State models which stopped taking jobs because every slot of the
+	 * adaptive limit was in use, refilled when a slot is released
+	 */
+	private final Map<StateModel, Boolean> waitingForLimit = new ConcurrentHashMap<StateModel, Boolean>();
 
-	int completedJobsCount = 0;
+	/**
+	 * Delivers completions taken from the head of the queue while no jobs are
+	 * pending, in order and without a thread per completion. Also refills the
+	 * state models waiting for the adaptive limit, outside of the lock of the
+	 * state model releasing the slot.
+	 */
+	private final SerialEventExecutor completionExecutor = new SerialEventExecutor(
+			"Parallelize completions");
 
 	public Parallelize() {
 		super();
@@ -105,11 +130,16 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 		config.setMaximumJobs(maxJobs);
 	}
 
+	/**
+	 * The adaptive limit used by new state models, or null if the layer is
+	 * configured with a fixed number of jobs
+	 */
+	AdaptiveConcurrencyLimit getAdaptiveLimit() {
+		return adaptiveLimit;
+	}
+
 	public void eventAdded(String owningProcess) {
-		StateModel stateModel;
-		synchronized (stateMap) {
-			stateModel = stateMap.get(owningProcess);
-		}
+		StateModel stateModel = stateMap.get(owningProcess);
 		if (stateModel == null) {
 			/*
 			 * Should never see this here, it means we've had duplicate
@@ -125,13 +155,23 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 
 	@Override
 	public void receiveJobQueue(DispatchJobQueueEvent queueEvent) {
-		StateModel model = new StateModel(queueEvent, config.getMaximumJobs());
-		synchronized(stateMap) {
-			stateMap.put(queueEvent.getOwningProcess(), model);
-		}
+		StateModel model = new StateModel(queueEvent, config.getMaximumJobs(),
+				adaptiveLimit);
+		stateMap.put(queueEvent.getOwningProcess(), model);
 		model.fillFromQueue();
 	}
 
+	/**
+	 * Give the state models waiting for the adaptive limit another chance to
+	 * take jobs, those still without a slot wait again
+	 */
+	private void fillWaitingForLimit() {
+		for (StateModel model : waitingForLimit.keySet()) {
+			waitingForLimit.remove(model);
+			model.fillFromQueue();
+		}
+	}
+
 	public void receiveJob(Job job, List<? extends Activity<?>> activities) {
 		throw new WorkflowStructureException(
 				"Parallelize layer cannot handle job events");
@@ -140,34 +180,29 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 
 	@Override
 	public void receiveError(DispatchErrorEvent errorEvent) {
-		StateModel model;
 		String owningProcess = errorEvent.getOwningProcess();
-		synchronized(stateMap) {
-			model = stateMap.get(owningProcess);
-		}
+		StateModel model = stateMap.get(owningProcess);
 		getAbove().receiveError(errorEvent);
 		if (model == null) {
 			logger.warn("Error received for unknown owning process: " + owningProcess);
 			return;
 		}
-		model.finishWith(errorEvent.getIndex());
+		model.finishWith(errorEvent.getIndex(), true);
 	}
 
 	@Override
 	@SuppressWarnings("unchecked")
 	public void receiveResult(DispatchResultEvent resultEvent) {
-		StateModel model;
 		String owningProcess = resultEvent.getOwningProcess();
-		synchronized(stateMap) {
-			model = stateMap.get(owningProcess);
-		}
+		StateModel model = stateMap.get(owningProcess);
 		DispatchLayer above = getAbove();
 		above.receiveResult(resultEvent);
 		if (model == null) {
 			logger.warn("Error received for unknown owning process: " + owningProcess);
 			return;
 		}
-		model.finishWith(resultEvent.getIndex());
+		model.finishWith(resultEvent.getIndex(), containsErrors(resultEvent
+				.getData()));
 	}
 
 	/**
@@ -177,17 +212,14 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 	 */
 	@Override
 	public void receiveResultCompletion(DispatchCompletionEvent completionEvent) {
-		StateModel model;
 		String owningProcess = completionEvent.getOwningProcess();
-		synchronized(stateMap) {
-			model = stateMap.get(owningProcess);
-		}
+		StateModel model = stateMap.get(owningProcess);
 		getAbove().receiveResultCompletion(completionEvent);
 		if (model == null) {
 			logger.warn("Error received for unknown owning process: " + owningProcess);
 			return;
 		}
-		model.finishWith(completionEvent.getIndex());
+		model.finishWith(completionEvent.getIndex(), false);
 	}
 
 	@Override
@@ -197,15 +229,19 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 		cleanupTimer.schedule(new TimerTask() {
 			@Override
 			public void run() {
-				synchronized(stateMap) {
-					stateMap.remove(owningProcess);
-				}
+				stateMap.remove(owningProcess);
 			}			
 		}, CLEANUP_DELAY_MS);
 	}
 
 	public void configure(ParallelizeConfig config) {
 		this.config = config;
+		if (config.isAdaptive()) {
+			adaptiveLimit = new AdaptiveConcurrencyLimit(config
+					.getMinimumJobs(), config.getMaximumJobs());
+		} else {
+			adaptiveLimit = null;
+		}
 	}
 
 	public ParallelizeConfig getConfiguration() {
@@ -221,6 +257,17 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 	 * registered process identifier (which will be the case if the process
 	 * hasn't started or has had its state purged after a final completion of
 	 * some kind.</li>
+	 * <li><code>dispatch.parallelize.sentjobs [Integer]</code><br/>The number
+	 * of jobs sent down the stack</li>
+	 * <li><code>dispatch.parallelize.completedjobs [Integer]</code><br/>The
+	 * number of jobs which have finished</li>
+	 * <li><code>dispatch.parallelize.window [Integer]</code><br/>The current
+	 * maximum number of concurrent jobs, which changes over time if the layer
+	 * is adaptive</li>
+	 * <li><code>dispatch.parallelize.latency.p50</code>, <code>p90</code> and
+	 * <code>p99 [Double]</code><br/>Percentiles in milliseconds of the latency
+	 * of recent jobs, or -1 if the layer isn't adaptive or no job has finished
+	 * yet</li>
 	 * </ul>
 	 */
 	public void injectPropertiesFor(final String owningProcess) {
@@ -241,10 +288,7 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 
 			public Integer getValue() throws NoSuchPropertyException {
 				
-				StateModel model;
-				synchronized(stateMap) {
-					model = stateMap.get(owningProcess);
-				}
+				StateModel model = stateMap.get(owningProcess);
 				if (model != null) {
 					return model.queueSize();
 				} else {
@@ -267,7 +311,7 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 			}
 
 			public Integer getValue() throws NoSuchPropertyException {
-				return sentJobsCount;
+				return sentJobsCount.get();
 			}
 
 		};
@@ -286,13 +330,104 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 			}
 
 			public Integer getValue() throws NoSuchPropertyException {
-				return completedJobsCount;
+				return completedJobsCount.get();
 			}
 
 		};
 		dispatchStack.receiveMonitorableProperty(completedJobsProperty,
 				owningProcess);
 
+		MonitorableProperty<Integer> windowProperty = new MonitorableProperty<Integer>() {
+
+			public Date getLastModified() {
+				return new Date();
+			}
+
+			public String[] getName() {
+				return new String[] { "dispatch", "parallelize", "window" };
+			}
+
+			public Integer getValue() throws NoSuchPropertyException {
+				AdaptiveConcurrencyLimit limit = adaptiveLimit;
+				if (limit != null) {
+					return limit.getLimit();
+				} else {
+					return config.getMaximumJobs();
+				}
+			}
+
+		};
+		dispatchStack.receiveMonitorableProperty(windowProperty, owningProcess);
+
+		for (final int percentile : new int[] { 50, 90, 99 }) {
+			MonitorableProperty<Double> latencyProperty = new MonitorableProperty<Double>() {
+
+				public Date getLastModified() {
+					return new Date();
+				}
+
+				public String[] getName() {
+					return new String[] { "dispatch", "parallelize",
+							"latency", "p" + percentile };
+				}
+
+				public Double getValue() throws NoSuchPropertyException {
+					AdaptiveConcurrencyLimit limit = adaptiveLimit;
+					if (limit != null) {
+						return limit.getLatencyPercentile(percentile);
+					} else {
+						return -1.0;
+					}
+				}
+
+			};
+			dispatchStack.receiveMonitorableProperty(latencyProperty,
+					owningProcess);
+		}
+
+	}
+
+	private static boolean containsErrors(Map<String, T2Reference> data) {
+		for (T2Reference reference : data.values()) {
+			if (reference.containsErrors()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Key for a pending job, wraps the job's index array with value based
+	 * equality and a precomputed hash so pending jobs can be matched to
+	 * results in constant time.
+	 */
+	static final class IndexKey {
+
+		private final int[] index;
+
+		private final int hash;
+
+		IndexKey(int[] index) {
+			this.index = index;
+			this.hash = Arrays.hashCode(index);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof IndexKey)) {
+				return false;
+			}
+			IndexKey other = (IndexKey) obj;
+			return hash == other.hash && Arrays.equals(index, other.index);
+		}
 	}
 
 	/**
@@ -305,14 +440,29 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 	
 		private DispatchJobQueueEvent queueEvent;
 	
+		/**
+		 * Jobs sent down the stack and completions held back behind them, in
+		 * the order they were taken from the queue. Jobs are keyed by their
+		 * index, completions by themselves, so a finished job can be removed
+		 * without scanning and completions reaching the head can be drained in
+		 * order.
+		 */
 		@SuppressWarnings("unchecked")
 		// suppressed to avoid jdk1.5 error messages caused by the declaration
 		// IterationInternalEvent<? extends IterationInternalEvent<?>> e
-		private BlockingQueue<IterationInternalEvent> pendingEvents = new LinkedBlockingQueue<IterationInternalEvent>();
+		private Map<Object, IterationInternalEvent> pendingEvents = new LinkedHashMap<Object, IterationInternalEvent>();
 	
 		private int activeJobs = 0;
 	
 		private int maximumJobs;
+
+		private final AdaptiveConcurrencyLimit adaptiveLimit;
+
+		/**
+		 * Time each pending job was sent down the stack, only recorded if the
+		 * limit is adaptive
+		 */
+		private final Map<IndexKey, Long> sentTimes;
 	
 		/**
 		 * Construct state model for a particular owning process
@@ -328,10 +478,39 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 		 * @param maxJobs
 		 *            maximum number of concurrent jobs to keep 'hot' at any
 		 *            given point
+		 * @param adaptiveLimit
+		 *            if not null, limits the concurrent jobs of the whole layer
+		 *            in place of maxJobs and is given the latency and outcome
+		 *            of every finished job
 		 */
-		protected StateModel(DispatchJobQueueEvent queueEvent, int maxJobs) {
+		protected StateModel(DispatchJobQueueEvent queueEvent, int maxJobs,
+				AdaptiveConcurrencyLimit adaptiveLimit) {
 			this.queueEvent = queueEvent;
 			this.maximumJobs = maxJobs;
+			this.adaptiveLimit = adaptiveLimit;
+			if (adaptiveLimit != null) {
+				sentTimes = new HashMap<IndexKey, Long>();
+			} else {
+				sentTimes = null;
+			}
+		}
+
+		/**
+		 * Take a slot of the adaptive limit, shared by all state models of
+		 * the layer. If none is free wait for one to be released.
+		 */
+		private boolean acquireSlot() {
+			if (adaptiveLimit.tryAcquire()) {
+				return true;
+			}
+			waitingForLimit.put(this, Boolean.TRUE);
+			// Retry as a slot may have been released before this state model
+			// was seen waiting
+			if (adaptiveLimit.tryAcquire()) {
+				waitingForLimit.remove(this);
+				return true;
+			}
+			return false;
 		}
 	
 		Integer queueSize() {
@@ -342,7 +521,8 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 		 * Poll the queue repeatedly until either the queue is empty or we have
 		 * enough jobs pulled from it. The semantics for this are:
 		 * <ul>
-		 * <li>If the head of the queue is a Job and activeJobs < maximumJobs
+		 * <li>If the head of the queue is a Job and activeJobs < maximumJobs,
+		 * or if adaptive a slot of the limit shared by the layer can be taken,
 		 * then increment activeJobs, add the Job to the pending events list at
 		 * the end and send the message down the stack
 		 * <li>If the head of the queue is a Completion and the pending jobs
@@ -357,29 +537,41 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 		// IterationInternalEvent<? extends IterationInternalEvent<?>> e
 		protected void fillFromQueue() {
 			synchronized (this) {
-				while (queueEvent.getQueue().peek() != null
-						&& activeJobs < maximumJobs) {
+				while (queueEvent.getQueue().peek() != null) {
+					if (adaptiveLimit == null) {
+						if (activeJobs >= maximumJobs) {
+							break;
+						}
+					} else if (queueEvent.getQueue().peek() instanceof Job
+							&& !acquireSlot()) {
+						break;
+					}
 					final IterationInternalEvent e = queueEvent.getQueue()
 							.remove();
 	
-					if (e instanceof Completion && pendingEvents.peek() == null) {
-						new Thread(new Runnable() {
+					if (e instanceof Completion && pendingEvents.isEmpty()) {
+						// Deliver outside this lock, sending it from here can
+						// re-enter the stack and deadlock
+						completionExecutor.execute(new Runnable() {
 							public void run() {
 								getAbove().receiveResultCompletion(
 										new DispatchCompletionEvent(e
 												.getOwningProcess(), e
 												.getIndex(), e.getContext()));
 							}
-						}, "Parallelize " + e.getOwningProcess()).start();
-						// getAbove().receiveResultCompletion((Completion) e);
+						});
+					} else if (e instanceof Job) {
+						IndexKey key = new IndexKey(e.getIndex());
+						pendingEvents.put(key, e);
+						if (sentTimes != null) {
+							sentTimes.put(key, System.nanoTime());
+						}
 					} else {
-						pendingEvents.add(e);
+						pendingEvents.put(e, e);
 					}
 					if (e instanceof Job) {
-						synchronized (this) {
-							activeJobs++;
-						}
-						sentJobsCount++;
+						activeJobs++;
+						sentJobsCount.incrementAndGet();
 						getBelow()
 								.receiveJob(
 										new DispatchJobEvent(e
@@ -398,64 +590,73 @@ public class Parallelize extends AbstractDispatchLayer<ParallelizeConfig>
 		 * should be sent up the stack without modification.
 		 * 
 		 * @param index
+		 * @param failed
+		 *            true if the job failed or produced errors, only used to
+		 *            adjust an adaptive limit
 		 * @return
 		 */
 		@SuppressWarnings("unchecked")
 		// suppressed to avoid jdk1.5 error messages caused by the declaration
 		// IterationInternalEvent<? extends IterationInternalEvent<?>> e
-		protected boolean finishWith(int[] index) {
+		protected boolean finishWith(int[] index, boolean failed) {
 			synchronized (this) {
-	
-				for (IterationInternalEvent e : new ArrayList<IterationInternalEvent>(
-						pendingEvents)) {
-					if (e instanceof Job) {
-						Job j = (Job) e;
-						if (arrayEquals(j.getIndex(), index)) {
-							// Found a job in the pending events list which has
-							// the same index, remove it and decrement the
-							// current count of active jobs
-							pendingEvents.remove(e);
-							activeJobs--;
-							completedJobsCount++;
-							// Now pull any completion events that have reached
-							// the head of the queue - this indicates that all
-							// the job events which came in before them have
-							// been processed and we can emit the completions
-							while (pendingEvents.peek() != null
-									&& pendingEvents.peek() instanceof Completion) {
-								Completion c = (Completion) pendingEvents
-										.remove();
-								getAbove().receiveResultCompletion(
-										new DispatchCompletionEvent(c
-												.getOwningProcess(), c
-												.getIndex(), c.getContext()));
-	
+				IndexKey key = new IndexKey(index);
+				IterationInternalEvent job = pendingEvents.remove(key);
+				if (job == null) {
+					return false;
+				}
+				if (sentTimes != null) {
+					Long sent = sentTimes.remove(key);
+					if (sent != null) {
+						// Errors already present in the inputs are bounced
+						// straight back and say nothing about the service
+						adaptiveLimit.addSample(System.nanoTime() - sent,
+								failed
+										&& !containsErrors(((Job) job)
+												.getData()));
+					}
+				}
+				// Found a job in the pending events list which has the same
+				// index, it has been removed so decrement the current count
+				// of active jobs
+				activeJobs--;
+				completedJobsCount.incrementAndGet();
+				if (adaptiveLimit != null) {
+					adaptiveLimit.release();
+					if (!waitingForLimit.isEmpty()) {
+						completionExecutor.execute(new Runnable() {
+							public void run() {
+								fillWaitingForLimit();
 							}
-							// Refresh from the queue; as we've just decremented
-							// the active job count there should be a worker
-							// available
-							fillFromQueue();
-							// Return true to indicate that we removed a job
-							// event from the queue, that is to say that the
-							// index wasn't that of a partial completion.
-							return true;
-						}
+						});
 					}
 				}
-			}
-			return false;
-		}
-	
-		private boolean arrayEquals(int[] a, int[] b) {
-			if (a.length != b.length) {
-				return false;
-			}
-			for (int i = 0; i < a.length; i++) {
-				if (a[i] != b[i]) {
-					return false;
+				// Now pull any completion events that have reached the head
+				// of the pending events - this indicates that all the job
+				// events which came in before them have been processed and
+				// we can emit the completions. Each is removed before it is
+				// sent, and the head looked up afresh after, as sending it can
+				// re-enter this state model and change the pending events.
+				while (!pendingEvents.isEmpty()) {
+					Iterator<IterationInternalEvent> pending = pendingEvents
+							.values().iterator();
+					IterationInternalEvent e = pending.next();
+					if (!(e instanceof Completion)) {
+						break;
+					}
+					pending.remove();
+					getAbove().receiveResultCompletion(
+							new DispatchCompletionEvent(e.getOwningProcess(),
+									e.getIndex(), e.getContext()));
 				}
+				// Refresh from the queue; as we've just decremented the
+				// active job count there should be a worker available
+				fillFromQueue();
+				// Return true to indicate that we removed a job event from
+				// the queue, that is to say that the index wasn't that of a
+				// partial completion.
+				return true;
 			}
-			return true;
 		}
 	}
 
@@ -24,6 +24,11 @@ package net.sf.taverna.t2.workflowmodel.processor.dispatch.layers;
  * Bean to hold the configuration for the parallelize layer, specifically a
  * single int property defining the number of concurrent jobs in that processor
  * instance per owning process ID.
+ * <p>
+ * If adaptive is set the number of concurrent jobs is instead tuned from the
+ * observed latency and failures of the jobs, between the minimum jobs and the
+ * maximum jobs, and applies to the processor as a whole rather than per
+ * owning process ID, see {@link AdaptiveConcurrencyLimit}.
  * 
  * @author Tom Oinn
  * 
@@ -32,17 +37,51 @@ public class ParallelizeConfig {
 
 	private int maxJobs;
 
+	private boolean adaptive;
+
+	private int minJobs;
+
 	public ParallelizeConfig() {
 		super();
 		this.maxJobs = 5;
+		this.adaptive = false;
+		this.minJobs = 1;
 	}
 
 	public void setMaximumJobs(int maxJobs) {
 		this.maxJobs = maxJobs;
 	}
 
+	/**
+	 * The number of concurrent jobs, or the upper bound of that number if the
+	 * layer is adaptive
+	 */
 	public int getMaximumJobs() {
 		return this.maxJobs;
 	}
 
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * True if the number of concurrent jobs should be adjusted to the observed
+	 * latency and failure rate rather than fixed at the maximum
+	 */
+	public boolean isAdaptive() {
+		return this.adaptive;
+	}
+
+	public void setMinimumJobs(int minJobs) {
+		this.minJobs = minJobs;
+	}
+
+	/**
+	 * The lower bound on the number of concurrent jobs if the layer is
+	 * adaptive, values below 1 are treated as 1
+	 */
+	public int getMinimumJobs() {
+		return this.minJobs;
+	}
+
 }
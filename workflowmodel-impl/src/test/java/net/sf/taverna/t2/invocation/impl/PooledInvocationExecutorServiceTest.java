@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.invocation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PooledInvocationExecutorServiceTest {
+
+	private PooledInvocationExecutorService executor;
+
+	private UncaughtExceptionHandler failOnException = new UncaughtExceptionHandler() {
+		public void uncaughtException(Thread t, Throwable e) {
+			throw new AssertionError(e);
+		}
+	};
+
+	@After
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testContextClassLoader() throws InterruptedException {
+		executor = new PooledInvocationExecutorService(2, false);
+		final ClassLoader loader = new URLClassLoader(new URL[0]);
+		final AtomicReference<ClassLoader> seen = new AtomicReference<ClassLoader>();
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			public void run() {
+				seen.set(Thread.currentThread().getContextClassLoader());
+				done.countDown();
+			}
+		}, "test", loader, failOnException);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertSame(loader, seen.get());
+	}
+
+	@Test
+	public void testUncaughtException() throws InterruptedException {
+		executor = new PooledInvocationExecutorService(1, false);
+		final RuntimeException failure = new RuntimeException("Expected");
+		final AtomicReference<Throwable> caught = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			public void run() {
+				throw failure;
+			}
+		}, "test", null, new UncaughtExceptionHandler() {
+			public void uncaughtException(Thread t, Throwable e) {
+				caught.set(e);
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertSame(failure, caught.get());
+	}
+
+	@Test
+	public void testBounded() throws InterruptedException {
+		executor = new PooledInvocationExecutorService(2, false);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(5);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		for (int i = 0; i < 5; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					int now = running.incrementAndGet();
+					synchronized (maxRunning) {
+						maxRunning.set(Math.max(now, maxRunning.get()));
+					}
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					running.decrementAndGet();
+					done.countDown();
+				}
+			}, "test" + i, null, failOnException);
+		}
+		// Wait for the pool to fill up
+		for (int i = 0; i < 50 && executor.getActiveCount() < 2; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(2, executor.getActiveCount());
+		assertEquals(3, executor.getQueueSize());
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(2, maxRunning.get());
+		assertEquals(0, executor.getQueueSize());
+	}
+
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.dispatch.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.invocation.IterationInternalEvent;
+import net.sf.taverna.t2.monitor.MonitorableProperty;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.Processor;
+import net.sf.taverna.t2.workflowmodel.processor.activity.Activity;
+import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.NotifiableLayer;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchJobQueueEvent;
+import net.sf.taverna.t2.workflowmodel.processor.iteration.Concurrently;
+import net.sf.taverna.t2.workflowmodel.processor.iteration.DummyInvocationContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the delivery of event queues to the layers of a
+ * {@link DispatchStackImpl}, including events for many owning processes
+ * arriving from different threads.
+ * 
+ */
+public class DispatchStackImplTest {
+
+	private InvocationContext context = new DummyInvocationContext();
+
+	private Set<String> satisfied = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private TestStack stack;
+
+	private QueueLayer layer;
+
+	@Test
+	public void queueHeldUntilConditionsSatisfied() throws Exception {
+		stack.receiveEvent(job("run1:proc", 0));
+		stack.receiveEvent(job("run1:proc", 1));
+		assertEquals(0, layer.pushes.get());
+
+		satisfied.add("run1");
+		stack.satisfyConditions("run1");
+		assertEquals(1, layer.pushes.get());
+		assertEquals(2, layer.drained.get());
+
+		stack.receiveEvent(job("run1:proc", 2));
+		assertEquals(3, layer.drained.get());
+		// Satisfying the conditions again doesn't push the queue twice
+		stack.satisfyConditions("run1");
+		assertEquals(1, layer.pushes.get());
+		assertEquals(Collections.emptyList(), layer.failures);
+	}
+
+	@Test
+	public void eventAfterConditionsSatisfiedPushesQueue() throws Exception {
+		stack.receiveEvent(job("run1:proc", 0));
+		satisfied.add("run1");
+		// The event arrives before the stack is told about the conditions
+		stack.receiveEvent(job("run1:proc", 1));
+		assertEquals(1, layer.pushes.get());
+		assertEquals(2, layer.drained.get());
+		stack.satisfyConditions("run1");
+		assertEquals(1, layer.pushes.get());
+		assertEquals(Collections.emptyList(), layer.failures);
+	}
+
+	@Test
+	public void onlyNotifiableLayersNotified() throws Exception {
+		satisfied.add("run1");
+		QueueLayer second = new QueueLayer();
+		stack.addLayer(second);
+		stack.receiveEvent(job("run1:proc", 0));
+		// Only the first layer receives the queue
+		assertEquals(0, second.pushes.get());
+		stack.receiveEvent(job("run1:proc", 1));
+		assertEquals(1, second.failures.size());
+
+		stack.removeLayer(second);
+		stack.receiveEvent(job("run1:proc", 2));
+		assertEquals(1, second.failures.size());
+		assertEquals(3, layer.drained.get());
+	}
+
+	@Test
+	public void concurrentOwningProcesses() throws Exception {
+		final int owners = 16;
+		final int threadsPerOwner = 2;
+		final int eventsPerThread = 500;
+		for (int i = 0; i < owners; i++) {
+			satisfied.add("run" + i);
+		}
+		Concurrently.run(owners * threadsPerOwner, new Concurrently.Task() {
+			public void run(int thread) {
+				String owningProcess = "run" + (thread % owners) + ":proc";
+				for (int i = 0; i < eventsPerThread; i++) {
+					stack.receiveEvent(job(owningProcess, i));
+				}
+			}
+		});
+		assertEquals(Collections.emptyList(), layer.failures);
+		assertEquals(owners, layer.pushes.get());
+		assertEquals(owners * threadsPerOwner * eventsPerThread, layer.drained
+				.get());
+	}
+
+	@Before
+	public void makeStack() {
+		stack = new TestStack();
+		layer = new QueueLayer();
+		stack.addLayer(layer);
+	}
+
+	private Job job(String owningProcess, int index) {
+		return new Job(owningProcess, new int[] { index },
+				new HashMap<String, T2Reference>(), context);
+	}
+
+	/**
+	 * A notifiable layer which drains its queues as events are added, failing
+	 * if it is notified about a queue it hasn't received
+	 */
+	private static class QueueLayer extends AbstractDispatchLayer<Object>
+			implements NotifiableLayer {
+
+		private Map<String, BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>> queues = new ConcurrentHashMap<String, BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>>();
+
+		private AtomicInteger pushes = new AtomicInteger();
+
+		private AtomicInteger drained = new AtomicInteger();
+
+		private List<String> failures = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void receiveJobQueue(DispatchJobQueueEvent queueEvent) {
+			if (queues.put(queueEvent.getOwningProcess(), queueEvent
+					.getQueue()) != null) {
+				failures.add("Queue pushed twice for "
+						+ queueEvent.getOwningProcess());
+			}
+			pushes.incrementAndGet();
+			drain(queueEvent.getOwningProcess());
+		}
+
+		public void eventAdded(String owningProcess) {
+			if (!queues.containsKey(owningProcess)) {
+				failures.add("Unknown owning process " + owningProcess);
+				return;
+			}
+			drain(owningProcess);
+		}
+
+		private void drain(String owningProcess) {
+			while (queues.get(owningProcess).poll() != null) {
+				drained.incrementAndGet();
+			}
+		}
+
+		public void configure(Object config) {
+		}
+
+		public Object getConfiguration() {
+			return null;
+		}
+	}
+
+	private class TestStack extends DispatchStackImpl {
+
+		@Override
+		protected boolean conditionsSatisfied(String owningProcess) {
+			return satisfied.contains(owningProcess);
+		}
+
+		@Override
+		protected void finishedWith(String owningProcess) {
+		}
+
+		@Override
+		protected List<? extends Activity<?>> getActivities() {
+			return new ArrayList<Activity<?>>();
+		}
+
+		@Override
+		protected String getProcessName() {
+			return "proc";
+		}
+
+		@Override
+		protected void pushEvent(
+				IterationInternalEvent<? extends IterationInternalEvent<?>> e) {
+		}
+
+		public Processor getProcessor() {
+			return null;
+		}
+
+		public void receiveMonitorableProperty(MonitorableProperty<?> prop,
+				String processID) {
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.dispatch.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SerialEventExecutorTest {
+
+	@Test
+	public void testDeliveredInOrder() throws InterruptedException {
+		SerialEventExecutor executor = new SerialEventExecutor("test");
+		final List<Integer> delivered = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(1000);
+		for (int i = 0; i < 1000; i++) {
+			final int event = i;
+			executor.execute(new Runnable() {
+				public void run() {
+					delivered.add(event);
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, delivered.get(i).intValue());
+		}
+	}
+
+	@Test
+	public void testNeverConcurrent() throws InterruptedException {
+		final SerialEventExecutor executor = new SerialEventExecutor("test");
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final Set<Thread> threads = Collections
+				.synchronizedSet(new HashSet<Thread>());
+		final CountDownLatch done = new CountDownLatch(400);
+		final Runnable event = new Runnable() {
+			public void run() {
+				if (running.incrementAndGet() > 1) {
+					overlaps.incrementAndGet();
+				}
+				threads.add(Thread.currentThread());
+				running.decrementAndGet();
+				done.countDown();
+			}
+		};
+		List<Thread> submitters = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			Thread submitter = new Thread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						executor.execute(event);
+					}
+				}
+			});
+			submitters.add(submitter);
+			submitter.start();
+		}
+		for (Thread submitter : submitters) {
+			submitter.join();
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, overlaps.get());
+		assertTrue("Should reuse delivery threads", threads.size() < 400);
+	}
+
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.dispatch.layers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+
+	private static final long MS = 1000000L;
+
+	@Test
+	public void testGrowsWhileLatencyIsFlat() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 50);
+		assertEquals(1, limit.getLimit());
+		for (int i = 0; i < 500; i++) {
+			limit.addSample(10 * MS, false);
+		}
+		assertEquals(50, limit.getLimit());
+	}
+
+	@Test
+	public void testShrinksWhenLatencyRises() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 50);
+		for (int i = 0; i < 500; i++) {
+			limit.addSample(10 * MS, false);
+		}
+		for (int i = 0; i < 50; i++) {
+			limit.addSample(100 * MS, false);
+		}
+		assertTrue("Limit should have dropped, was " + limit.getLimit(),
+				limit.getLimit() < 25);
+	}
+
+	@Test
+	public void testBacksOffOnFailure() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 50);
+		for (int i = 0; i < 500; i++) {
+			limit.addSample(10 * MS, false);
+		}
+		for (int i = 0; i < 100; i++) {
+			limit.addSample(10 * MS, true);
+		}
+		assertEquals(2, limit.getLimit());
+	}
+
+	@Test
+	public void testPercentiles() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 10);
+		assertEquals(-1.0, limit.getLatencyPercentile(50), 0.0);
+		for (int i = 1; i <= 100; i++) {
+			limit.addSample(i * MS, false);
+		}
+		assertEquals(50.0, limit.getLatencyPercentile(50), 0.0);
+		assertEquals(90.0, limit.getLatencyPercentile(90), 0.0);
+		assertEquals(100.0, limit.getLatencyPercentile(100), 0.0);
+	}
+
+	@Test
+	public void testSlotsLimitedToLimit() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(3, 50);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(limit.tryAcquire());
+		}
+		assertFalse(limit.tryAcquire());
+		limit.release();
+		assertEquals(2, limit.getInFlight());
+		assertTrue(limit.tryAcquire());
+		assertFalse(limit.tryAcquire());
+	}
+
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.workflowmodel.processor.dispatch.layers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.sf.taverna.t2.invocation.Completion;
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.invocation.IterationInternalEvent;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.Activity;
+import net.sf.taverna.t2.workflowmodel.processor.activity.Job;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.DispatchLayer;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.DispatchStack;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchJobQueueEvent;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+import net.sf.taverna.t2.workflowmodel.processor.iteration.DummyInvocationContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelizeTest {
+
+	private static final String OWNER = "process";
+
+	private static final InvocationContext context = new DummyInvocationContext();
+
+	private final BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> queue = new LinkedBlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>();
+
+	private final List<String> jobs = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private final List<String> jobOwners = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private final List<String> completions = new ArrayList<String>();
+
+	private Parallelize parallelize;
+
+	/**
+	 * Called with each completion reaching the layer above
+	 */
+	private Runnable onCompletion = null;
+
+	@Before
+	public void createStack() {
+		parallelize = new Parallelize(10);
+		final DispatchLayer<?> above = new TestLayer() {
+			@Override
+			public void receiveResult(DispatchResultEvent resultEvent) {
+			}
+
+			@Override
+			public void receiveResultCompletion(
+					DispatchCompletionEvent completionEvent) {
+				completions.add(Arrays.toString(completionEvent.getIndex()));
+				if (onCompletion != null) {
+					onCompletion.run();
+				}
+			}
+		};
+		final DispatchLayer<?> below = new TestLayer() {
+			@Override
+			public void receiveJob(DispatchJobEvent jobEvent) {
+				jobOwners.add(jobEvent.getOwningProcess());
+				jobs.add(Arrays.toString(jobEvent.getIndex()));
+			}
+		};
+		parallelize.setDispatchStack((DispatchStack) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class[] { DispatchStack.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("layerAbove")) {
+							return above;
+						} else if (method.getName().equals("layerBelow")) {
+							return below;
+						}
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				}));
+	}
+
+	private static Job job(int... index) {
+		return new Job(OWNER, index, new HashMap<String, T2Reference>(), context);
+	}
+
+	private static Completion completion(int... index) {
+		return new Completion(OWNER, index, context);
+	}
+
+	private void start() {
+		parallelize.receiveJobQueue(new DispatchJobQueueEvent(OWNER, context,
+				queue, Collections.<Activity<?>> emptyList()));
+	}
+
+	private void finish(int... index) {
+		parallelize.receiveResult(new DispatchResultEvent(OWNER, index, context,
+				new HashMap<String, T2Reference>(), false));
+	}
+
+	@Test
+	public void testCompletionsInOrderWhenJobsFinishOutOfOrder() {
+		queue.add(job(0, 0));
+		queue.add(job(0, 1));
+		queue.add(completion(0));
+		queue.add(job(1, 0));
+		queue.add(completion(1));
+		queue.add(completion());
+		start();
+		assertEquals(Arrays.asList("[0, 0]", "[0, 1]", "[1, 0]"), jobs);
+
+		finish(1, 0);
+		finish(0, 1);
+		// Everything is held back behind the first job
+		assertEquals(0, completions.size());
+		finish(0, 0);
+		assertEquals(Arrays.asList("[0]", "[1]", "[]"), completions);
+	}
+
+	@Test
+	public void testCompletionsHeldBehindEarlierJobs() {
+		queue.add(job(0, 0));
+		queue.add(completion(0));
+		queue.add(job(1, 0));
+		queue.add(completion(1));
+		start();
+
+		finish(0, 0);
+		assertEquals(Arrays.asList("[0]"), completions);
+		finish(1, 0);
+		assertEquals(Arrays.asList("[0]", "[1]"), completions);
+	}
+
+	@Test
+	public void testCompletionReenteringStateModel() {
+		queue.add(job(0, 0));
+		queue.add(completion(0));
+		queue.add(completion(1));
+		start();
+		// The layer above reacts to the first completion by queueing more
+		// work, which is taken while the completions are being sent
+		onCompletion = new Runnable() {
+			public void run() {
+				onCompletion = null;
+				queue.add(job(2, 0));
+				queue.add(completion(2));
+				parallelize.eventAdded(OWNER);
+			}
+		};
+		finish(0, 0);
+		assertEquals(Arrays.asList("[0, 0]", "[2, 0]"), jobs);
+		assertEquals(Arrays.asList("[0]", "[1]"), completions);
+		finish(2, 0);
+		assertEquals(Arrays.asList("[0]", "[1]", "[2]"), completions);
+	}
+
+	@Test
+	public void testAdaptiveLimitSharedByProcesses() throws Exception {
+		ParallelizeConfig config = new ParallelizeConfig();
+		config.setAdaptive(true);
+		config.setMinimumJobs(2);
+		config.setMaximumJobs(2);
+		parallelize.configure(config);
+		queue.add(job(0));
+		queue.add(job(1));
+		start();
+		BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> otherQueue = new LinkedBlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>();
+		otherQueue.add(new Job("other", new int[] { 0 },
+				new HashMap<String, T2Reference>(), context));
+		parallelize.receiveJobQueue(new DispatchJobQueueEvent("other",
+				context, otherQueue, Collections.<Activity<?>> emptyList()));
+		// The second process waits as the first holds both slots
+		assertEquals(2, jobs.size());
+		assertEquals(2, parallelize.getAdaptiveLimit().getInFlight());
+
+		finish(0);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (jobs.size() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(3, jobs.size());
+		assertEquals("other", jobOwners.get(2));
+		assertEquals(2, parallelize.getAdaptiveLimit().getInFlight());
+	}
+
+	private static class TestLayer extends AbstractDispatchLayer<Object> {
+
+		public void configure(Object config) {
+		}
+
+		public Object getConfiguration() {
+			return null;
+		}
+
+	}
+
+}